@@ -0,0 +1,122 @@
+package adts;
+
+import java.util.Arrays;
+
+/**
+ * A LineStore that keeps the segments on the heap, in chunks of primitive
+ * arrays (one array per column): 20 bytes per segment, with no object header
+ * or reference. Chunks are only added, never copied or moved.
+ *
+ * Concurrency argument:
+ *      Only the single writer changes the chunks. A new chunk is published by
+ *      writing the chunks array (a volatile) before the high-water mark covers
+ *      any segment in it, so readers that read the mark first find the chunk.
+ *      Chunks are plain arrays, so there is nothing to free.
+ */
+public class ArrayLineStore extends LineStore {
+
+    /**
+     * Makes array line stores
+     */
+    public static final LineStoreFactory FACTORY = new LineStoreFactory() {
+        public LineStore newLineStore() {
+            return new ArrayLineStore();
+        }
+    };
+
+    /**
+     * The number of segments in one chunk
+     */
+    private static final int LINES_PER_CHUNK = 1024;
+
+    /**
+     * The columns of LINES_PER_CHUNK segments
+     */
+    private static class Chunk {
+        private final int[] x1 = new int[LINES_PER_CHUNK];
+        private final int[] y1 = new int[LINES_PER_CHUNK];
+        private final int[] x2 = new int[LINES_PER_CHUNK];
+        private final int[] y2 = new int[LINES_PER_CHUNK];
+
+        /**
+         * The numbers of the styles in the palette
+         */
+        private final int[] style = new int[LINES_PER_CHUNK];
+    }
+
+    /**
+     * The chunks, in order. Segment i is in chunk i / LINES_PER_CHUNK.
+     */
+    private volatile Chunk[] chunks;
+
+    /**
+     * Create an empty store, which takes no chunk yet
+     */
+    public ArrayLineStore() {
+        super();
+        this.chunks = new Chunk[0];
+    }
+
+    @Override
+    protected boolean write(int index, int x1, int y1, int x2, int y2,
+            int style) {
+        Chunk[] current = this.chunks;
+        if (index == current.length * LINES_PER_CHUNK) {
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = new Chunk();
+            this.chunks = current;
+        }
+        Chunk chunk = current[index / LINES_PER_CHUNK];
+        int i = index % LINES_PER_CHUNK;
+        chunk.x1[i] = x1;
+        chunk.y1[i] = y1;
+        chunk.x2[i] = x2;
+        chunk.y2[i] = y2;
+        chunk.style[i] = style;
+        return true;
+    }
+
+    @Override
+    protected int readX1(int i) {
+        return this.chunks[i / LINES_PER_CHUNK].x1[i % LINES_PER_CHUNK];
+    }
+
+    @Override
+    protected int readY1(int i) {
+        return this.chunks[i / LINES_PER_CHUNK].y1[i % LINES_PER_CHUNK];
+    }
+
+    @Override
+    protected int readX2(int i) {
+        return this.chunks[i / LINES_PER_CHUNK].x2[i % LINES_PER_CHUNK];
+    }
+
+    @Override
+    protected int readY2(int i) {
+        return this.chunks[i / LINES_PER_CHUNK].y2[i % LINES_PER_CHUNK];
+    }
+
+    @Override
+    protected int readStyle(int i) {
+        return this.chunks[i / LINES_PER_CHUNK].style[i % LINES_PER_CHUNK];
+    }
+
+    @Override
+    public void appendTo(StringBuilder out, int count) {
+        Chunk[] current = this.chunks;
+        for (int start = 0; start < count; start += LINES_PER_CHUNK) {
+            Chunk chunk = current[start / LINES_PER_CHUNK];
+            int lines = Math.min(count - start, LINES_PER_CHUNK);
+            for (int i = 0; i < lines; i++) {
+                this.appendSegment(out, chunk.x1[i], chunk.y1[i], chunk.x2[i],
+                        chunk.y2[i], this.strokeThicknessOf(start + i, chunk.style[i]),
+                        this.rgbaOf(start + i, chunk.style[i]));
+            }
+        }
+    }
+
+    @Override
+    protected void free() {
+        // the chunks are garbage collected
+    }
+}
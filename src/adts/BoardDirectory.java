@@ -0,0 +1,153 @@
+package adts;
+
+import java.util.Arrays;
+
+/**
+ * A snapshot of the IDs and names of all boards (the lobby included), in the
+ * order they were added, with a version number. Boards are never removed, so
+ * the version is simply the number of boards, and the boards added since an
+ * older version are the ones from that index on. Adding a board publishes a
+ * new snapshot instead of changing the old one, so the listing of its boards
+ * is built once per snapshot and handed to everybody.
+ *
+ * Concurrency argument:
+ *      The arrays are copied when a board is added, and never changed or
+ *      exposed afterwards. The listing is built from them the first time it
+ *      is asked for; two threads may both build it, but they build the same
+ *      String, and it is published through a volatile field.
+ */
+public class BoardDirectory {
+
+    /**
+     * The snapshot before any board was added
+     */
+    public static final BoardDirectory EMPTY = new BoardDirectory(new int[0],
+            new String[0]);
+
+    /**
+     * The IDs of the boards, in the order they were added
+     */
+    private final int[] boardIDs;
+
+    /**
+     * The names of the boards, boardNames[i] is the name of boardIDs[i]
+     */
+    private final String[] boardNames;
+
+    /**
+     * ' [id1] [name1] [id2] [name2]...', or null if not built yet
+     */
+    private volatile String listing;
+
+    /**
+     * @param boardIDs
+     *            the IDs of the boards, not changed afterwards
+     * @param boardNames
+     *            the names of the boards, not changed afterwards
+     */
+    private BoardDirectory(int[] boardIDs, String[] boardNames) {
+        this.boardIDs = boardIDs;
+        this.boardNames = boardNames;
+    }
+
+    /**
+     * @return the version of this snapshot, which is the number of boards in
+     *         it
+     */
+    public long getVersion() {
+        return this.boardIDs.length;
+    }
+
+    /**
+     * @return the number of boards
+     */
+    public int size() {
+        return this.boardIDs.length;
+    }
+
+    /**
+     * @param index
+     *            the index of a board, in the order the boards were added
+     * @return the ID of the board
+     */
+    public int getBoardID(int index) {
+        return this.boardIDs[index];
+    }
+
+    /**
+     * @param index
+     *            the index of a board, in the order the boards were added
+     * @return the name of the board
+     */
+    public String getBoardName(int index) {
+        return this.boardNames[index];
+    }
+
+    /**
+     * @param knownVersion
+     *            the version of an older snapshot
+     * @return the index of the first board that the snapshot with the given
+     *         version does not know about, or 0 if no such snapshot came
+     *         before this one (so every board is new)
+     */
+    public int firstIndexAfter(long knownVersion) {
+        if (knownVersion < 0 || knownVersion > this.getVersion()) {
+            return 0;
+        }
+        return (int) knownVersion;
+    }
+
+    /**
+     * @param knownVersion
+     *            the version of the snapshot a client says it knows
+     * @return the version a delta for that client starts from: the known
+     *         version, or 0 if no such snapshot came before this one (so every
+     *         board is new)
+     */
+    public long baseVersion(long knownVersion) {
+        return this.firstIndexAfter(knownVersion);
+    }
+
+    /**
+     * @return ' [id1] [name1] [id2] [name2]...', every board in the order they
+     *         were added, each one preceded by a space
+     */
+    public String getListing() {
+        String listing = this.listing;
+        if (listing == null) {
+            listing = this.getListing(0);
+            this.listing = listing;
+        }
+        return listing;
+    }
+
+    /**
+     * @param version
+     *            the version of an older snapshot
+     * @return ' [id1] [name1]...', the boards added after the snapshot with
+     *         the given version (every board if there is none), each one
+     *         preceded by a space
+     */
+    public String getListing(long version) {
+        StringBuilder listing = new StringBuilder();
+        for (int i = this.firstIndexAfter(version); i < this.boardIDs.length; i++) {
+            listing.append(" " + this.boardIDs[i] + " " + this.boardNames[i]);
+        }
+        return listing.toString();
+    }
+
+    /**
+     * @param boardID
+     *            the ID of the board that was added
+     * @param boardName
+     *            the name of the board that was added
+     * @return the next snapshot, with the board at the end
+     */
+    public BoardDirectory with(int boardID, String boardName) {
+        int[] nextIDs = Arrays.copyOf(this.boardIDs, this.boardIDs.length + 1);
+        String[] nextNames = Arrays.copyOf(this.boardNames, this.boardNames.length + 1);
+        nextIDs[this.boardIDs.length] = boardID;
+        nextNames[this.boardNames.length] = boardName;
+        return new BoardDirectory(nextIDs, nextNames);
+    }
+}
@@ -0,0 +1,111 @@
+package adts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The latest operations on a board, numbered in the order they were made.
+ * Every line drawn and every clear gets the next sequence number (the first
+ * one gets 1), so a user who saw the board up to some number can be sent
+ * just the operations after it instead of the whole board, as long as they
+ * are still kept. Only the last CAPACITY operations are kept, and the room
+ * for them grows with the operations made, so a board that is hardly drawn
+ * on keeps a small history.
+ *
+ * Concurrency argument:
+ *      Operations are only recorded and looked up by the board's writer,
+ *      holding its writeLock. The sequence number is a volatile, so it can
+ *      be read without the lock.
+ */
+public class BoardHistory {
+
+    /**
+     * The most operations kept
+     */
+    public static final int CAPACITY = 4096;
+
+    /**
+     * The room for operations made first
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The operations kept, the one numbered n at n % CAPACITY. A clear is
+     * kept as null, a line drawn as the line. It doubles (up to CAPACITY)
+     * when the next operation does not fit, so it only wraps around once it
+     * has CAPACITY elements.
+     */
+    private Line[] operations;
+
+    /**
+     * The number of the last operation, 0 if there was none
+     */
+    private volatile long sequence;
+
+    /**
+     * Create the history of a board with no operations
+     */
+    public BoardHistory() {
+        this.operations = new Line[0];
+        this.sequence = 0;
+    }
+
+    /**
+     * Records that a line was drawn
+     *
+     * @param line
+     *            the line drawn
+     * @return the number of the operation
+     */
+    long recordDraw(Line line) {
+        return this.record(line);
+    }
+
+    /**
+     * Records that the board was cleared
+     *
+     * @return the number of the operation
+     */
+    long recordClear() {
+        return this.record(null);
+    }
+
+    private long record(Line line) {
+        long next = this.sequence + 1;
+        int index = (int) (next % CAPACITY);
+        if (index >= this.operations.length) {
+            this.operations = Arrays.copyOf(this.operations, Math.min(CAPACITY,
+                    Math.max(INITIAL_CAPACITY, 2 * this.operations.length)));
+        }
+        this.operations[index] = line;
+        this.sequence = next;
+        return next;
+    }
+
+    /**
+     * @return the number of the last operation, 0 if there was none
+     */
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    /**
+     * @param since
+     *            the number of the last operation a user saw
+     * @return the operations after it in order (a clear as null, a line
+     *         drawn as the line), or null if some of them are not kept any
+     *         more or since is not the number of an operation made
+     */
+    List<Line> since(long since) {
+        long last = this.sequence;
+        if (since < 0 || since > last || last - since > CAPACITY) {
+            return null;
+        }
+        List<Line> missed = new ArrayList<Line>((int) (last - since));
+        for (long n = since + 1; n <= last; n++) {
+            missed.add(this.operations[(int) (n % CAPACITY)]);
+        }
+        return missed;
+    }
+}
@@ -0,0 +1,261 @@
+package adts;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The ink of the lines of one board, drawn into an image with a transparent
+ * background as the lines are added, so that a BoardSnapshot of the board
+ * can be made without drawing every line again. Only the lines added since
+ * the last time are drawn; a board that was cleared or compacted (whose
+ * store has a new ID) is drawn again from its first line.
+ *
+ * The lines are drawn the way the client draws them (view.Canvas: a
+ * BasicStroke of their thickness with round caps and joins, no
+ * antialiasing), so drawing the image and then the lines after it gives the
+ * same pixels as drawing every line, up to rounding where translucent ink
+ * overlaps. The image only covers the lines up to MAX_SIDE pixels from the
+ * top left of the board; once a line reaches outside of that (or to negative
+ * coordinates) the store gets no snapshot at all. Lines whose thickness the
+ * client could not draw are left out, like the client does.
+ *
+ * Thread-safety:
+ *      A raster is only used by one thread at a time (the snapshotter's).
+ *      The snapshots it makes are immutable.
+ */
+public class BoardRaster {
+
+    /**
+     * The most pixels the image is wide or high
+     */
+    public static final int MAX_SIDE = 4096;
+
+    /**
+     * The image grows in steps of this many pixels
+     */
+    private static final int GROWTH = 256;
+
+    /**
+     * The ink of the lines drawn, or null if none were drawn or they do not
+     * fit
+     */
+    private BufferedImage image;
+
+    /**
+     * The ID of the store whose lines are drawn, -1 if none
+     */
+    private long storeID;
+
+    /**
+     * The number of lines of the store drawn (or looked at, if they do not
+     * fit)
+     */
+    private int lineCount;
+
+    /**
+     * False once a line of the store reached outside of MAX_SIDE x MAX_SIDE
+     */
+    private boolean fits;
+
+    /**
+     * The strokes and colors of the styles of the store, by number, made the
+     * first time a line of the style is drawn
+     */
+    private final List<BasicStroke> strokes;
+    private final List<Color> colors;
+
+    /**
+     * Creates a raster with no lines drawn
+     */
+    public BoardRaster() {
+        this.image = null;
+        this.storeID = -1;
+        this.lineCount = 0;
+        this.fits = true;
+        this.strokes = new ArrayList<BasicStroke>();
+        this.colors = new ArrayList<Color>();
+    }
+
+    /**
+     * Draws the lines of a store below a count that are not drawn yet, once
+     * there are enough of them
+     *
+     * @param lines
+     *            the lines of the board
+     * @param count
+     *            the number of lines to draw up to, at most lines.size()
+     * @param minNewLines
+     *            the number of lines, at least 1, that must be waiting to be
+     *            drawn before they are drawn (the first lines of a store are
+     *            drawn however few they are)
+     * @return true if the snapshot of the raster changed since this was last
+     *         called
+     */
+    boolean render(LineStore lines, int count, int minNewLines) {
+        // the image of a store drawn before is dropped
+        boolean dropped = false;
+        boolean first = lines.getStoreID() != this.storeID;
+        if (first) {
+            dropped = this.image != null;
+            this.image = null;
+            this.storeID = lines.getStoreID();
+            this.lineCount = 0;
+            this.fits = true;
+            this.strokes.clear();
+            this.colors.clear();
+        }
+        if (count == this.lineCount || !this.fits
+                || (!first && count - this.lineCount < minNewLines)) {
+            return dropped;
+        }
+        int width = this.image == null ? 0 : this.image.getWidth();
+        int height = this.image == null ? 0 : this.image.getHeight();
+        long right = 0;
+        long bottom = 0;
+        for (int i = this.lineCount; i < count; i++) {
+            float strokeThickness = lines.readStrokeThickness(i);
+            if (!BoardRaster.isDrawable(strokeThickness)) {
+                continue;
+            }
+            long reach = (long) Math.ceil(strokeThickness / 2) + 1;
+            if (Math.min(lines.readX1(i), lines.readX2(i)) - reach < 0
+                    || Math.min(lines.readY1(i), lines.readY2(i)) - reach < 0) {
+                return this.giveUp(count) || dropped;
+            }
+            right = Math.max(right, Math.max(lines.readX1(i), lines.readX2(i)) + reach);
+            bottom = Math.max(bottom, Math.max(lines.readY1(i), lines.readY2(i)) + reach);
+        }
+        if (right >= MAX_SIDE || bottom >= MAX_SIDE) {
+            return this.giveUp(count) || dropped;
+        }
+        if (right >= width || bottom >= height) {
+            this.grow(Math.max(width, BoardRaster.roundUp((int) right + 1)),
+                    Math.max(height, BoardRaster.roundUp((int) bottom + 1)));
+        }
+        Graphics2D g = this.image.createGraphics();
+        try {
+            for (int i = this.lineCount; i < count; i++) {
+                float strokeThickness = lines.readStrokeThickness(i);
+                if (!BoardRaster.isDrawable(strokeThickness)) {
+                    continue;
+                }
+                int style = lines.readStyle(i);
+                if (style == LineStore.UNNUMBERED) {
+                    // the palette was full, so the style is not kept
+                    g.setStroke(BoardRaster.strokeOf(strokeThickness));
+                    g.setColor(BoardRaster.colorOf(lines.readRGBA(i)));
+                    g.drawLine(lines.readX1(i), lines.readY1(i), lines.readX2(i),
+                            lines.readY2(i));
+                    continue;
+                }
+                while (this.strokes.size() <= style) {
+                    this.strokes.add(null);
+                    this.colors.add(null);
+                }
+                if (this.strokes.get(style) == null) {
+                    this.strokes.set(style, BoardRaster.strokeOf(strokeThickness));
+                    this.colors.set(style, BoardRaster.colorOf(lines.readRGBA(i)));
+                }
+                g.setStroke(this.strokes.get(style));
+                g.setColor(this.colors.get(style));
+                g.drawLine(lines.readX1(i), lines.readY1(i), lines.readX2(i),
+                        lines.readY2(i));
+            }
+        } finally {
+            g.dispose();
+        }
+        this.lineCount = count;
+        return true;
+    }
+
+    /**
+     * @return the number of bytes the image takes, 0 if there is none
+     */
+    public long getBytes() {
+        return this.image == null ? 0 : 4L * this.image.getWidth()
+                * this.image.getHeight();
+    }
+
+    /**
+     * @return a snapshot of the lines drawn, or null if there are none or
+     *         they do not fit
+     */
+    BoardSnapshot toSnapshot() {
+        if (this.image == null) {
+            return null;
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(this.image, "png", png);
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not fail
+            throw new IllegalStateException(e);
+        }
+        return new BoardSnapshot(this.storeID, this.lineCount,
+                this.image.getWidth(), this.image.getHeight(), png.toByteArray());
+    }
+
+    /**
+     * Drops the image, because a line does not fit
+     *
+     * @return true if there was an image
+     */
+    private boolean giveUp(int count) {
+        boolean hadImage = this.image != null;
+        this.image = null;
+        this.fits = false;
+        this.lineCount = count;
+        return hadImage;
+    }
+
+    /**
+     * Makes the image at least the given size, keeping what is drawn on it
+     */
+    private void grow(int width, int height) {
+        BufferedImage grown = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        if (this.image != null) {
+            // copies the pixels as they are, translucent ones included
+            grown.getRaster().setRect(this.image.getRaster());
+        }
+        this.image = grown;
+    }
+
+    /**
+     * @return the size rounded up to a step of the growth, at most MAX_SIDE
+     */
+    private static int roundUp(int size) {
+        return Math.min(MAX_SIDE, (size + GROWTH - 1) / GROWTH * GROWTH);
+    }
+
+    /**
+     * @return the stroke the client draws lines of this thickness with
+     */
+    private static BasicStroke strokeOf(float strokeThickness) {
+        return new BasicStroke(strokeThickness, BasicStroke.CAP_ROUND,
+                BasicStroke.JOIN_ROUND);
+    }
+
+    /**
+     * @return the color, packed as r << 24 | g << 16 | b << 8 | a
+     */
+    private static Color colorOf(int rgba) {
+        return new Color(rgba >>> 24, rgba >>> 16 & 0xff, rgba >>> 8 & 0xff,
+                rgba & 0xff);
+    }
+
+    /**
+     * @return true if the client can draw a line of this thickness
+     */
+    private static boolean isDrawable(float strokeThickness) {
+        return strokeThickness >= 0 && !Float.isInfinite(strokeThickness);
+    }
+}
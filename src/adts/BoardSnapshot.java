@@ -0,0 +1,94 @@
+package adts;
+
+/**
+ * ADT that represents a picture of the first lines of a board: the ink they
+ * leave, as a PNG image with a transparent background, of the lines of one
+ * store of the board up to a line count. A user joining the board can be
+ * sent the picture and only the lines drawn after it, instead of every line.
+ *
+ * Thread-safety:
+ *      A snapshot is immutable (the PNG bytes are never changed once it is
+ *      made), so it is shared between threads freely.
+ */
+public class BoardSnapshot {
+
+    /**
+     * The ID of the store whose lines are pictured (see LineStore.getStoreID)
+     */
+    private final long storeID;
+
+    /**
+     * The number of lines pictured, the first ones of the store
+     */
+    private final int lineCount;
+
+    /**
+     * The size of the picture in pixels, from the top left of the board
+     */
+    private final int width;
+    private final int height;
+
+    /**
+     * The picture, encoded as PNG
+     */
+    private final byte[] png;
+
+    /**
+     * Creates a snapshot
+     *
+     * @param storeID
+     *            the ID of the store whose lines are pictured
+     * @param lineCount
+     *            the number of lines pictured, the first ones of the store
+     * @param width
+     *            the width of the picture in pixels
+     * @param height
+     *            the height of the picture in pixels
+     * @param png
+     *            the picture encoded as PNG, which must not be changed
+     *            afterwards
+     */
+    public BoardSnapshot(long storeID, int lineCount, int width, int height,
+            byte[] png) {
+        this.storeID = storeID;
+        this.lineCount = lineCount;
+        this.width = width;
+        this.height = height;
+        this.png = png;
+    }
+
+    /**
+     * @return the ID of the store whose lines are pictured
+     */
+    public long getStoreID() {
+        return this.storeID;
+    }
+
+    /**
+     * @return the number of lines pictured, the first ones of the store
+     */
+    public int getLineCount() {
+        return this.lineCount;
+    }
+
+    /**
+     * @return the width of the picture in pixels
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * @return the height of the picture in pixels
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * @return the picture encoded as PNG, which must not be changed
+     */
+    public byte[] getPng() {
+        return this.png;
+    }
+}
@@ -0,0 +1,627 @@
+package adts;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The lines of a board, kept as an append-only log of columns of primitives
+ * instead of one Line object per segment. A segment takes 4 ints for its
+ * coordinates and 1 int for the number of its style (stroke thickness and
+ * color) in the store's StylePalette. Subclasses decide where those live (on
+ * the heap, or off it), in fixed-size chunks that never move once allocated.
+ * Once the palette is full, a segment of a new style gets UNNUMBERED instead,
+ * and its style is kept on the side; such a store cannot be encoded with
+ * style numbers any more.
+ *
+ * Segments are never changed or removed once added. A board is cleared by
+ * replacing its store with a new one, and the old store is released once
+ * nobody reads it any more.
+ *
+ * The lines can be read by index, or encoded in bulk in the format of
+ * Line.toString, without making Line objects. Color components are kept in
+ * 8 bits each, so they must be between 0 and 255. Every segment is also
+ * listed in a SegmentIndex, so the segments that cross a rectangle can be
+ * found without reading the others.
+ *
+ * Concurrency argument:
+ *      Only one thread at a time may add segments (Whiteboard serializes the
+ *      writers). A segment is written to its chunk before the high-water mark
+ *      (a volatile) is raised past it, and subclasses publish a chunk through
+ *      a volatile before the mark covers it, and the segment is
+ *      listed in the index, and its style interned in the palette (or put
+ *      in the ConcurrentHashMap of unnumbered styles), before
+ *      the mark covers it too. So a reader that reads the mark
+ *      first sees every segment below it completely, without a lock, and
+ *      never waits for the writer. Reading the same mark once for a whole
+ *      snapshot gives an exact point-in-time prefix.
+ *
+ *      The store is reference counted: its owner holds one reference, and a
+ *      reader on another thread takes one with retain() before reading and
+ *      gives it back with release(). The memory of the store is freed by
+ *      whoever gives back the last reference, so it is never freed while
+ *      somebody still reads it. The encoded strokes are a ConcurrentHashMap.
+ */
+public abstract class LineStore {
+
+    /**
+     * The number of bytes that one segment takes
+     */
+    public static final int BYTES_PER_LINE = 20;
+
+    /**
+     * The style number of a segment whose style did not fit in the palette
+     */
+    public static final int UNNUMBERED = -1;
+
+    /**
+     * The most stroke thicknesses whose encoding is kept
+     */
+    private static final int MAX_ENCODED_STROKES = 64;
+
+    /**
+     * The ID of the next store made
+     */
+    private static final AtomicLong NEXT_STORE_ID = new AtomicLong(0);
+
+    /**
+     * The ID of this store, which no other store has had
+     */
+    private final long storeID;
+
+    /**
+     * The number of segments that readers may read
+     */
+    private volatile int highWaterMark;
+
+    /**
+     * The number of references to this store, 0 once its memory is freed
+     */
+    private final AtomicInteger references;
+
+    /**
+     * Key = stroke thickness Value = the thickness as encoded by
+     * Line.toString. Boards only use a handful of thicknesses, and formatting
+     * a float is the slowest part of encoding a segment.
+     */
+    private final ConcurrentMap<Float, String> encodedStrokes;
+
+    /**
+     * The cells that each segment's bounding box overlaps
+     */
+    private final SegmentIndex index;
+
+    /**
+     * The styles of the segments
+     */
+    private final StylePalette palette;
+
+    /**
+     * Key = the index of a segment whose style did not fit in the palette
+     * Value = its style, as the bits of its stroke thickness << 32 | its color
+     */
+    private final ConcurrentMap<Integer, Long> unnumberedStyles;
+
+    /**
+     * Create an empty store, with one reference held by its owner
+     */
+    protected LineStore() {
+        this.storeID = NEXT_STORE_ID.getAndIncrement();
+        this.highWaterMark = 0;
+        this.references = new AtomicInteger(1);
+        this.encodedStrokes = new ConcurrentHashMap<Float, String>();
+        this.index = new SegmentIndex();
+        this.palette = new StylePalette();
+        this.unnumberedStyles = new ConcurrentHashMap<Integer, Long>();
+    }
+
+    /**
+     * @param line
+     *            the segment to add after the others
+     * @return true if the segment was added, false if there was no room
+     */
+    public boolean add(Line line) {
+        return this.add(line.getX1(), line.getY1(), line.getX2(), line.getY2(),
+                line.getStrokeThickness(), line.getR(), line.getG(),
+                line.getB(), line.getA());
+    }
+
+    /**
+     * Adds a segment after the others, and makes it visible to readers
+     *
+     * @return true if the segment was added, false if there was no room
+     */
+    public boolean add(int x1, int y1, int x2, int y2, float strokeThickness,
+            int r, int g, int b, int a) {
+        return this.append(x1, y1, x2, y2, strokeThickness, pack(r, g, b, a));
+    }
+
+    /**
+     * Adds a segment after the others, and makes it visible to readers
+     *
+     * @param rgba
+     *            the color packed as r << 24 | g << 16 | b << 8 | a
+     * @return true if the segment was added, false if there was no room
+     */
+    private boolean append(int x1, int y1, int x2, int y2,
+            float strokeThickness, int rgba) {
+        int index = this.highWaterMark;
+        // a new style is only interned once its first segment is written, so
+        // a segment that finds no room does not use up a number
+        int style = this.palette.numberOf(strokeThickness, rgba);
+        if (!this.write(index, x1, y1, x2, y2, style)) {
+            return false;
+        }
+        if (style == this.palette.size()) {
+            this.palette.intern(strokeThickness, rgba);
+        } else if (style == UNNUMBERED) {
+            // the palette is full
+            this.unnumberedStyles.put(index, (long) Float.floatToIntBits(strokeThickness) << 32
+                    | (rgba & 0xffffffffL));
+        }
+        int reach = halfStroke(strokeThickness);
+        this.index.add(index, Math.min(x1, x2) - reach, Math.min(y1, y2) - reach,
+                Math.max(x1, x2) + reach, Math.max(y1, y2) + reach);
+        this.highWaterMark = index + 1;
+        return true;
+    }
+
+    /**
+     * Writes a segment past the high-water mark, making room for it if needed.
+     * Any chunk made must be published through a volatile before returning.
+     *
+     * @param index
+     *            the index of the segment, which is the high-water mark
+     * @param style
+     *            the number of the style of the segment in the palette
+     * @return true if the segment was written, false if there was no room
+     */
+    protected abstract boolean write(int index, int x1, int y1, int x2,
+            int y2, int style);
+
+    /**
+     * @return the styles of the segments, which only grow
+     */
+    public StylePalette getPalette() {
+        return this.palette;
+    }
+
+    /**
+     * @return the ID of this store, which no other store has had (so a board
+     *         that was cleared or compacted has a store with a new ID)
+     */
+    public long getStoreID() {
+        return this.storeID;
+    }
+
+    /**
+     * @return the number of segments that readers may read, which only grows
+     */
+    public int size() {
+        return this.highWaterMark;
+    }
+
+    /**
+     * @param i
+     *            the index of a segment
+     * @return the x coordinate of the start of the segment
+     */
+    public int getX1(int i) {
+        return this.readX1(this.checkIndex(i));
+    }
+
+    /**
+     * @param i
+     *            the index of a segment
+     * @return the y coordinate of the start of the segment
+     */
+    public int getY1(int i) {
+        return this.readY1(this.checkIndex(i));
+    }
+
+    /**
+     * @param i
+     *            the index of a segment
+     * @return the x coordinate of the end of the segment
+     */
+    public int getX2(int i) {
+        return this.readX2(this.checkIndex(i));
+    }
+
+    /**
+     * @param i
+     *            the index of a segment
+     * @return the y coordinate of the end of the segment
+     */
+    public int getY2(int i) {
+        return this.readY2(this.checkIndex(i));
+    }
+
+    /**
+     * @param i
+     *            the index of a segment
+     * @return the stroke thickness of the segment
+     */
+    public float getStrokeThickness(int i) {
+        return this.readStrokeThickness(this.checkIndex(i));
+    }
+
+    /**
+     * @param i
+     *            the index of a segment
+     * @return the color of the segment, packed as r << 24 | g << 16 | b << 8 | a
+     */
+    public int getRGBA(int i) {
+        return this.readRGBA(this.checkIndex(i));
+    }
+
+    /**
+     * @param i
+     *            the index of a segment
+     * @return the number of the style of the segment in the palette, or
+     *         UNNUMBERED if it has none
+     */
+    public int getStyle(int i) {
+        return this.readStyle(this.checkIndex(i));
+    }
+
+    /*
+     * The unchecked reads of the columns, for indexes below the high-water
+     * mark
+     */
+    protected abstract int readX1(int i);
+
+    protected abstract int readY1(int i);
+
+    protected abstract int readX2(int i);
+
+    protected abstract int readY2(int i);
+
+    protected abstract int readStyle(int i);
+
+    protected float readStrokeThickness(int i) {
+        return this.strokeThicknessOf(i, this.readStyle(i));
+    }
+
+    protected int readRGBA(int i) {
+        return this.rgbaOf(i, this.readStyle(i));
+    }
+
+    /**
+     * @return the stroke thickness of the segment at an index, whose style
+     *         number was read already
+     */
+    protected float strokeThicknessOf(int i, int style) {
+        if (style == UNNUMBERED) {
+            return Float.intBitsToFloat((int) (this.unnumberedStyles.get(i) >>> 32));
+        }
+        return this.palette.getStrokeThickness(style);
+    }
+
+    /**
+     * @return the color of the segment at an index, whose style number was
+     *         read already
+     */
+    protected int rgbaOf(int i, int style) {
+        if (style == UNNUMBERED) {
+            return (int) this.unnumberedStyles.get(i).longValue();
+        }
+        return this.palette.getRGBA(style);
+    }
+
+    /**
+     * @return true if a segment of this store has no style number, so the
+     *         segments cannot be encoded with style numbers
+     */
+    public boolean hasUnnumberedStyles() {
+        return !this.unnumberedStyles.isEmpty();
+    }
+
+    /**
+     * @param i
+     *            the index of a segment
+     * @return the segment as a new Line
+     */
+    public Line get(int i) {
+        int color = this.getRGBA(i);
+        return new Line(this.readX1(i), this.readY1(i), this.readX2(i),
+                this.readY2(i), this.readStrokeThickness(i), color >>> 24,
+                color >>> 16 & 0xff, color >>> 8 & 0xff, color & 0xff);
+    }
+
+    /**
+     * @return a copy of the segments as Lines, which does not change when
+     *         more are added
+     */
+    public List<Line> toList() {
+        Line[] lines = new Line[this.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = this.get(i);
+        }
+        return Collections.unmodifiableList(Arrays.asList(lines));
+    }
+
+    /**
+     * Appends the first count segments, each preceded by a space and encoded
+     * like Line.toString, without making Line objects
+     *
+     * @param out
+     *            where to append the segments
+     * @param count
+     *            the number of segments, at most size()
+     */
+    public void appendTo(StringBuilder out, int count) {
+        this.appendTo(out, 0, count);
+    }
+
+    /**
+     * Appends some of the segments, each preceded by a space and encoded like
+     * Line.toString, without making Line objects
+     *
+     * @param out
+     *            where to append the segments
+     * @param from
+     *            the index of the first segment to append
+     * @param to
+     *            the index after the last segment to append, at most size()
+     */
+    public void appendTo(StringBuilder out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            this.appendSegment(out, this.readX1(i), this.readY1(i),
+                    this.readX2(i), this.readY2(i),
+                    this.readStrokeThickness(i), this.readRGBA(i));
+        }
+    }
+
+    /**
+     * Appends some of the segments, each preceded by a space and encoded as
+     * its coordinates and the number of its style in the palette
+     *
+     * @param out
+     *            where to append the segments
+     * @param from
+     *            the index of the first segment to append
+     * @param to
+     *            the index after the last segment to append, at most size()
+     * @return true if the segments were appended, false (and some of them
+     *         appended) if one of them has no style number
+     */
+    public boolean appendStyledTo(StringBuilder out, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int style = this.readStyle(i);
+            if (style == UNNUMBERED) {
+                return false;
+            }
+            out.append(' ').append(this.readX1(i))
+                    .append(' ').append(this.readY1(i))
+                    .append(' ').append(this.readX2(i))
+                    .append(' ').append(this.readY2(i))
+                    .append(' ').append(style);
+        }
+        return true;
+    }
+
+    /**
+     * Appends one segment, preceded by a space and encoded like
+     * Line.toString
+     *
+     * @param out
+     *            where to append the segment
+     */
+    protected void appendSegment(StringBuilder out, int x1, int y1, int x2,
+            int y2, float strokeThickness, int rgba) {
+        out.append(' ').append(x1)
+                .append(' ').append(y1)
+                .append(' ').append(x2)
+                .append(' ').append(y2)
+                .append(' ').append(this.encodeStroke(strokeThickness))
+                .append(' ').append(rgba >>> 24)
+                .append(' ').append(rgba >>> 16 & 0xff)
+                .append(' ').append(rgba >>> 8 & 0xff)
+                .append(' ').append(rgba & 0xff);
+    }
+
+    /**
+     * Appends every segment added so far, each preceded by a space and
+     * encoded like Line.toString
+     *
+     * @param out
+     *            where to append the segments
+     */
+    public void appendTo(StringBuilder out) {
+        this.appendTo(out, this.size());
+    }
+
+    /**
+     * Adds some of the segments of this store after the segments of another
+     *
+     * @param target
+     *            the store to add the segments to
+     * @param from
+     *            the index of the first segment to add
+     * @param to
+     *            the index after the last segment to add, at most size()
+     * @param skipped
+     *            the indexes of the segments to leave out
+     * @return true if the segments were added, false if the other store ran
+     *         out of room
+     */
+    public boolean copyTo(LineStore target, int from, int to, BitSet skipped) {
+        // the styles keep their numbers, which the users in the board know
+        int styles = this.palette.size();
+        for (int style = target.palette.size(); style < styles; style++) {
+            if (target.palette.intern(this.palette.getStrokeThickness(style),
+                    this.palette.getRGBA(style)) != style) {
+                return false;
+            }
+        }
+        for (int i = from; i < to; i++) {
+            if (skipped.get(i)) {
+                continue;
+            }
+            if (!target.append(this.readX1(i), this.readY1(i), this.readX2(i),
+                    this.readY2(i), this.readStrokeThickness(i), this.readRGBA(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends the first count segments that cross a rectangle (edges
+     * included), in the order they were added, each preceded by a space and
+     * encoded like Line.toString. A segment crosses the rectangle if any
+     * point of it, widened by half its stroke thickness, is inside.
+     *
+     * @param out
+     *            where to append the segments
+     * @param count
+     *            the number of segments to look at, at most size()
+     * @param left
+     *            the smallest x of the rectangle
+     * @param top
+     *            the smallest y of the rectangle
+     * @param right
+     *            the largest x of the rectangle, at least left
+     * @param bottom
+     *            the largest y of the rectangle, at least top
+     * @return the number of segments appended
+     */
+    public int appendCrossing(StringBuilder out, int count, int left, int top,
+            int right, int bottom) {
+        BitSet candidates = this.index.candidates(left, top, right, bottom, count);
+        int appended = 0;
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            int x1 = this.readX1(i);
+            int y1 = this.readY1(i);
+            int x2 = this.readX2(i);
+            int y2 = this.readY2(i);
+            float strokeThickness = this.readStrokeThickness(i);
+            int reach = halfStroke(strokeThickness);
+            if (crosses(x1, y1, x2, y2, left - reach, top - reach,
+                    right + reach, bottom + reach)) {
+                this.appendSegment(out, x1, y1, x2, y2, strokeThickness,
+                        this.readRGBA(i));
+                appended++;
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * @return how far a stroke reaches on either side of its segment, rounded
+     *         up
+     */
+    private static int halfStroke(float strokeThickness) {
+        if (!(strokeThickness > 0)) {
+            return 0;
+        }
+        return (int) Math.min(Math.ceil(strokeThickness / 2), 1 << 20);
+    }
+
+    /**
+     * Clips the segment to the rectangle (Liang-Barsky)
+     *
+     * @return true if some point of the segment is inside the rectangle,
+     *         edges included
+     */
+    static boolean crosses(int x1, int y1, int x2, int y2, long left,
+            long top, long right, long bottom) {
+        double dx = (double) x2 - x1;
+        double dy = (double) y2 - y1;
+        double[] p = { -dx, dx, -dy, dy };
+        double[] q = { x1 - left, right - x1, y1 - top, bottom - y1 };
+        double enter = 0;
+        double exit = 1;
+        for (int k = 0; k < 4; k++) {
+            if (p[k] == 0) {
+                if (q[k] < 0) {
+                    return false;
+                }
+            } else if (p[k] < 0) {
+                enter = Math.max(enter, q[k] / p[k]);
+            } else {
+                exit = Math.min(exit, q[k] / p[k]);
+            }
+        }
+        return enter <= exit;
+    }
+
+    /**
+     * Takes a reference to the store, so that its memory is not freed while
+     * it is read
+     *
+     * @return true if the reference was taken, false if the memory was freed
+     *         already (and the store must not be read)
+     */
+    public boolean retain() {
+        while (true) {
+            int current = this.references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (this.references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a reference to the store, freeing its memory if it was the
+     * last one. The owner gives back its reference when the store is
+     * replaced or its board goes away.
+     */
+    public void release() {
+        if (this.references.decrementAndGet() == 0) {
+            this.free();
+        }
+    }
+
+    /**
+     * Frees the memory of the store, which nobody reads any more
+     */
+    protected abstract void free();
+
+    /**
+     * @return the color packed as r << 24 | g << 16 | b << 8 | a
+     */
+    protected static int pack(int r, int g, int b, int a) {
+        return (r & 0xff) << 24 | (g & 0xff) << 16 | (b & 0xff) << 8 | (a & 0xff);
+    }
+
+    /**
+     * @param i
+     *            an index
+     * @return the index, if there is a segment at it
+     * @throws IndexOutOfBoundsException
+     *             otherwise
+     */
+    private int checkIndex(int i) {
+        int size = this.size();
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+        }
+        return i;
+    }
+
+    /**
+     * @param strokeThickness
+     *            a stroke thickness
+     * @return the thickness as encoded by Line.toString
+     */
+    private String encodeStroke(float strokeThickness) {
+        String encoded = this.encodedStrokes.get(strokeThickness);
+        if (encoded == null) {
+            encoded = String.format("%f", strokeThickness);
+            if (this.encodedStrokes.size() < MAX_ENCODED_STROKES) {
+                this.encodedStrokes.put(strokeThickness, encoded);
+            }
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,13 @@
+package adts;
+
+/**
+ * Makes the LineStore of every new board, so the LobbyModel does not care
+ * where the lines of its boards are kept.
+ */
+public interface LineStoreFactory {
+
+    /**
+     * @return a new, empty store for the lines of a board
+     */
+    public LineStore newLineStore();
+}
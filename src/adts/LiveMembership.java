@@ -0,0 +1,87 @@
+package adts;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The users in a board that users enter and leave all the time, like the
+ * lobby, which every user enters when they log in. The users are kept in a
+ * concurrent set, so a change costs the same however many users there are,
+ * and the Membership snapshot is only built when it is read, once for all the
+ * changes since the last one.
+ *
+ * Concurrency argument:
+ *      A change updates the set before it counts itself in the version, and a
+ *      snapshot reads the version before it copies the set, so a snapshot
+ *      has every change up to its version (and maybe some after it, which
+ *      bump the version, so the next read builds a new snapshot). A snapshot
+ *      only replaces an older one, with compareAndSet.
+ */
+class LiveMembership {
+
+    /**
+     * The IDs of the users in the board
+     */
+    private final Set<Integer> userIDs;
+
+    /**
+     * The number of changes made
+     */
+    private final AtomicLong version;
+
+    /**
+     * The last snapshot built
+     */
+    private final AtomicReference<Membership> snapshot;
+
+    /**
+     * Create the membership of a board that nobody is in
+     */
+    LiveMembership() {
+        this.userIDs = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        this.version = new AtomicLong(0);
+        this.snapshot = new AtomicReference<Membership>(Membership.EMPTY);
+    }
+
+    /**
+     * @param userID
+     *            the id of the user who enters
+     */
+    void add(int userID) {
+        this.userIDs.add(userID);
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * @param userID
+     *            the id of the user who leaves
+     */
+    void remove(int userID) {
+        this.userIDs.remove(userID);
+        this.version.incrementAndGet();
+    }
+
+    /**
+     * @return a snapshot with every change made before this call
+     */
+    Membership snapshot() {
+        long latest = this.version.get();
+        Membership cached = this.snapshot.get();
+        if (cached.getVersion() >= latest) {
+            return cached;
+        }
+        Membership next = Membership.of(latest, new HashSet<Integer>(this.userIDs));
+        while (cached.getVersion() < latest) {
+            if (this.snapshot.compareAndSet(cached, next)) {
+                return next;
+            }
+            cached = this.snapshot.get();
+        }
+        // another reader built a newer snapshot meanwhile
+        return cached;
+    }
+}
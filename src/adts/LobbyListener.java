@@ -0,0 +1,17 @@
+package adts;
+
+/**
+ * Is told by a LobbyModel whenever the users in its lobby change: somebody
+ * enters or leaves the lobby, or somebody in the lobby changes their name.
+ */
+public interface LobbyListener {
+
+    /**
+     * Called after the lobby has changed. Must return quickly, since it may
+     * be called while the LobbyModel holds a lock.
+     *
+     * @param userID
+     *            the id of the user who entered, left or was renamed
+     */
+    public void lobbyChanged(int userID);
+}
@@ -2,12 +2,15 @@ package adts;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This is a system for managing users, boards, and the relationship 
@@ -23,6 +26,11 @@ import java.util.concurrent.atomic.AtomicInteger;
  *      users and boards can change, so the rep invariant
  *      is preserved.
  * 
+ * The user to board index agrees with the boards' sets of users
+ *      Every user is in the index under the ID of the one board whose set of
+ *      users contains them. Joining a board, leaving it and deleting a user
+ *      update both together, and nothing else changes either.
+ * 
  * No two users have the same ID. No two boards have the same ID
  *      This is ensured by using two atomic integers. When we 
  *      receive a new user, we increment the integer and assign
@@ -34,20 +42,44 @@ import java.util.concurrent.atomic.AtomicInteger;
  *      a user or board (it is NOT the same thing as the ID, which is an integer).
  *      For instance, a boardName might be "6.005 brainstorming", and a userName
  *      might be "Rob_Miller". We ensure that userNames and boardNames are unique
- *      by checking if any other user has the same name. If so, we append an integer
- *      to the name and increment it until the name is unique. So, if three people
- *      tried to be "Rob_Miller", they will be "Rob_Miller", "Rob_Miller(2)", and 
- *      "Rob_Miller(3)".
- *      
+ *      by claiming each name in a NameIndex before using it. If the name is
+ *      taken, the index appends the first free integer to it. So, if three
+ *      people tried to be "Rob_Miller", they will be "Rob_Miller",
+ *      "Rob_Miller(2)", and "Rob_Miller(3)". Names are released when a user
+ *      changes their name or is deleted, so their integers are reused.
+ * 
  * Concurrency argument:
- *      All fields have been made final and atomic. 
- *      Thread safe classes (ex. synchronizedMap, AtomicInteger) 
- *      have been used everywhere possible. We have
- *      synchronized all methods that access or
- *      modify the state.
- *      
+ *      All fields are final, and all maps are concurrent, so reads never take
+ *      a lock and never block behind writes. The users of each board are
+ *      published as immutable Membership snapshots: a change copies the
+ *      latest snapshot and swaps it in with compareAndSet, so readers get a
+ *      consistent set without locking or copying. The board directory is
+ *      published the same way whenever a board is added. The lobby, which
+ *      every login and logout changes, is a LiveMembership instead: a change
+ *      does not copy it, and its snapshot is built when it is read.
+ * 
+ *      The board of a user only changes while holding the lock of the user's
+ *      stripe (one of a fixed set of locks, picked by user ID). Moving a user
+ *      removes them from their old board before adding them to the new one,
+ *      so no reader ever sees a user in two boards. Users on different stripes
+ *      move in parallel.
+ * 
+ *      The NameIndex is threadsafe and never gives a name to two owners, even
+ *      at the same time. The old name is only given up after the new one is
+ *      claimed.
+ * 
+ *      Boards are never removed, so a board found once can be used without
+ *      checking for it again.
+ * 
+ *      The lobby listeners are a CopyOnWriteArrayList, so they can be added
+ *      while changes are being reported.
  */
 public class LobbyModel {
+    /**
+     * The number of locks that the users are spread over
+     */
+    private static final int STRIPES = 64;
+
     /**
      * A counter used to assign unique ids to each user
      */
@@ -61,45 +93,193 @@ public class LobbyModel {
     /**
      * Key = user ID Value = user with the given ID
      */
-    private final Map<Integer, User> userForID;
+    private final ConcurrentMap<Integer, User> userForID;
+
+    /**
+     * Key = board ID Value = board with the given ID, ordered by ID
+     */
+    private final ConcurrentMap<Integer, Whiteboard> boardForID;
+
+    /**
+     * Key = board ID Value = the latest snapshot of the IDs of users who are
+     * using the board with the given ID
+     */
+    private final ConcurrentMap<Integer, AtomicReference<Membership>> membershipForBoardID;
+
+    /**
+     * The IDs of the users in the lobby
+     */
+    private final LiveMembership lobbyMembers;
+
+    /**
+     * Key = user ID Value = ID of the board (or the lobby) that the user with
+     * the given ID is in
+     */
+    private final ConcurrentMap<Integer, Integer> boardIDForUserID;
+
+    /**
+     * The latest snapshot of the IDs and names of all boards
+     */
+    private final AtomicReference<BoardDirectory> directory;
+
+    /**
+     * The names of the users, and who has claimed each
+     */
+    private final NameIndex userNames;
+
+    /**
+     * The names of the boards, and which board has claimed each
+     */
+    private final NameIndex boardNames;
 
     /**
-     * Key = board ID Value = board with the given ID
+     * The locks that the changes to a user's board and name are made under
      */
-    private final Map<Integer, Whiteboard> boardForID;
+    private final Object[] stripes;
 
     /**
-     * Key = board ID Value = list of IDs of users who are using the board with
-     * the given ID
+     * The listeners told about every change to the users in the lobby
      */
-    private final Map<Integer, Set<Integer>> userIDsForBoardID;
+    private final List<LobbyListener> lobbyListeners;
+
+    /**
+     * Makes the stores that the lines of new boards are kept in
+     */
+    private final LineStoreFactory lineStores;
+
+    /**
+     * How far (in pixels) the lines stored on new boards may be from the
+     * lines drawn, 0 if they are stored as drawn
+     */
+    private volatile float simplifyTolerance;
 
     /**
      * The ID of the lobby, which is the "board" where users are put
      * before entering a regular board
      */
     public static final int LOBBY_ID = -1;
-    
+
     /**
-     * Construct the LobbyModel
+     * Construct the LobbyModel, keeping the lines of the boards on the heap
      */
     public LobbyModel() {
+        this(ArrayLineStore.FACTORY);
+    }
+
+    /**
+     * Construct the LobbyModel
+     * 
+     * @param lineStores
+     *            makes the stores that the lines of new boards are kept in
+     */
+    public LobbyModel(LineStoreFactory lineStores) {
+        this.lineStores = lineStores;
+        this.simplifyTolerance = 0;
         uniqueUserID = new AtomicInteger(0);
         uniqueBoardID = new AtomicInteger(0);
-        userForID = Collections.synchronizedMap(new HashMap<Integer, User>());
-        boardForID = Collections
-                .synchronizedMap(new HashMap<Integer, Whiteboard>());
-        userIDsForBoardID = Collections
-                .synchronizedMap(new HashMap<Integer, Set<Integer>>());
-        
+        userForID = new ConcurrentHashMap<Integer, User>();
+        boardForID = new ConcurrentSkipListMap<Integer, Whiteboard>();
+        membershipForBoardID = new ConcurrentHashMap<Integer, AtomicReference<Membership>>();
+        boardIDForUserID = new ConcurrentHashMap<Integer, Integer>();
+        lobbyMembers = new LiveMembership();
+        directory = new AtomicReference<BoardDirectory>(BoardDirectory.EMPTY);
+        userNames = new NameIndex(2);
+        boardNames = new NameIndex(1);
+        stripes = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        lobbyListeners = new CopyOnWriteArrayList<LobbyListener>();
+
+        this.boardNames.claim("Lobby", LOBBY_ID);
         this.boardForID.put(LOBBY_ID, new Whiteboard(LOBBY_ID, "Lobby"));
-        this.userIDsForBoardID.put(LOBBY_ID, new HashSet<Integer>());
+        this.publishBoard(LOBBY_ID, "Lobby");
+    }
+
+    /**
+     * Publishes the next board directory snapshot, with the given board added
+     * 
+     * @param boardID
+     *            the id of the board
+     * @param boardName
+     *            the name of the board
+     */
+    private void publishBoard(int boardID, String boardName) {
+        while (true) {
+            BoardDirectory current = this.directory.get();
+            if (this.directory.compareAndSet(current, current.with(boardID, boardName))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publishes the next membership snapshot of a board, with the given user
+     * added or removed
+     * 
+     * @param boardID
+     *            the id of the board
+     * @param userID
+     *            the id of the user
+     * @param join
+     *            true to add the user, false to remove them
+     */
+    private void changeMembership(int boardID, int userID, boolean join) {
+        if (boardID == LOBBY_ID) {
+            if (join) {
+                this.lobbyMembers.add(userID);
+            } else {
+                this.lobbyMembers.remove(userID);
+            }
+            this.fireLobbyChanged(userID);
+            return;
+        }
+        AtomicReference<Membership> latest = this.membershipForBoardID.get(boardID);
+        while (true) {
+            Membership current = latest.get();
+            Membership next = join ? current.with(userID) : current.without(userID);
+            if (latest.compareAndSet(current, next)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Tells the lobby listeners that a user entered, left or was renamed in
+     * the lobby
+     * 
+     * @param userID
+     *            the id of the user
+     */
+    private void fireLobbyChanged(int userID) {
+        for (LobbyListener listener : this.lobbyListeners) {
+            listener.lobbyChanged(userID);
+        }
+    }
+
+    /**
+     * Adds a listener to be told whenever the users in the lobby change
+     * 
+     * @param listener
+     *            the listener
+     */
+    public void addLobbyListener(LobbyListener listener) {
+        this.lobbyListeners.add(listener);
+    }
+
+    /**
+     * @param userID
+     *            the id of a user
+     * @return the lock to change the user's board and name under
+     */
+    private Object stripeFor(int userID) {
+        return this.stripes[(userID & Integer.MAX_VALUE) % STRIPES];
     }
 
     /**
      * @return the set of all the whiteboard names
      */
-    public synchronized Set<String> getWhiteboardNames() {
+    public Set<String> getWhiteboardNames() {
         Set<String> whiteboardNames = new HashSet<String>();
         for (Whiteboard wb : this.boardForID.values()) {
             whiteboardNames.add(wb.getBoardName());
@@ -110,7 +290,7 @@ public class LobbyModel {
     /**
      * @return the set of all whiteboard IDs
      */
-    public synchronized Set<Integer> getWhiteboardIDs() {
+    public Set<Integer> getWhiteboardIDs() {
         return this.boardForID.keySet();
     }
 
@@ -119,44 +299,38 @@ public class LobbyModel {
      * @return the user ids of all the users who are in the same board(s) as the
      *         user with the given userID
      */
-    public synchronized Set<Integer> getUserIDsOfUsersInSameBoardAsGivenUserID(
+    public Set<Integer> getUserIDsOfUsersInSameBoardAsGivenUserID(
             int userID) {
-        Set<Integer> userIDs = new HashSet<Integer>();
-        // iterate through each boardID
-        for (int boardID : this.boardForID.keySet()) {
-            // if the set of users ids in that board include the given userID
-            if (this.userIDsForBoardID.get(boardID).contains(userID)) {
-                userIDs.addAll(this.userIDsForBoardID.get(boardID));
-            }
+        Integer boardID = this.boardIDForUserID.get(userID);
+        if (boardID == null) {
+            return Collections.emptySet();
         }
-        return userIDs;
+        return this.getMembership(boardID).getUserIDs();
     }
-    
+
     /**
      * @param userID
      *            the id of the user
      * @return the board ID of the board that the user with the given userID is
      *         in, or -1 if the user is not in any board
      */
-    public synchronized int getBoardIDThatUserIDIsIn(int userID) {
-        for (int boardID : this.boardForID.keySet()) {
-            if (this.userIDsForBoardID.get(boardID).contains(userID)) {
-                return boardID;
-            }
+    public int getBoardIDThatUserIDIsIn(int userID) {
+        Integer boardID = this.boardIDForUserID.get(userID);
+        if (boardID == null) {
+            return LOBBY_ID;
         }
-        return LOBBY_ID;
+        return boardID;
     }
 
     /**
      * @param userID the id of the user
      * @return the username for the user with the given id
      */
-    public synchronized String getUserNameForUserID(int userID) {
+    public String getUserNameForUserID(int userID) {
         return this.userForID.get(userID).getName();
     }
 
     /**
-     * Returns the user names for the given boardID
      * 
      * @param boardID
      *            the id of the board
@@ -164,13 +338,14 @@ public class LobbyModel {
      * @throws IllegalArgumentException
      *             if the boardID does not exist
      */
-    public synchronized Set<String> getUserNamesForBoardID(int boardID) {
-        if (!(this.boardForID.keySet().contains(boardID)))
-            throw new IllegalArgumentException(String.format(
-                    "boardID=%d does not exist!", boardID));
+    public Set<String> getUserNamesForBoardID(int boardID) {
         Set<String> userNames = new HashSet<String>();
-        for (Integer userID : this.userIDsForBoardID.get(boardID)) {
-            userNames.add(this.userForID.get(userID).getName());
+        for (Integer userID : this.getMembership(boardID).getUserIDs()) {
+            User user = this.userForID.get(userID);
+            // the user may have been deleted since the set was read
+            if (user != null) {
+                userNames.add(user.getName());
+            }
         }
         return userNames;
     }
@@ -182,43 +357,40 @@ public class LobbyModel {
      *            the name that we should change to
      * @param userID
      *            the id of the user
+     * @return the name the user got, newName or newName followed by the
+     *         first integer (from 2 on) that makes it unique
      * @throws IllegalArgumentException
      *             if the userID does not exist
      */
-    public synchronized String changeUserName(String newName, int userID) {
-        if (!(this.userForID.keySet().contains(userID)))
-            throw new IllegalArgumentException(String.format(
-                    "userID=%d does not exist!", userID));
-        Set<String> names = new HashSet<String>();
-        for(Integer u : this.userForID.keySet()){
-            if(u != userID){
-                names.add(this.userForID.get(u).getName());
+    public String changeUserName(String newName, int userID) {
+        synchronized (this.stripeFor(userID)) {
+            User user = this.userForID.get(userID);
+            if (user == null)
+                throw new IllegalArgumentException(String.format(
+                        "userID=%d does not exist!", userID));
+            String oldName = user.getName();
+            String name = this.userNames.claim(newName, userID);
+            user.setName(name);
+            if (!name.equals(oldName)) {
+                this.userNames.release(oldName, userID);
+                if (this.getBoardIDThatUserIDIsIn(userID) == LOBBY_ID) {
+                    this.fireLobbyChanged(userID);
+                }
             }
+            return name;
         }
-        if(!names.contains(newName)){
-            this.userForID.get(userID).setName(newName);
-            return newName;
-        }
-        int incrementer = 2;
-        String formattedName = "%s(%d)";
-        while(names.contains(String.format(formattedName, newName,incrementer)))
-            incrementer++;
-        this.userForID.get(userID).setName(String.format(formattedName, newName,incrementer));
-        return String.format(formattedName, newName,incrementer);
     }
 
     /**
      * Adds a user to the lobby
      * 
      * @param name
-     *            the name of the user
+     *            the name of the user, which gets an integer appended if it is
+     *            taken already
      * @return the id of the user who was added
      */
-    public synchronized int addUser(String name) {
-        int id = this.uniqueUserID.getAndIncrement();
-        this.userForID.put(id, new User(id, name));
-        this.userJoinBoard(id, LOBBY_ID);
-        return id;
+    public int addUser(String name) {
+        return this.addUser(name, this.uniqueUserID.getAndIncrement());
     }
 
     /**
@@ -226,42 +398,57 @@ public class LobbyModel {
      * 
      * @return the id of the user who was added
      */
-    public synchronized int addUser() {
+    public int addUser() {
         int id = this.uniqueUserID.getAndIncrement();
-        this.userForID.put(id, new User(id));
-        this.changeUserName(this.userForID.get(id).getName(), id);
-        this.userJoinBoard(id, LOBBY_ID);
+        return this.addUser(new User(id).getName(), id);
+    }
+
+    /**
+     * Adds a user with the given id to the lobby
+     * 
+     * @param name
+     *            the name of the user
+     * @param id
+     *            the id of the user, not used by anybody else
+     * @return id
+     */
+    private int addUser(String name, int id) {
+        synchronized (this.stripeFor(id)) {
+            User user = new User(id, this.userNames.claim(name, id));
+            this.userForID.put(id, user);
+            this.userJoinBoard(id, LOBBY_ID);
+        }
         return id;
     }
 
+    /**
+     * Sets how far the lines stored on the boards added from now on may be
+     * from the lines drawn (see Whiteboard.setSimplifyTolerance)
+     * 
+     * @param tolerance
+     *            the distance in pixels, 0 to store the lines as drawn
+     */
+    public void setSimplifyTolerance(float tolerance) {
+        this.simplifyTolerance = tolerance;
+    }
+
     /**
      * Adds a board to the lobby
      * 
      * @param name
-     *            the name of the board
-     * @param width
-     *            the width of the board
-     * @param height
-     *            the height of the board
+     *            the name of the board, which gets an integer (from 1 on)
+     *            appended if it is taken already
      * @return the id of the board that was added
      */
-    public synchronized int addBoard(String name) {
+    public int addBoard(String name) {
         int id = this.uniqueBoardID.getAndIncrement();
-        Whiteboard board = new Whiteboard(id, name);
-        this.userIDsForBoardID.put(id, new HashSet<Integer>());
-        Set<String> userNames = new HashSet<String>();
-        for(Whiteboard brd: this.boardForID.values()){
-            userNames.add(brd.getBoardName());
-        }
-        if(!userNames.contains(name)){
-            this.boardForID.put(id, board);
-            return id;
-        }
-        int incrementer = 1;
-        while(userNames.contains(String.format("%s(%d)",name,incrementer))){
-            incrementer++;
-        }
-        this.boardForID.get(id).setBoardName(String.format("%s(%d)",name,incrementer));
+        Whiteboard board = new Whiteboard(id, this.boardNames.claim(name, id),
+                this.lineStores);
+        board.setSimplifyTolerance(this.simplifyTolerance);
+        // the set of users exists before anybody can find the board
+        this.membershipForBoardID.put(id, new AtomicReference<Membership>(Membership.EMPTY));
+        this.boardForID.put(id, board);
+        this.publishBoard(id, board.getBoardName());
         return id;
     }
 
@@ -271,7 +458,7 @@ public class LobbyModel {
      * 
      * @return the id of the board that was added
      */
-    public synchronized int addBoard() {
+    public int addBoard() {
         return this.addBoard("Board");
     }
 
@@ -287,20 +474,24 @@ public class LobbyModel {
      * @throws IllegalArgumentException
      *             if the userID or boardID do not exist
      */
-    public synchronized void userJoinBoard(int userID, int boardID) {
-        if (!(this.boardForID.keySet().contains(boardID)))
+    public void userJoinBoard(int userID, int boardID) {
+        if (!(this.boardForID.containsKey(boardID)))
             throw new IllegalArgumentException(String.format(
                     "boardID=%d does not exist!", boardID));
-        if (!(this.userForID.keySet().contains(userID)))
-            throw new IllegalArgumentException(String.format(
-                    "userID=%d does not exist!", userID));
-        for (int bID : this.boardForID.keySet()) {
-            if (this.userIDsForBoardID.get(bID).contains(userID)) {
-                this.userIDsForBoardID.get(bID).remove(userID);
+        synchronized (this.stripeFor(userID)) {
+            if (!(this.userForID.containsKey(userID)))
+                throw new IllegalArgumentException(String.format(
+                        "userID=%d does not exist!", userID));
+            Integer currentBoardID = this.boardIDForUserID.get(userID);
+            if (currentBoardID != null) {
+                if (currentBoardID == boardID) {
+                    return;
+                }
+                this.changeMembership(currentBoardID, userID, false);
             }
+            this.changeMembership(boardID, userID, true);
+            this.boardIDForUserID.put(userID, boardID);
         }
-        Set<Integer> userIDs = this.userIDsForBoardID.get(boardID);
-        userIDs.add(userID);
     }
 
     /**
@@ -314,14 +505,13 @@ public class LobbyModel {
      * @throws IllegalArgumentException
      *             if the userID or boardID do not exist
      */
-    public synchronized void userLeaveBoard(int userID, int boardID) {
-        if (!(this.boardForID.keySet().contains(boardID)))
+    public void userLeaveBoard(int userID, int boardID) {
+        if (!(this.boardForID.containsKey(boardID)))
             throw new IllegalArgumentException(String.format(
                     "boardID=%d does not exist!", boardID));
-        if (!(this.userForID.keySet().contains(userID)))
+        if (!(this.userForID.containsKey(userID)))
             throw new IllegalArgumentException(String.format(
                     "userID=%d does not exist!", userID));
-        this.userIDsForBoardID.get(boardID).remove(userID);
         this.userJoinBoard(userID, LOBBY_ID);
     }
 
@@ -331,10 +521,16 @@ public class LobbyModel {
      * @param userID
      *            the id of the user to delete
      */
-    public synchronized void deleteUser(int userID) {
-        this.userForID.remove(userID);
-        for (int boardID : this.userIDsForBoardID.keySet()) {
-            this.userIDsForBoardID.get(boardID).remove(userID);
+    public void deleteUser(int userID) {
+        synchronized (this.stripeFor(userID)) {
+            User user = this.userForID.remove(userID);
+            Integer boardID = this.boardIDForUserID.remove(userID);
+            if (boardID != null) {
+                this.changeMembership(boardID, userID, false);
+            }
+            if (user != null) {
+                this.userNames.release(user.getName(), userID);
+            }
         }
     }
 
@@ -343,11 +539,31 @@ public class LobbyModel {
      * 
      * @param boardID
      *            the id of the board
-     * @return the set of user ids of the users in the board with the given
-     *         board id
+     * @return the latest snapshot of the set of user ids of the users in the
+     *         board with the given board id, unmodifiable and safe to iterate
+     *         while the board changes. To broadcast an operation on the
+     *         board, read it on the board's mailbox (see Membership).
+     */
+    public Set<Integer> getUserIDsForBoardID(int boardID) {
+        return this.getMembership(boardID).getUserIDs();
+    }
+
+    /**
+     * @param boardID
+     *            the id of the board
+     * @return the latest membership snapshot of the board
+     * @throws IllegalArgumentException
+     *             if the boardID does not exist
      */
-    public synchronized Set<Integer> getUserIDsForBoardID(int boardID) {
-        return this.userIDsForBoardID.get(boardID);
+    public Membership getMembership(int boardID) {
+        if (boardID == LOBBY_ID) {
+            return this.lobbyMembers.snapshot();
+        }
+        AtomicReference<Membership> latest = this.membershipForBoardID.get(boardID);
+        if (latest == null)
+            throw new IllegalArgumentException(String.format(
+                    "boardID=%d does not exist!", boardID));
+        return latest.get();
     }
 
     /**
@@ -357,12 +573,10 @@ public class LobbyModel {
      *            the line to add
      * @param boardID
      *            the id of the board we should add the line to
+     * @return true if the line was added, false if the board has no room left
      */
-    public synchronized void addLineToBoardID(Line l, int boardID) {
-        if (!(this.boardForID.keySet().contains(boardID)))
-            throw new IllegalArgumentException(String.format(
-                    "boardID=%d does not exist!", boardID));
-        this.boardForID.get(boardID).addLine(l);
+    public boolean addLineToBoardID(Line l, int boardID) {
+        return this.getWhiteboard(boardID).addLine(l);
     }
 
     /**
@@ -372,33 +586,55 @@ public class LobbyModel {
      *            the id of the board
      * @return the lines on that board
      */
-    public synchronized List<Line> getLinesForBoardID(int boardID) {
-        if (!(this.boardForID.keySet().contains(boardID)))
+    public List<Line> getLinesForBoardID(int boardID) {
+        return this.getWhiteboard(boardID).getLines();
+    }
+
+    /**
+     * Gets the board with the given boardID
+     * 
+     * @param boardID
+     *            the id of the board
+     * @return the board
+     */
+    public Whiteboard getWhiteboard(int boardID) {
+        Whiteboard board = this.boardForID.get(boardID);
+        if (board == null)
             throw new IllegalArgumentException(String.format(
                     "boardID=%d does not exist!", boardID));
-        return this.boardForID.get(boardID).getLines();
+        return board;
     }
-    
+
     /**
      * Clears the board with the given ID
      * @param boardID the board to clear
      */
-    public synchronized void clearBoard(int boardID){
+    public void clearBoard(int boardID){
         this.boardForID.get(boardID).clearBoard();
     }
-  
+
+    /**
+     * @return the latest snapshot of the IDs and names of all boards, which
+     *         does not change when boards are added later
+     */
+    public BoardDirectory getBoardDirectory() {
+        return this.directory.get();
+    }
+
     /**
-     * @return the whiteboards
+     * @return the whiteboards, ordered by ID
      */
-    public synchronized Collection<Whiteboard> getWhiteboards(){
+    public Collection<Whiteboard> getWhiteboards(){
         return this.boardForID.values();
     }
 
     /**
-     * @return true if the rep invariant is satisfied.
+     * @return true if the rep invariant is satisfied. Only meaningful while no
+     *         other thread is changing the model.
      * 
      * The rep invariant:
      * 1) One user per board
+     * 1b) The user to board index agrees with the boards' sets of users
      * 2) All users have unique ids (satisfied because we use user IDs as keys)
      * 3) All boards have unique ids (satisfied because we use board IDs as keys)
      * 4) All users have unique names
@@ -406,18 +642,26 @@ public class LobbyModel {
      * 
      */
     public boolean checkRep(){
-        
+
         // 1) One user per board
         Set<Integer> userIDsInBoard = new HashSet<Integer>();
         for(int boardID : this.boardForID.keySet()){
-            for(int userID : this.userIDsForBoardID.get(boardID)){
-                if(userIDsInBoard.contains(userIDsInBoard)){
+            for(int userID : this.getMembership(boardID).getUserIDs()){
+                if(userIDsInBoard.contains(userID)){
                     return false;
                 }
                 userIDsInBoard.add(userID);
+                // 1b) the index points at the board the user is in
+                if(!Integer.valueOf(boardID).equals(this.boardIDForUserID.get(userID))){
+                    return false;
+                }
             }
         }
-        
+        // 1b) and has no other users
+        if(this.boardIDForUserID.size() != userIDsInBoard.size()){
+            return false;
+        }
+
         // 4) All users have unique names
         Set<String> userNames = new HashSet<String>();
         for(User user : this.userForID.values()){
@@ -425,8 +669,12 @@ public class LobbyModel {
                 return false;
             }
             userNames.add(user.getName());
+            // and each of them has claimed its name
+            if(!Integer.valueOf(user.getID()).equals(this.userNames.getOwner(user.getName()))){
+                return false;
+            }
         }
-        
+
         // 5) All boards have unique names
         Set<String> boardNames = new HashSet<String>();
         for(Whiteboard board : this.boardForID.values()){
@@ -435,8 +683,8 @@ public class LobbyModel {
             }
             boardNames.add(board.getBoardName());
         }
-        
+
         return true;
-        
+
     }
 }
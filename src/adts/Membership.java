@@ -0,0 +1,109 @@
+package adts;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A snapshot of the users in one board, with a version number that grows by
+ * one with every change. Joining or leaving a board publishes a new snapshot
+ * (copying the set once) instead of changing the old one, so broadcasting to
+ * the board reads a consistent set of recipients without locking or copying.
+ * The lobby builds its snapshots when they are read instead (see
+ * LiveMembership).
+ *
+ * A snapshot only gives the recipients of a board operation if it is taken
+ * in the board's serial order: on the board's mailbox, while the operation
+ * runs. A user who joins is sent the board by a task queued on the mailbox
+ * after the new snapshot is published, so every operation either is in the
+ * board they are sent or reads a snapshot that has them.
+ *
+ * Concurrency argument:
+ *      This class is immutable: the set is copied when the snapshot is made,
+ *      never changed afterwards and only exposed unmodifiable.
+ */
+public class Membership {
+
+    /**
+     * The snapshot of a board that nobody has joined yet
+     */
+    public static final Membership EMPTY = new Membership(0,
+            Collections.<Integer> emptySet());
+
+    /**
+     * The number of changes that led to this snapshot
+     */
+    private final long version;
+
+    /**
+     * The IDs of the users in the board
+     */
+    private final Set<Integer> userIDs;
+
+    /**
+     * @param version
+     *            the number of changes that led to this snapshot
+     * @param userIDs
+     *            the IDs of the users in the board, not changed afterwards
+     */
+    private Membership(long version, Set<Integer> userIDs) {
+        this.version = version;
+        this.userIDs = Collections.unmodifiableSet(userIDs);
+    }
+
+    /**
+     * @param version
+     *            the number of changes that led to the snapshot
+     * @param userIDs
+     *            the IDs of the users in the board, not changed afterwards
+     * @return the snapshot
+     */
+    static Membership of(long version, Set<Integer> userIDs) {
+        return new Membership(version, userIDs);
+    }
+
+    /**
+     * @return the number of changes that led to this snapshot
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return the IDs of the users in the board, unmodifiable
+     */
+    public Set<Integer> getUserIDs() {
+        return this.userIDs;
+    }
+
+    /**
+     * @param userID
+     *            the id of a user
+     * @return true if the user is in the board
+     */
+    public boolean contains(int userID) {
+        return this.userIDs.contains(userID);
+    }
+
+    /**
+     * @param userID
+     *            the id of the user who joins
+     * @return the next snapshot, with the user in the board
+     */
+    public Membership with(int userID) {
+        Set<Integer> next = new HashSet<Integer>(this.userIDs);
+        next.add(userID);
+        return new Membership(this.version + 1, next);
+    }
+
+    /**
+     * @param userID
+     *            the id of the user who leaves
+     * @return the next snapshot, without the user
+     */
+    public Membership without(int userID) {
+        Set<Integer> next = new HashSet<Integer>(this.userIDs);
+        next.remove(userID);
+        return new Membership(this.version + 1, next);
+    }
+}
@@ -0,0 +1,165 @@
+package adts;
+
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out unique names (of users, or of boards). A name that is taken gets
+ * the first free integer appended to it, ex. "Rob_Miller(2)", "Rob_Miller(3)".
+ *
+ * Instead of probing "name(2)", "name(3)"... every time, the index keeps a
+ * counter for each base name with the next suffix that was never handed out,
+ * plus the suffixes that were handed out and released since. Claiming a name
+ * therefore takes O(1) amortized work (O(log n) when it reuses a released
+ * suffix), however many users share the base name.
+ *
+ * Concurrency argument:
+ *      The claimed names are a ConcurrentHashMap, and a name is claimed with
+ *      putIfAbsent, so no name is ever given to two owners. The suffixes of a
+ *      base name are only handed out and released while holding the lock of
+ *      that base name's Suffixes, so different base names do not contend.
+ *      A suffix may be claimed directly (someone asking for "Rob(2)") while it
+ *      is free in the counter; claiming it through the counter then fails
+ *      putIfAbsent and the counter moves on, so that is safe too.
+ */
+public class NameIndex {
+
+    /**
+     * The suffixes of one base name
+     */
+    private static class Suffixes {
+        /**
+         * The smallest suffix that was never handed out
+         */
+        private int next;
+
+        /**
+         * The suffixes below next that were released
+         */
+        private final TreeSet<Integer> released = new TreeSet<Integer>();
+
+        Suffixes(int first) {
+            this.next = first;
+        }
+    }
+
+    /**
+     * Key = name Value = id of the owner of the name
+     */
+    private final ConcurrentMap<String, Integer> ownerForName;
+
+    /**
+     * Key = base name Value = the suffixes of the base name, only present once
+     * the base name was taken by somebody else
+     */
+    private final ConcurrentMap<String, Suffixes> suffixesForBase;
+
+    /**
+     * The first suffix appended to a base name that is taken
+     */
+    private final int firstSuffix;
+
+    /**
+     * Create an empty index
+     *
+     * @param firstSuffix
+     *            the first integer appended to a name that is taken
+     */
+    public NameIndex(int firstSuffix) {
+        this.ownerForName = new ConcurrentHashMap<String, Integer>();
+        this.suffixesForBase = new ConcurrentHashMap<String, Suffixes>();
+        this.firstSuffix = firstSuffix;
+    }
+
+    /**
+     * Claims the given name, or if it is taken by somebody else, the name
+     * followed by the first free suffix
+     *
+     * @param name
+     *            the name wanted
+     * @param id
+     *            the id of the owner
+     * @return the name that was claimed
+     */
+    public String claim(String name, int id) {
+        Integer owner = this.ownerForName.putIfAbsent(name, id);
+        if (owner == null || owner == id) {
+            return name;
+        }
+        Suffixes suffixes = this.suffixesFor(name);
+        synchronized (suffixes) {
+            while (true) {
+                Integer suffix = suffixes.released.pollFirst();
+                if (suffix == null) {
+                    suffix = suffixes.next++;
+                }
+                String candidate = name + "(" + suffix + ")";
+                owner = this.ownerForName.putIfAbsent(candidate, id);
+                if (owner == null || owner == id) {
+                    return candidate;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives up a name, so that it can be handed out again. Does nothing unless
+     * the name is owned by the given id.
+     *
+     * @param name
+     *            the name
+     * @param id
+     *            the id of the owner
+     */
+    public void release(String name, int id) {
+        if (!this.ownerForName.remove(name, id)) {
+            return;
+        }
+        int open = name.lastIndexOf('(');
+        if (open <= 0 || !name.endsWith(")")) {
+            return;
+        }
+        Suffixes suffixes = this.suffixesForBase.get(name.substring(0, open));
+        if (suffixes == null) {
+            return;
+        }
+        int suffix;
+        try {
+            suffix = Integer.parseInt(name.substring(open + 1, name.length() - 1));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        synchronized (suffixes) {
+            if (suffix >= this.firstSuffix && suffix < suffixes.next) {
+                suffixes.released.add(suffix);
+            }
+        }
+    }
+
+    /**
+     * @param name
+     *            a name
+     * @return the id of the owner of the name, or null if it is free
+     */
+    public Integer getOwner(String name) {
+        return this.ownerForName.get(name);
+    }
+
+    /**
+     * @param base
+     *            a base name
+     * @return the suffixes of the base name, created if needed
+     */
+    private Suffixes suffixesFor(String base) {
+        Suffixes suffixes = this.suffixesForBase.get(base);
+        if (suffixes == null) {
+            Suffixes created = new Suffixes(this.firstSuffix);
+            suffixes = this.suffixesForBase.putIfAbsent(base, created);
+            if (suffixes == null) {
+                suffixes = created;
+            }
+        }
+        return suffixes;
+    }
+}
@@ -0,0 +1,169 @@
+package adts;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the segments of a board that cannot be seen any more, because every
+ * pixel they paint is painted again later by an opaque segment (an eraser
+ * stroke, say). Dropping them leaves the board looking exactly the same.
+ *
+ * The segments are rasterized the way the client draws them (view.Canvas:
+ * a BasicStroke of their thickness with round caps and joins, no
+ * antialiasing), so "every pixel" means the pixels that the client paints,
+ * not an approximation of them. An opaque segment replaces the pixels it
+ * paints, so first every opaque segment paints its own index into an image
+ * of owners, in draw order. A segment is then hidden if each of the pixels it
+ * paints is owned by a segment drawn after it.
+ *
+ * Only a window of at most MAX_SIDE x MAX_SIDE pixels (from the top left of
+ * the lines) is looked at. Segments that reach outside of it, that paint too
+ * many pixels to check, or whose thickness the client could not draw are
+ * always kept.
+ *
+ * Thread-safety:
+ *      This class has no state. findHidden only reads the segments below the
+ *      count it is given, which never change.
+ */
+public class Occlusion {
+
+    /**
+     * The most pixels the window looked at is wide or high
+     */
+    private static final int MAX_SIDE = 4096;
+
+    /**
+     * The most pixels a segment's bounding box may cover to be checked
+     */
+    private static final int MAX_CHECKED_PIXELS = 1 << 20;
+
+    /**
+     * The color painted by a segment when finding its pixels
+     */
+    private static final Color PAINTED = Color.WHITE;
+
+    private Occlusion() {
+    }
+
+    /**
+     * @param lines
+     *            the segments of a board
+     * @param count
+     *            the number of segments to look at, at most lines.size()
+     * @return the indexes of the segments among the first count that are
+     *         hidden by the ones after them (up to count)
+     */
+    public static BitSet findHidden(LineStore lines, int count) {
+        BitSet hidden = new BitSet(count);
+        if (count < 2 || count >= 0xffffff) {
+            // owners are painted as 24 bit colors
+            return hidden;
+        }
+        long minX = Long.MAX_VALUE;
+        long minY = Long.MAX_VALUE;
+        long maxX = Long.MIN_VALUE;
+        long maxY = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            long reach = reach(lines.readStrokeThickness(i));
+            minX = Math.min(minX, Math.min(lines.readX1(i), lines.readX2(i)) - reach);
+            minY = Math.min(minY, Math.min(lines.readY1(i), lines.readY2(i)) - reach);
+            maxX = Math.max(maxX, Math.max(lines.readX1(i), lines.readX2(i)) + reach);
+            maxY = Math.max(maxY, Math.max(lines.readY1(i), lines.readY2(i)) + reach);
+        }
+        int left = (int) Math.max(minX, Integer.MIN_VALUE / 2);
+        int top = (int) Math.max(minY, Integer.MIN_VALUE / 2);
+        int width = (int) Math.min(maxX - left + 1, MAX_SIDE);
+        int height = (int) Math.min(maxY - top + 1, MAX_SIDE);
+
+        BufferedImage owners = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] owner = ((DataBufferInt) owners.getRaster().getDataBuffer()).getData();
+        Map<Float, BasicStroke> strokes = new HashMap<Float, BasicStroke>();
+        Graphics2D ownerGraphics = owners.createGraphics();
+        ownerGraphics.translate(-left, -top);
+        for (int i = 0; i < count; i++) {
+            BasicStroke stroke = stroke(strokes, lines.readStrokeThickness(i));
+            if (stroke != null && (lines.readRGBA(i) & 0xff) == 0xff) {
+                ownerGraphics.setStroke(stroke);
+                ownerGraphics.setColor(new Color(i + 1));
+                ownerGraphics.drawLine(lines.readX1(i), lines.readY1(i),
+                        lines.readX2(i), lines.readY2(i));
+            }
+        }
+        ownerGraphics.dispose();
+
+        BufferedImage painted = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] paint = ((DataBufferInt) painted.getRaster().getDataBuffer()).getData();
+        Graphics2D paintGraphics = painted.createGraphics();
+        paintGraphics.translate(-left, -top);
+        for (int i = 0; i < count; i++) {
+            BasicStroke stroke = stroke(strokes, lines.readStrokeThickness(i));
+            if (stroke == null) {
+                continue;
+            }
+            long reach = reach(lines.readStrokeThickness(i));
+            long boxLeft = Math.min(lines.readX1(i), lines.readX2(i)) - reach - left;
+            long boxTop = Math.min(lines.readY1(i), lines.readY2(i)) - reach - top;
+            long boxRight = Math.max(lines.readX1(i), lines.readX2(i)) + reach - left;
+            long boxBottom = Math.max(lines.readY1(i), lines.readY2(i)) + reach - top;
+            if (boxLeft < 0 || boxTop < 0 || boxRight >= width || boxBottom >= height
+                    || (boxRight - boxLeft + 1) * (boxBottom - boxTop + 1) > MAX_CHECKED_PIXELS) {
+                continue;
+            }
+            paintGraphics.setStroke(stroke);
+            paintGraphics.setColor(PAINTED);
+            paintGraphics.drawLine(lines.readX1(i), lines.readY1(i),
+                    lines.readX2(i), lines.readY2(i));
+            boolean seen = false;
+            for (int y = (int) boxTop; y <= boxBottom; y++) {
+                for (int x = (int) boxLeft, p = y * width + x; x <= boxRight; x++, p++) {
+                    if (paint[p] != 0) {
+                        paint[p] = 0;
+                        if ((owner[p] & 0xffffff) <= i + 1) {
+                            seen = true;
+                        }
+                    }
+                }
+            }
+            if (!seen) {
+                hidden.set(i);
+            }
+        }
+        paintGraphics.dispose();
+        return hidden;
+    }
+
+    /**
+     * @return how far a stroke may paint from its segment, rounded up, with a
+     *         pixel to spare
+     */
+    private static long reach(float strokeThickness) {
+        if (!(strokeThickness > 0)) {
+            return 1;
+        }
+        return (long) Math.min(Math.ceil(strokeThickness / 2), MAX_SIDE) + 1;
+    }
+
+    /**
+     * @return the stroke the client draws a segment of the given thickness
+     *         with, or null if it cannot draw it
+     */
+    private static BasicStroke stroke(Map<Float, BasicStroke> strokes,
+            float strokeThickness) {
+        if (!(strokeThickness >= 0) || strokeThickness > MAX_SIDE) {
+            return null;
+        }
+        BasicStroke stroke = strokes.get(strokeThickness);
+        if (stroke == null) {
+            stroke = new BasicStroke(strokeThickness, BasicStroke.CAP_ROUND,
+                    BasicStroke.JOIN_ROUND);
+            strokes.put(strokeThickness, stroke);
+        }
+        return stroke;
+    }
+}
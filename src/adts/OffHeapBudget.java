@@ -0,0 +1,184 @@
+package adts;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The off-heap memory that the lines of all boards may take, handed out in
+ * fixed-size chunks of direct memory. Each board may take at most a board
+ * limit of it, and all boards together at most a global limit. A board that
+ * reaches either limit cannot get more lines until it is cleared.
+ *
+ * The JVM frees direct memory only when the buffer is garbage collected, so
+ * chunks given back are kept for the next board that needs one instead of
+ * being dropped. The bytes are counted as free again right away, and the
+ * chunks held (in use or kept) never take more than the global limit.
+ *
+ * Thread-safety:
+ *      The bytes reserved are an AtomicLong that is only raised with
+ *      compareAndSet while under the limit, and the kept chunks are on a
+ *      ConcurrentLinkedQueue, so boards on different threads may get and give
+ *      back chunks at once.
+ */
+public class OffHeapBudget implements LineStoreFactory {
+
+    private final static Logger LOGGER = Logger.getLogger(OffHeapBudget.class
+            .getName());
+
+    /**
+     * The number of segments in one chunk
+     */
+    public static final int LINES_PER_CHUNK = 4096;
+
+    /**
+     * The number of bytes in one chunk
+     */
+    public static final int CHUNK_BYTES = LINES_PER_CHUNK * LineStore.BYTES_PER_LINE;
+
+    /**
+     * The most bytes all boards may take together
+     */
+    private final long limitBytes;
+
+    /**
+     * The most bytes one board may take
+     */
+    private final long boardLimitBytes;
+
+    /**
+     * The bytes of the chunks in use by the boards
+     */
+    private final AtomicLong reservedBytes;
+
+    /**
+     * The number of times a board was refused a chunk
+     */
+    private final AtomicLong refusals;
+
+    /**
+     * The chunks that were given back, kept to be handed out again
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> freeChunks;
+
+    /**
+     * Create the budget
+     *
+     * @param limitBytes
+     *            the most bytes all boards may take together
+     * @param boardLimitBytes
+     *            the most bytes one board may take
+     * @throws IllegalArgumentException
+     *             if the limits are smaller than one chunk, or the board
+     *             limit is bigger than the global one
+     */
+    public OffHeapBudget(long limitBytes, long boardLimitBytes) {
+        if (boardLimitBytes < CHUNK_BYTES || boardLimitBytes > limitBytes) {
+            throw new IllegalArgumentException(String.format(
+                    "need %d <= board budget <= budget", CHUNK_BYTES));
+        }
+        this.limitBytes = limitBytes;
+        this.boardLimitBytes = boardLimitBytes;
+        this.reservedBytes = new AtomicLong(0);
+        this.refusals = new AtomicLong(0);
+        this.freeChunks = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+
+    /**
+     * @return a new, empty store whose chunks come from this budget
+     */
+    @Override
+    public LineStore newLineStore() {
+        return new OffHeapLineStore(this);
+    }
+
+    /**
+     * Hands out a chunk, if the board and all boards together stay within
+     * their limits
+     *
+     * @param boardBytes
+     *            the bytes that the board asking has already
+     * @return a chunk of CHUNK_BYTES bytes, or null if there is no room
+     */
+    ByteBuffer acquireChunk(long boardBytes) {
+        if (boardBytes + CHUNK_BYTES > this.boardLimitBytes) {
+            this.refuse("the board budget");
+            return null;
+        }
+        while (true) {
+            long reserved = this.reservedBytes.get();
+            if (reserved + CHUNK_BYTES > this.limitBytes) {
+                this.refuse("the off-heap budget");
+                return null;
+            }
+            if (this.reservedBytes.compareAndSet(reserved, reserved + CHUNK_BYTES)) {
+                break;
+            }
+        }
+        ByteBuffer chunk = this.freeChunks.poll();
+        if (chunk == null) {
+            chunk = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.nativeOrder());
+        }
+        return chunk;
+    }
+
+    /**
+     * Takes back a chunk, whose bytes count as free right away
+     *
+     * @param chunk
+     *            a chunk handed out by acquireChunk, not used afterwards
+     */
+    void releaseChunk(ByteBuffer chunk) {
+        this.freeChunks.add(chunk);
+        this.reservedBytes.addAndGet(-CHUNK_BYTES);
+    }
+
+    /**
+     * Record that a board was refused a chunk. Only the first refusal and
+     * then every power of two is logged, since a full board is refused every
+     * line drawn on it.
+     *
+     * @param limit
+     *            the limit that was reached
+     */
+    private void refuse(String limit) {
+        long total = this.refusals.incrementAndGet();
+        if (Long.bitCount(total) != 1) {
+            return;
+        }
+        LOGGER.warning(String.format(
+                "a board reached %s, its new lines are refused (%d refusals so far, "
+                        + "%d of %d bytes in use)", limit, total,
+                this.reservedBytes.get(), this.limitBytes));
+    }
+
+    /**
+     * @return the bytes of the chunks in use by the boards
+     */
+    public long getReservedBytes() {
+        return this.reservedBytes.get();
+    }
+
+    /**
+     * @return the most bytes all boards may take together
+     */
+    public long getLimitBytes() {
+        return this.limitBytes;
+    }
+
+    /**
+     * @return the most bytes one board may take
+     */
+    public long getBoardLimitBytes() {
+        return this.boardLimitBytes;
+    }
+
+    /**
+     * @return the number of times a board was refused a chunk
+     */
+    public long getRefusals() {
+        return this.refusals.get();
+    }
+}
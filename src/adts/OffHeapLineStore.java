@@ -0,0 +1,151 @@
+package adts;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A LineStore that keeps the segments off the heap, in fixed-size chunks of
+ * direct memory taken from an OffHeapBudget. Each segment takes 20 bytes of
+ * a chunk: x1, y1, x2, y2 and the number of its style in the palette. The
+ * board_lines encoding reads the chunks directly.
+ *
+ * Concurrency argument:
+ *      Only the single writer changes the chunks. A new chunk is published by
+ *      writing the chunks array (a volatile) before the high-water mark covers
+ *      any segment in it. Readers only use the absolute get methods of the
+ *      chunks, which do not change the state of the buffer. The chunks go
+ *      back to the budget (which is threadsafe itself) only once the last
+ *      reference to the store is given back, so never while being read.
+ */
+public class OffHeapLineStore extends LineStore {
+
+    private static final int X1 = 0;
+    private static final int Y1 = 4;
+    private static final int X2 = 8;
+    private static final int Y2 = 12;
+    private static final int STYLE = 16;
+
+    /**
+     * Where the chunks come from and go back to
+     */
+    private final OffHeapBudget budget;
+
+    /**
+     * The chunks, in order. Segment i is in chunk i / LINES_PER_CHUNK.
+     */
+    private volatile ByteBuffer[] chunks;
+
+    /**
+     * Create an empty store, which takes no memory yet
+     *
+     * @param budget
+     *            where the chunks come from
+     */
+    public OffHeapLineStore(OffHeapBudget budget) {
+        super();
+        this.budget = budget;
+        this.chunks = new ByteBuffer[0];
+    }
+
+    /**
+     * @return the bytes of off-heap memory this store holds
+     */
+    public long getReservedBytes() {
+        return (long) this.chunks.length * OffHeapBudget.CHUNK_BYTES;
+    }
+
+    /**
+     * @param i
+     *            the index of a segment
+     * @return the chunk that holds the segment
+     */
+    private ByteBuffer chunkOf(int i) {
+        return this.chunks[i / OffHeapBudget.LINES_PER_CHUNK];
+    }
+
+    /**
+     * @param i
+     *            the index of a segment
+     * @return the offset of the segment in its chunk
+     */
+    private static int offsetOf(int i) {
+        return (i % OffHeapBudget.LINES_PER_CHUNK) * BYTES_PER_LINE;
+    }
+
+    @Override
+    protected boolean write(int index, int x1, int y1, int x2, int y2,
+            int style) {
+        ByteBuffer[] current = this.chunks;
+        if (index == current.length * OffHeapBudget.LINES_PER_CHUNK) {
+            ByteBuffer chunk = this.budget.acquireChunk(this.getReservedBytes());
+            if (chunk == null) {
+                return false;
+            }
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = chunk;
+            this.chunks = current;
+        }
+        ByteBuffer chunk = current[index / OffHeapBudget.LINES_PER_CHUNK];
+        int offset = offsetOf(index);
+        chunk.putInt(offset + X1, x1);
+        chunk.putInt(offset + Y1, y1);
+        chunk.putInt(offset + X2, x2);
+        chunk.putInt(offset + Y2, y2);
+        chunk.putInt(offset + STYLE, style);
+        return true;
+    }
+
+    @Override
+    protected int readX1(int i) {
+        return this.chunkOf(i).getInt(offsetOf(i) + X1);
+    }
+
+    @Override
+    protected int readY1(int i) {
+        return this.chunkOf(i).getInt(offsetOf(i) + Y1);
+    }
+
+    @Override
+    protected int readX2(int i) {
+        return this.chunkOf(i).getInt(offsetOf(i) + X2);
+    }
+
+    @Override
+    protected int readY2(int i) {
+        return this.chunkOf(i).getInt(offsetOf(i) + Y2);
+    }
+
+    @Override
+    protected int readStyle(int i) {
+        return this.chunkOf(i).getInt(offsetOf(i) + STYLE);
+    }
+
+    @Override
+    public void appendTo(StringBuilder out, int count) {
+        ByteBuffer[] current = this.chunks;
+        for (int start = 0; start < count; start += OffHeapBudget.LINES_PER_CHUNK) {
+            ByteBuffer chunk = current[start / OffHeapBudget.LINES_PER_CHUNK];
+            int end = Math.min(count - start, OffHeapBudget.LINES_PER_CHUNK) * BYTES_PER_LINE;
+            for (int offset = 0; offset < end; offset += BYTES_PER_LINE) {
+                int style = chunk.getInt(offset + STYLE);
+                int i = start + offset / BYTES_PER_LINE;
+                this.appendSegment(out, chunk.getInt(offset + X1),
+                        chunk.getInt(offset + Y1), chunk.getInt(offset + X2),
+                        chunk.getInt(offset + Y2),
+                        this.strokeThicknessOf(i, style),
+                        this.rgbaOf(i, style));
+            }
+        }
+    }
+
+    /**
+     * Gives all the chunks back to the budget
+     */
+    @Override
+    protected void free() {
+        for (ByteBuffer chunk : this.chunks) {
+            this.budget.releaseChunk(chunk);
+        }
+        this.chunks = new ByteBuffer[0];
+    }
+}
@@ -0,0 +1,109 @@
+package adts;
+
+import java.util.Arrays;
+
+/**
+ * Simplifies freehand polylines with the Douglas-Peucker algorithm: the first
+ * and last points are kept, and a point in between is only kept if leaving it
+ * out would move the polyline by more than the tolerance. Mouse input has many
+ * points that are closer together than a pixel or lie on a straight line, and
+ * those are the ones dropped.
+ *
+ * Thread-safety:
+ *      This class has no state. simplify only reads the stroke it is given,
+ *      which must not change meanwhile.
+ */
+public class PolylineSimplifier {
+
+    private PolylineSimplifier() {
+    }
+
+    /**
+     * @param polyline
+     *            the polyline to simplify
+     * @param tolerance
+     *            the largest distance (in pixels) from a point that is left
+     *            out to the simplified polyline
+     * @return the indexes of the points to keep, in order, the first and the
+     *         last one included
+     */
+    public static int[] simplify(Stroke polyline, float tolerance) {
+        int n = polyline.getPointCount();
+        if (n <= 2) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        boolean[] kept = new boolean[n];
+        kept[0] = true;
+        kept[n - 1] = true;
+        // the ranges still to look at, as first last pairs, instead of
+        // recursing (a long stroke could overflow the stack)
+        int[] ranges = new int[16];
+        int top = 0;
+        ranges[top++] = 0;
+        ranges[top++] = n - 1;
+        double squaredTolerance = (double) tolerance * tolerance;
+        while (top > 0) {
+            int last = ranges[--top];
+            int first = ranges[--top];
+            double farthest = -1;
+            int farthestIndex = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = squaredDistance(polyline, i, first, last);
+                if (distance > farthest) {
+                    farthest = distance;
+                    farthestIndex = i;
+                }
+            }
+            if (farthestIndex < 0 || farthest <= squaredTolerance) {
+                continue;
+            }
+            kept[farthestIndex] = true;
+            if (top + 4 > ranges.length) {
+                ranges = Arrays.copyOf(ranges, 2 * ranges.length);
+            }
+            ranges[top++] = first;
+            ranges[top++] = farthestIndex;
+            ranges[top++] = farthestIndex;
+            ranges[top++] = last;
+        }
+        int count = 0;
+        for (boolean keep : kept) {
+            if (keep) {
+                count++;
+            }
+        }
+        int[] indexes = new int[count];
+        for (int i = 0, j = 0; i < n; i++) {
+            if (kept[i]) {
+                indexes[j++] = i;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * @return the squared distance from point i to the segment from point
+     *         first to point last
+     */
+    private static double squaredDistance(Stroke polyline, int i, int first,
+            int last) {
+        double x = polyline.getX(i);
+        double y = polyline.getY(i);
+        double x1 = polyline.getX(first);
+        double y1 = polyline.getY(first);
+        double dx = polyline.getX(last) - x1;
+        double dy = polyline.getY(last) - y1;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = 0;
+        if (lengthSquared > 0) {
+            t = Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / lengthSquared));
+        }
+        double px = x1 + t * dx - x;
+        double py = y1 + t * dy - y;
+        return px * px + py * py;
+    }
+}
@@ -0,0 +1,259 @@
+package adts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes the segments of a board compactly in binary. Freehand lines are
+ * made of short segments that each start where the last one ended, in the
+ * style of the last one, so a segment is encoded relative to the segment
+ * before it:
+ *
+ *      [flags] [x1 - last x2] [y1 - last y2] [x2 - x1] [y2 - y1] [style]
+ *
+ * The flags byte says whether the segment starts at the end of the last one
+ * (CONTINUES, and the two start deltas are left out) and whether it has the
+ * style of the last one (SAME_STYLE, and the style is left out). The deltas
+ * are zig-zag varints, so a step of a few pixels takes one byte. A style is
+ * the bits of its stroke thickness and its packed color, 4 bytes each, so
+ * thicknesses come back exactly (Line.toString rounds them to 6 decimals).
+ * The encoding starts with the number of segments as a varint; the first
+ * segment is encoded relative to a segment that ends at (0, 0) and has no
+ * style.
+ *
+ * A segment of a freehand line takes 3 bytes, against some 30 to 40 bytes
+ * in the format of Line.toString.
+ *
+ * Thread-safety:
+ *      This class has no state. Encoding a store reads it like any other
+ *      reader does, below a size read once.
+ */
+public class SegmentCodec {
+
+    /**
+     * The segment starts at the end of the one before it
+     */
+    private static final int CONTINUES = 1;
+
+    /**
+     * The segment has the style of the one before it
+     */
+    private static final int SAME_STYLE = 2;
+
+    private SegmentCodec() {
+    }
+
+    /**
+     * @param lines
+     *            a store of lines
+     * @param from
+     *            the index of the first segment to encode
+     * @param to
+     *            the index after the last segment to encode, at most
+     *            lines.size()
+     * @return the segments, encoded
+     */
+    public static byte[] encode(LineStore lines, int from, int to) {
+        Encoder out = new Encoder(Math.max(16, (to - from) * 4));
+        out.writeVarint(to - from);
+        int lastX = 0;
+        int lastY = 0;
+        int lastStyle = -1;
+        for (int i = from; i < to; i++) {
+            int x1 = lines.readX1(i);
+            int y1 = lines.readY1(i);
+            int x2 = lines.readX2(i);
+            int y2 = lines.readY2(i);
+            int style = lines.readStyle(i);
+            boolean continues = x1 == lastX && y1 == lastY;
+            boolean sameStyle = style == lastStyle && style != LineStore.UNNUMBERED;
+            out.writeByte((continues ? CONTINUES : 0) | (sameStyle ? SAME_STYLE : 0));
+            if (!continues) {
+                out.writeVarint(zigZag(x1 - lastX));
+                out.writeVarint(zigZag(y1 - lastY));
+            }
+            out.writeVarint(zigZag(x2 - x1));
+            out.writeVarint(zigZag(y2 - y1));
+            if (!sameStyle) {
+                out.writeInt(Float.floatToIntBits(lines.strokeThicknessOf(i, style)));
+                out.writeInt(lines.rgbaOf(i, style));
+            }
+            lastX = x2;
+            lastY = y2;
+            lastStyle = style;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param lines
+     *            lines
+     * @return the lines, encoded
+     */
+    public static byte[] encode(List<Line> lines) {
+        LineStore store = new ArrayLineStore();
+        for (Line line : lines) {
+            // a store on the heap always has room
+            store.add(line);
+        }
+        return encode(store, 0, store.size());
+    }
+
+    /**
+     * @param bytes
+     *            encoded segments
+     * @return the number of segments, without decoding them
+     * @throws IllegalArgumentException
+     *             if the bytes do not start with a number
+     */
+    public static int countOf(byte[] bytes) {
+        return new Decoder(bytes).readVarint();
+    }
+
+    /**
+     * @param bytes
+     *            encoded segments
+     * @return the segments as Lines
+     * @throws IllegalArgumentException
+     *             if the bytes are not encoded segments
+     */
+    public static List<Line> decode(byte[] bytes) {
+        Decoder in = new Decoder(bytes);
+        int count = in.readVarint();
+        if (count < 0 || count > bytes.length) {
+            throw new IllegalArgumentException("bad segment count " + count);
+        }
+        List<Line> lines = new ArrayList<Line>(count);
+        int lastX = 0;
+        int lastY = 0;
+        boolean styled = false;
+        float strokeThickness = 0;
+        int rgba = 0;
+        for (int i = 0; i < count; i++) {
+            int flags = in.readByte();
+            if ((flags & ~(CONTINUES | SAME_STYLE)) != 0) {
+                throw new IllegalArgumentException("bad flags " + flags);
+            }
+            int x1 = lastX;
+            int y1 = lastY;
+            if ((flags & CONTINUES) == 0) {
+                x1 += unZigZag(in.readVarint());
+                y1 += unZigZag(in.readVarint());
+            }
+            int x2 = x1 + unZigZag(in.readVarint());
+            int y2 = y1 + unZigZag(in.readVarint());
+            if ((flags & SAME_STYLE) == 0) {
+                strokeThickness = Float.intBitsToFloat(in.readInt());
+                rgba = in.readInt();
+                styled = true;
+            } else if (!styled) {
+                throw new IllegalArgumentException("no style to keep");
+            }
+            lines.add(new Line(x1, y1, x2, y2, strokeThickness, rgba >>> 24,
+                    rgba >>> 16 & 0xff, rgba >>> 8 & 0xff, rgba & 0xff));
+            lastX = x2;
+            lastY = y2;
+        }
+        if (!in.isDone()) {
+            throw new IllegalArgumentException("bytes after the segments");
+        }
+        return lines;
+    }
+
+    /**
+     * @return n with its sign in the lowest bit, so small numbers of either
+     *         sign are small
+     */
+    private static int zigZag(int n) {
+        return n << 1 ^ n >> 31;
+    }
+
+    private static int unZigZag(int n) {
+        return n >>> 1 ^ -(n & 1);
+    }
+
+    /**
+     * Bytes written one at a time into an array that grows
+     */
+    private static class Encoder {
+        private byte[] bytes;
+        private int length;
+
+        private Encoder(int capacity) {
+            this.bytes = new byte[capacity];
+            this.length = 0;
+        }
+
+        private void writeByte(int b) {
+            if (this.length == this.bytes.length) {
+                this.bytes = Arrays.copyOf(this.bytes, 2 * this.length);
+            }
+            this.bytes[this.length++] = (byte) b;
+        }
+
+        /**
+         * Writes an unsigned int 7 bits at a time, lowest first, with the
+         * high bit set on every byte but the last
+         */
+        private void writeVarint(int n) {
+            while ((n & ~0x7f) != 0) {
+                this.writeByte(n & 0x7f | 0x80);
+                n >>>= 7;
+            }
+            this.writeByte(n);
+        }
+
+        private void writeInt(int n) {
+            this.writeByte(n >>> 24);
+            this.writeByte(n >>> 16);
+            this.writeByte(n >>> 8);
+            this.writeByte(n);
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(this.bytes, this.length);
+        }
+    }
+
+    /**
+     * Bytes read one at a time from an array
+     */
+    private static class Decoder {
+        private final byte[] bytes;
+        private int position;
+
+        private Decoder(byte[] bytes) {
+            this.bytes = bytes;
+            this.position = 0;
+        }
+
+        private int readByte() {
+            if (this.position == this.bytes.length) {
+                throw new IllegalArgumentException("segments cut short");
+            }
+            return this.bytes[this.position++] & 0xff;
+        }
+
+        private int readVarint() {
+            int n = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = this.readByte();
+                n |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return n;
+                }
+            }
+            throw new IllegalArgumentException("varint too long");
+        }
+
+        private int readInt() {
+            return this.readByte() << 24 | this.readByte() << 16
+                    | this.readByte() << 8 | this.readByte();
+        }
+
+        private boolean isDone() {
+            return this.position == this.bytes.length;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package adts;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A grid of square cells over the (unbounded) plane of a board. Each cell
+ * lists, in draw order, the indexes of the segments whose bounding box
+ * (stroke thickness included) overlaps it, so the segments near a rectangle
+ * are found without looking at the others. Adding a segment only appends its
+ * index to the few cells it covers. A segment that covers too many cells is
+ * kept on a separate list that every query looks at instead.
+ *
+ * Concurrency argument:
+ *      Only one thread at a time may add segments (the writer of the
+ *      LineStore that owns the index). The cells are a ConcurrentHashMap.
+ *      In each cell the writer stores the index in the array before raising
+ *      the count, and publishes a grown array before the count covers it;
+ *      both are volatile, so a reader that reads the count first sees every
+ *      index below it. Readers also ignore indexes at or past the high-water
+ *      mark they were given, so an index added after the snapshot is never
+ *      returned.
+ */
+public class SegmentIndex {
+
+    /**
+     * The width and height of a cell, as a power of two
+     */
+    private static final int CELL_SHIFT = 6;
+
+    /**
+     * The most cells a segment is listed in before it counts as oversized
+     */
+    private static final int MAX_CELLS_PER_SEGMENT = 64;
+
+    /**
+     * The indexes of the segments in one cell, in draw order
+     */
+    private static class Cell {
+        private volatile int[] indexes = new int[4];
+        private volatile int count = 0;
+
+        /**
+         * @param index
+         *            the index to append, larger than all the others
+         */
+        void add(int index) {
+            int[] current = this.indexes;
+            if (this.count == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+                this.indexes = current;
+            }
+            current[this.count] = index;
+            this.count = this.count + 1;
+        }
+
+        /**
+         * @param found
+         *            where to set the bits of the indexes below limit
+         * @param limit
+         *            the high-water mark of the snapshot being read
+         */
+        void collect(BitSet found, int limit) {
+            int n = this.count;
+            int[] current = this.indexes;
+            for (int i = 0; i < n && current[i] < limit; i++) {
+                found.set(current[i]);
+            }
+        }
+    }
+
+    /**
+     * Key = the cell coordinates, packed by key() Value = the cell
+     */
+    private final ConcurrentMap<Long, Cell> cells;
+
+    /**
+     * The segments that cover more than MAX_CELLS_PER_SEGMENT cells
+     */
+    private final Cell oversized;
+
+    /**
+     * Create an empty index
+     */
+    public SegmentIndex() {
+        this.cells = new ConcurrentHashMap<Long, Cell>();
+        this.oversized = new Cell();
+    }
+
+    /**
+     * @return the key of the cell with the given cell coordinates
+     */
+    private static long key(int cellX, int cellY) {
+        return (long) cellX << 32 | (cellY & 0xffffffffL);
+    }
+
+    /**
+     * Lists a segment in the cells its bounding box overlaps
+     *
+     * @param index
+     *            the index of the segment, larger than any added before
+     * @param left
+     *            the smallest x of the bounding box
+     * @param top
+     *            the smallest y of the bounding box
+     * @param right
+     *            the largest x of the bounding box
+     * @param bottom
+     *            the largest y of the bounding box
+     */
+    public void add(int index, int left, int top, int right, int bottom) {
+        int firstX = left >> CELL_SHIFT;
+        int firstY = top >> CELL_SHIFT;
+        int lastX = right >> CELL_SHIFT;
+        int lastY = bottom >> CELL_SHIFT;
+        if ((long) (lastX - firstX + 1) * (lastY - firstY + 1) > MAX_CELLS_PER_SEGMENT) {
+            this.oversized.add(index);
+            return;
+        }
+        for (int cellX = firstX; cellX <= lastX; cellX++) {
+            for (int cellY = firstY; cellY <= lastY; cellY++) {
+                Long key = key(cellX, cellY);
+                Cell cell = this.cells.get(key);
+                if (cell == null) {
+                    cell = new Cell();
+                    this.cells.put(key, cell);
+                }
+                cell.add(index);
+            }
+        }
+    }
+
+    /**
+     * Finds the segments whose bounding box may overlap a rectangle
+     *
+     * @param left
+     *            the smallest x of the rectangle
+     * @param top
+     *            the smallest y of the rectangle
+     * @param right
+     *            the largest x of the rectangle
+     * @param bottom
+     *            the largest y of the rectangle
+     * @param limit
+     *            the high-water mark of the snapshot being read
+     * @return the indexes below limit of the segments listed in the cells the
+     *         rectangle overlaps, as set bits (so in draw order)
+     */
+    public BitSet candidates(int left, int top, int right, int bottom, int limit) {
+        BitSet found = new BitSet(limit);
+        this.oversized.collect(found, limit);
+        int firstX = left >> CELL_SHIFT;
+        int firstY = top >> CELL_SHIFT;
+        int lastX = right >> CELL_SHIFT;
+        int lastY = bottom >> CELL_SHIFT;
+        long area = (long) (lastX - firstX + 1) * (lastY - firstY + 1);
+        if (area > this.cells.size()) {
+            // fewer cells are in use than the rectangle covers
+            for (Map.Entry<Long, Cell> entry : this.cells.entrySet()) {
+                int cellX = (int) (entry.getKey() >> 32);
+                int cellY = (int) (long) entry.getKey();
+                if (cellX >= firstX && cellX <= lastX && cellY >= firstY && cellY <= lastY) {
+                    entry.getValue().collect(found, limit);
+                }
+            }
+            return found;
+        }
+        for (int cellX = firstX; cellX <= lastX; cellX++) {
+            for (int cellY = firstY; cellY <= lastY; cellY++) {
+                Cell cell = this.cells.get(key(cellX, cellY));
+                if (cell != null) {
+                    cell.collect(found, limit);
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,139 @@
+package adts;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The mailbox of a Whiteboard: runs the tasks given to it one at a time, in
+ * the order they were given, without a thread of its own. The thread that
+ * hands a task to an idle mailbox runs it right away, along with any tasks
+ * that other threads hand over in the meantime, up to MAX_TASKS_PER_CALLER
+ * of them. The rest of a busy mailbox is handed to a shared pool of threads,
+ * so the thread that happened to find the mailbox idle (for example a
+ * selector serving every connection) is not held up by other users' tasks
+ * for long. A thread that finds the mailbox busy only queues its task and
+ * returns.
+ *
+ * So each board has a single writer at any time, different boards are worked
+ * on by different threads in parallel, and no thread ever waits on a lock to
+ * reach a board.
+ *
+ * Concurrency argument:
+ *      The tasks are on a ConcurrentLinkedQueue. pending counts the tasks that
+ *      were queued but not run yet, and is only incremented after the task is
+ *      queued. The thread whose increment takes it from 0 to 1 becomes the
+ *      runner, and stays the runner until its decrement brings it back to 0,
+ *      or until it hands the mailbox over: it then runs nothing more, and the
+ *      pool thread it handed over to is the runner, without pending going
+ *      back to 0. So there is never more than one runner and every queued
+ *      task is run. A task queued by a task of the same mailbox runs after
+ *      it, not inside it.
+ */
+public class SerialExecutor implements Executor {
+
+    /**
+     * The most tasks a thread that hands a task to an idle mailbox runs
+     * before handing the mailbox over
+     */
+    public static final int MAX_TASKS_PER_CALLER = 64;
+
+    /**
+     * Runs the mailboxes that were handed over, on daemon threads
+     */
+    private static final ExecutorService HANDOFFS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "mailboxes");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * The tasks waiting to be run
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+
+    /**
+     * The number of tasks queued but not run yet
+     */
+    private final AtomicInteger pending;
+
+    /**
+     * Where the mailbox is handed over
+     */
+    private final Executor handoffs;
+
+    /**
+     * Runs the mailbox on the thread it was handed over to
+     */
+    private final Runnable drainTask;
+
+    /**
+     * Create an empty mailbox
+     */
+    public SerialExecutor() {
+        this(HANDOFFS);
+    }
+
+    /**
+     * Create an empty mailbox, handing it over to the given executor when it
+     * is busy
+     *
+     * @param handoffs
+     *            where to run the rest of the tasks once a thread has run
+     *            MAX_TASKS_PER_CALLER of them
+     */
+    public SerialExecutor(Executor handoffs) {
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.pending = new AtomicInteger(0);
+        this.handoffs = handoffs;
+        this.drainTask = new Runnable() {
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    /**
+     * Run the task after the tasks given before it, either right away on this
+     * thread or later on the thread that is running the mailbox
+     *
+     * @param task
+     *            the task to run. If it throws, the exception is reported and
+     *            the following tasks still run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        if (this.pending.getAndIncrement() != 0) {
+            return;
+        }
+        this.drain();
+    }
+
+    /**
+     * Runs queued tasks as the runner of the mailbox, until there are none
+     * left or MAX_TASKS_PER_CALLER of them were run, then hands the mailbox
+     * over
+     */
+    private void drain() {
+        int run = 0;
+        do {
+            if (run == MAX_TASKS_PER_CALLER) {
+                this.handoffs.execute(this.drainTask);
+                return;
+            }
+            try {
+                this.tasks.poll().run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            run++;
+        } while (this.pending.decrementAndGet() != 0);
+    }
+}
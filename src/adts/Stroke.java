@@ -0,0 +1,226 @@
+package adts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ADT that represents a stroke: a polyline drawn in one go, whose segments
+ * all share one stroke thickness and color. A stroke is sent as it is drawn:
+ * it begins with its style and first point, and points are added to it until
+ * it ends. Segment i of the stroke goes from point i to point i + 1.
+ *
+ * Thread-safety:
+ *      A stroke is only read and changed by the one thread that draws it
+ *      (the mailbox of its board on the server, the event thread on the
+ *      client).
+ */
+public class Stroke {
+
+    /**
+     * The ID of this stroke, unique within its board
+     */
+    private final int strokeID;
+
+    /**
+     * The stroke thickness of the segments
+     */
+    private final float strokeThickness;
+
+    /**
+     * The color of the segments
+     */
+    private final int r;
+    private final int g;
+    private final int b;
+    private final int a;
+
+    /**
+     * The coordinates of the points, as x0 y0 x1 y1...
+     */
+    private int[] points;
+
+    /**
+     * The number of points
+     */
+    private int pointCount;
+
+    /**
+     * Creates a stroke with a single point
+     *
+     * @param strokeID
+     *            the ID of the stroke
+     * @param strokeThickness
+     *            the thickness of the segments
+     * @param r
+     *            the red component of the color of the segments
+     * @param g
+     *            the green component of the color of the segments
+     * @param b
+     *            the blue component of the color of the segments
+     * @param a
+     *            the alpha component of the color of the segments
+     * @param x
+     *            the x coordinate of the first point
+     * @param y
+     *            the y coordinate of the first point
+     */
+    public Stroke(int strokeID, float strokeThickness, int r, int g, int b,
+            int a, int x, int y) {
+        this.strokeID = strokeID;
+        this.strokeThickness = strokeThickness;
+        this.r = r;
+        this.g = g;
+        this.b = b;
+        this.a = a;
+        this.points = new int[16];
+        this.pointCount = 0;
+        this.addPoint(x, y);
+    }
+
+    /**
+     * Adds a point after the others, which makes a segment from the last
+     * point to it
+     *
+     * @param x
+     *            the x coordinate of the point
+     * @param y
+     *            the y coordinate of the point
+     */
+    public void addPoint(int x, int y) {
+        if (2 * this.pointCount == this.points.length) {
+            this.points = Arrays.copyOf(this.points, 2 * this.points.length);
+        }
+        this.points[2 * this.pointCount] = x;
+        this.points[2 * this.pointCount + 1] = y;
+        this.pointCount++;
+    }
+
+    /**
+     * @return the ID of the stroke
+     */
+    public int getStrokeID() {
+        return this.strokeID;
+    }
+
+    /**
+     * @return the number of points
+     */
+    public int getPointCount() {
+        return this.pointCount;
+    }
+
+    /**
+     * @param i
+     *            the index of a point
+     * @return the x coordinate of the point
+     */
+    public int getX(int i) {
+        this.checkPoint(i);
+        return this.points[2 * i];
+    }
+
+    /**
+     * @param i
+     *            the index of a point
+     * @return the y coordinate of the point
+     */
+    public int getY(int i) {
+        this.checkPoint(i);
+        return this.points[2 * i + 1];
+    }
+
+    /**
+     * @return the stroke thickness of the segments
+     */
+    public float getStrokeThickness() {
+        return this.strokeThickness;
+    }
+
+    /**
+     * @return the red value of the segments
+     */
+    public int getR() {
+        return this.r;
+    }
+
+    /**
+     * @return the green value of the segments
+     */
+    public int getG() {
+        return this.g;
+    }
+
+    /**
+     * @return the blue value of the segments
+     */
+    public int getB() {
+        return this.b;
+    }
+
+    /**
+     * @return the alpha value of the segments
+     */
+    public int getA() {
+        return this.a;
+    }
+
+    /**
+     * @return the number of segments, one less than the number of points
+     */
+    public int getSegmentCount() {
+        return this.pointCount - 1;
+    }
+
+    /**
+     * @param i
+     *            the index of a segment
+     * @return the segment from point i to point i + 1, as a Line
+     */
+    public Line getSegment(int i) {
+        this.checkPoint(i + 1);
+        return new Line(this.points[2 * i], this.points[2 * i + 1],
+                this.points[2 * i + 2], this.points[2 * i + 3],
+                this.strokeThickness, this.r, this.g, this.b, this.a);
+    }
+
+    /**
+     * @return the segments, as Lines
+     */
+    public List<Line> toLines() {
+        List<Line> lines = new ArrayList<Line>();
+        for (int i = 0; i < this.getSegmentCount(); i++) {
+            lines.add(this.getSegment(i));
+        }
+        return lines;
+    }
+
+    /**
+     * @param i
+     *            an index
+     * @throws IndexOutOfBoundsException
+     *             if there is no point at it
+     */
+    private void checkPoint(int i) {
+        if (i < 0 || i >= this.pointCount) {
+            throw new IndexOutOfBoundsException("point " + i + ", "
+                    + this.pointCount + " points");
+        }
+    }
+
+    /**
+     * @return the style and the points of the stroke, as 'strokeThickness r g
+     *         b a x0 y0 x1 y1...', the thickness formatted like
+     *         Line.toString
+     */
+    @Override
+    public String toString() {
+        StringBuilder encoded = new StringBuilder();
+        encoded.append(String.format("%f %d %d %d %d", this.strokeThickness,
+                this.r, this.g, this.b, this.a));
+        for (int i = 0; i < 2 * this.pointCount; i++) {
+            encoded.append(' ').append(this.points[i]);
+        }
+        return encoded.toString();
+    }
+}
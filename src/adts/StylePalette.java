@@ -0,0 +1,173 @@
+package adts;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The styles (stroke thickness and color) used by the lines of one store,
+ * each kept once and numbered in the order it was first used. Boards only
+ * use a handful of styles (the client offers a few colors and stroke sizes),
+ * so a segment keeps the small number of its style instead of the style
+ * itself, and a client that was told the styles can be sent just that
+ * number.
+ *
+ * Concurrency argument:
+ *      Only one thread at a time may intern styles (the writer of the store).
+ *      A style is written to the columns before the size (a volatile) is
+ *      raised past it, and grown columns are published through volatiles
+ *      before that too, so a reader that got the number of a style from the
+ *      size, or from a segment that was published after it, reads the style
+ *      completely without a lock. The map from styles to numbers is only used
+ *      by the writer. The number of styles announced is only changed by the
+ *      board's mailbox, and by a compaction before the palette is published
+ *      (to carry it over from the palette it replaces); it is volatile so the
+ *      compaction reads it. A number announced meanwhile on the replaced
+ *      palette may be announced again, which only repeats a define_style.
+ */
+public class StylePalette {
+
+    /**
+     * The most styles a palette keeps
+     */
+    public static final int MAX_STYLES = 1 << 16;
+
+    /**
+     * The stroke thickness of each style
+     */
+    private volatile float[] strokeThicknesses;
+
+    /**
+     * The color of each style, packed as r << 24 | g << 16 | b << 8 | a
+     */
+    private volatile int[] colors;
+
+    /**
+     * The number of styles that readers may read
+     */
+    private volatile int size;
+
+    /**
+     * Key = a style, as the bits of its stroke thickness << 32 | its color
+     * Value = the number of the style
+     */
+    private final Map<Long, Integer> numbers;
+
+    /**
+     * The number of styles that the users in the board have been told about
+     */
+    private volatile int announced;
+
+    /**
+     * Create an empty palette
+     */
+    public StylePalette() {
+        this.strokeThicknesses = new float[16];
+        this.colors = new int[16];
+        this.size = 0;
+        this.numbers = new HashMap<Long, Integer>();
+        this.announced = 0;
+    }
+
+    /**
+     * @param strokeThickness
+     *            the stroke thickness of the style
+     * @param rgba
+     *            the color of the style, packed as r << 24 | g << 16 | b << 8
+     *            | a
+     * @return the number of the style, which it gets if it is new, or -1
+     *         (LineStore.UNNUMBERED) if it is new and the palette is full
+     */
+    public int intern(float strokeThickness, int rgba) {
+        Long key = (long) Float.floatToIntBits(strokeThickness) << 32
+                | (rgba & 0xffffffffL);
+        Integer number = this.numbers.get(key);
+        if (number != null) {
+            return number;
+        }
+        int style = this.size;
+        if (style == MAX_STYLES) {
+            return -1;
+        }
+        if (style == this.colors.length) {
+            this.strokeThicknesses = Arrays.copyOf(this.strokeThicknesses, 2 * style);
+            this.colors = Arrays.copyOf(this.colors, 2 * style);
+        }
+        this.strokeThicknesses[style] = strokeThickness;
+        this.colors[style] = rgba;
+        this.numbers.put(key, style);
+        this.size = style + 1;
+        return style;
+    }
+
+    /**
+     * Looks a style up without interning it. Only called by the thread that
+     * interns styles.
+     *
+     * @param strokeThickness
+     *            the stroke thickness of the style
+     * @param rgba
+     *            the color of the style, packed as r << 24 | g << 16 | b << 8
+     *            | a
+     * @return the number of the style, or the one intern would give it now if
+     *         it is new, or -1 (LineStore.UNNUMBERED) if it is new and the
+     *         palette is full
+     */
+    public int numberOf(float strokeThickness, int rgba) {
+        Integer number = this.numbers.get((long) Float.floatToIntBits(strokeThickness) << 32
+                | (rgba & 0xffffffffL));
+        if (number != null) {
+            return number;
+        }
+        return this.size == MAX_STYLES ? -1 : this.size;
+    }
+
+    /**
+     * @return the number of styles, which only grows
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param style
+     *            the number of a style
+     * @return the stroke thickness of the style
+     */
+    public float getStrokeThickness(int style) {
+        return this.strokeThicknesses[style];
+    }
+
+    /**
+     * @param style
+     *            the number of a style
+     * @return the color of the style, packed as r << 24 | g << 16 | b << 8 | a
+     */
+    public int getRGBA(int style) {
+        return this.colors[style];
+    }
+
+    /**
+     * @return the number of styles the users in the board have been told
+     *         about
+     */
+    public int getAnnounced() {
+        return this.announced;
+    }
+
+    /**
+     * Records that the users in the board are told about the styles below a
+     * number. Only called by the board's mailbox, or before the palette is
+     * published.
+     *
+     * @param count
+     *            the number of styles the users will know about
+     * @return the number of styles the users knew about before, so the styles
+     *         from it up to count are the ones to tell them about
+     */
+    public int announce(int count) {
+        int before = this.announced;
+        this.announced = Math.max(before, count);
+        return Math.min(before, count);
+    }
+}
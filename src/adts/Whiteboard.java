@@ -1,15 +1,47 @@
 package adts;
 
-import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * ADT that represents an instance of a Whiteboard.
  * 
+ * Every board owns a mailbox (a SerialExecutor). The server draws on, clears
+ * and sends out the board only through tasks run by its mailbox, so the
+ * operations on one board are serialized without any lock shared with the
+ * other boards.
+ * 
  * Concurrency argument:
  *      The id is a final private integer and the name is a string (immutable). 
- *      The name and lines are the only field that can be changed, so we synchronize all
- *      the methods that manipulate them. Thus the class is threadsafe.
+ *      The name is changed and read in synchronized methods.
+ *      The lines are an append-only LineStore, whose writers (adding a line,
+ *      clearing and compacting the board) are serialized by writeLock.
+ *      Readers never lock: they take a reference to the current store, read
+ *      one high-water mark and encode exactly the lines below it, however
+ *      many are added meanwhile. Clearing the board publishes a new, empty store through a
+ *      volatile and gives back the board's reference to the old one, whose
+ *      memory is freed once its last reader is done. Compacting the board
+ *      copies the visible lines of a snapshot into a new store without the
+ *      lock, then copies the lines drawn meanwhile and publishes the new
+ *      store the same way, holding the lock.
+ *      The strokes being drawn are a ConcurrentHashMap, so a user leaving
+ *      can end their stroke from any thread. A stroke itself is only
+ *      extended by the mailbox.
+ *      The runs waiting to be simplified are only changed holding writeLock.
+ *      They are kept in a ConcurrentHashMap so that readers can tell without
+ *      locking that there are none; if there are some, a reader stores them
+ *      first, holding the lock, so it never misses a line that was drawn.
+ *      The snapshot is an immutable BoardSnapshot published through a
+ *      volatile. It names the store it pictures, so a reader that retained a
+ *      store only uses a snapshot of that very store.
+ *      The history is only changed and looked up holding writeLock, and its
+ *      sequence number is a volatile.
+ *      The mailbox is threadsafe itself.
  */
 public class Whiteboard {
     
@@ -24,10 +56,80 @@ public class Whiteboard {
     private String boardName;
 
     /**
-     * The list of lines that have been drawn The last line is the latest one
-     * that has been drawn
+     * The lines that have been drawn since the board was last cleared, in
+     * columns of primitives. The last line is the latest one that has been
+     * drawn
+     */
+    private volatile LineStore drawnLines;
+
+    /**
+     * The number of times the lines were moved to a new store, by a clear or
+     * a compaction. Only changed holding writeLock.
+     */
+    private volatile long storeGeneration;
+
+    /**
+     * Makes the store that the lines are kept in after a clear or a
+     * compaction
+     */
+    private final LineStoreFactory lineStores;
+
+    /**
+     * Serializes adding lines, clearing the board and publishing a compacted
+     * store
+     */
+    private final Object writeLock;
+
+    /**
+     * Runs the operations on this board one at a time
+     */
+    private final SerialExecutor mailbox;
+
+    /**
+     * Key = user ID Value = the stroke the user is drawing on this board
+     */
+    private final ConcurrentMap<Integer, Stroke> openStrokes;
+
+    /**
+     * The ID of the next stroke to begin. Only used by the mailbox.
+     */
+    private int nextStrokeID;
+
+    /**
+     * Key = user ID Value = the connected segments of one style the user drew
+     * last, as a polyline, while they wait to be simplified and stored.
+     * Changed holding writeLock.
+     */
+    private final Map<Integer, Stroke> pendingRuns;
+
+    /**
+     * How far (in pixels) the stored lines may be from the drawn ones, 0 if
+     * the lines are stored as drawn
+     */
+    private volatile float simplifyTolerance;
+
+    /**
+     * The number of segments drawn while simplifying, and the number of
+     * segments stored for them. Guarded by writeLock.
+     */
+    private long simplifiedSegments;
+    private long storedSegments;
+
+    /**
+     * The most points a run waits with before it is simplified and stored
+     */
+    private static final int MAX_RUN_POINTS = 512;
+
+    /**
+     * The latest picture of the first lines of the board, or null if there is
+     * none
+     */
+    private volatile BoardSnapshot snapshot;
+
+    /**
+     * The latest lines drawn by users and clears, numbered
      */
-    private final List<Line> drawnLines;
+    private final BoardHistory history;
 
     /**
      * Creates a board with the given boardID and boardName. The
@@ -39,9 +141,35 @@ public class Whiteboard {
      *            the name of the board
      */
     public Whiteboard(int boardID, String boardName) {
+        this(boardID, boardName, ArrayLineStore.FACTORY);
+    }
+
+    /**
+     * Creates a board with the given boardID and boardName, whose lines are
+     * kept in stores made by the given factory
+     * 
+     * @param boardID
+     *            the ID of the board
+     * @param boardName
+     *            the name of the board
+     * @param lineStores
+     *            makes the stores to keep the lines in
+     */
+    public Whiteboard(int boardID, String boardName, LineStoreFactory lineStores) {
         this.boardID = boardID;
         this.boardName = boardName;
-        this.drawnLines = new ArrayList<Line>();
+        this.lineStores = lineStores;
+        this.drawnLines = lineStores.newLineStore();
+        this.writeLock = new Object();
+        this.mailbox = new SerialExecutor();
+        this.openStrokes = new ConcurrentHashMap<Integer, Stroke>();
+        this.nextStrokeID = 0;
+        this.pendingRuns = new ConcurrentHashMap<Integer, Stroke>();
+        this.simplifyTolerance = 0;
+        this.simplifiedSegments = 0;
+        this.storedSegments = 0;
+        this.snapshot = null;
+        this.history = new BoardHistory();
     }
 
     /**
@@ -58,16 +186,508 @@ public class Whiteboard {
 
     /**
      * @param l the line to add to the list of drawn lines
+     * @return true if the line was added, false if the board has no room left
+     */
+    public boolean addLine(Line l) {
+        synchronized (this.writeLock) {
+            return this.drawnLines.add(l);
+        }
+    }
+
+    /**
+     * Adds a line drawn by a user. While the board simplifies lines, the
+     * line is not stored yet if it continues the last line of the user with
+     * the same style: the run of such lines is stored once it ends (the user
+     * draws elsewhere, ends a stroke or leaves) or the board's mailbox is
+     * about to send the lines (see storePendingRuns), as a polyline with
+     * fewer points, none of which is farther from the drawn lines than the
+     * tolerance.
+     * 
+     * @param userID
+     *            the id of the user who drew the line
+     * @param l
+     *            the line to add to the list of drawn lines
+     * @return true if the line was added, false if the board has no room left
+     *         (for the line, or for the run it ends, which keeps waiting with
+     *         the segments that did not fit)
+     */
+    public boolean drawLine(int userID, Line l) {
+        synchronized (this.writeLock) {
+            if (!this.addOrBuffer(userID, l)) {
+                return false;
+            }
+            this.history.recordDraw(l);
+            return true;
+        }
+    }
+
+    /**
+     * Adds a line drawn by a user, or puts it in the user's run (see
+     * drawLine). Called holding writeLock.
+     */
+    private boolean addOrBuffer(int userID, Line l) {
+        Stroke run = this.pendingRuns.get(userID);
+        if (run != null && (!Whiteboard.continues(run, l)
+                || run.getPointCount() >= MAX_RUN_POINTS)) {
+            if (!this.storeRun(userID)) {
+                return false;
+            }
+            run = null;
+        }
+        if (this.simplifyTolerance <= 0) {
+            return this.drawnLines.add(l);
+        }
+        if (run == null) {
+            run = new Stroke(-1, l.getStrokeThickness(), l.getR(),
+                    l.getG(), l.getB(), l.getA(), l.getX1(), l.getY1());
+            this.pendingRuns.put(userID, run);
+        }
+        run.addPoint(l.getX2(), l.getY2());
+        this.simplifiedSegments++;
+        return true;
+    }
+
+    /**
+     * @return true if the line starts at the last point of the run and has
+     *         its style
+     */
+    private static boolean continues(Stroke run, Line l) {
+        int last = run.getPointCount() - 1;
+        return run.getX(last) == l.getX1() && run.getY(last) == l.getY1()
+                && run.getStrokeThickness() == l.getStrokeThickness()
+                && run.getR() == l.getR() && run.getG() == l.getG()
+                && run.getB() == l.getB() && run.getA() == l.getA();
+    }
+
+    /**
+     * Simplifies the run of a user, if any, and stores its segments. If the
+     * board runs out of room, the points from the last segment stored on
+     * stay in the run, to be simplified and stored again later. Called
+     * holding writeLock.
+     *
+     * @return true if the whole run was stored (or there was none), false if
+     *         the board has no room left for the rest of it
+     */
+    private boolean storeRun(int userID) {
+        Stroke run = this.pendingRuns.get(userID);
+        if (run == null) {
+            return true;
+        }
+        int[] kept = PolylineSimplifier.simplify(run, this.simplifyTolerance);
+        for (int i = 1; i < kept.length; i++) {
+            Line segment = new Line(run.getX(kept[i - 1]), run.getY(kept[i - 1]),
+                    run.getX(kept[i]), run.getY(kept[i]),
+                    run.getStrokeThickness(), run.getR(), run.getG(),
+                    run.getB(), run.getA());
+            if (!this.drawnLines.add(segment)) {
+                this.pendingRuns.put(userID, Whiteboard.rest(run, kept[i - 1]));
+                return false;
+            }
+            this.storedSegments++;
+        }
+        this.pendingRuns.remove(userID);
+        return true;
+    }
+
+    /**
+     * @return the part of a run from one of its points on
+     */
+    private static Stroke rest(Stroke run, int from) {
+        Stroke rest = new Stroke(-1, run.getStrokeThickness(), run.getR(),
+                run.getG(), run.getB(), run.getA(), run.getX(from),
+                run.getY(from));
+        for (int i = from + 1; i < run.getPointCount(); i++) {
+            rest.addPoint(run.getX(i), run.getY(i));
+        }
+        return rest;
+    }
+
+    /**
+     * Stores the runs of all the users, so that reading the lines gives every
+     * line drawn up to now (except the segments the board has no room for,
+     * which keep waiting). Called on the board's mailbox before its lines are
+     * sent to a user; the other reads of the lines leave the runs waiting.
+     */
+    public void storePendingRuns() {
+        if (this.pendingRuns.isEmpty()) {
+            return;
+        }
+        synchronized (this.writeLock) {
+            for (Integer userID : this.pendingRuns.keySet()) {
+                this.storeRun(userID);
+            }
+        }
+    }
+
+    /**
+     * Sets how far the lines stored may be from the lines drawn, which makes
+     * joining the board cheaper: freehand input has many more points than
+     * are needed to show it. The lines waiting to be simplified are stored
+     * first.
+     * 
+     * @param tolerance
+     *            the distance in pixels, 0 to store the lines as drawn
+     */
+    public void setSimplifyTolerance(float tolerance) {
+        synchronized (this.writeLock) {
+            for (Integer userID : this.pendingRuns.keySet()) {
+                this.storeRun(userID);
+            }
+            this.simplifyTolerance = tolerance;
+        }
+    }
+
+    /**
+     * @return how far (in pixels) the lines stored may be from the lines
+     *         drawn, 0 if they are stored as drawn
+     */
+    public float getSimplifyTolerance() {
+        return this.simplifyTolerance;
+    }
+
+    /**
+     * @return the number of segments drawn while the board simplified lines
      */
-    public synchronized void addLine(Line l) {
-        this.drawnLines.add(l);
+    public long getSimplifiedSegmentCount() {
+        synchronized (this.writeLock) {
+            return this.simplifiedSegments;
+        }
     }
 
     /**
-     * @return all the drawn lines
+     * @return the number of segments stored for the segments drawn while the
+     *         board simplified lines, which were stored by now
      */
-    public synchronized List<Line> getLines() {
-        return this.drawnLines;
+    public long getStoredSegmentCount() {
+        synchronized (this.writeLock) {
+            return this.storedSegments;
+        }
+    }
+
+    /**
+     * Begins a stroke of a user, with a single point and no segments yet.
+     * The user's previous stroke, if any, ends. Only called by the mailbox.
+     * 
+     * @param userID
+     *            the id of the user drawing the stroke
+     * @return the new stroke, with an ID that no other stroke on this board
+     *         has had
+     */
+    public Stroke beginStroke(int userID, float strokeThickness, int r,
+            int g, int b, int a, int x, int y) {
+        Stroke stroke = new Stroke(this.nextStrokeID++, strokeThickness, r,
+                g, b, a, x, y);
+        this.openStrokes.put(userID, stroke);
+        return stroke;
+    }
+
+    /**
+     * @param userID
+     *            the id of a user
+     * @return the stroke the user is drawing on this board, or null if none
+     */
+    public Stroke getOpenStroke(int userID) {
+        return this.openStrokes.get(userID);
+    }
+
+    /**
+     * @return the strokes being drawn on this board
+     */
+    public Collection<Stroke> getOpenStrokes() {
+        return Collections.unmodifiableCollection(this.openStrokes.values());
+    }
+
+    /**
+     * Adds a point to a stroke, and the segment from its last point to the
+     * lines of this board (see drawLine). Only called by the mailbox.
+     * 
+     * @param userID
+     *            the id of the user drawing the stroke
+     * @param stroke
+     *            a stroke begun on this board
+     * @return true if the point was added, false if the board has no room
+     *         left
+     */
+    public boolean extendStroke(int userID, Stroke stroke, int x, int y) {
+        int last = stroke.getPointCount() - 1;
+        Line segment = new Line(stroke.getX(last), stroke.getY(last), x, y,
+                stroke.getStrokeThickness(), stroke.getR(), stroke.getG(),
+                stroke.getB(), stroke.getA());
+        if (!this.drawLine(userID, segment)) {
+            return false;
+        }
+        stroke.addPoint(x, y);
+        return true;
+    }
+
+    /**
+     * Ends the stroke of a user, whose segments stay on the board, and stores
+     * the lines of the user waiting to be simplified
+     * 
+     * @param userID
+     *            the id of the user
+     * @return the stroke that ended, or null if the user was not drawing one
+     */
+    public Stroke endStroke(int userID) {
+        synchronized (this.writeLock) {
+            this.storeRun(userID);
+        }
+        return this.openStrokes.remove(userID);
+    }
+
+    /**
+     * @return the current store of the lines, with a reference taken that the
+     *         caller must give back with release()
+     */
+    private LineStore retainLines() {
+        while (true) {
+            LineStore lines = this.drawnLines;
+            if (lines.retain()) {
+                return lines;
+            }
+            // the board was cleared or compacted meanwhile, so read the new store
+        }
+    }
+
+    /**
+     * @return a copy of all the stored lines (see storePendingRuns)
+     */
+    public List<Line> getLines() {
+        LineStore lines = this.retainLines();
+        try {
+            return lines.toList();
+        } finally {
+            lines.release();
+        }
+    }
+
+    /**
+     * @return the number of times the lines were moved to a new store, by a
+     *         clear or a compaction. Lines are only ever added to a store, so
+     *         two reads with the same generation and line count saw the same
+     *         lines.
+     */
+    public long getStoreGeneration() {
+        return this.storeGeneration;
+    }
+
+    /**
+     * @return the number of drawn lines
+     */
+    public int getLineCount() {
+        return this.drawnLines.size();
+    }
+
+    /**
+     * Appends all the lines stored up to now (see storePendingRuns), each
+     * preceded by a space and encoded like Line.toString, without locking
+     * out the lines drawn meanwhile
+     * 
+     * @param out
+     *            where to append the lines
+     * @return the number of lines appended
+     */
+    public int appendLinesTo(StringBuilder out) {
+        LineStore lines = this.retainLines();
+        try {
+            int count = lines.size();
+            lines.appendTo(out, count);
+            return count;
+        } finally {
+            lines.release();
+        }
+    }
+
+    /**
+     * Appends all the lines stored up to now (see storePendingRuns), each
+     * preceded by a space and encoded as its coordinates and the number of
+     * its style in the palette of the board
+     * 
+     * @param out
+     *            where to append the lines
+     * @return the number of lines appended, or -1 if a line has no style
+     *         number (the palette was full), so the lines must be sent
+     *         without style numbers
+     */
+    public int appendStyledLinesTo(StringBuilder out) {
+        LineStore lines = this.retainLines();
+        try {
+            int count = lines.size();
+            if (!lines.appendStyledTo(out, 0, count)) {
+                return -1;
+            }
+            return count;
+        } finally {
+            lines.release();
+        }
+    }
+
+    /**
+     * Encodes all the lines stored up to now (see storePendingRuns) with
+     * SegmentCodec, without locking out the lines drawn meanwhile
+     * 
+     * @return the lines, encoded
+     */
+    public byte[] encodeLines() {
+        LineStore lines = this.retainLines();
+        try {
+            return SegmentCodec.encode(lines, 0, lines.size());
+        } finally {
+            lines.release();
+        }
+    }
+
+    /**
+     * Gives a style a number in the palette of the board, if it has none yet
+     * 
+     * @param strokeThickness
+     *            the stroke thickness of the style
+     * @return the number of the style, or -1 if the palette is full
+     */
+    public int internStyle(float strokeThickness, int r, int g, int b, int a) {
+        synchronized (this.writeLock) {
+            return this.drawnLines.getPalette().intern(strokeThickness,
+                    LineStore.pack(r, g, b, a));
+        }
+    }
+
+    /**
+     * @return the styles of the lines of the board. Clearing the board starts
+     *         a new palette; compacting it keeps the numbers of the styles.
+     */
+    public StylePalette getPalette() {
+        return this.drawnLines.getPalette();
+    }
+
+    /**
+     * Appends the lines stored up to now (see storePendingRuns) that cross a
+     * rectangle (edges included), in the order they were drawn, each preceded by a space and
+     * encoded like Line.toString. Only the lines near the rectangle are
+     * looked at.
+     *
+     * @param out
+     *            where to append the lines
+     * @param left
+     *            the smallest x of the rectangle
+     * @param top
+     *            the smallest y of the rectangle
+     * @param right
+     *            the largest x of the rectangle, at least left
+     * @param bottom
+     *            the largest y of the rectangle, at least top
+     * @return the number of lines appended
+     */
+    public int appendLinesCrossing(StringBuilder out, int left, int top,
+            int right, int bottom) {
+        LineStore lines = this.retainLines();
+        try {
+            return lines.appendCrossing(out, lines.size(), left, top, right, bottom);
+        } finally {
+            lines.release();
+        }
+    }
+
+    /**
+     * Appends the lines stored up to now (see storePendingRuns) that a
+     * snapshot does not picture, each preceded by a space and encoded like
+     * Line.toString
+     * 
+     * @param out
+     *            where to append the lines
+     * @param snapshot
+     *            a snapshot of this board
+     * @return the number of lines appended, or -1 (and nothing appended) if
+     *         the board was cleared or compacted since the snapshot was made
+     */
+    public int appendLinesAfter(StringBuilder out, BoardSnapshot snapshot) {
+        LineStore lines = this.retainLines();
+        try {
+            if (lines.getStoreID() != snapshot.getStoreID()) {
+                return -1;
+            }
+            int count = lines.size();
+            lines.appendTo(out, snapshot.getLineCount(), count);
+            return count - snapshot.getLineCount();
+        } finally {
+            lines.release();
+        }
+    }
+
+    /**
+     * Draws the lines added since the raster was last used on it, and makes
+     * a new snapshot of the board from it if it changed. The lines waiting to
+     * be simplified are left waiting.
+     * 
+     * @param raster
+     *            the raster of this board, only used for this board
+     * @return true if the snapshot changed
+     */
+    public boolean refreshSnapshot(BoardRaster raster) {
+        return this.refreshSnapshot(raster, 1);
+    }
+
+    /**
+     * The same, but the lines added since the raster was last used on it are
+     * left for later (and the snapshot kept) until there are enough of them,
+     * so a board being drawn on is not encoded again for every few lines.
+     * The lines after the snapshot are sent along with it anyway.
+     * 
+     * @param raster
+     *            the raster of this board, only used for this board
+     * @param minNewLines
+     *            the number of lines, at least 1, that must have been added
+     *            before the snapshot is made again
+     * @return true if the snapshot changed
+     */
+    public boolean refreshSnapshot(BoardRaster raster, int minNewLines) {
+        LineStore lines = this.retainLines();
+        try {
+            if (!raster.render(lines, lines.size(), minNewLines)) {
+                return false;
+            }
+            this.snapshot = raster.toSnapshot();
+            return true;
+        } finally {
+            lines.release();
+        }
+    }
+
+    /**
+     * @return the latest picture of the first lines of the board, or null if
+     *         there is none
+     */
+    public BoardSnapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * @return the number of the last line drawn by a user or clear of this
+     *         board (see BoardHistory), 0 if there was none
+     */
+    public long getSequence() {
+        return this.history.getSequence();
+    }
+
+    /**
+     * @param since
+     *            the number of the last line drawn by a user or clear of this
+     *            board that a user saw
+     * @return the lines drawn by users and clears of this board after it, in
+     *         order (a clear as null), or null if they are not all kept any
+     *         more or there was no such operation
+     */
+    public List<Line> getOperationsSince(long since) {
+        synchronized (this.writeLock) {
+            return this.history.since(since);
+        }
+    }
+
+    /**
+     * @return the mailbox of this board, which runs the operations on it one
+     *         at a time
+     */
+    public SerialExecutor getMailbox() {
+        return this.mailbox;
     }
 
     /**
@@ -97,7 +717,66 @@ public class Whiteboard {
     /**
      * Deletes all the lines in the board
      */
-    public synchronized void clearBoard(){
-        this.drawnLines.clear();
+    public void clearBoard(){
+        synchronized (this.writeLock) {
+            this.history.recordClear();
+            this.pendingRuns.clear();
+            this.snapshot = null;
+            LineStore cleared = this.drawnLines;
+            this.drawnLines = this.lineStores.newLineStore();
+            this.storeGeneration++;
+            cleared.release();
+        }
+    }
+
+    /**
+     * Drops the lines that nobody can see any more, because each pixel they
+     * paint is painted again by an opaque line drawn after them (see
+     * Occlusion). The board looks exactly the same afterwards. The lines are
+     * looked at and copied without locking out the lines drawn meanwhile,
+     * which are kept.
+     * 
+     * @return the number of lines dropped, 0 if the board was cleared
+     *         meanwhile or the lines kept did not fit in a new store
+     */
+    public int compact(){
+        LineStore lines = this.retainLines();
+        try {
+            int count = lines.size();
+            BitSet hidden = Occlusion.findHidden(lines, count);
+            if (hidden.isEmpty()) {
+                return 0;
+            }
+            LineStore compacted = this.lineStores.newLineStore();
+            if (!lines.copyTo(compacted, 0, count, hidden)) {
+                compacted.release();
+                return 0;
+            }
+            synchronized (this.writeLock) {
+                if (this.drawnLines != lines
+                        || !lines.copyTo(compacted, count, lines.size(), hidden)) {
+                    compacted.release();
+                    return 0;
+                }
+                // the users were told about the styles, which keep their numbers
+                compacted.getPalette().announce(lines.getPalette().getAnnounced());
+                this.drawnLines = compacted;
+                this.storeGeneration++;
+                lines.release();
+            }
+            return hidden.cardinality();
+        } finally {
+            lines.release();
+        }
+    }
+
+    /**
+     * Deletes all the lines and gives back the memory they took, once nobody
+     * reads them any more. The board must not be used afterwards.
+     */
+    public void release(){
+        synchronized (this.writeLock) {
+            this.drawnLines.release();
+        }
     }
 }
@@ -7,6 +7,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -20,6 +21,7 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,11 +38,13 @@ import javax.swing.SwingUtilities;
 import logger.BoardLogger;
 import protocol.BoardListItem;
 import protocol.Client;
+import protocol.ClientFeatures;
 import protocol.ClientSideMessageMaker;
 import protocol.MessageHandler;
 import view.Canvas;
 import adts.Line;
 import adts.LobbyModel;
+import adts.Stroke;
 import adts.User;
 
 /**
@@ -201,6 +205,26 @@ public class WhiteboardClient extends JFrame implements Client {
 	 * (a BoardListItem consists of a name, id, and index in the list)
 	 */
 	private List<BoardListItem> boardListItems;
+
+	/**
+	 * True once the server agreed to take strokes instead of single segments
+	 */
+	private volatile boolean strokesEnabled;
+
+	/**
+	 * The canvas of the board this client is on and of the one it left last,
+	 * by board ID, so that board can be shown again when the client comes
+	 * back to it. The canvases of the boards left before are dropped (see
+	 * leaveBoard).
+	 */
+	private final Map<Integer, Canvas> canvasForBoardID;
+
+	/**
+	 * The number of the last operation this client saw on every board it
+	 * was on, by board ID. Coming back to a board, the client only needs
+	 * the operations after it.
+	 */
+	private final Map<Integer, Long> sequenceForBoardID;
 	
 	/**
 	 * Construct LobbyGUI with the given port and hostName
@@ -210,6 +234,8 @@ public class WhiteboardClient extends JFrame implements Client {
 	public WhiteboardClient(String hostName, int port) {
 		setupLogger(Level.OFF);
 		this.port = port;
+		this.canvasForBoardID = new ConcurrentHashMap<Integer, Canvas>();
+		this.sequenceForBoardID = new ConcurrentHashMap<Integer, Long>();
 		// get the hostname and create the socket
 		int attemptedConnections = 0;
 		int MAX_ALLOWED_CONNECTIONS = 10;
@@ -317,6 +343,10 @@ public class WhiteboardClient extends JFrame implements Client {
         // Make the necessary requests
 		this.makeRequest(ClientSideMessageMaker.makeRequestStringGetBoardIDs());
 		this.makeRequest(ClientSideMessageMaker.makeRequestStringGetUsersForBoardID(LobbyModel.LOBBY_ID));
+		this.makeRequest(ClientSideMessageMaker.makeRequestStringFeatures(
+				ClientFeatures.STROKES, ClientFeatures.SNAPSHOTS,
+				ClientFeatures.STYLES, ClientFeatures.BINARY_LINES,
+				ClientFeatures.SEQUENCES));
 	}
 
 	/**
@@ -342,6 +372,23 @@ public class WhiteboardClient extends JFrame implements Client {
 		LOGGER.fine("REQ: " + req);
 	}
 
+	/**
+	 * Leaves the board of the current canvas. Its canvas is kept, so the
+	 * client can come back to the board without being sent all of it again,
+	 * but the canvases (and sequence numbers) of the boards left before are
+	 * dropped.
+	 */
+	public void leaveBoard() {
+		Canvas left = canvas;
+		for (Integer boardID : canvasForBoardID.keySet()) {
+			if (canvasForBoardID.get(boardID) != left) {
+				canvasForBoardID.remove(boardID);
+				sequenceForBoardID.remove(boardID);
+			}
+		}
+		makeRequest(ClientSideMessageMaker.makeRequestStringLeaveBoard());
+	}
+
 	/**
 	 * When we receive a list of names for the lobby, 
 	 * populate the users list
@@ -443,14 +490,26 @@ public class WhiteboardClient extends JFrame implements Client {
 				int selectedIndex = lstBoards.getSelectedIndex();
 				for (BoardListItem boardListItem : boardListItems) {
 					if (boardListItem.getBoardIndex() == selectedIndex) {
-						canvas = new Canvas(self, user.getName(),
-								boardListItem.getBoardID(),
-								boardListItem.getBoardName());
-						canvas.setVisible(true);
-						setVisible(false);
-						out.println(MessageHandler
-								.makeRequestStringJoinBoardID(boardListItem
-										.getBoardID()));
+						int boardID = boardListItem.getBoardID();
+						Canvas seen = canvasForBoardID.get(boardID);
+						Long since = sequenceForBoardID.get(boardID);
+						if (seen != null && since != null) {
+							// the canvas still shows the board up to since
+							canvas = seen;
+							canvas.reopen();
+							setVisible(false);
+							out.println(MessageHandler
+									.makeRequestStringJoinBoardIDSince(
+											boardID, since));
+						} else {
+							canvas = new Canvas(self, user.getName(),
+									boardID, boardListItem.getBoardName());
+							canvas.setVisible(true);
+							setVisible(false);
+							canvasForBoardID.put(boardID, canvas);
+							out.println(MessageHandler
+									.makeRequestStringJoinBoardID(boardID));
+						}
 					}
 				}
 			}
@@ -470,6 +529,14 @@ public class WhiteboardClient extends JFrame implements Client {
 		}
 	}
 
+	@Override
+	public void onReceiveBoardSnapshot(BufferedImage snapshot, List<Line> ls,
+			Set<String> userNames) {
+		if (canvas != null) {
+			canvas.onReceiveBoardSnapshot(snapshot, ls, userNames);
+		}
+	}
+
 	@Override
 	public void onReceiveClear() {
 		if (canvas != null)
@@ -498,8 +565,72 @@ public class WhiteboardClient extends JFrame implements Client {
 
 	@Override
 	public void onReceiveCurrentBoardID(int boardID) {
-		if (canvas != null)
+		if (canvas != null) {
 			canvas.onReceiveCurrentBoardID(boardID);
+			canvasForBoardID.put(boardID, canvas);
+		}
+	}
+
+	@Override
+	public void onReceiveFeatures(Set<String> features) {
+		this.strokesEnabled = features.contains(ClientFeatures.STROKES);
+	}
+
+	/**
+	 * @return true if the server takes strokes (begin_stroke, append_stroke
+	 *         and end_stroke) instead of a req_draw per segment
+	 */
+	public boolean isStrokesEnabled() {
+		return this.strokesEnabled;
+	}
+
+	@Override
+	public void onReceiveStrokeBegin(Stroke stroke) {
+		if (canvas != null)
+			canvas.onReceiveStrokeBegin(stroke);
+	}
+
+	@Override
+	public void onReceiveStrokePoints(int strokeID, int[] coordinates) {
+		if (canvas != null)
+			canvas.onReceiveStrokePoints(strokeID, coordinates);
+	}
+
+	@Override
+	public void onReceiveStrokeEnd(int strokeID) {
+		if (canvas != null)
+			canvas.onReceiveStrokeEnd(strokeID);
+	}
+
+	@Override
+	public void onReceiveDefineStyle(int styleID, float strokeThickness,
+			int r, int g, int b, int a) {
+		if (canvas != null)
+			canvas.onReceiveDefineStyle(styleID, strokeThickness, r, g, b, a);
+	}
+
+	@Override
+	public void onReceiveStyledDraw(int x1, int y1, int x2, int y2, int styleID) {
+		if (canvas != null)
+			canvas.onReceiveStyledDraw(x1, y1, x2, y2, styleID);
+	}
+
+	@Override
+	public void onReceiveStyledBoardLines(int[] segments, Set<String> userNames) {
+		if (canvas != null) {
+			canvas.onReceiveStyledBoardLines(segments, userNames);
+		}
+	}
+
+	@Override
+	public void onReceiveSequence(int boardID, long sequenceNumber) {
+		sequenceForBoardID.put(boardID, sequenceNumber);
+	}
+
+	@Override
+	public void onReceiveBoardSince(Set<String> userNames) {
+		if (canvas != null)
+			canvas.onReceiveBoardSince(userNames);
 	}
 
 	@Override
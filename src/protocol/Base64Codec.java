@@ -0,0 +1,102 @@
+package protocol;
+
+import java.util.Arrays;
+
+/**
+ * Encodes bytes as Base64 (RFC 4648, with padding and no line breaks), so
+ * that binary data such as a PNG picture can be sent as one token of a text
+ * message: the encoding never has spaces or newlines in it.
+ *
+ * Thread-safety:
+ *      This class has no state besides constant tables.
+ */
+public class Base64Codec {
+
+    /**
+     * The digit for each 6 bit value
+     */
+    private static final char[] DIGITS = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            + "abcdefghijklmnopqrstuvwxyz0123456789+/").toCharArray();
+
+    /**
+     * The 6 bit value of each digit, -1 for the characters that are not
+     * digits
+     */
+    private static final int[] VALUES = new int[128];
+    static {
+        Arrays.fill(VALUES, -1);
+        for (int i = 0; i < DIGITS.length; i++) {
+            VALUES[DIGITS[i]] = i;
+        }
+    }
+
+    private Base64Codec() {
+    }
+
+    /**
+     * @param bytes
+     *            the bytes to encode
+     * @return the bytes encoded in Base64
+     */
+    public static String encode(byte[] bytes) {
+        StringBuilder encoded = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int n = bytes.length - i;
+            int group = (bytes[i] & 0xff) << 16;
+            if (n > 1) {
+                group |= (bytes[i + 1] & 0xff) << 8;
+            }
+            if (n > 2) {
+                group |= bytes[i + 2] & 0xff;
+            }
+            encoded.append(DIGITS[group >>> 18]);
+            encoded.append(DIGITS[group >>> 12 & 0x3f]);
+            encoded.append(n > 1 ? DIGITS[group >>> 6 & 0x3f] : '=');
+            encoded.append(n > 2 ? DIGITS[group & 0x3f] : '=');
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * @param encoded
+     *            bytes encoded in Base64
+     * @return the bytes
+     * @throws IllegalArgumentException
+     *             if encoded is not valid Base64
+     */
+    public static byte[] decode(String encoded) {
+        int length = encoded.length();
+        if (length % 4 != 0) {
+            throw new IllegalArgumentException("Base64 of length " + length);
+        }
+        int padding = 0;
+        if (length > 0 && encoded.charAt(length - 1) == '=') {
+            padding++;
+            if (encoded.charAt(length - 2) == '=') {
+                padding++;
+            }
+        }
+        byte[] bytes = new byte[length / 4 * 3 - padding];
+        for (int i = 0, j = 0; i < length; i += 4) {
+            int group = 0;
+            for (int k = 0; k < 4; k++) {
+                char c = encoded.charAt(i + k);
+                int value;
+                if (c == '=' && i + k >= length - padding) {
+                    value = 0;
+                } else if (c >= VALUES.length || (value = VALUES[c]) < 0) {
+                    throw new IllegalArgumentException("not Base64: '" + c + "'");
+                }
+                group = group << 6 | value;
+            }
+            bytes[j++] = (byte) (group >>> 16);
+            if (j < bytes.length) {
+                bytes[j++] = (byte) (group >>> 8);
+            }
+            if (j < bytes.length) {
+                bytes[j++] = (byte) group;
+            }
+        }
+        return bytes;
+    }
+}
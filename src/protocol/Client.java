@@ -1,10 +1,12 @@
 package protocol;
 
+import java.awt.image.BufferedImage;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import adts.Line;
+import adts.Stroke;
 
 /**
  * A Client is expected to be able to handle responses from the server.
@@ -16,7 +18,17 @@ public interface Client {
     public void onReceiveWelcome(int id);
     public void onReceiveDraw(Line l);
     public void onReceiveBoardLines(List<Line> ls, Set<String> userNames);
+    public void onReceiveBoardSnapshot(BufferedImage snapshot, List<Line> ls, Set<String> userNames);
     public void onReceiveClear();
     public void onReceiveUsers(int boardID, List<String> users);
     public void onReceiveCurrentBoardID(int boardID);
+    public void onReceiveFeatures(Set<String> features);
+    public void onReceiveStrokeBegin(Stroke stroke);
+    public void onReceiveStrokePoints(int strokeID, int[] coordinates);
+    public void onReceiveStrokeEnd(int strokeID);
+    public void onReceiveDefineStyle(int styleID, float strokeThickness, int r, int g, int b, int a);
+    public void onReceiveStyledDraw(int x1, int y1, int x2, int y2, int styleID);
+    public void onReceiveStyledBoardLines(int[] segments, Set<String> userNames);
+    public void onReceiveSequence(int boardID, long sequenceNumber);
+    public void onReceiveBoardSince(Set<String> userNames);
 }
@@ -0,0 +1,97 @@
+package protocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The optional protocol features that one client has opted in to with a
+ * req_features request. A client that never asks for any gets exactly the
+ * original protocol.
+ *
+ * Thread-safety:
+ *      The enabled features are a concurrent set, so they may be enabled by
+ *      the connection's reader while other threads check them.
+ */
+public class ClientFeatures {
+
+    /**
+     * Lobby presence as user_joined/user_left deltas instead of full rosters
+     */
+    public static final String LOBBY_DELTAS = "lobby_deltas";
+
+    /**
+     * Strokes drawn by other users as stroke_begin/stroke_points/stroke_end
+     * instead of one draw message per segment
+     */
+    public static final String STROKES = "strokes";
+
+    /**
+     * Boards sent on join and resync as a board_snapshot (a picture of the
+     * first lines and the lines after it) when the server has one, instead of
+     * every line
+     */
+    public static final String SNAPSHOTS = "snapshots";
+
+    /**
+     * Lines sent as draw_s/board_lines_s with the number of their style in
+     * the board's palette (told with define_style) instead of the style itself
+     */
+    public static final String STYLES = "styles";
+
+    /**
+     * Boards sent on join and resync as a board_lines_b (the lines encoded
+     * with SegmentCodec, in Base64) instead of board_lines
+     */
+    public static final String BINARY_LINES = "binary_lines";
+
+    /**
+     * Board operations (lines drawn and clears) and whole boards sent as
+     * 'seq [boardID] [sequenceNumber] [message]', so that the client can join
+     * the board again with join_board_id [boardID] since [sequenceNumber] and
+     * only get the operations it missed
+     */
+    public static final String SEQUENCES = "sequences";
+
+    /**
+     * The features the server knows about
+     */
+    private static final Set<String> SUPPORTED = Collections
+            .unmodifiableSet(new HashSet<String>(Arrays.asList(LOBBY_DELTAS,
+                    STROKES, SNAPSHOTS, STYLES, BINARY_LINES, SEQUENCES)));
+
+    /**
+     * The features that the client has enabled
+     */
+    private final Set<String> enabled;
+
+    /**
+     * Create the features of a client that has not opted in to anything
+     */
+    public ClientFeatures() {
+        this.enabled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * Enable a feature, if the server supports it
+     * @param feature the name of the feature
+     * @return true if the feature is supported (and now enabled)
+     */
+    public boolean enable(String feature) {
+        if (!SUPPORTED.contains(feature)) {
+            return false;
+        }
+        this.enabled.add(feature);
+        return true;
+    }
+
+    /**
+     * @param feature the name of a feature
+     * @return true if the client has enabled the feature
+     */
+    public boolean isEnabled(String feature) {
+        return this.enabled.contains(feature);
+    }
+}
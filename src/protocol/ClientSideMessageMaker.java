@@ -19,6 +19,12 @@ public class ClientSideMessageMaker {
     public static final String REQ_LEAVE_BOARD = "leave_board";
     public static final String REQ_DRAW = "req_draw";
     public static final String REQ_CLEAR = "req_clear";
+    public static final String REQ_FEATURES = "req_features";
+    public static final String REQ_GET_LINES_IN_RECT = "get_lines_in_rect";
+    public static final String REQ_BEGIN_STROKE = "begin_stroke";
+    public static final String REQ_APPEND_STROKE = "append_stroke";
+    public static final String REQ_END_STROKE = "end_stroke";
+    public static final String REQ_SET_SIMPLIFY_TOLERANCE = "set_simplify_tolerance";
 
     public static final String RESP_BOARD_IDS = "board_ids";
     public static final String RESP_USERS_FOR_BOARD = "users_for_board_id";
@@ -36,6 +42,15 @@ public class ClientSideMessageMaker {
     	return ClientSideMessageMaker.REQ_GET_BOARD_IDS;
     }
 
+    /**
+     * Returns the String corresponding to a request for the boards added since
+     * the given version of the board directory.
+     */
+    public static String makeRequestStringGetBoardIDs(long knownVersion) {
+        return String.format("%s %d", ClientSideMessageMaker.REQ_GET_BOARD_IDS,
+                knownVersion);
+    }
+
     /** 
      * Returns the String corresponding to a request to change username to the input String.
      * @param newName the new username
@@ -82,6 +97,17 @@ public class ClientSideMessageMaker {
                 boardID);
     }
 
+    /**
+     * Returns the String corresponding to a request to join again the board
+     * with ID specified by the argument, having seen it up to an operation.
+     * @param boardID the ID of the board to join
+     * @param since the number of the last operation on the board seen
+     */
+    public static String makeRequestStringJoinBoardIDSince(int boardID, long since) {
+        return String.format("%s %d %s %d", ClientSideMessageMaker.REQ_JOIN_BOARD_ID,
+                boardID, MessageHandler.SINCE, since);
+    }
+
     /**
      * Returns the String corresponding to a request to log out.
      */
@@ -119,4 +145,68 @@ public class ClientSideMessageMaker {
         return String.format("%s", ClientSideMessageMaker.REQ_CLEAR);
     }
 
+    /**
+     * Returns the String corresponding to a request for the lines of the
+     * current board that cross the given rectangle.
+     */
+    public static String makeRequestStringGetLinesInRect(int x, int y,
+            int width, int height) {
+        return String.format("%s %d %d %d %d",
+                ClientSideMessageMaker.REQ_GET_LINES_IN_RECT, x, y, width,
+                height);
+    }
+
+    /**
+     * Returns the String corresponding to a request to begin a stroke with
+     * the given style at the given point on the current board.
+     */
+    public static String makeRequestStringBeginStroke(float strokeThickness,
+            int r, int g, int b, int a, int x, int y) {
+        return String.format("%s %f %d %d %d %d %d %d",
+                ClientSideMessageMaker.REQ_BEGIN_STROKE, strokeThickness, r,
+                g, b, a, x, y);
+    }
+
+    /**
+     * Returns the String corresponding to a request to add the given points
+     * (x1, y1, x2, y2...) to the stroke being drawn.
+     */
+    public static String makeRequestStringAppendStroke(int... coordinates) {
+        StringBuilder request = new StringBuilder(ClientSideMessageMaker.REQ_APPEND_STROKE);
+        for (int coordinate : coordinates) {
+            request.append(" " + coordinate);
+        }
+        return request.toString();
+    }
+
+    /**
+     * Returns the String corresponding to a request to end the stroke being
+     * drawn.
+     */
+    public static String makeRequestStringEndStroke() {
+        return ClientSideMessageMaker.REQ_END_STROKE;
+    }
+
+    /**
+     * Returns the String corresponding to a request to store the lines of the
+     * current board simplified, at most the given number of pixels from the
+     * lines drawn (0 to store them as drawn).
+     */
+    public static String makeRequestStringSetSimplifyTolerance(float tolerance) {
+        return String.format("%s %f",
+                ClientSideMessageMaker.REQ_SET_SIMPLIFY_TOLERANCE, tolerance);
+    }
+
+    /**
+     * Returns the String corresponding to a request to opt in to the given
+     * optional protocol features.
+     */
+    public static String makeRequestStringFeatures(String... features) {
+        StringBuilder request = new StringBuilder(ClientSideMessageMaker.REQ_FEATURES);
+        for (String feature : features) {
+            request.append(" " + feature);
+        }
+        return request.toString();
+    }
+
 }
@@ -1,16 +1,24 @@
 package protocol;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.imageio.ImageIO;
+
 import controller.WhiteboardClient;
 import adts.Line;
 import adts.LobbyModel;
+import adts.SegmentCodec;
+import adts.Stroke;
 
 /**
  * Is used by LobbyGUI to process responses from the server and update the GUI
@@ -24,6 +32,10 @@ public class ClientSideResponseHandler {
 		LOGGER.finest("RESP: " + input);
 
 		String command = input.split(" ")[0];
+		if (command.equals(MessageHandler.RESP_SEQUENCE)) {
+			handleSequence(input, userGUI);
+			return;
+		}
 		String[] tokens = input.replace(command, "").trim().split(" ");
 		if (command.equals(MessageHandler.RESP_BOARD_IDS)) {
 			handleBoardIDs(tokens, userGUI);
@@ -35,13 +47,54 @@ public class ClientSideResponseHandler {
 			handleDraw(tokens, userGUI);
 		} else if (command.equals(MessageHandler.RESP_BOARD_LINES)) {
 			handleBoardLines(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_BOARD_SNAPSHOT)) {
+			handleBoardSnapshot(tokens, userGUI);
 		} else if (command.equals(MessageHandler.RESP_CLEAR)) {
 			handleClear(tokens, userGUI);
 		} else if (command.equals(MessageHandler.RESP_USERS_FOR_BOARD)) {
 			handleUsersForBoard(tokens, userGUI);
 		} else if (command.equals(MessageHandler.RESP_CURRENT_BOARD_ID)) {
 			handleCurrentBoardID(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_FEATURES)) {
+			handleFeatures(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_STROKE_BEGIN)) {
+			handleStrokeBegin(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_STROKE_POINTS)) {
+			handleStrokePoints(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_STROKE_END)) {
+			handleStrokeEnd(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_DEFINE_STYLE)) {
+			handleDefineStyle(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_DRAW_STYLED)) {
+			handleStyledDraw(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_BOARD_LINES_STYLED)) {
+			handleStyledBoardLines(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_BOARD_LINES_BINARY)) {
+			handleBinaryBoardLines(tokens, userGUI);
+		} else if (command.equals(MessageHandler.RESP_BOARD_SINCE)) {
+			handleBoardSince(tokens, userGUI);
+		}
+	}
+
+	/**
+	 * Handles "seq [boardID] [n] [message]": the message, then the number of
+	 * the operation on the board it brought the client up to
+	 */
+	private static void handleSequence(String input, WhiteboardClient userGUI) {
+		String[] parts = input.split(" ", 4);
+		if (parts.length < 4)
+			return;
+		handleResponse(parts[3], userGUI);
+		userGUI.onReceiveSequence(Integer.parseInt(parts[1]), Long.parseLong(parts[2]));
+	}
+
+	private static void handleBoardSince(String[] tokens, WhiteboardClient userGUI) {
+		Set<String> userNames = new HashSet<String>();
+		int numUsers = Integer.parseInt(tokens[0]);
+		for (int i = 2; i < numUsers + 2; i++) {
+			userNames.add(tokens[i]);
 		}
+		userGUI.onReceiveBoardSince(userNames);
 	}
 
 	private static void handleCurrentBoardID(String[] tokens, WhiteboardClient userGUI) {
@@ -49,6 +102,76 @@ public class ClientSideResponseHandler {
 		userGUI.onReceiveCurrentBoardID(boardID);
 	}
 
+	private static void handleFeatures(String[] tokens, WhiteboardClient userGUI) {
+		Set<String> features = new HashSet<String>();
+		for (String token : tokens) {
+			if (!token.isEmpty())
+				features.add(token);
+		}
+		userGUI.onReceiveFeatures(features);
+	}
+
+	private static void handleStrokeBegin(String[] tokens, WhiteboardClient userGUI) {
+		int strokeID = Integer.parseInt(tokens[0]);
+		float strokeThickness = Float.parseFloat(tokens[1]);
+		int r = Integer.parseInt(tokens[2]);
+		int g = Integer.parseInt(tokens[3]);
+		int b = Integer.parseInt(tokens[4]);
+		int a = Integer.parseInt(tokens[5]);
+		int x = Integer.parseInt(tokens[6]);
+		int y = Integer.parseInt(tokens[7]);
+		userGUI.onReceiveStrokeBegin(new Stroke(strokeID, strokeThickness, r, g, b, a, x, y));
+	}
+
+	private static void handleStrokePoints(String[] tokens, WhiteboardClient userGUI) {
+		int strokeID = Integer.parseInt(tokens[0]);
+		int[] coordinates = new int[tokens.length - 1];
+		for (int i = 0; i < coordinates.length; i++)
+			coordinates[i] = Integer.parseInt(tokens[i + 1]);
+		userGUI.onReceiveStrokePoints(strokeID, coordinates);
+	}
+
+	private static void handleStrokeEnd(String[] tokens, WhiteboardClient userGUI) {
+		userGUI.onReceiveStrokeEnd(Integer.parseInt(tokens[0]));
+	}
+
+	private static void handleDefineStyle(String[] tokens, WhiteboardClient userGUI) {
+		int styleID = Integer.parseInt(tokens[0]);
+		float strokeThickness = Float.parseFloat(tokens[1]);
+		int r = Integer.parseInt(tokens[2]);
+		int g = Integer.parseInt(tokens[3]);
+		int b = Integer.parseInt(tokens[4]);
+		int a = Integer.parseInt(tokens[5]);
+		userGUI.onReceiveDefineStyle(styleID, strokeThickness, r, g, b, a);
+	}
+
+	private static void handleStyledDraw(String[] tokens, WhiteboardClient userGUI) {
+		int x1 = Integer.parseInt(tokens[0]);
+		int y1 = Integer.parseInt(tokens[1]);
+		int x2 = Integer.parseInt(tokens[2]);
+		int y2 = Integer.parseInt(tokens[3]);
+		int styleID = Integer.parseInt(tokens[4]);
+		userGUI.onReceiveStyledDraw(x1, y1, x2, y2, styleID);
+	}
+
+	/**
+	 * The segments of a board_lines_s are kept as 5 ints each (x1, y1, x2,
+	 * y2 and the number of the style), without making Line objects
+	 */
+	private static void handleStyledBoardLines(String[] tokens, WhiteboardClient userGUI) {
+		Set<String> userNames = new HashSet<String>();
+		int numUsers = Integer.parseInt(tokens[0]);
+		int i = 0;
+		for (i = 2; i < numUsers + 2; i++) {
+			userNames.add(tokens[i]);
+		}
+		int[] segments = new int[Integer.parseInt(tokens[1]) * 5];
+		for (int j = 0; j < segments.length; j++) {
+			segments[j] = Integer.parseInt(tokens[i + j]);
+		}
+		userGUI.onReceiveStyledBoardLines(segments, userNames);
+	}
+
 	private static void handleUsersForBoard(String[] tokens, WhiteboardClient userGUI) {
 		List<String> users = new ArrayList<String>();
 		int boardID = Integer.parseInt(tokens[0]);
@@ -99,13 +222,55 @@ public class ClientSideResponseHandler {
 	}
 
 	public static void handleBoardLines(String[] tokens, WhiteboardClient userGUI) {
-		List<Line> lines = new ArrayList<Line>();
 		Set<String> userNames = new HashSet<String>();
 		int numUsers = Integer.parseInt(tokens[0]);
 		int i = 0;
 		for (i = 2; i < numUsers + 2; i++) {
 			userNames.add(tokens[i]);
 		}
+		userGUI.onReceiveBoardLines(parseLines(tokens, i), userNames);
+	}
+
+	public static void handleBoardSnapshot(String[] tokens, WhiteboardClient userGUI) {
+		Set<String> userNames = new HashSet<String>();
+		int numUsers = Integer.parseInt(tokens[0]);
+		int i = 0;
+		for (i = 2; i < numUsers + 2; i++) {
+			userNames.add(tokens[i]);
+		}
+		BufferedImage snapshot = null;
+		try {
+			snapshot = ImageIO.read(new ByteArrayInputStream(Base64Codec.decode(tokens[i])));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "could not read the snapshot of the board", e);
+		} catch (IllegalArgumentException e) {
+			LOGGER.log(Level.WARNING, "could not read the snapshot of the board", e);
+		}
+		userGUI.onReceiveBoardSnapshot(snapshot, parseLines(tokens, i + 1), userNames);
+	}
+
+	public static void handleBinaryBoardLines(String[] tokens, WhiteboardClient userGUI) {
+		Set<String> userNames = new HashSet<String>();
+		int numUsers = Integer.parseInt(tokens[0]);
+		int i = 0;
+		for (i = 2; i < numUsers + 2; i++) {
+			userNames.add(tokens[i]);
+		}
+		List<Line> lines;
+		try {
+			lines = SegmentCodec.decode(Base64Codec.decode(tokens[i]));
+		} catch (IllegalArgumentException e) {
+			LOGGER.log(Level.WARNING, "could not read the lines of the board", e);
+			lines = new ArrayList<Line>();
+		}
+		userGUI.onReceiveBoardLines(lines, userNames);
+	}
+
+	/**
+	 * @return the lines encoded in the tokens from index i on, 9 tokens each
+	 */
+	private static List<Line> parseLines(String[] tokens, int i) {
+		List<Line> lines = new ArrayList<Line>();
 		int x1, y1, x2, y2, r, g, b, a;
 		float strokeThickness;
 		while (i < tokens.length) {
@@ -121,6 +286,6 @@ public class ClientSideResponseHandler {
 			i = i + 9;
 			lines.add(new Line(x1, y1, x2, y2, strokeThickness, r, g, b, a));
 		}
-		userGUI.onReceiveBoardLines(lines, userNames);
+		return lines;
 	}
 }
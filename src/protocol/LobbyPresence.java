@@ -0,0 +1,223 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import adts.LobbyListener;
+import adts.LobbyModel;
+import server.ConnectionRegistry;
+import server.UserConnection;
+
+/**
+ * Tells the users in the lobby who else is in it. Instead of sending the
+ * whole roster to the whole lobby on every login, logout, rename, join and
+ * leave, the changes that happen within a short window are gathered and sent
+ * as one update, and the encoded roster is only rebuilt when it changed.
+ *
+ * Users who were sent a roster before and opted in to the lobby_deltas
+ * feature are only sent what changed since:
+ * Resp: user_left [oldUserName]
+ * AND
+ * user_joined [newUserName]
+ * (a rename is a user_left of the old name followed by a user_joined of the
+ * new one). Everybody else in the lobby, and every user who entered or was
+ * renamed in the window, is sent the whole roster:
+ * Resp: users_for_board_id -1 [userName1] [userName2]...
+ *
+ * Concurrency argument:
+ *      lobbyChanged may be called by any thread. It only records the user in a
+ *      concurrent set and schedules a flush, unless one is scheduled already.
+ *      scheduled is cleared before the flush reads the lobby, so a change made
+ *      during a flush always gets a flush of its own after it. The flushes run
+ *      one at a time on a single thread, which is the only thread that touches
+ *      the last roster and the cached encoded roster.
+ */
+public class LobbyPresence implements LobbyListener {
+
+    /**
+     * The thread that the flushes run on, which does not keep the JVM alive
+     */
+    private static final ThreadFactory PRESENCE_THREADS = new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "lobby-presence");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * The lobby model whose lobby is watched
+     */
+    private final LobbyModel lobbyModel;
+
+    /**
+     * The open connections of the server
+     */
+    private final ConnectionRegistry connections;
+
+    /**
+     * How long (in milliseconds) changes are gathered before a flush
+     */
+    private final long windowMillis;
+
+    /**
+     * Runs the flushes
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * True while a flush is scheduled but has not started reading the lobby
+     */
+    private final AtomicBoolean scheduled;
+
+    /**
+     * The IDs of the users who entered, left or were renamed since the last
+     * flush
+     */
+    private final Set<Integer> changedUserIDs;
+
+    /**
+     * Runs flush
+     */
+    private final Runnable flushTask;
+
+    /**
+     * Key = user ID Value = name, of the users in the lobby at the last flush.
+     * Only used by the flushes.
+     */
+    private Map<Integer, String> lastRoster;
+
+    /**
+     * The encoded roster of the last flush. Only used by the flushes.
+     */
+    private OutgoingServerMessage encodedRoster;
+
+    /**
+     * Create the presence service of a lobby. It still has to be added as a
+     * listener of the lobby model.
+     *
+     * @param lobbyModel
+     *            the lobby model
+     * @param connections
+     *            the open connections of the server
+     * @param windowMillis
+     *            how long (in milliseconds) changes are gathered before the
+     *            lobby is told about them
+     */
+    public LobbyPresence(LobbyModel lobbyModel, ConnectionRegistry connections,
+            long windowMillis) {
+        this.lobbyModel = lobbyModel;
+        this.connections = connections;
+        this.windowMillis = windowMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(PRESENCE_THREADS);
+        this.scheduled = new AtomicBoolean(false);
+        this.changedUserIDs = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        this.flushTask = new Runnable() {
+            public void run() {
+                flush();
+            }
+        };
+        this.lastRoster = new HashMap<Integer, String>();
+        this.encodedRoster = null;
+    }
+
+    /**
+     * Records the change and makes sure a flush is scheduled
+     *
+     * @param userID
+     *            the id of the user who entered, left or was renamed
+     */
+    @Override
+    public void lobbyChanged(int userID) {
+        this.changedUserIDs.add(userID);
+        this.scheduleFlush();
+    }
+
+    /**
+     * Schedules a flush after the window, unless one is scheduled already
+     */
+    private void scheduleFlush() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.scheduler.schedule(this.flushTask, this.windowMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends every user in the lobby what changed since the last flush
+     */
+    private void flush() {
+        this.scheduled.set(false);
+        Set<Integer> changed = new HashSet<Integer>();
+        for (Iterator<Integer> it = this.changedUserIDs.iterator(); it.hasNext();) {
+            changed.add(it.next());
+            it.remove();
+        }
+
+        Map<Integer, String> roster = new HashMap<Integer, String>();
+        for (int userID : this.lobbyModel.getMembership(LobbyModel.LOBBY_ID).getUserIDs()) {
+            try {
+                roster.put(userID, this.lobbyModel.getUserNameForUserID(userID));
+            } catch (RuntimeException e) {
+                // the user logged out in the meantime
+            }
+        }
+
+        boolean rosterChanged = !roster.equals(this.lastRoster);
+        List<OutgoingServerMessage> deltas = new ArrayList<OutgoingServerMessage>();
+        if (rosterChanged || this.encodedRoster == null) {
+            this.encodedRoster = new OutgoingServerMessage(MessageHandler
+                    .makeResponseUsersForBoardID(LobbyModel.LOBBY_ID, roster.values()));
+            for (Map.Entry<Integer, String> entry : this.lastRoster.entrySet()) {
+                if (!entry.getValue().equals(roster.get(entry.getKey()))) {
+                    deltas.add(new OutgoingServerMessage(MessageHandler
+                            .makeResponseUserLeft(entry.getValue())));
+                }
+            }
+            for (Map.Entry<Integer, String> entry : roster.entrySet()) {
+                if (!entry.getValue().equals(this.lastRoster.get(entry.getKey()))) {
+                    deltas.add(new OutgoingServerMessage(MessageHandler
+                            .makeResponseUserJoined(entry.getValue())));
+                }
+            }
+        }
+
+        boolean retry = false;
+        for (int userID : roster.keySet()) {
+            UserConnection connection = this.connections.get(userID);
+            if (connection == null) {
+                if (changed.contains(userID)) {
+                    // the user was added but is not connected yet
+                    this.changedUserIDs.add(userID);
+                    retry = true;
+                }
+                continue;
+            }
+            boolean wantsDeltas = connection.getFeatures().isEnabled(ClientFeatures.LOBBY_DELTAS)
+                    && this.lastRoster.containsKey(userID) && !changed.contains(userID);
+            if (wantsDeltas) {
+                for (OutgoingServerMessage delta : deltas) {
+                    connection.send(delta);
+                }
+            } else if (rosterChanged || changed.contains(userID)) {
+                connection.send(this.encodedRoster);
+            }
+        }
+        this.lastRoster = roster;
+        if (retry) {
+            this.scheduleFlush();
+        }
+    }
+}
@@ -1,17 +1,33 @@
 package protocol;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import adts.BoardDirectory;
+import adts.BoardSnapshot;
 import adts.Line;
 import adts.LobbyModel;
+import adts.SegmentCodec;
+import adts.Stroke;
+import adts.StylePalette;
 import adts.Whiteboard;
-import server.UserThread;
+import server.UserConnection;
 
 /**
  * Is used by the server to handle messages and update the ADT accordingly.
+ *
+ * Concurrency argument:
+ *      Drawing on a board, clearing it and sending it to a user (on join or
+ *      on a resync), along with sending out the resulting messages, are tasks
+ *      run by the mailbox of the Whiteboard. They run one at a time, so every
+ *      user sees the board snapshot and the draw messages in an order that
+ *      adds up to the lines of the board, and no lock is shared between
+ *      boards. The LobbyModel lookups happen before a task is handed to the
+ *      mailbox.
  */
 public class MessageHandler {
     public static final String REQ_GET_BOARD_IDS = "get_board_ids";
@@ -25,6 +41,12 @@ public class MessageHandler {
     public static final String REQ_LEAVE_BOARD = "leave_board";
     public static final String REQ_DRAW = "req_draw";
     public static final String REQ_CLEAR = "req_clear";
+    public static final String REQ_FEATURES = "req_features";
+    public static final String REQ_GET_LINES_IN_RECT = "get_lines_in_rect";
+    public static final String REQ_BEGIN_STROKE = "begin_stroke";
+    public static final String REQ_APPEND_STROKE = "append_stroke";
+    public static final String REQ_END_STROKE = "end_stroke";
+    public static final String REQ_SET_SIMPLIFY_TOLERANCE = "set_simplify_tolerance";
 
     public static final String RESP_BOARD_IDS = "board_ids";
     public static final String RESP_USERNAME_CHANGED = "changed_username";
@@ -37,16 +59,33 @@ public class MessageHandler {
     public static final String RESP_BOARD_LINES = "board_lines";
     public static final String RESP_CLEAR = "clear_board";
     public static final String RESP_WELCOME = "welcome";
+    public static final String RESP_FEATURES = "features";
+    public static final String RESP_USER_JOINED = "user_joined";
+    public static final String RESP_USER_LEFT = "user_left";
+    public static final String RESP_BOARD_IDS_UNCHANGED = "board_ids_unchanged";
+    public static final String RESP_BOARD_IDS_DELTA = "board_ids_delta";
+    public static final String RESP_LINES_IN_RECT = "lines_in_rect";
+    public static final String RESP_STROKE_BEGIN = "stroke_begin";
+    public static final String RESP_STROKE_POINTS = "stroke_points";
+    public static final String RESP_STROKE_END = "stroke_end";
+    public static final String RESP_BOARD_SNAPSHOT = "board_snapshot";
+    public static final String RESP_DEFINE_STYLE = "define_style";
+    public static final String RESP_DRAW_STYLED = "draw_s";
+    public static final String RESP_BOARD_LINES_STYLED = "board_lines_s";
+    public static final String RESP_BOARD_LINES_BINARY = "board_lines_b";
+    public static final String RESP_SEQUENCE = "seq";
+    public static final String RESP_BOARD_SINCE = "board_since";
+    public static final String SINCE = "since";
 
     /**
      * Is used on the server's side.
      * Handles the input String and updates the input lobbyModel appropriately.
-     * Also sends the appropriate response back to the input UserThread.
+     * Also sends the appropriate response back to the input UserConnection.
      * @param input
      * @param userThread
      * @param lobbyModel
      */
-    public static void handleMessage(String input, UserThread userThread,
+    public static void handleMessage(String input, UserConnection userThread,
             LobbyModel lobbyModel) {
         String command = input.split(" ")[0];
 
@@ -80,26 +119,68 @@ public class MessageHandler {
             MessageHandler.handleRequestDraw(input, userThread, lobbyModel);
         } else if (command.equals(MessageHandler.REQ_CLEAR)) {
             MessageHandler.handleRequestClear(input, userThread, lobbyModel);
+        } else if (command.equals(MessageHandler.REQ_FEATURES)) {
+            MessageHandler.handleRequestFeatures(input, userThread);
+        } else if (command.equals(MessageHandler.REQ_GET_LINES_IN_RECT)) {
+            MessageHandler.handleRequestGetLinesInRect(input, userThread,
+                    lobbyModel);
+        } else if (command.equals(MessageHandler.REQ_BEGIN_STROKE)) {
+            MessageHandler.handleRequestBeginStroke(input, userThread,
+                    lobbyModel);
+        } else if (command.equals(MessageHandler.REQ_APPEND_STROKE)) {
+            MessageHandler.handleRequestAppendStroke(input, userThread,
+                    lobbyModel);
+        } else if (command.equals(MessageHandler.REQ_END_STROKE)) {
+            MessageHandler.handleRequestEndStroke(input, userThread,
+                    lobbyModel);
+        } else if (command.equals(MessageHandler.REQ_SET_SIMPLIFY_TOLERANCE)) {
+            MessageHandler.handleRequestSetSimplifyTolerance(input,
+                    userThread, lobbyModel);
         }
     }
 
     /**
      * Req: get_board_ids 
      * Resp: board_ids [id1] [userName1] [id2] [userName2] [id3] [userName3]
+     * OR
+     * Req: get_board_ids [knownVersion]
+     * Resp (if no board was added since): board_ids_unchanged [version]
+     * Resp (otherwise): board_ids_delta [fromVersion] [version] [id1] [userName1]...
+     * (the boards added after fromVersion, which is knownVersion, or 0 if
+     * knownVersion is unknown)
+     * (if knownVersion is malformed): failed
      */
     private static void handleRequestGetBoardIDs(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
-            userThread.output(MessageHandler.makeResponseBoardIDs(lobbyModel.getWhiteboards()));
+            UserConnection userThread, LobbyModel lobbyModel) {
+        String[] splitInput = input.split(" ");
+        if (splitInput.length < 2) {
+            userThread.output(MessageHandler.encodeBoardDirectory(lobbyModel));
+            return;
+        }
+        long knownVersion;
+        try {
+            knownVersion = Long.parseLong(splitInput[1]);
+        } catch (NumberFormatException e) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        BoardDirectory directory = lobbyModel.getBoardDirectory();
+        if (knownVersion == directory.getVersion()) {
+            userThread.output(MessageHandler.makeResponseBoardIDsUnchanged(directory));
+        } else {
+            userThread.output(MessageHandler.makeResponseBoardIDsDelta(directory,
+                    directory.baseVersion(knownVersion)));
+        }
     }
 
     /**
      * Req: set_username [newUserName]
      * Resp (to all users in board): users_for_board_id [boardID] [userName1] [userName2]...
      * Resp (to user who made request): changed_username [newUserName]
-     * Resp (to all the users in the lobby, if the user who changed his name is in the lobby): users_for_board -1 [userName1] [userName2]
+     * Resp (to all the users in the lobby, if the lobby changed, sent by LobbyPresence): users_for_board -1 [userName1] [userName2]
      */
     private static void handleRequestSetUsername(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         Set<String> userNames = new HashSet<String>();
         Set<Integer> userIDsOfUsersInSameBoard = new HashSet<Integer>();
 
@@ -118,11 +199,9 @@ public class MessageHandler {
 
         String response = MessageHandler.makeResponseUsersForBoardID(boardID,
                 userNames);
-        userThread.broadcast(response);
+        userThread.getConnections().broadcast(response,
+                    userThread.getUserID());
         userThread.output(MessageHandler.makeResponseUsernameChanged(newName));
-        if(boardID == LobbyModel.LOBBY_ID){
-            notifyLobbyUsers(userThread, lobbyModel, true, boardID);
-        }
     }
 
     /**
@@ -131,21 +210,23 @@ public class MessageHandler {
      * Resp (to user who made request): board_ids [id1] [userName1] [id2] [userName2] [id3] [userName3]
      * AND
      * current_board_id [currentBoardID]
-     * Resp (to all the users in the lobby, if the user who changed his name is in the lobby): users_for_board -1 [userName1] [userName2]
+     * Resp (to all users in the board the user left, if the user was drawing a stroke on it, see endStrokeOfLeaver): stroke_end [strokeID]
+     * Resp (to all the users in the lobby, if the lobby changed, sent by LobbyPresence): users_for_board -1 [userName1] [userName2]
      */
     private static void handleRequestCreateBoard(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         String[] splitString = input.split(" ");
         int userID = userThread.getUserID();
         String boardName = splitString[1];
         int boardID = lobbyModel.addBoard(boardName);
+        int previousBoardID = lobbyModel.getBoardIDThatUserIDIsIn(userID);
         lobbyModel.userJoinBoard(userID, boardID);
-        userThread.broadcast(MessageHandler.makeResponseBoardIDs(lobbyModel
-                .getWhiteboards()));
-        userThread.output(MessageHandler.makeResponseBoardIDs(lobbyModel
-                .getWhiteboards()));
+        MessageHandler.endStrokeOfLeaver(userThread, lobbyModel, previousBoardID);
+        String boardIDs = MessageHandler.encodeBoardDirectory(lobbyModel);
+        userThread.getConnections().broadcast(boardIDs,
+                userThread.getUserID());
+        userThread.output(boardIDs);
         userThread.output(MessageHandler.makeResponseCurrentBoardID(boardID));
-        notifyLobbyUsers(userThread, lobbyModel, true, boardID);
     }
 
     /**
@@ -153,7 +234,7 @@ public class MessageHandler {
      * Resp: current_board_id [boardID]
      */
     private static void handleRequestGetCurrentBoard(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
                 .getUserID());
         userThread.output(MessageHandler.makeResponseCurrentBoardID(boardID));
@@ -164,7 +245,7 @@ public class MessageHandler {
      * Resp: users_for_board [boardID] [userName1] [userName2]...
      */
     private static void handleRequestGetUsersForBoardID(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         int boardID = Integer.parseInt(input.split(" ")[1]);
         Set<String> userNames = lobbyModel.getUserNamesForBoardID(boardID);
         userThread.output(MessageHandler.makeResponseUsersForBoardID(boardID,
@@ -175,20 +256,68 @@ public class MessageHandler {
      * Req: join_board_id [boardID]
      * Resp (to all users in board): users_for_board_id [boardID] [userName1] [userName2]...
      * Resp (to user who made request): board_lines [numberOfUserNames] [numberOfLines] [userName1] [userName2] ... [userName_N] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]...
-     * Resp (to all the users in the lobby, if the user who changed his name is in the lobby): users_for_board -1 [userName1] [userName2]
+     * OR (if the user opted in to snapshots and the board has an up to date one): board_snapshot [numberOfUserNames] [numberOfLines] [userName1] ... [png] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]...
+     * (png is a picture of the first lines of the board, in Base64, and the lines are the ones drawn after them)
+     * OR (if the user opted in to binary lines, and gets no board_snapshot): board_lines_b [numberOfUserNames] [numberOfLines] [userName1] ... [lines]
+     * (lines is every line of the board encoded by SegmentCodec, in Base64)
+     * OR (if the user opted in to styles, gets none of the above, and every line of the board has a style number): board_lines_s [numberOfUserNames] [numberOfLines] [userName1] ... [x1] [y1] [x2] [y2] [styleID]...
+     * (if the user opted in to styles, the board_lines_s or board_snapshot comes after one message for each style of the board): define_style [styleID] [strokeThickness] [r] [g] [b] [a]
+     * (if the user opted in to sequences, the board_lines, board_lines_s, board_lines_b or board_snapshot is numbered with the last operation on the board it shows): seq [boardID] [sequenceNumber] board_lines ...
+     * AND (if the user opted in to strokes, for each stroke being drawn on the board): stroke_begin [strokeID] [strokeThickness] [r] [g] [b] [a] [x] [y]
+     * Resp (to all the users in the lobby, if the lobby changed, sent by LobbyPresence): users_for_board -1 [userName1] [userName2]
+     * Resp (to all users in the board the user left, if the user was drawing a stroke on it, see endStrokeOfLeaver): stroke_end [strokeID]
+     *
+     * Req: join_board_id [boardID] since [sequenceNumber]
+     * (the user opted in to sequences, and saw the board up to the operation with that number)
+     * Resp (to user who made request, if the operations after it are still kept): board_since [numberOfUserNames] [numberOfOperations] [userName1] ... [userName_N]
+     * AND (for each operation after it, in order): seq [boardID] [sequenceNumber] draw [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]
+     * OR seq [boardID] [sequenceNumber] clear_board
+     * AND (if the user opted in to styles, for each style of the board): define_style [styleID] [strokeThickness] [r] [g] [b] [a]
+     * AND (if the user opted in to strokes, as above): stroke_begin ...
+     * OR (if they are not): clear_board, then the same as join_board_id [boardID]
+     * (if the board does not exist, or the sequence number is malformed): failed
      */
     private static void handleRequestJoinBoardID(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
-        int boardID = Integer.parseInt(input.split(" ")[1]);
+            final UserConnection userThread, LobbyModel lobbyModel) {
+        String[] splitInput = input.split(" ");
+        int boardID = Integer.parseInt(splitInput[1]);
         try {
+            final long since;
+            if (splitInput.length == 4 && splitInput[2].equals(MessageHandler.SINCE)
+                    && userThread.getFeatures().isEnabled(ClientFeatures.SEQUENCES)) {
+                since = Long.parseLong(splitInput[3]);
+            } else {
+                since = -1;
+            }
+            int previousBoardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
+                    .getUserID());
             lobbyModel.userJoinBoard(userThread.getUserID(), boardID);
-            Set<String> userNames = lobbyModel.getUserNamesForBoardID(boardID);
+            if (previousBoardID != boardID) {
+                MessageHandler.endStrokeOfLeaver(userThread, lobbyModel,
+                        previousBoardID);
+            }
+            final Set<String> userNames = lobbyModel.getUserNamesForBoardID(boardID);
             String response = MessageHandler.makeResponseUsersForBoardID(
                     boardID, userNames);
-            List<Line> lines = lobbyModel.getLinesForBoardID(boardID);
-            userThread.broadcast(response);
-            userThread.output(MessageHandler.makeResponseBoardLines(lines,userNames));
-            notifyLobbyUsers(userThread, lobbyModel, true, boardID);
+            final Whiteboard board = lobbyModel.getWhiteboard(boardID);
+            userThread.getConnections().broadcast(response,
+                    userThread.getUserID());
+            board.getMailbox().execute(new Runnable() {
+                public void run() {
+                    List<Line> missed = since < 0 ? null : board.getOperationsSince(since);
+                    if (missed != null) {
+                        MessageHandler.sendOperations(userThread, board,
+                                userNames, since, missed);
+                    } else {
+                        if (since >= 0) {
+                            // the user's copy of the board is too old
+                            userThread.output(MessageHandler.makeResponseClearBoard());
+                        }
+                        MessageHandler.sendBoard(userThread, board, userNames);
+                    }
+                    MessageHandler.sendOpenStrokes(userThread, board);
+                }
+            });
         } catch (Exception ex) {
             userThread.output(MessageHandler.makeResponseFailed());
         }
@@ -198,20 +327,22 @@ public class MessageHandler {
      * Req: logout
      * Resp (to all users in board): users_for_board [boardID] [userName1] [userName2]...
      * Resp (to user who made request): logged_out
-     * Resp (to all the users in the lobby, if the user who changed his name is in the lobby): users_for_board -1 [userName1] [userName2]
+     * Resp (to all users in board, if the user was drawing a stroke on it, see endStrokeOfLeaver): stroke_end [strokeID]
+     * Resp (to all the users in the lobby, if the lobby changed, sent by LobbyPresence): users_for_board -1 [userName1] [userName2]
      */
     private static void handleRequestLogout(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
                 .getUserID());
         lobbyModel.deleteUser(userThread.getUserID());
+        MessageHandler.endStrokeOfLeaver(userThread, lobbyModel, boardID);
         if (boardID != -1) {
             Set<String> userNames = lobbyModel.getUserNamesForBoardID(boardID);
             String response = MessageHandler.makeResponseUsersForBoardID(
                     boardID, userNames);
-            userThread.broadcast(response);
+            userThread.getConnections().broadcast(response,
+                    userThread.getUserID());
         }
-        notifyLobbyUsers(userThread, lobbyModel, true, boardID);
         userThread.output(MessageHandler.makeResponseLoggedOut());
         userThread.closeSocket();
     }
@@ -222,7 +353,7 @@ public class MessageHandler {
      * (if not in a board): failed
      */
     private static void handleRequestGetUsersInMyBoard(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread.getUserID());
         if (boardID != -1) {
             Set<String> userNames = lobbyModel.getUserNamesForBoardID(boardID);
@@ -237,31 +368,37 @@ public class MessageHandler {
      * Req: leave_board
      * Resp (to all users in board): users_for_board [boardID] [userName1] [userName2]...
      * Resp (to user who made request): done
-     * Resp (to all the users in the lobby, if the user who changed his name is in the lobby): users_for_board -1 [userName1] [userName2]
+     * Resp (to all the users in the lobby, if the lobby changed, sent by LobbyPresence): users_for_board -1 [userName1] [userName2]
+     * Resp (to all users in board, if the user was drawing a stroke on it, see endStrokeOfLeaver): stroke_end [strokeID]
      */
     private static void handleRequestLeaveBoard(String input,
-            UserThread userThread, LobbyModel lobbyModel) {
+            UserConnection userThread, LobbyModel lobbyModel) {
         int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
                 .getUserID());
         if (boardID != -1) {
             lobbyModel.userLeaveBoard(userThread.getUserID(), boardID);
+            MessageHandler.endStrokeOfLeaver(userThread, lobbyModel, boardID);
             Set<String> userNames = lobbyModel.getUserNamesForBoardID(boardID);
             String response = MessageHandler.makeResponseUsersForBoardID(
                     boardID, userNames);
-            userThread.broadcast(response);
+            userThread.getConnections().broadcast(response,
+                    userThread.getUserID());
         }
-        notifyLobbyUsers(userThread, lobbyModel, true, boardID);
         userThread.output(MessageHandler.makeResponseDone());
     }
 
     /**
      * Req: req_draw [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]
      * Resp (to all users in board including user who made request): draw [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]
-     * (if not in a board): failed
+     * OR (to the users who opted in to styles, if the style of the line has a number): draw_s [x1] [y1] [x2] [y2] [styleID]
+     * (which comes after a define_style [styleID] [strokeThickness] [r] [g] [b] [a] the first time the board uses the style)
+     * (to the users who opted in to sequences, the draw or draw_s is numbered): seq [boardID] [sequenceNumber] draw ...
+     * (if not in a board, r, g, b or a is not between 0 and 255, or the board
+     * is out of room for lines): failed
      */
-    private static void handleRequestDraw(String input, UserThread userThread,
-            LobbyModel lobbyModel) {
-        int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
+    private static void handleRequestDraw(String input, final UserConnection userThread,
+            final LobbyModel lobbyModel) {
+        final int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
                 .getUserID());
         if (boardID != -1) {
             String[] splitInput = input.split(" ");
@@ -277,54 +414,467 @@ public class MessageHandler {
             int g = Integer.parseInt(splitInput[7]);
             int b = Integer.parseInt(splitInput[8]);
             int a = Integer.parseInt(splitInput[9]);
+            if (!MessageHandler.isColor(r, g, b, a)) {
+                // the board only keeps 8 bits of each
+                userThread.output(MessageHandler.makeResponseFailed());
+                return;
+            }
 
-            Line line = new Line(x1, y1, x2, y2, strokeThickness, r, g, b, a);
-            lobbyModel.addLineToBoardID(line, boardID);
-
-            Set<Integer> userIDsOfUsersInSameBoard = lobbyModel
-                    .getUserIDsForBoardID(boardID);
-            String response = MessageHandler.makeResponseDraw(line);
+            final Line line = new Line(x1, y1, x2, y2, strokeThickness, r, g, b, a);
+            final Whiteboard board = lobbyModel.getWhiteboard(boardID);
+            final String response = MessageHandler.makeResponseDraw(line);
 
-            userThread.broadcast(response, userIDsOfUsersInSameBoard);
-            userThread.output(response);
+            board.getMailbox().execute(new Runnable() {
+                public void run() {
+                    if (!board.drawLine(userThread.getUserID(), line)) {
+                        // the board is out of room for lines
+                        userThread.output(MessageHandler.makeResponseFailed());
+                        return;
+                    }
+                    // read on the mailbox, after every join that was sent
+                    // the board without this line
+                    Set<Integer> userIDsOfUsersInSameBoard = lobbyModel
+                            .getUserIDsForBoardID(boardID);
+                    int styleID = board.internStyle(line.getStrokeThickness(),
+                            line.getR(), line.getG(), line.getB(), line.getA());
+                    String sequence = MessageHandler.makeSequence(board);
+                    if (styleID < 0) {
+                        // the palette is full, so the style has no number
+                        MessageHandler.sendToBoard(userThread, response,
+                                Collections.singletonList(response),
+                                ClientFeatures.STYLES, userIDsOfUsersInSameBoard,
+                                sequence);
+                        return;
+                    }
+                    StylePalette palette = board.getPalette();
+                    for (int style = palette.announce(styleID + 1); style <= styleID; style++) {
+                        MessageHandler.sendToBoard(userThread,
+                                MessageHandler.makeResponseDefineStyle(palette, style),
+                                Collections.<String> emptyList(),
+                                ClientFeatures.STYLES, userIDsOfUsersInSameBoard,
+                                null);
+                    }
+                    MessageHandler.sendToBoard(userThread,
+                            MessageHandler.makeResponseDrawStyled(line, styleID),
+                            Collections.singletonList(response),
+                            ClientFeatures.STYLES, userIDsOfUsersInSameBoard,
+                            sequence);
+                }
+            });
         } else {
             userThread.output(MessageHandler.makeResponseFailed());
         }
     }
 
+    /**
+     * Req: begin_stroke [strokeThickness] [r] [g] [b] [a] [x] [y]
+     * Resp (to all users in board including user who made request, if they
+     * opted in to strokes): stroke_begin [strokeID] [strokeThickness] [r] [g] [b] [a] [x] [y]
+     * (the other users are sent nothing until the stroke has segments)
+     * (if not in a board, or r, g, b or a is not between 0 and 255): failed
+     */
+    private static void handleRequestBeginStroke(String input,
+            final UserConnection userThread, final LobbyModel lobbyModel) {
+        final int userID = userThread.getUserID();
+        final int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userID);
+        if (boardID == -1) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        String[] splitInput = input.split(" ");
+        final float strokeThickness = Float.parseFloat(splitInput[1]);
+        final int r = Integer.parseInt(splitInput[2]);
+        final int g = Integer.parseInt(splitInput[3]);
+        final int b = Integer.parseInt(splitInput[4]);
+        final int a = Integer.parseInt(splitInput[5]);
+        final int x = Integer.parseInt(splitInput[6]);
+        final int y = Integer.parseInt(splitInput[7]);
+        if (!MessageHandler.isColor(r, g, b, a)) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+
+        final Whiteboard board = lobbyModel.getWhiteboard(boardID);
+        board.getMailbox().execute(new Runnable() {
+            public void run() {
+                Stroke stroke = board.beginStroke(userID, strokeThickness, r,
+                        g, b, a, x, y);
+                MessageHandler.sendToBoard(userThread,
+                        MessageHandler.makeResponseStrokeBegin(stroke),
+                        Collections.<String> emptyList(), ClientFeatures.STROKES,
+                        lobbyModel.getUserIDsForBoardID(boardID), null);
+            }
+        });
+    }
+
+    /**
+     * Req: append_stroke [x1] [y1] [x2] [y2]...
+     * Resp (to all users in board including user who made request, if they
+     * opted in to strokes): stroke_points [strokeID] [x1] [y1] [x2] [y2]...
+     * (the other users are sent a draw message for each new segment)
+     * (to the users who opted in to sequences, the stroke_points or the last
+     * draw is numbered with the last segment): seq [boardID] [sequenceNumber] ...
+     * (if not in a board, not drawing a stroke, the points are malformed, or
+     * the board is out of room for lines): failed
+     */
+    private static void handleRequestAppendStroke(String input,
+            final UserConnection userThread, final LobbyModel lobbyModel) {
+        final int userID = userThread.getUserID();
+        final int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userID);
+        String[] splitInput = input.split(" ");
+        if (boardID == -1 || splitInput.length < 3 || splitInput.length % 2 == 0) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        final int[] coordinates = new int[splitInput.length - 1];
+        for (int i = 0; i < coordinates.length; i++) {
+            coordinates[i] = Integer.parseInt(splitInput[i + 1]);
+        }
+
+        final Whiteboard board = lobbyModel.getWhiteboard(boardID);
+        board.getMailbox().execute(new Runnable() {
+            public void run() {
+                Stroke stroke = board.getOpenStroke(userID);
+                if (stroke == null) {
+                    userThread.output(MessageHandler.makeResponseFailed());
+                    return;
+                }
+                int firstPoint = stroke.getPointCount();
+                boolean room = true;
+                for (int i = 0; room && i < coordinates.length; i += 2) {
+                    room = board.extendStroke(userID, stroke, coordinates[i], coordinates[i + 1]);
+                }
+                if (stroke.getPointCount() > firstPoint) {
+                    List<String> draws = new ArrayList<String>();
+                    for (int i = firstPoint - 1; i < stroke.getSegmentCount(); i++) {
+                        draws.add(MessageHandler.makeResponseDraw(stroke.getSegment(i)));
+                    }
+                    MessageHandler.sendToBoard(userThread,
+                            MessageHandler.makeResponseStrokePoints(stroke, firstPoint),
+                            draws, ClientFeatures.STROKES,
+                            lobbyModel.getUserIDsForBoardID(boardID),
+                            MessageHandler.makeSequence(board));
+                }
+                if (!room) {
+                    // the board is out of room for lines
+                    userThread.output(MessageHandler.makeResponseFailed());
+                }
+            }
+        });
+    }
+
+    /**
+     * Req: end_stroke
+     * Resp (to all users in board including user who made request, if they
+     * opted in to strokes): stroke_end [strokeID]
+     * (if not in a board, or not drawing a stroke): failed
+     */
+    private static void handleRequestEndStroke(String input,
+            final UserConnection userThread, final LobbyModel lobbyModel) {
+        final int userID = userThread.getUserID();
+        final int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userID);
+        if (boardID == -1) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        final Whiteboard board = lobbyModel.getWhiteboard(boardID);
+        board.getMailbox().execute(new Runnable() {
+            public void run() {
+                Stroke stroke = board.endStroke(userID);
+                if (stroke == null) {
+                    userThread.output(MessageHandler.makeResponseFailed());
+                    return;
+                }
+                MessageHandler.sendToBoard(userThread,
+                        MessageHandler.makeResponseStrokeEnd(stroke),
+                        Collections.<String> emptyList(), ClientFeatures.STROKES,
+                        lobbyModel.getUserIDsForBoardID(boardID), null);
+            }
+        });
+    }
+
+    /**
+     * Ends the stroke a user was drawing on a board they left, on the board's
+     * mailbox like an end_stroke request, so that the stroke cannot end while
+     * its points are still being added, and its segments stay on the board.
+     * Resp (to the users still in the board who opted in to strokes, if the
+     * user was drawing a stroke): stroke_end [strokeID]
+     *
+     * @param userThread
+     *            the connection of the user who left
+     * @param lobbyModel
+     *            the lobby model
+     * @param boardID
+     *            the id of the board the user left, or -1 if they were in
+     *            the lobby (which has no strokes)
+     */
+    private static void endStrokeOfLeaver(final UserConnection userThread,
+            final LobbyModel lobbyModel, final int boardID) {
+        if (boardID == LobbyModel.LOBBY_ID) {
+            return;
+        }
+        final int userID = userThread.getUserID();
+        final Whiteboard board = lobbyModel.getWhiteboard(boardID);
+        board.getMailbox().execute(new Runnable() {
+            public void run() {
+                Stroke stroke = board.endStroke(userID);
+                if (stroke != null) {
+                    MessageHandler.sendToBoard(userThread,
+                            MessageHandler.makeResponseStrokeEnd(stroke),
+                            Collections.<String> emptyList(),
+                            ClientFeatures.STROKES,
+                            lobbyModel.getUserIDsForBoardID(boardID), null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a message to the users in a board (the user who made the request
+     * included) who opted in to a feature, and other messages instead to the
+     * others. If the messages make an operation on the board, the users who
+     * opted in to sequences get the last one numbered.
+     * 
+     * @param userThread
+     *            the connection of the user who made the request
+     * @param message
+     *            the message for the users who opted in to the feature
+     * @param fallback
+     *            the messages for the other users, in order
+     * @param feature
+     *            the name of the feature
+     * @param userIDs
+     *            the users in the board, read on its mailbox while the
+     *            operation runs (see Membership)
+     * @param sequence
+     *            'seq [boardID] [sequenceNumber]' of the operation the
+     *            messages make, or null if they make none
+     */
+    private static void sendToBoard(UserConnection userThread, String message,
+            List<String> fallback, String feature, Set<Integer> userIDs,
+            String sequence) {
+        userThread.getConnections().broadcast(message, fallback, feature,
+                userIDs, sequence, userThread.getUserID());
+        List<String> own = userThread.getFeatures().isEnabled(feature)
+                ? Collections.singletonList(message) : fallback;
+        boolean sequenced = sequence != null
+                && userThread.getFeatures().isEnabled(ClientFeatures.SEQUENCES);
+        for (int i = 0; i < own.size(); i++) {
+            if (sequenced && i == own.size() - 1) {
+                userThread.output(sequence + " " + own.get(i));
+            } else {
+                userThread.output(own.get(i));
+            }
+        }
+    }
+
     /**
      * Req: req_clear_board
      * Resp (to all users in board including user who made request): clear_board
+     * (to the users who opted in to sequences, numbered): seq [boardID] [sequenceNumber] clear_board
      */
-    private static void handleRequestClear(String input, UserThread userThread,
-            LobbyModel lobbyModel) {
-        int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
+    private static void handleRequestClear(String input, final UserConnection userThread,
+            final LobbyModel lobbyModel) {
+        final int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
                 .getUserID());
         if (boardID != -1) {
-            lobbyModel.clearBoard(boardID);
-            String response = MessageHandler.makeResponseClearBoard();
-            Set<Integer> userIDsInSameBoard = lobbyModel.getUserIDsForBoardID(boardID);
-            userThread.broadcast(response, userIDsInSameBoard);
-            userThread.output(response);
+            final Whiteboard board = lobbyModel.getWhiteboard(boardID);
+            final String response = MessageHandler.makeResponseClearBoard();
+            board.getMailbox().execute(new Runnable() {
+                public void run() {
+                    board.clearBoard();
+                    MessageHandler.sendToBoard(userThread, response,
+                            Collections.singletonList(response),
+                            ClientFeatures.SEQUENCES,
+                            lobbyModel.getUserIDsForBoardID(boardID),
+                            MessageHandler.makeSequence(board));
+                }
+            });
         } else {
             userThread.output(MessageHandler.makeResponseFailed());
         }
     }
 
     /**
-     * Sends a users_for_board_id response to all users in the lobby
-     * @param userThread a thread to use for broadcasting
+     * Req: get_lines_in_rect [x] [y] [width] [height]
+     * Resp: lines_in_rect [x] [y] [width] [height] [numberOfLines] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]...
+     * (the lines of the user's board that cross the rectangle, edges and
+     * stroke thickness included, in the order they were drawn)
+     * (if not in a board, or the rectangle is malformed): failed
+     */
+    private static void handleRequestGetLinesInRect(String input,
+            final UserConnection userThread, LobbyModel lobbyModel) {
+        int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
+                .getUserID());
+        String[] splitInput = input.split(" ");
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        try {
+            x = Integer.parseInt(splitInput[1]);
+            y = Integer.parseInt(splitInput[2]);
+            width = Integer.parseInt(splitInput[3]);
+            height = Integer.parseInt(splitInput[4]);
+        } catch (RuntimeException e) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        if (boardID == -1 || width < 0 || height < 0
+                || (long) x + width > Integer.MAX_VALUE
+                || (long) y + height > Integer.MAX_VALUE) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        final Whiteboard board = lobbyModel.getWhiteboard(boardID);
+        board.getMailbox().execute(new Runnable() {
+            public void run() {
+                board.storePendingRuns();
+                userThread.output(MessageHandler.makeResponseLinesInRect(
+                        board, x, y, width, height));
+            }
+        });
+    }
+
+    /**
+     * Req: set_simplify_tolerance [pixels]
+     * Resp: done
+     * (the lines of the user's board drawn from now on are stored simplified,
+     * at most that far from the lines drawn; 0 stores them as drawn. The
+     * users in the board are still sent the lines as drawn, and users who join
+     * later get the simplified lines)
+     * (if not in a board, or the tolerance is malformed or negative): failed
+     */
+    private static void handleRequestSetSimplifyTolerance(String input,
+            final UserConnection userThread, LobbyModel lobbyModel) {
+        int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread
+                .getUserID());
+        String[] splitInput = input.split(" ");
+        final float tolerance;
+        try {
+            tolerance = Float.parseFloat(splitInput[1]);
+        } catch (RuntimeException e) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        if (boardID == -1 || !(tolerance >= 0) || Float.isInfinite(tolerance)) {
+            userThread.output(MessageHandler.makeResponseFailed());
+            return;
+        }
+        final Whiteboard board = lobbyModel.getWhiteboard(boardID);
+        board.getMailbox().execute(new Runnable() {
+            public void run() {
+                board.setSimplifyTolerance(tolerance);
+                userThread.output(MessageHandler.makeResponseDone());
+            }
+        });
+    }
+
+    /**
+     * @return true if every one of the given color components is between 0
+     *         and 255, the range a board stores
+     */
+    private static boolean isColor(int r, int g, int b, int a) {
+        return ((r | g | b | a) & ~0xff) == 0;
+    }
+
+    /**
+     * Sends a user who opted in to strokes the strokes being drawn on a
+     * board, so the stroke_points that follow are for strokes they know.
+     * Only called on the board's mailbox.
+     * Resp (for each stroke): stroke_begin [strokeID] [strokeThickness] [r] [g] [b] [a] [x] [y]
+     *
+     * @param userThread
+     *            the connection of the user
+     * @param board
+     *            the board
+     */
+    private static void sendOpenStrokes(UserConnection userThread,
+            Whiteboard board) {
+        if (userThread.getFeatures().isEnabled(ClientFeatures.STROKES)) {
+            for (Stroke stroke : board.getOpenStrokes()) {
+                userThread.output(MessageHandler.makeResponseStrokeBegin(stroke));
+            }
+        }
+    }
+
+    /**
+     * Sends a user who fell behind (and missed some messages) what they may
+     * have missed again
+     * Resp: board_ids [id1] [userName1] [id2] [userName2]...
+     * AND (if the user is in the lobby): users_for_board -1 [userName1] [userName2]...
+     * OR (if the user is in a board): clear_board
+     * AND
+     * board_lines [numberOfUserNames] [numberOfLines] [userName1] ... [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]...
+     * (or define_style and board_lines_s, board_lines_b or board_snapshot, like when joining the board)
+     * AND (if the user opted in to strokes, for each stroke being drawn on the board): stroke_begin [strokeID] [strokeThickness] [r] [g] [b] [a] [x] [y]
+     * (nothing if the user logged out)
+     * @param userThread the connection of the user
      * @param lobbyModel the lobby model
+     * @param begin run right before the messages are sent, on the same thread
+     * @param end run once the messages are sent (or were not, because the
+     *            user logged out or moved in the meantime), on the same thread
      */
-    public static void notifyLobbyUsers(UserThread userThread, LobbyModel lobbyModel,boolean includingSelf, int userThreadsBoardID){
-        Set<Integer> userIDs = lobbyModel.getUserIDsForBoardID(LobbyModel.LOBBY_ID);
-        Set<String> userNames = lobbyModel.getUserNamesForBoardID(LobbyModel.LOBBY_ID);
-        String response = MessageHandler.makeResponseUsersForBoardID(LobbyModel.LOBBY_ID, userNames);
-        userThread.broadcast(response, userIDs);
-        if(includingSelf && userThreadsBoardID==LobbyModel.LOBBY_ID){
-            userThread.output(response);
+    public static void resyncBoard(final UserConnection userThread,
+            final LobbyModel lobbyModel, final Runnable begin, final Runnable end) {
+        final int boardID;
+        final Whiteboard board;
+        try {
+            boardID = lobbyModel.getBoardIDThatUserIDIsIn(userThread.getUserID());
+            board = boardID == LobbyModel.LOBBY_ID ? null : lobbyModel.getWhiteboard(boardID);
+        } catch (RuntimeException e) {
+            // the user logged out in the meantime
+            end.run();
+            return;
+        }
+        Runnable resync = new Runnable() {
+            public void run() {
+                begin.run();
+                try {
+                    Set<String> userNames = lobbyModel.getUserNamesForBoardID(boardID);
+                    if (lobbyModel.getBoardIDThatUserIDIsIn(userThread.getUserID()) != boardID) {
+                        // moved on, and was sent the board they went to
+                        return;
+                    }
+                    userThread.output(MessageHandler.encodeBoardDirectory(lobbyModel));
+                    if (board == null) {
+                        userThread.output(MessageHandler.makeResponseUsersForBoardID(
+                                boardID, userNames));
+                    } else {
+                        userThread.output(MessageHandler.makeResponseClearBoard());
+                        MessageHandler.sendBoard(userThread, board, userNames);
+                        MessageHandler.sendOpenStrokes(userThread, board);
+                    }
+                } catch (RuntimeException e) {
+                    // the user logged out in the meantime
+                } finally {
+                    end.run();
+                }
+            }
+        };
+        if (board == null) {
+            resync.run();
+        } else {
+            board.getMailbox().execute(resync);
         }
     }
+
+    /**
+     * Req: req_features [feature1] [feature2]...
+     * Resp: features [enabledFeature1] [enabledFeature2]...
+     * (only the features that the server supports are enabled and listed)
+     */
+    private static void handleRequestFeatures(String input,
+            UserConnection userThread) {
+        String[] splitInput = input.split(" ");
+        List<String> enabled = new ArrayList<String>();
+        for (int i = 1; i < splitInput.length; i++) {
+            if (userThread.getFeatures().enable(splitInput[i])) {
+                enabled.add(splitInput[i]);
+            }
+        }
+        userThread.output(MessageHandler.makeResponseFeatures(enabled));
+    }
     /*************************************************************/
 
     /**
@@ -363,17 +913,38 @@ public class MessageHandler {
     }
 
     /**
-     * @param boardIDs
-     *            the set of IDs
+     * @param lobbyModel
+     *            the lobby model
      * @return 'board_ids [id1] [username1] [id2] [username2] [id3] [username3]...'
+     *         for the latest board directory, whose listing is only built once
      */
-    private static String makeResponseBoardIDs(Collection<Whiteboard> boards) {
-        StringBuilder response = new StringBuilder();
-        response.append(MessageHandler.RESP_BOARD_IDS);
-        for(Whiteboard board : boards){
-            response.append(" " + board.getBoardID() + " " + board.getBoardName());
-        }
-        return response.toString();
+    private static String encodeBoardDirectory(LobbyModel lobbyModel) {
+        return MessageHandler.RESP_BOARD_IDS
+                + lobbyModel.getBoardDirectory().getListing();
+    }
+
+    /**
+     * @param directory
+     *            the board directory
+     * @param fromVersion
+     *            the version of the older board directory the client knows
+     * @return 'board_ids_delta [fromVersion] [version] [id1] [username1]...',
+     *         the boards added after fromVersion
+     */
+    private static String makeResponseBoardIDsDelta(BoardDirectory directory,
+            long fromVersion) {
+        return MessageHandler.RESP_BOARD_IDS_DELTA + " " + fromVersion + " "
+                + directory.getVersion() + directory.getListing(fromVersion);
+    }
+
+    /**
+     * @param directory
+     *            the board directory
+     * @return 'board_ids_unchanged [version]'
+     */
+    private static String makeResponseBoardIDsUnchanged(BoardDirectory directory) {
+        return String.format("%s %d", MessageHandler.RESP_BOARD_IDS_UNCHANGED,
+                directory.getVersion());
     }
 
     /**
@@ -383,8 +954,8 @@ public class MessageHandler {
      *            the names of the users in the board
      * @return 'users_for_board [boardID] [userName1] [userName2]...'
      */
-    private static String makeResponseUsersForBoardID(int boardID,
-            Set<String> userNames) {
+    static String makeResponseUsersForBoardID(int boardID,
+            Collection<String> userNames) {
         StringBuilder response = new StringBuilder();
         response.append(MessageHandler.RESP_USERS_FOR_BOARD);
         response.append(" " + boardID);
@@ -407,30 +978,372 @@ public class MessageHandler {
     }
 
     /**
-     * @param lines
-     *            the list of lines
+     * @param board
+     *            the board, whose lines are encoded straight from its store
+     * @param userNames
+     *            the names of the users in the board
      * @return board_lines [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]
      *         [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a] [x1] [y1]
      *         [x2] [y2] [strokeThickness] [r] [g] [b] [a] [x1] [y1] [x2] [y2]
      *         [strokeThickness] [r] [g] [b] [a]...
      */
-    private static String makeResponseBoardLines(List<Line> lines, Set<String> userNames) {
-        StringBuilder response = new StringBuilder();
+    private static String makeResponseBoardLines(Whiteboard board, Set<String> userNames) {
+        StringBuilder lines = new StringBuilder();
+        int lineCount = board.appendLinesTo(lines);
+        StringBuilder response = new StringBuilder(lines.length() + 64);
         response.append(MessageHandler.RESP_BOARD_LINES);
         response.append(" " + userNames.size());
-        response.append(" " + lines.size());
+        response.append(" " + lineCount);
         for (String userName : userNames){
             response.append(" " + userName);
         }
-        for (Line line : lines) {
-            response.append(" " + line.toString());
+        response.append(lines);
+        return response.toString();
+    }
+
+    /**
+     * Sends a board to a user who joins it or fell behind: the runs waiting
+     * to be simplified are stored, then the styles of the board are sent if
+     * the user opted in to styles, then the lines
+     * 
+     * @param userThread
+     *            the connection of the user the board is sent to
+     * @param board
+     *            the board
+     * @param userNames
+     *            the names of the users in the board
+     */
+    private static void sendBoard(UserConnection userThread, Whiteboard board,
+            Set<String> userNames) {
+        board.storePendingRuns();
+        String response = MessageHandler.makeResponseBoard(userThread, board,
+                userNames);
+        if (userThread.getFeatures().isEnabled(ClientFeatures.SEQUENCES)) {
+            // only the mailbox changes the board, so this is the number of
+            // the last operation that the lines read show
+            response = MessageHandler.makeSequence(board) + " " + response;
         }
+        if (userThread.getFeatures().isEnabled(ClientFeatures.STYLES)) {
+            // the lines are read first: the palette read after them has the
+            // styles of all of them (compacting the board keeps their numbers)
+            MessageHandler.sendStyles(userThread, board);
+        }
+        userThread.output(response);
+    }
+
+    /**
+     * Sends a user who joins a board again the operations on it they missed,
+     * then the styles of the board if they opted in to styles
+     * 
+     * @param userThread
+     *            the connection of the user
+     * @param board
+     *            the board
+     * @param userNames
+     *            the names of the users in the board
+     * @param since
+     *            the number of the last operation the user saw
+     * @param missed
+     *            the operations after it (a clear as null)
+     */
+    private static void sendOperations(UserConnection userThread,
+            Whiteboard board, Set<String> userNames, long since,
+            List<Line> missed) {
+        StringBuilder response = new StringBuilder();
+        response.append(MessageHandler.RESP_BOARD_SINCE);
+        response.append(" " + userNames.size());
+        response.append(" " + missed.size());
+        for (String userName : userNames){
+            response.append(" " + userName);
+        }
+        userThread.output(response.toString());
+        long sequenceNumber = since;
+        for (Line operation : missed) {
+            sequenceNumber++;
+            String message = operation == null ? MessageHandler.makeResponseClearBoard()
+                    : MessageHandler.makeResponseDraw(operation);
+            userThread.output(MessageHandler.makeSequence(board.getBoardID(),
+                    sequenceNumber) + " " + message);
+        }
+        if (userThread.getFeatures().isEnabled(ClientFeatures.STYLES)) {
+            // after the last clear replayed, which drops the user's palette
+            MessageHandler.sendStyles(userThread, board);
+        }
+    }
+
+    /**
+     * Sends a user every style of a board
+     * 
+     * @param userThread
+     *            the connection of the user, who opted in to styles
+     * @param board
+     *            the board
+     */
+    private static void sendStyles(UserConnection userThread, Whiteboard board) {
+        StylePalette palette = board.getPalette();
+        for (int style = 0; style < palette.size(); style++) {
+            userThread.output(MessageHandler.makeResponseDefineStyle(palette, style));
+        }
+    }
+
+    /**
+     * @param board
+     *            a board, only changed by its mailbox, which calls this
+     * @return 'seq [boardID] [sequenceNumber]' of the last operation on the
+     *         board
+     */
+    private static String makeSequence(Whiteboard board) {
+        return MessageHandler.makeSequence(board.getBoardID(), board.getSequence());
+    }
+
+    /**
+     * @return 'seq [boardID] [sequenceNumber]'
+     */
+    private static String makeSequence(int boardID, long sequenceNumber) {
+        return String.format("%s %d %d", MessageHandler.RESP_SEQUENCE, boardID,
+                sequenceNumber);
+    }
+
+    /**
+     * @param userThread
+     *            the connection of the user the board is sent to
+     * @param board
+     *            the board
+     * @param userNames
+     *            the names of the users in the board
+     * @return the board as a board_snapshot if the user opted in to snapshots
+     *         and the board has an up to date one, as board_lines_b if the
+     *         user opted in to binary lines, as board_lines_s if the user
+     *         opted in to styles, as board_lines otherwise
+     */
+    private static String makeResponseBoard(UserConnection userThread,
+            Whiteboard board, Set<String> userNames) {
+        BoardSnapshot snapshot = board.getSnapshot();
+        if (snapshot != null
+                && userThread.getFeatures().isEnabled(ClientFeatures.SNAPSHOTS)) {
+            String response = MessageHandler.makeResponseBoardSnapshot(board,
+                    snapshot, userNames);
+            if (response != null) {
+                return response;
+            }
+        }
+        if (userThread.getFeatures().isEnabled(ClientFeatures.BINARY_LINES)) {
+            return MessageHandler.makeResponseBoardLinesBinary(board, userNames);
+        }
+        if (userThread.getFeatures().isEnabled(ClientFeatures.STYLES)) {
+            return MessageHandler.makeResponseBoardLinesStyled(board, userNames);
+        }
+        return MessageHandler.makeResponseBoardLines(board, userNames);
+    }
+
+    /**
+     * @param board
+     *            the board, whose lines are encoded straight from its store
+     * @param userNames
+     *            the names of the users in the board
+     * @return board_lines_s [numberOfUserNames] [numberOfLines] [userName1]
+     *         ... [x1] [y1] [x2] [y2] [styleID]..., or board_lines if a line
+     *         has no style number (the palette of the board was full)
+     */
+    private static String makeResponseBoardLinesStyled(Whiteboard board,
+            Set<String> userNames) {
+        StringBuilder lines = new StringBuilder();
+        int lineCount = board.appendStyledLinesTo(lines);
+        if (lineCount < 0) {
+            return MessageHandler.makeResponseBoardLines(board, userNames);
+        }
+        StringBuilder response = new StringBuilder(lines.length() + 64);
+        response.append(MessageHandler.RESP_BOARD_LINES_STYLED);
+        response.append(" " + userNames.size());
+        response.append(" " + lineCount);
+        for (String userName : userNames){
+            response.append(" " + userName);
+        }
+        response.append(lines);
+        return response.toString();
+    }
+
+    /**
+     * @param board
+     *            the board, whose lines are encoded straight from its store
+     * @param userNames
+     *            the names of the users in the board
+     * @return board_lines_b [numberOfUserNames] [numberOfLines] [userName1]
+     *         ... [lines encoded by SegmentCodec, in Base64]
+     */
+    private static String makeResponseBoardLinesBinary(Whiteboard board,
+            Set<String> userNames) {
+        byte[] lines = board.encodeLines();
+        String encoded = Base64Codec.encode(lines);
+        StringBuilder response = new StringBuilder(encoded.length() + 64);
+        response.append(MessageHandler.RESP_BOARD_LINES_BINARY);
+        response.append(" " + userNames.size());
+        response.append(" " + SegmentCodec.countOf(lines));
+        for (String userName : userNames){
+            response.append(" " + userName);
+        }
+        response.append(' ').append(encoded);
         return response.toString();
     }
 
+    /**
+     * @param palette
+     *            the styles of a board
+     * @param style
+     *            the number of a style in the palette
+     * @return 'define_style [styleID] [strokeThickness] [r] [g] [b] [a]'
+     */
+    private static String makeResponseDefineStyle(StylePalette palette, int style) {
+        int rgba = palette.getRGBA(style);
+        return String.format("%s %d %f %d %d %d %d",
+                MessageHandler.RESP_DEFINE_STYLE, style,
+                palette.getStrokeThickness(style), rgba >>> 24,
+                rgba >>> 16 & 0xff, rgba >>> 8 & 0xff, rgba & 0xff);
+    }
+
+    /**
+     * @param line
+     *            the line to draw
+     * @param styleID
+     *            the number of the style of the line in the palette of the
+     *            board
+     * @return 'draw_s [x1] [y1] [x2] [y2] [styleID]'
+     */
+    private static String makeResponseDrawStyled(Line line, int styleID) {
+        return String.format("%s %d %d %d %d %d", MessageHandler.RESP_DRAW_STYLED,
+                line.getX1(), line.getY1(), line.getX2(), line.getY2(), styleID);
+    }
+
+    /**
+     * @param board
+     *            the board
+     * @param snapshot
+     *            a snapshot of the board
+     * @param userNames
+     *            the names of the users in the board
+     * @return board_snapshot [numberOfUserNames] [numberOfLines] [userName1]
+     *         ... [png] [x1] [y1] [x2] [y2] [strokeThickness] [r] [g] [b]
+     *         [a]..., or null if the board was cleared or compacted since the
+     *         snapshot was made
+     */
+    private static String makeResponseBoardSnapshot(Whiteboard board,
+            BoardSnapshot snapshot, Set<String> userNames) {
+        StringBuilder lines = new StringBuilder();
+        int lineCount = board.appendLinesAfter(lines, snapshot);
+        if (lineCount < 0) {
+            return null;
+        }
+        String png = Base64Codec.encode(snapshot.getPng());
+        StringBuilder response = new StringBuilder(png.length() + lines.length() + 64);
+        response.append(MessageHandler.RESP_BOARD_SNAPSHOT);
+        response.append(" " + userNames.size());
+        response.append(" " + lineCount);
+        for (String userName : userNames){
+            response.append(" " + userName);
+        }
+        response.append(' ').append(png);
+        response.append(lines);
+        return response.toString();
+    }
+
+    /**
+     * @param board
+     *            the board, whose lines are encoded straight from its store
+     * @return 'lines_in_rect [x] [y] [width] [height] [numberOfLines] [x1]
+     *         [y1] [x2] [y2] [strokeThickness] [r] [g] [b] [a]...'
+     */
+    private static String makeResponseLinesInRect(Whiteboard board, int x,
+            int y, int width, int height) {
+        StringBuilder lines = new StringBuilder();
+        int lineCount = board.appendLinesCrossing(lines, x, y, x + width,
+                y + height);
+        StringBuilder response = new StringBuilder(lines.length() + 64);
+        response.append(MessageHandler.RESP_LINES_IN_RECT);
+        response.append(" " + x + " " + y + " " + width + " " + height);
+        response.append(" " + lineCount);
+        response.append(lines);
+        return response.toString();
+    }
+
+    /**
+     * @param stroke
+     *            a stroke being drawn
+     * @return 'stroke_begin [strokeID] [strokeThickness] [r] [g] [b] [a] [x] [y]'
+     *         where (x, y) is the last point of the stroke, which the points
+     *         sent next continue from
+     */
+    private static String makeResponseStrokeBegin(Stroke stroke) {
+        int last = stroke.getPointCount() - 1;
+        return String.format("%s %d %f %d %d %d %d %d %d",
+                MessageHandler.RESP_STROKE_BEGIN, stroke.getStrokeID(),
+                stroke.getStrokeThickness(), stroke.getR(), stroke.getG(),
+                stroke.getB(), stroke.getA(), stroke.getX(last),
+                stroke.getY(last));
+    }
+
+    /**
+     * @param stroke
+     *            a stroke
+     * @param firstPoint
+     *            the index of the first point to list
+     * @return 'stroke_points [strokeID] [x1] [y1] [x2] [y2]...' with the
+     *         points of the stroke from firstPoint on
+     */
+    private static String makeResponseStrokePoints(Stroke stroke, int firstPoint) {
+        StringBuilder response = new StringBuilder();
+        response.append(MessageHandler.RESP_STROKE_POINTS);
+        response.append(" " + stroke.getStrokeID());
+        for (int i = firstPoint; i < stroke.getPointCount(); i++) {
+            response.append(" " + stroke.getX(i) + " " + stroke.getY(i));
+        }
+        return response.toString();
+    }
+
+    /**
+     * @param stroke
+     *            a stroke that ended
+     * @return 'stroke_end [strokeID]'
+     */
+    private static String makeResponseStrokeEnd(Stroke stroke) {
+        return String.format("%s %d", MessageHandler.RESP_STROKE_END,
+                stroke.getStrokeID());
+    }
+
     private static String makeResponseClearBoard() {
         return MessageHandler.RESP_CLEAR;
     }
+
+    /**
+     * @param features
+     *            the features that were enabled
+     * @return 'features [feature1] [feature2]...'
+     */
+    private static String makeResponseFeatures(List<String> features) {
+        StringBuilder response = new StringBuilder();
+        response.append(MessageHandler.RESP_FEATURES);
+        for (String feature : features) {
+            response.append(" " + feature);
+        }
+        return response.toString();
+    }
+
+    /**
+     * @param userName
+     *            the name of the user who entered the lobby
+     * @return 'user_joined [userName]'
+     */
+    static String makeResponseUserJoined(String userName) {
+        return String.format("%s %s", MessageHandler.RESP_USER_JOINED, userName);
+    }
+
+    /**
+     * @param userName
+     *            the name of the user who left the lobby
+     * @return 'user_left [userName]'
+     */
+    static String makeResponseUserLeft(String userName) {
+        return String.format("%s %s", MessageHandler.RESP_USER_LEFT, userName);
+    }
     
     /*************************************************************/
 
@@ -438,6 +1351,10 @@ public class MessageHandler {
         return MessageHandler.REQ_GET_BOARD_IDS;
     }
 
+    public static String makeRequestStringGetBoardIDs(long knownVersion) {
+        return String.format("%s %d", MessageHandler.REQ_GET_BOARD_IDS, knownVersion);
+    }
+
     public static String makeRequestStringSetUsername(String newName) {
         return String.format("%s %s", MessageHandler.REQ_SET_USERNAME,
                 newName.replace(" ", "_"));
@@ -462,6 +1379,11 @@ public class MessageHandler {
                 .format("%s %d", MessageHandler.REQ_JOIN_BOARD_ID, boardID);
     }
 
+    public static String makeRequestStringJoinBoardIDSince(int boardID, long since) {
+        return String.format("%s %d %s %d", MessageHandler.REQ_JOIN_BOARD_ID,
+                boardID, MessageHandler.SINCE, since);
+    }
+
     public static String makeRequestStringLogout() {
         return MessageHandler.REQ_LOGOUT;
     }
@@ -481,4 +1403,42 @@ public class MessageHandler {
     public static String makeClearRequest() {
         return MessageHandler.REQ_CLEAR;
     }
+
+    public static String makeRequestStringGetLinesInRect(int x, int y,
+            int width, int height) {
+        return String.format("%s %d %d %d %d",
+                MessageHandler.REQ_GET_LINES_IN_RECT, x, y, width, height);
+    }
+
+    public static String makeRequestStringBeginStroke(float strokeThickness,
+            int r, int g, int b, int a, int x, int y) {
+        return String.format("%s %f %d %d %d %d %d %d",
+                MessageHandler.REQ_BEGIN_STROKE, strokeThickness, r, g, b, a,
+                x, y);
+    }
+
+    public static String makeRequestStringAppendStroke(int... coordinates) {
+        StringBuilder request = new StringBuilder(MessageHandler.REQ_APPEND_STROKE);
+        for (int coordinate : coordinates) {
+            request.append(" " + coordinate);
+        }
+        return request.toString();
+    }
+
+    public static String makeRequestStringEndStroke() {
+        return MessageHandler.REQ_END_STROKE;
+    }
+
+    public static String makeRequestStringSetSimplifyTolerance(float tolerance) {
+        return String.format("%s %f", MessageHandler.REQ_SET_SIMPLIFY_TOLERANCE,
+                tolerance);
+    }
+
+    public static String makeRequestStringFeatures(String... features) {
+        StringBuilder request = new StringBuilder(MessageHandler.REQ_FEATURES);
+        for (String feature : features) {
+            request.append(" " + feature);
+        }
+        return request.toString();
+    }
 }
\ No newline at end of file
@@ -1,19 +1,114 @@
 package protocol;
 
-import java.io.PrintWriter;
-import java.util.Collection;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
+/**
+ * A message from the server, encoded to bytes (terminated by a newline) once
+ * when it is created. A broadcast hands the same instance to every recipient,
+ * so the message is never re-encoded per connection.
+ *
+ * Concurrency argument:
+ *      This class is immutable. The encoded bytes are never exposed, they are
+ *      only copied out, so it can be shared by any number of writers.
+ */
 public class OutgoingServerMessage {
-    private final Collection<PrintWriter> out;
+
+    /**
+     * The charset of the protocol, the same one that clients read with
+     */
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    /**
+     * The text of the message, without the newline
+     */
     private final String message;
-    public OutgoingServerMessage(Collection<PrintWriter> out, String message){
-        this.out = out;
+
+    /**
+     * The encoded message, including the newline
+     */
+    private final byte[] bytes;
+
+    /**
+     * The command of the message (its first word, or the fourth one of a
+     * numbered 'seq [boardID] [sequenceNumber] [message]'), ex. 'draw'
+     */
+    private final String command;
+
+    /**
+     * Encode the given message
+     * @param message the text of the message, without a newline
+     */
+    public OutgoingServerMessage(String message){
         this.message = message;
+        this.bytes = (message + "\n").getBytes(CHARSET);
+        int start = 0;
+        if (message.startsWith(MessageHandler.RESP_SEQUENCE + " ")) {
+            // skips 'seq [boardID] [sequenceNumber] '
+            for (int words = 0; words < 3 && start >= 0; words++) {
+                start = message.indexOf(' ', start);
+                start = start < 0 ? start : start + 1;
+            }
+            start = Math.max(start, 0);
+        }
+        int space = message.indexOf(' ', start);
+        this.command = space < 0 ? message.substring(start) : message.substring(start, space);
     }
-    public Collection<PrintWriter> getOutStreams(){
-        return this.out;
-    }
+
+    /**
+     * @return the text of the message, without the newline
+     */
     public String getMessage(){
         return this.message;
     }
+
+    /**
+     * @return true if this is a 'draw', 'draw_s' or 'stroke_points' message,
+     *         which only adds lines to a board, so a client that fell behind
+     *         can do without it until it is sent the whole board again
+     */
+    public boolean isDroppable(){
+        return this.command.equals(MessageHandler.RESP_DRAW)
+                || this.command.equals(MessageHandler.RESP_DRAW_STYLED)
+                || this.command.equals(MessageHandler.RESP_STROKE_POINTS);
+    }
+
+    /**
+     * @return true if this is a numbered 'seq [boardID] [sequenceNumber]
+     *         [message]', which a client counts as seen when it asks for the
+     *         operations since its last sequence number
+     */
+    public boolean isSequenced(){
+        return this.message.startsWith(MessageHandler.RESP_SEQUENCE + " ");
+    }
+
+    /**
+     * @return the number of encoded bytes, including the newline
+     */
+    public int length(){
+        return this.bytes.length;
+    }
+
+    /**
+     * Writes the encoded message to the given stream
+     * @param out the stream to write to
+     * @throws IOException if the stream fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(this.bytes);
+    }
+
+    /**
+     * Copies as much of the encoded message as fits into the given buffer
+     * @param target the buffer to copy into
+     * @param from the index of the first byte to copy
+     * @return the number of bytes copied
+     */
+    public int copyTo(ByteBuffer target, int from){
+        int count = Math.min(target.remaining(), this.bytes.length - from);
+        target.put(this.bytes, from, count);
+        return count;
+    }
 }
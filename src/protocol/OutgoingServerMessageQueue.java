@@ -1,47 +1,156 @@
 package protocol;
 
-import java.io.PrintWriter;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import server.Backpressure;
+
+/**
+ * The writer of the outgoing messages of one connection, meant to be run by
+ * its own (platform or virtual) thread. It parks while there is nothing to
+ * send, wakes up when a message is added and then writes every message that
+ * is pending in one pass.
+ *
+ * The messages are gathered in a buffer rather than written one by one, so a
+ * burst of draw messages leaves in a few large writes instead of one small
+ * write (and TCP segment) each. Only messages that are already queued join a
+ * batch: the writer flushes as soon as the queue is empty, so a lone message
+ * is never held back. While messages keep arriving, the batch is flushed
+ * once its first message has waited the maximum latency, and whenever the
+ * buffer fills.
+ *
+ * Thread-safety:
+ *      Any thread may add messages, they go on a LinkedBlockingQueue which
+ *      only this thread takes from, and only this thread writes to the output
+ *      stream. shutdown() puts a marker on the queue, so the messages added
+ *      before it are still written before the thread ends.
+ */
+public class OutgoingServerMessageQueue implements Runnable {
+
+    /**
+     * Marks the end of the queue, the thread stops when it takes it
+     */
+    private static final OutgoingServerMessage SHUTDOWN = new OutgoingServerMessage("");
+
+    /**
+     * The size of the buffer the messages are gathered in
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
 
-public class OutgoingServerMessageQueue extends Thread{
-    
     /**
      * The queue of outgoing messages
      */
-    private final ConcurrentLinkedQueue<OutgoingServerMessage> outgoingServerMessages;
-    
+    private final LinkedBlockingQueue<OutgoingServerMessage> outgoingServerMessages;
+
+    /**
+     * The output stream of the connection, buffered
+     */
+    private final OutputStream out;
+
+    /**
+     * How long a message may wait for others to be written along with it
+     */
+    private final long maxLatencyNanos;
+
+    /**
+     * Told about every message that has been written
+     */
+    private final Backpressure backpressure;
+
+    /**
+     * True once shutdown() has been called
+     */
+    private volatile boolean shutDown;
+
     /**
      * Construct the outgoing messages queue
+     * @param out the output stream of the connection
+     * @param backpressure the backpressure of the connection, told about
+     *        every message that has been written
+     * @param maxLatencyMicros how long (in microseconds) a message may be held
+     *        back while more messages keep arriving, 0 to write every message
+     *        along with only those pending when it is taken
      */
-    public OutgoingServerMessageQueue(){
-        this.outgoingServerMessages = new ConcurrentLinkedQueue<OutgoingServerMessage>();
+    public OutgoingServerMessageQueue(OutputStream out, Backpressure backpressure,
+            long maxLatencyMicros){
+        this.outgoingServerMessages = new LinkedBlockingQueue<OutgoingServerMessage>();
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        this.maxLatencyNanos = TimeUnit.MICROSECONDS.toNanos(maxLatencyMicros);
+        this.backpressure = backpressure;
+        this.shutDown = false;
     }
-    
+
     /**
-     * Adds a message to the queue
+     * Adds a message to the queue. Messages added after shutdown() are dropped.
      * @param outgoingMessage the message to add
      */
     public void addMessage(OutgoingServerMessage outgoingMessage){
+        if (this.shutDown) {
+            return;
+        }
         this.outgoingServerMessages.add(outgoingMessage);
     }
-    
+
     /**
-     * Outputs messages as they come on the queue
+     * Stops the thread once the messages that are already queued are written
+     */
+    public void shutdown() {
+        if (!this.shutDown) {
+            this.shutDown = true;
+            this.outgoingServerMessages.add(SHUTDOWN);
+        }
+    }
+
+    /**
+     * Waits for a message, then outputs it along with the messages that are
+     * queued while it is written (within the maximum latency), until
+     * shutdown() is called
      */
     @Override
     public void run() {
-        OutgoingServerMessage outgoingServerMessage;
+        List<OutgoingServerMessage> pending = new ArrayList<OutgoingServerMessage>();
+        List<OutgoingServerMessage> buffered = new ArrayList<OutgoingServerMessage>();
         try {
             while (true) {
-                if(!outgoingServerMessages.isEmpty()){
-                    outgoingServerMessage = outgoingServerMessages.remove();
-                    for(PrintWriter out : outgoingServerMessage.getOutStreams()){
-                        out.println(outgoingServerMessage.getMessage());
+                pending.add(outgoingServerMessages.take());
+                long deadline = System.nanoTime() + this.maxLatencyNanos;
+                int bufferedBytes = 0;
+                boolean stop = false;
+                do {
+                    outgoingServerMessages.drainTo(pending);
+                    for (OutgoingServerMessage outgoingServerMessage : pending) {
+                        if (outgoingServerMessage == SHUTDOWN) {
+                            stop = true;
+                            break;
+                        }
+                        outgoingServerMessage.writeTo(this.out);
+                        buffered.add(outgoingServerMessage);
+                        bufferedBytes += outgoingServerMessage.length();
                     }
+                    pending.clear();
+                    // only messages already queued join the batch
+                } while (!stop && bufferedBytes < BUFFER_SIZE
+                        && deadline - System.nanoTime() > 0
+                        && !outgoingServerMessages.isEmpty());
+                this.out.flush();
+                for (OutgoingServerMessage outgoingServerMessage : buffered) {
+                    this.backpressure.written(outgoingServerMessage);
+                }
+                buffered.clear();
+                if (stop) {
+                    return;
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (InterruptedException e) {
+            // nothing more will be written
+        } catch (IOException e) {
+            // the connection is gone, nothing more can be written
+            this.shutDown = true;
         }
     }
 
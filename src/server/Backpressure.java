@@ -0,0 +1,271 @@
+package server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import adts.LobbyModel;
+import protocol.MessageHandler;
+import protocol.OutgoingServerMessage;
+
+/**
+ * Keeps the outgoing queue of one connection bounded. It counts the bytes of
+ * every message that is queued but not written yet, and once a new message
+ * would push them past the high watermark it applies the configured
+ * SlowConsumerPolicy:
+ *
+ *      RESYNC: the message is dropped, and from then on so are the messages
+ *      that only add to the board (draw, draw_s and stroke_points), until the
+ *      writer has brought the queue down to the low watermark. Other messages
+ *      are still queued as long as they fit under the high watermark, except
+ *      for numbered ones (seq), so that the last sequence number a client
+ *      has seen never lies past an operation it missed, and it cannot rejoin
+ *      the board since that number without the operations it missed. Then the
+ *      client is sent what it may have missed again: the board directory, and
+ *      the users of the lobby or the whole board it is in (see
+ *      MessageHandler.resyncBoard). The messages of the resync itself are
+ *      always queued.
+ *
+ *      DISCONNECT: the connection should be closed.
+ *
+ * A message is always queued on an empty queue, so a board bigger than the
+ * high watermark can still be sent to a client that keeps up.
+ *
+ * The resync is handed to a thread of its own, which hands it to the board's
+ * mailbox, so the writer of the connection never runs it.
+ *
+ * Thread-safety:
+ *      admit() may be called by any thread, written() only by the writer of
+ *      the connection. The byte count is an AtomicLong and the state an
+ *      AtomicInteger, and every change of state is a compareAndSet, so exactly
+ *      one thread starts (and ends) each resync.
+ */
+public class Backpressure {
+
+	/**
+	 * What should happen to a message that is about to be queued
+	 */
+	public enum Decision {
+		/**
+		 * Queue the message
+		 */
+		QUEUE,
+		/**
+		 * Drop the message
+		 */
+		DROP,
+		/**
+		 * Drop the message and disconnect the client
+		 */
+		DISCONNECT
+	}
+
+	/**
+	 * The client keeps up
+	 */
+	private static final int FLOWING = 0;
+
+	/**
+	 * The client fell behind (with the DISCONNECT policy: was told to
+	 * disconnect)
+	 */
+	private static final int SHEDDING = 1;
+
+	/**
+	 * The client caught up, and its resync is on its way to the board's
+	 * mailbox
+	 */
+	private static final int RESYNC_PENDING = 2;
+
+	/**
+	 * The messages of the resync are being sent
+	 */
+	private static final int RESYNCING = 3;
+
+	/**
+	 * Hands the resyncs of all the connections to the boards' mailboxes, on a
+	 * daemon thread
+	 */
+	private static final ExecutorService RESYNCS = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "resyncs");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * The number of queued bytes above which the policy applies
+	 */
+	private final long highWatermark;
+
+	/**
+	 * The number of queued bytes at which a client being resynced catches up
+	 */
+	private final long lowWatermark;
+
+	/**
+	 * What to do with a client that falls behind
+	 */
+	private final SlowConsumerPolicy policy;
+
+	/**
+	 * Where to record what happened
+	 */
+	private final ServerMetrics metrics;
+
+	/**
+	 * The connection whose queue this is
+	 */
+	private final UserConnection connection;
+
+	/**
+	 * The lobby model, used to resync the connection
+	 */
+	private final LobbyModel lobbyModel;
+
+	/**
+	 * Where the resyncs are started
+	 */
+	private final Executor resyncs;
+
+	/**
+	 * The number of bytes that are queued but not written yet
+	 */
+	private final AtomicLong queuedBytes;
+
+	/**
+	 * FLOWING, SHEDDING, RESYNC_PENDING or RESYNCING
+	 */
+	private final AtomicInteger state;
+
+	/**
+	 * Create the backpressure of a connection
+	 *
+	 * @param config
+	 *            the server configuration (watermarks and policy)
+	 * @param metrics
+	 *            where to record what happened
+	 * @param connection
+	 *            the connection whose queue this is
+	 * @param lobbyModel
+	 *            the lobby model
+	 */
+	public Backpressure(ServerConfig config, ServerMetrics metrics,
+			UserConnection connection, LobbyModel lobbyModel) {
+		this(config, metrics, connection, lobbyModel, RESYNCS);
+	}
+
+	/**
+	 * Create the backpressure of a connection, starting its resyncs on the
+	 * given executor
+	 *
+	 * @param config
+	 *            the server configuration (watermarks and policy)
+	 * @param metrics
+	 *            where to record what happened
+	 * @param connection
+	 *            the connection whose queue this is
+	 * @param lobbyModel
+	 *            the lobby model
+	 * @param resyncs
+	 *            where to start the resyncs, which must not be the writer of
+	 *            the connection
+	 */
+	public Backpressure(ServerConfig config, ServerMetrics metrics,
+			UserConnection connection, LobbyModel lobbyModel, Executor resyncs) {
+		this.highWatermark = config.getHighWatermark();
+		this.lowWatermark = config.getLowWatermark();
+		this.policy = config.getSlowConsumerPolicy();
+		this.metrics = metrics;
+		this.connection = connection;
+		this.lobbyModel = lobbyModel;
+		this.resyncs = resyncs;
+		this.queuedBytes = new AtomicLong(0);
+		this.state = new AtomicInteger(FLOWING);
+	}
+
+	/**
+	 * Decide what to do with a message which is about to be queued, and
+	 * count it if it should be queued
+	 *
+	 * @param message
+	 *            the message
+	 * @return what to do with the message
+	 */
+	public Decision admit(OutgoingServerMessage message) {
+		if (this.state.get() == RESYNCING) {
+			// the resync itself
+			this.queuedBytes.addAndGet(message.length());
+			return Decision.QUEUE;
+		}
+		long queued = this.queuedBytes.get();
+		boolean fits = queued == 0
+				|| queued + message.length() <= this.highWatermark;
+		if (this.policy == SlowConsumerPolicy.DISCONNECT) {
+			if (fits && this.state.get() == FLOWING) {
+				this.queuedBytes.addAndGet(message.length());
+				return Decision.QUEUE;
+			}
+			if (this.state.compareAndSet(FLOWING, SHEDDING)) {
+				this.metrics.clientDisconnected(this.connection.getUserID());
+			}
+			return Decision.DISCONNECT;
+		}
+		if (!fits && this.state.compareAndSet(FLOWING, SHEDDING)) {
+			this.metrics.clientResynced(this.connection.getUserID());
+		}
+		if (!fits || ((message.isDroppable() || message.isSequenced())
+				&& this.state.get() != FLOWING)) {
+			if (message.isDroppable()) {
+				this.metrics.drawDropped();
+			} else {
+				this.metrics.messageDropped();
+			}
+			return Decision.DROP;
+		}
+		this.queuedBytes.addAndGet(message.length());
+		return Decision.QUEUE;
+	}
+
+	/**
+	 * Record that a queued message has been written. If the connection was
+	 * dropping messages and has caught up, its resync is started.
+	 *
+	 * @param message
+	 *            the message that was written
+	 */
+	public void written(OutgoingServerMessage message) {
+		long left = this.queuedBytes.addAndGet(-message.length());
+		if (left <= this.lowWatermark && this.policy == SlowConsumerPolicy.RESYNC
+				&& this.state.get() == SHEDDING
+				&& this.state.compareAndSet(SHEDDING, RESYNC_PENDING)) {
+			this.resyncs.execute(new Runnable() {
+				public void run() {
+					Backpressure.this.resync();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sends the connection what it may have missed, letting the messages of
+	 * the resync through
+	 */
+	private void resync() {
+		MessageHandler.resyncBoard(this.connection, this.lobbyModel,
+				new Runnable() {
+					public void run() {
+						Backpressure.this.state.set(RESYNCING);
+					}
+				}, new Runnable() {
+					public void run() {
+						Backpressure.this.state.set(FLOWING);
+					}
+				});
+	}
+}
@@ -0,0 +1,163 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import adts.LobbyModel;
+import adts.Whiteboard;
+
+/**
+ * Compacts the boards in the background: every so often, each board that was
+ * drawn on since its last compaction drops the lines that are hidden by the
+ * opaque lines drawn after them (mostly ink covered by eraser strokes). The
+ * boards look exactly the same afterwards, but are smaller to keep and to
+ * send to the users who join them. A cleared board drops all its lines
+ * anyway.
+ *
+ * Thread-safety:
+ *      The compactions run one at a time on a single thread, which is the
+ *      only thread that touches the compacted boards. Whiteboard.compact is
+ *      threadsafe against the drawing going on meanwhile.
+ */
+public class BoardCompactor {
+
+	private final static Logger LOGGER = Logger.getLogger(BoardCompactor.class
+			.getName());
+
+	/**
+	 * The thread that the compactions run on, which does not keep the JVM
+	 * alive
+	 */
+	private static final ThreadFactory COMPACTOR_THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "board-compactor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	/**
+	 * The lobby model whose boards are compacted
+	 */
+	private final LobbyModel lobbyModel;
+
+	/**
+	 * Where the reclaimed lines are counted
+	 */
+	private final ServerMetrics metrics;
+
+	/**
+	 * How long (in milliseconds) the boards are left alone between two
+	 * compactions
+	 */
+	private final long intervalMillis;
+
+	/**
+	 * Runs the compactions
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * The store generation and line count of a board after its last
+	 * compaction
+	 */
+	private static class Compacted {
+		private final long storeGeneration;
+		private final int lineCount;
+
+		Compacted(Whiteboard board) {
+			// the generation first: if the board is cleared in between, the
+			// next compaction sees a new generation
+			this.storeGeneration = board.getStoreGeneration();
+			this.lineCount = board.getLineCount();
+		}
+
+		/**
+		 * @return true if the board has the same lines as when it was
+		 *         compacted
+		 */
+		boolean isUnchanged(Whiteboard board) {
+			return this.storeGeneration == board.getStoreGeneration()
+					&& this.lineCount == board.getLineCount();
+		}
+	}
+
+	/**
+	 * Key = board ID Value = the board after its last compaction. Only used
+	 * by the compactions.
+	 */
+	private final Map<Integer, Compacted> compactedBoards;
+
+	/**
+	 * Create the compactor of the boards of a lobby model. It still has to be
+	 * started.
+	 *
+	 * @param lobbyModel
+	 *            the lobby model
+	 * @param metrics
+	 *            where to count the reclaimed lines
+	 * @param intervalMillis
+	 *            how long (in milliseconds) the boards are left alone between
+	 *            two compactions, 0 to never compact them
+	 */
+	public BoardCompactor(LobbyModel lobbyModel, ServerMetrics metrics,
+			long intervalMillis) {
+		this.lobbyModel = lobbyModel;
+		this.metrics = metrics;
+		this.intervalMillis = intervalMillis;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(COMPACTOR_THREADS);
+		this.compactedBoards = new HashMap<Integer, Compacted>();
+	}
+
+	/**
+	 * Compacts the boards every interval from now on, unless the interval is
+	 * 0
+	 */
+	public void start() {
+		if (this.intervalMillis == 0) {
+			return;
+		}
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					compactAll();
+				} catch (RuntimeException e) {
+					// keep the later compactions scheduled
+					LOGGER.log(Level.WARNING, "compacting the boards failed", e);
+				}
+			}
+		}, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Compacts every board that was drawn on since its last compaction. Must
+	 * only be called from one thread at a time.
+	 *
+	 * @return the number of lines dropped
+	 */
+	public int compactAll() {
+		int dropped = 0;
+		for (Whiteboard board : this.lobbyModel.getWhiteboards()) {
+			if (board.getBoardID() == LobbyModel.LOBBY_ID) {
+				continue;
+			}
+			Compacted compacted = this.compactedBoards.get(board.getBoardID());
+			if (compacted != null && compacted.isUnchanged(board)) {
+				continue;
+			}
+			int boardDropped = board.compact();
+			if (boardDropped > 0) {
+				this.metrics.boardCompacted(board.getBoardID(), boardDropped);
+				dropped += boardDropped;
+			}
+			this.compactedBoards.put(board.getBoardID(), new Compacted(board));
+		}
+		return dropped;
+	}
+}
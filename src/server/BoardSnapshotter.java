@@ -0,0 +1,247 @@
+package server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import adts.BoardRaster;
+import adts.LobbyModel;
+import adts.Whiteboard;
+
+/**
+ * Takes snapshots of the boards in the background: every so often, each
+ * board with enough lines draws the lines added since its last snapshot into
+ * its raster (with headless Java2D) and publishes a new picture of them. A
+ * user who joins the board is then sent the picture and the few lines drawn
+ * after it, instead of every line to replay.
+ *
+ * A board's picture is only encoded again once REFRESH_LINES lines were
+ * drawn after it. The raster of a board that falls below the minimum number
+ * of lines (it was cleared, or compacted) is dropped. The rasters together
+ * take at most a given number of bytes: a board whose raster would take more
+ * than is left keeps its last snapshot, and gets no raster until it is
+ * cleared.
+ *
+ * Thread-safety:
+ *      The snapshots are taken one at a time on a single thread, which is the
+ *      only thread that touches the rasters and their sizes. Whiteboard.refreshSnapshot is
+ *      threadsafe against the drawing going on meanwhile.
+ */
+public class BoardSnapshotter {
+
+	private final static Logger LOGGER = Logger.getLogger(BoardSnapshotter.class
+			.getName());
+
+	/**
+	 * The number of lines a board needs before it gets snapshots: replaying
+	 * fewer lines is quicker than decoding a picture
+	 */
+	public static final int MIN_LINES = 4096;
+
+	/**
+	 * The number of lines drawn after a board's snapshot before it is made
+	 * again: sending that many lines along with it is cheaper than encoding
+	 * the picture every interval
+	 */
+	public static final int REFRESH_LINES = 1024;
+
+	/**
+	 * The most bytes the rasters of all the boards take by default
+	 */
+	public static final long MAX_RASTER_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * The thread that the snapshots are taken on, which does not keep the JVM
+	 * alive
+	 */
+	private static final ThreadFactory SNAPSHOTTER_THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "board-snapshotter");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	/**
+	 * The lobby model whose boards are pictured
+	 */
+	private final LobbyModel lobbyModel;
+
+	/**
+	 * How long (in milliseconds) the boards are left alone between two
+	 * snapshots
+	 */
+	private final long intervalMillis;
+
+	/**
+	 * Runs the snapshots
+	 */
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * The most bytes the rasters of all the boards take
+	 */
+	private final long maxRasterBytes;
+
+	/**
+	 * Key = board ID Value = the raster of the board. Only used by the
+	 * snapshots.
+	 */
+	private final Map<Integer, BoardRaster> rasters;
+
+	/**
+	 * The number of bytes the rasters take. Only used by the snapshots.
+	 */
+	private long rasterBytes;
+
+	/**
+	 * The IDs of the boards whose raster did not fit in what was left of the
+	 * bytes, until they are cleared. Only used by the snapshots.
+	 */
+	private final Set<Integer> refused;
+
+	/**
+	 * Create the snapshotter of the boards of a lobby model. It still has to
+	 * be started.
+	 *
+	 * @param lobbyModel
+	 *            the lobby model
+	 * @param intervalMillis
+	 *            how long (in milliseconds) the boards are left alone between
+	 *            two snapshots, 0 to never take any
+	 */
+	public BoardSnapshotter(LobbyModel lobbyModel, long intervalMillis) {
+		this(lobbyModel, intervalMillis, MAX_RASTER_BYTES);
+	}
+
+	/**
+	 * Create the snapshotter of the boards of a lobby model, whose rasters
+	 * take at most the given number of bytes. It still has to be started.
+	 *
+	 * @param lobbyModel
+	 *            the lobby model
+	 * @param intervalMillis
+	 *            how long (in milliseconds) the boards are left alone between
+	 *            two snapshots, 0 to never take any
+	 * @param maxRasterBytes
+	 *            the most bytes the rasters of all the boards take
+	 */
+	public BoardSnapshotter(LobbyModel lobbyModel, long intervalMillis,
+			long maxRasterBytes) {
+		this.lobbyModel = lobbyModel;
+		this.intervalMillis = intervalMillis;
+		this.maxRasterBytes = maxRasterBytes;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(SNAPSHOTTER_THREADS);
+		this.rasters = new HashMap<Integer, BoardRaster>();
+		this.rasterBytes = 0;
+		this.refused = new HashSet<Integer>();
+	}
+
+	/**
+	 * Takes snapshots of the boards every interval from now on, unless the
+	 * interval is 0
+	 */
+	public void start() {
+		if (this.intervalMillis == 0) {
+			return;
+		}
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					snapshotAll();
+				} catch (RuntimeException e) {
+					// keep the later snapshots scheduled
+					LOGGER.log(Level.WARNING, "taking snapshots of the boards failed", e);
+				}
+			}
+		}, this.intervalMillis, this.intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Takes a new snapshot of every board that was drawn on since its last
+	 * snapshot, once it has at least minLines lines, and drops the rasters of
+	 * the boards that have fewer. Must only be called from one thread at a
+	 * time.
+	 *
+	 * @param minLines
+	 *            the number of lines a board needs to get a snapshot
+	 * @return the number of boards whose snapshot changed
+	 */
+	public int snapshotAll(int minLines) {
+		int changed = 0;
+		for (Whiteboard board : this.lobbyModel.getWhiteboards()) {
+			if (board.getBoardID() == LobbyModel.LOBBY_ID) {
+				continue;
+			}
+			BoardRaster raster = this.rasters.get(board.getBoardID());
+			if (board.getLineCount() < minLines) {
+				this.refused.remove(board.getBoardID());
+				if (raster != null) {
+					this.drop(board.getBoardID(), raster);
+				}
+				continue;
+			}
+			if (raster == null) {
+				if (this.refused.contains(board.getBoardID())
+						|| this.rasterBytes >= this.maxRasterBytes) {
+					continue;
+				}
+				raster = new BoardRaster();
+				this.rasters.put(board.getBoardID(), raster);
+			}
+			long bytes = raster.getBytes();
+			boolean refreshed = board.refreshSnapshot(raster,
+					Math.min(REFRESH_LINES, minLines));
+			this.rasterBytes += raster.getBytes() - bytes;
+			if (this.rasterBytes > this.maxRasterBytes) {
+				// the snapshot made is kept, but not the raster
+				LOGGER.info("board " + board.getBoardID() + " gets no more snapshots, "
+						+ "the rasters take " + this.rasterBytes + " bytes");
+				this.refused.add(board.getBoardID());
+				this.drop(board.getBoardID(), raster);
+			}
+			if (refreshed) {
+				changed++;
+				if (board.getSnapshot() != null) {
+					LOGGER.fine("board " + board.getBoardID() + " has a snapshot of "
+							+ board.getSnapshot().getLineCount() + " lines, "
+							+ board.getSnapshot().getPng().length + " bytes");
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Drops the raster of a board
+	 */
+	private void drop(int boardID, BoardRaster raster) {
+		this.rasters.remove(boardID);
+		this.rasterBytes -= raster.getBytes();
+	}
+
+	/**
+	 * @return the number of bytes the rasters of the boards take
+	 */
+	public long getRasterBytes() {
+		return this.rasterBytes;
+	}
+
+	/**
+	 * Takes a new snapshot of every board with at least MIN_LINES lines that
+	 * was drawn on since its last snapshot. Must only be called from one
+	 * thread at a time.
+	 *
+	 * @return the number of boards whose snapshot changed
+	 */
+	public int snapshotAll() {
+		return this.snapshotAll(MIN_LINES);
+	}
+}
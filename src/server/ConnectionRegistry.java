@@ -0,0 +1,251 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import protocol.ClientFeatures;
+import protocol.OutgoingServerMessage;
+
+/**
+ * The open connections of a server, keyed by the id of their user. The
+ * LobbyModel already knows which users are in which board, so broadcasting to
+ * a board looks up the connection of each member rather than scanning every
+ * connection: it costs O(recipients), not O(users).
+ *
+ * Thread-safety:
+ *      The connections are kept in a ConcurrentHashMap. The accept thread adds
+ *      connections while the users' threads (or event loops) look them up,
+ *      broadcast and remove themselves, without locking and without
+ *      ConcurrentModificationExceptions. A broadcast reaches the connections
+ *      that are registered when it looks them up.
+ */
+public class ConnectionRegistry {
+
+	/**
+	 * The open connections, keyed by the id of their user
+	 */
+	private final ConcurrentMap<Integer, UserConnection> connections;
+
+	/**
+	 * Create an empty registry
+	 */
+	public ConnectionRegistry() {
+		this.connections = new ConcurrentHashMap<Integer, UserConnection>();
+	}
+
+	/**
+	 * Register a new connection
+	 *
+	 * @param connection
+	 *            the connection, whose user id must not be registered already
+	 * @throws IllegalArgumentException
+	 *             if its user id is registered already
+	 */
+	public void add(UserConnection connection) {
+		if (this.connections.putIfAbsent(connection.getUserID(), connection) != null) {
+			throw new IllegalArgumentException(String.format(
+					"userID=%d is already connected!", connection.getUserID()));
+		}
+	}
+
+	/**
+	 * Forget a connection. Does nothing if it is not registered (anymore).
+	 *
+	 * @param connection
+	 *            the connection to forget
+	 */
+	public void remove(UserConnection connection) {
+		this.connections.remove(connection.getUserID(), connection);
+	}
+
+	/**
+	 * @param userID
+	 *            the id of a user
+	 * @return the connection of the user, or null if the user is not
+	 *         connected
+	 */
+	public UserConnection get(int userID) {
+		return this.connections.get(userID);
+	}
+
+	/**
+	 * @return the number of open connections
+	 */
+	public int size() {
+		return this.connections.size();
+	}
+
+	/**
+	 * Send a message to every connection except one
+	 *
+	 * @param message
+	 *            the message
+	 * @param exceptUserID
+	 *            the id of the user who should not get the message
+	 */
+	public void broadcast(String message, int exceptUserID) {
+		this.broadcast(new OutgoingServerMessage(message), exceptUserID);
+	}
+
+	/**
+	 * Send a message to the connections of the given users except one that
+	 * opted in to a feature, and other messages instead to those that did
+	 * not. If the messages make an operation on a board, the last message
+	 * each connection that opted in to sequences gets is numbered: it is sent
+	 * as '[sequence] [message]'. Users who are not connected are skipped.
+	 *
+	 * @param message
+	 *            the message for the connections that opted in
+	 * @param fallback
+	 *            the messages for the other connections, in order
+	 * @param feature
+	 *            the name of the feature
+	 * @param userIDs
+	 *            the ids of the users who should get the message, must not be
+	 *            changed while it is iterated
+	 * @param sequence
+	 *            the number of the board operation the messages make, ex.
+	 *            'seq [boardID] [sequenceNumber]', or null if they make none
+	 * @param exceptUserID
+	 *            the id of the user who should not get the message
+	 */
+	public void broadcast(String message, List<String> fallback,
+			String feature, Set<Integer> userIDs, String sequence,
+			int exceptUserID) {
+		OutgoingServerMessage encoded = new OutgoingServerMessage(message);
+		List<OutgoingServerMessage> encodedFallback = new ArrayList<OutgoingServerMessage>();
+		for (String each : fallback) {
+			encodedFallback.add(new OutgoingServerMessage(each));
+		}
+		if (sequence == null) {
+			this.broadcast(encoded, encodedFallback, feature, userIDs,
+					exceptUserID);
+			return;
+		}
+		List<OutgoingServerMessage> sequencedFallback = new ArrayList<OutgoingServerMessage>(
+				encodedFallback);
+		if (!fallback.isEmpty()) {
+			int last = fallback.size() - 1;
+			sequencedFallback.set(last, new OutgoingServerMessage(sequence
+					+ " " + fallback.get(last)));
+		}
+		this.broadcast(encoded, encodedFallback, new OutgoingServerMessage(
+				sequence + " " + message), sequencedFallback, feature, userIDs,
+				exceptUserID);
+	}
+
+	/**
+	 * Send a message to every connection except one
+	 *
+	 * @param message
+	 *            the encoded message
+	 * @param exceptUserID
+	 *            the id of the user who should not get the message
+	 */
+	public void broadcast(OutgoingServerMessage message, int exceptUserID) {
+		for (UserConnection connection : this.connections.values()) {
+			if (connection.getUserID() != exceptUserID) {
+				connection.send(message);
+			}
+		}
+	}
+
+	/**
+	 * Send a message to the connections of the given users except one. Users
+	 * who are not connected are skipped.
+	 *
+	 * @param message
+	 *            the encoded message
+	 * @param userIDs
+	 *            the ids of the users who should get the message, must not be
+	 *            changed while it is iterated
+	 * @param exceptUserID
+	 *            the id of the user who should not get the message
+	 */
+	public void broadcast(OutgoingServerMessage message, Set<Integer> userIDs,
+			int exceptUserID) {
+		for (int userID : userIDs) {
+			if (userID == exceptUserID) {
+				continue;
+			}
+			UserConnection connection = this.connections.get(userID);
+			if (connection != null) {
+				connection.send(message);
+			}
+		}
+	}
+
+	/**
+	 * Send a message to the connections of the given users except one that
+	 * opted in to a feature, and other messages instead to those that did
+	 * not. Users who are not connected are skipped.
+	 *
+	 * @param message
+	 *            the encoded message for the connections that opted in
+	 * @param fallback
+	 *            the encoded messages for the other connections, in order
+	 * @param feature
+	 *            the name of the feature
+	 * @param userIDs
+	 *            the ids of the users who should get the message, must not be
+	 *            changed while it is iterated
+	 * @param exceptUserID
+	 *            the id of the user who should not get the message
+	 */
+	public void broadcast(OutgoingServerMessage message,
+			List<OutgoingServerMessage> fallback, String feature,
+			Set<Integer> userIDs, int exceptUserID) {
+		this.broadcast(message, fallback, message, fallback, feature,
+				userIDs, exceptUserID);
+	}
+
+	/**
+	 * Send messages to the connections of the given users except one like
+	 * broadcast(message, fallback, feature, userIDs, exceptUserID), except
+	 * that the connections that opted in to sequences get the numbered
+	 * versions of the messages instead
+	 *
+	 * @param message
+	 *            the encoded message for the connections that opted in
+	 * @param fallback
+	 *            the encoded messages for the other connections, in order
+	 * @param sequencedMessage
+	 *            the message, numbered
+	 * @param sequencedFallback
+	 *            the other messages, the last one numbered
+	 * @param feature
+	 *            the name of the feature
+	 * @param userIDs
+	 *            the ids of the users who should get the message, must not be
+	 *            changed while it is iterated
+	 * @param exceptUserID
+	 *            the id of the user who should not get the message
+	 */
+	public void broadcast(OutgoingServerMessage message,
+			List<OutgoingServerMessage> fallback,
+			OutgoingServerMessage sequencedMessage,
+			List<OutgoingServerMessage> sequencedFallback, String feature,
+			Set<Integer> userIDs, int exceptUserID) {
+		for (int userID : userIDs) {
+			if (userID == exceptUserID) {
+				continue;
+			}
+			UserConnection connection = this.connections.get(userID);
+			if (connection == null) {
+				continue;
+			}
+			ClientFeatures features = connection.getFeatures();
+			boolean sequenced = features.isEnabled(ClientFeatures.SEQUENCES);
+			if (features.isEnabled(feature)) {
+				connection.send(sequenced ? sequencedMessage : message);
+			} else {
+				for (OutgoingServerMessage each : sequenced ? sequencedFallback : fallback) {
+					connection.send(each);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package server;
+
+/**
+ * Where the server keeps the lines drawn on its boards
+ */
+public enum LineStorage {
+
+	/**
+	 * In primitive arrays on the heap
+	 */
+	HEAP,
+
+	/**
+	 * In chunks of direct memory off the heap, within a budget
+	 */
+	OFFHEAP;
+
+	/**
+	 * @param name
+	 *            the name given on the command line, ex. "offheap"
+	 * @return the storage with the given name
+	 * @throws IllegalArgumentException
+	 *             if there is no storage with the given name
+	 */
+	public static LineStorage fromFlag(String name) {
+		for (LineStorage storage : values()) {
+			if (storage.name().equalsIgnoreCase(name)) {
+				return storage;
+			}
+		}
+		throw new IllegalArgumentException("unknown line storage: \"" + name + "\"");
+	}
+}
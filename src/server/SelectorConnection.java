@@ -0,0 +1,422 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import adts.LobbyModel;
+import protocol.ClientFeatures;
+import protocol.MessageHandler;
+import protocol.OutgoingServerMessage;
+
+/**
+ * A non-blocking connection to one user, driven by a SelectorEventLoop. It
+ * splits the incoming bytes into lines and hands each one to the
+ * MessageHandler, and it queues outgoing messages until its event loop can
+ * write them. The queued messages are shared with the other recipients of a
+ * broadcast; they are copied into the event loop's write buffer when written.
+ *
+ * Thread-safety:
+ *      The channel, the selection key and the read buffers are only used by
+ *      the event loop thread. Any thread may queue outgoing messages: they go
+ *      on a ConcurrentLinkedQueue, and writeScheduled makes sure the event loop
+ *      is asked to write exactly once until the queue has been drained.
+ */
+public class SelectorConnection implements UserConnection {
+
+	/**
+	 * The charset used to decode requests, the same one that the readers of
+	 * UserThread use
+	 */
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	/**
+	 * The size of the buffer that incoming bytes are read into
+	 */
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * The longest request line accepted, in bytes. A user who sends more
+	 * without a newline is disconnected, so the bytes of a line cannot use up
+	 * the heap.
+	 */
+	public static final int MAX_LINE_BYTES = 1 << 20;
+
+	/**
+	 * The channel of this connection
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * The ID of the user
+	 */
+	private final int userID;
+
+	/**
+	 * The event loop that drives this connection
+	 */
+	private final SelectorEventLoop eventLoop;
+
+	/**
+	 * The open connections of the server (including this one)
+	 */
+	private final ConnectionRegistry connections;
+
+	/**
+	 * The lobby model
+	 */
+	private final LobbyModel lobbyModel;
+
+	/**
+	 * The buffer that incoming bytes are read into
+	 */
+	private final ByteBuffer readBuffer;
+
+	/**
+	 * The bytes of the line that is currently being received
+	 */
+	private final ByteArrayOutputStream partialLine;
+
+	/**
+	 * The encoded messages waiting to be written
+	 */
+	private final ConcurrentLinkedQueue<OutgoingServerMessage> outgoingMessages;
+
+	/**
+	 * How many bytes of the first queued message have been written already
+	 */
+	private int writtenOfFirstMessage;
+
+	/**
+	 * True while the event loop has been asked to write this connection's
+	 * queue and has not drained it yet
+	 */
+	private final AtomicBoolean writeScheduled;
+
+	/**
+	 * True once the connection should be closed after the queue is drained
+	 */
+	private volatile boolean closing;
+
+	/**
+	 * True once the user fell too far behind and should be disconnected
+	 * without draining the queue
+	 */
+	private volatile boolean evicted;
+
+	/**
+	 * Keeps the queue of outgoing messages bounded
+	 */
+	private final Backpressure backpressure;
+
+	/**
+	 * The optional protocol features this user has opted in to
+	 */
+	private final ClientFeatures features;
+
+	/**
+	 * The selection key of the channel, set by the event loop on registration
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Create the connection
+	 *
+	 * @param channel
+	 *            the channel of the connection, in non-blocking mode
+	 * @param userID
+	 *            the id of the user
+	 * @param eventLoop
+	 *            the event loop that will drive the connection
+	 * @param connections
+	 *            the open connections of the server
+	 * @param lobbyModel
+	 *            the lobby model
+	 * @param config
+	 *            the server configuration
+	 * @param metrics
+	 *            where to record how the server treated this user
+	 */
+	public SelectorConnection(SocketChannel channel, int userID,
+			SelectorEventLoop eventLoop, ConnectionRegistry connections,
+			LobbyModel lobbyModel, ServerConfig config, ServerMetrics metrics) {
+		this.channel = channel;
+		this.userID = userID;
+		this.eventLoop = eventLoop;
+		this.connections = connections;
+		this.lobbyModel = lobbyModel;
+		this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		this.partialLine = new ByteArrayOutputStream();
+		this.outgoingMessages = new ConcurrentLinkedQueue<OutgoingServerMessage>();
+		this.writtenOfFirstMessage = 0;
+		this.writeScheduled = new AtomicBoolean(false);
+		this.closing = false;
+		this.evicted = false;
+		this.backpressure = new Backpressure(config, metrics, this, lobbyModel);
+		this.features = new ClientFeatures();
+	}
+
+	/**
+	 * @return the id of this user
+	 */
+	@Override
+	public int getUserID() {
+		return this.userID;
+	}
+
+	/**
+	 * @return the optional protocol features this user has opted in to
+	 */
+	@Override
+	public ClientFeatures getFeatures() {
+		return this.features;
+	}
+
+	/**
+	 * Write a message to this user
+	 *
+	 * @param message
+	 *            the message to write
+	 */
+	@Override
+	public void output(String message) {
+		this.send(new OutgoingServerMessage(message));
+	}
+
+	/**
+	 * Queue an already encoded message for this user and make sure the event
+	 * loop will write it, unless the user has fallen too far behind
+	 *
+	 * @param message
+	 *            the encoded message
+	 */
+	@Override
+	public void send(OutgoingServerMessage message) {
+		if (this.closing || this.evicted) {
+			return;
+		}
+		switch (this.backpressure.admit(message)) {
+		case QUEUE:
+			this.outgoingMessages.add(message);
+			break;
+		case DISCONNECT:
+			// the event loop disconnects the user on its next flush
+			this.evicted = true;
+			break;
+		case DROP:
+			return;
+		}
+		if (this.writeScheduled.compareAndSet(false, true)) {
+			this.eventLoop.requestWrite(this);
+		}
+	}
+
+	/**
+	 * @return the open connections of the server
+	 */
+	@Override
+	public ConnectionRegistry getConnections() {
+		return this.connections;
+	}
+
+	/**
+	 * Close the connection once everything queued so far has been written
+	 */
+	@Override
+	public void closeSocket() {
+		this.closing = true;
+		if (this.writeScheduled.compareAndSet(false, true)) {
+			this.eventLoop.requestWrite(this);
+		}
+	}
+
+	/**
+	 * Registers the channel with the selector of the event loop, then
+	 * welcomes the user. Must be called by the event loop.
+	 *
+	 * @param selector
+	 *            the selector of the event loop
+	 */
+	void register(Selector selector) {
+		try {
+			this.key = this.channel.register(selector, SelectionKey.OP_READ,
+					this);
+		} catch (IOException e) {
+			this.disconnect();
+			return;
+		}
+		if (this.writeScheduled.get()) {
+			// messages were queued before the channel was registered
+			this.flush();
+		}
+		this.output(String.format("%s %d", MessageHandler.RESP_WELCOME,
+				this.userID));
+	}
+
+	/**
+	 * Reads whatever is available and handles every complete line, or
+	 * disconnects the user if a line gets longer than MAX_LINE_BYTES. Must be
+	 * called by the event loop.
+	 */
+	void read() {
+		int read;
+		try {
+			read = this.channel.read(this.readBuffer);
+		} catch (IOException e) {
+			read = -1;
+		}
+		if (read < 0) {
+			this.disconnect();
+			return;
+		}
+		this.readBuffer.flip();
+		try {
+			while (this.readBuffer.hasRemaining() && !this.closing) {
+				byte b = this.readBuffer.get();
+				if (b == '\n') {
+					this.handleLine();
+				} else if (this.partialLine.size() < MAX_LINE_BYTES) {
+					this.partialLine.write(b);
+				} else {
+					// the line is too long to be a request
+					this.disconnect();
+					return;
+				}
+			}
+		} catch (RuntimeException e) {
+			this.disconnect();
+		} finally {
+			this.readBuffer.clear();
+		}
+	}
+
+	/**
+	 * Writes as much of the queue as the channel accepts, copying the queued
+	 * messages into the event loop's write buffer. Must be called by the event
+	 * loop.
+	 */
+	void flush() {
+		if (this.key == null || !this.channel.isOpen()) {
+			// not registered yet, register() flushes once it is
+			return;
+		}
+		if (this.evicted) {
+			this.disconnect();
+			return;
+		}
+		ByteBuffer writeBuffer = this.eventLoop.getWriteBuffer();
+		try {
+			while (true) {
+				while (this.fill(writeBuffer)) {
+					int written = this.channel.write(writeBuffer);
+					this.consume(written);
+					if (writeBuffer.hasRemaining()) {
+						// the socket is full, wait until it is writable again
+						this.key.interestOps(SelectionKey.OP_READ
+								| SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+				if (this.closing) {
+					this.close();
+					return;
+				}
+				this.key.interestOps(SelectionKey.OP_READ);
+				this.writeScheduled.set(false);
+				// a message may have been queued after the queue looked empty
+				if (this.outgoingMessages.isEmpty()
+						|| !this.writeScheduled.compareAndSet(false, true)) {
+					return;
+				}
+			}
+		} catch (IOException e) {
+			this.disconnect();
+		}
+	}
+
+	/**
+	 * Copies as many of the queued bytes as fit into the write buffer
+	 *
+	 * @param writeBuffer
+	 *            the buffer to copy into, it is left ready to be written
+	 * @return true if anything was copied
+	 */
+	private boolean fill(ByteBuffer writeBuffer) {
+		writeBuffer.clear();
+		int from = this.writtenOfFirstMessage;
+		Iterator<OutgoingServerMessage> messages = this.outgoingMessages
+				.iterator();
+		while (writeBuffer.hasRemaining() && messages.hasNext()) {
+			messages.next().copyTo(writeBuffer, from);
+			from = 0;
+		}
+		writeBuffer.flip();
+		return writeBuffer.hasRemaining();
+	}
+
+	/**
+	 * Removes the messages that have been written completely from the queue
+	 *
+	 * @param written
+	 *            the number of bytes that were written
+	 */
+	private void consume(int written) {
+		while (written > 0) {
+			OutgoingServerMessage first = this.outgoingMessages.peek();
+			int left = first.length() - this.writtenOfFirstMessage;
+			if (written < left) {
+				this.writtenOfFirstMessage += written;
+				return;
+			}
+			written -= left;
+			this.writtenOfFirstMessage = 0;
+			this.backpressure.written(this.outgoingMessages.poll());
+		}
+	}
+
+	/**
+	 * Decodes the line received so far and hands it to the MessageHandler
+	 */
+	private void handleLine() {
+		String line = new String(this.partialLine.toByteArray(), CHARSET);
+		this.partialLine.reset();
+		if (line.endsWith("\r")) {
+			line = line.substring(0, line.length() - 1);
+		}
+		MessageHandler.handleMessage(line, this, this.lobbyModel);
+	}
+
+	/**
+	 * Logs the user out (unless they are already leaving) and closes the
+	 * connection right away
+	 */
+	private void disconnect() {
+		if (!this.closing) {
+			this.closing = true;
+			MessageHandler.handleMessage(MessageHandler.REQ_LOGOUT, this,
+					this.lobbyModel);
+		}
+		this.close();
+	}
+
+	/**
+	 * Closes the channel and forgets about this connection
+	 */
+	private void close() {
+		this.connections.remove(this);
+		if (this.key != null) {
+			this.key.cancel();
+		}
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+		}
+	}
+}
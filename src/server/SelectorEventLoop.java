@@ -0,0 +1,130 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A thread that owns a Selector and drives every SelectorConnection registered
+ * with it: it reads and frames their requests, and writes whatever other
+ * threads have queued for them.
+ *
+ * Thread-safety:
+ *      The selector, the selection keys, the channels and the write buffer are
+ *      only touched by this thread. Other threads hand work over through the
+ *      two concurrent queues and then wake the selector up.
+ */
+public class SelectorEventLoop extends Thread {
+
+	/**
+	 * The size of the buffer that outgoing messages are copied into
+	 */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The selector for all the connections of this loop
+	 */
+	private final Selector selector;
+
+	/**
+	 * Connections that were accepted but are not registered yet
+	 */
+	private final ConcurrentLinkedQueue<SelectorConnection> pendingRegistrations;
+
+	/**
+	 * Connections that have new outgoing messages
+	 */
+	private final ConcurrentLinkedQueue<SelectorConnection> pendingWrites;
+
+	/**
+	 * The buffer that the connections copy their queued messages into before
+	 * writing them, shared because only one connection writes at a time
+	 */
+	private final ByteBuffer writeBuffer;
+
+	/**
+	 * Create the event loop
+	 *
+	 * @param index
+	 *            the index of this loop, used to name the thread
+	 * @throws IOException
+	 */
+	public SelectorEventLoop(int index) throws IOException {
+		super("SelectorEventLoop-" + index);
+		this.selector = Selector.open();
+		this.pendingRegistrations = new ConcurrentLinkedQueue<SelectorConnection>();
+		this.pendingWrites = new ConcurrentLinkedQueue<SelectorConnection>();
+		this.writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+	}
+
+	/**
+	 * @return the buffer to copy outgoing messages into. Must only be used by
+	 *         this thread.
+	 */
+	ByteBuffer getWriteBuffer() {
+		return this.writeBuffer;
+	}
+
+	/**
+	 * Hand a newly accepted connection over to this loop
+	 *
+	 * @param connection
+	 *            the connection to register
+	 */
+	public void register(SelectorConnection connection) {
+		this.pendingRegistrations.add(connection);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Ask this loop to write the messages queued for the given connection
+	 *
+	 * @param connection
+	 *            the connection with new outgoing messages
+	 */
+	public void requestWrite(SelectorConnection connection) {
+		this.pendingWrites.add(connection);
+		if (Thread.currentThread() != this) {
+			this.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Registers and writes whatever other threads asked for, then waits for
+	 * the channels to become readable or writable and services them.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			SelectorConnection connection;
+			while ((connection = this.pendingRegistrations.poll()) != null) {
+				connection.register(this.selector);
+			}
+			while ((connection = this.pendingWrites.poll()) != null) {
+				connection.flush();
+			}
+			try {
+				this.selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			Iterator<SelectionKey> keys = this.selector.selectedKeys()
+					.iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				connection = (SelectorConnection) key.attachment();
+				if (key.isValid() && key.isReadable()) {
+					connection.read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					connection.flush();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import adts.LobbyModel;
+
+/**
+ * The NIO engine of the WhiteboardServer. Instead of a UserThread per socket,
+ * every connection is registered with one of a small fixed set of
+ * SelectorEventLoops which do the reading, line framing and writing for all of
+ * their connections. Requests are still dispatched through the MessageHandler.
+ *
+ * Thread-safety:
+ *      Only the thread calling serve() accepts connections. The connections
+ *      are kept in a ConnectionRegistry, so the event loops can broadcast
+ *      while connections are added and remove themselves.
+ */
+public class SelectorServer {
+
+	private final static Logger LOGGER = Logger.getLogger(SelectorServer.class
+			.getName());
+
+	/**
+	 * How long to wait before accepting again after accepting failed, so a
+	 * server out of file descriptors does not spin
+	 */
+	private static final long ACCEPT_RETRY_MILLIS = 50;
+
+	/**
+	 * The channel that accepts new connections
+	 */
+	private final ServerSocketChannel serverChannel;
+
+	/**
+	 * The event loops that the connections are spread over
+	 */
+	private final SelectorEventLoop[] eventLoops;
+
+	/**
+	 * The open connections
+	 */
+	private final ConnectionRegistry connections;
+
+	/**
+	 * The lobby model
+	 */
+	private final LobbyModel lobbyModel;
+
+	/**
+	 * The server configuration
+	 */
+	private final ServerConfig config;
+
+	/**
+	 * Where the connections record how they were treated
+	 */
+	private final ServerMetrics metrics;
+
+	/**
+	 * Bind the server to the given port and create its event loops
+	 *
+	 * @param port
+	 *            the port to listen on
+	 * @param config
+	 *            the server configuration, including the number of event
+	 *            loops to spread the connections over
+	 * @param metrics
+	 *            where the connections record how they were treated
+	 * @param connections
+	 *            the registry to keep the open connections in
+	 * @param lobbyModel
+	 *            the lobby model
+	 * @throws IOException
+	 */
+	public SelectorServer(int port, ServerConfig config, ServerMetrics metrics,
+			ConnectionRegistry connections, LobbyModel lobbyModel)
+			throws IOException {
+		int numEventLoops = config.getEventLoops();
+		this.lobbyModel = lobbyModel;
+		this.config = config;
+		this.metrics = metrics;
+		this.connections = connections;
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.socket().bind(new InetSocketAddress(port));
+		this.eventLoops = new SelectorEventLoop[numEventLoops];
+		for (int i = 0; i < numEventLoops; i++) {
+			this.eventLoops[i] = new SelectorEventLoop(i);
+		}
+	}
+
+	/**
+	 * Starts the event loops, then accepts connections forever, handing them
+	 * out to the event loops in turn. A connection that cannot be accepted or
+	 * set up is logged and dropped.
+	 *
+	 * @throws IOException
+	 *             if the server channel is closed
+	 */
+	public void serve() throws IOException {
+		for (SelectorEventLoop eventLoop : this.eventLoops) {
+			eventLoop.start();
+		}
+		int next = 0;
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = this.serverChannel.accept();
+			} catch (ClosedChannelException e) {
+				throw e;
+			} catch (IOException e) {
+				// e.g. out of file descriptors: this connection is lost, but
+				// the others are not, and the next one may be accepted
+				LOGGER.log(Level.WARNING, "could not accept a connection", e);
+				this.pauseAccepting();
+				continue;
+			}
+			try {
+				channel.configureBlocking(false);
+				// each flush already writes everything queued for the connection
+				channel.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "could not set up a connection", e);
+				try {
+					channel.close();
+				} catch (IOException closeFailed) {
+				}
+				continue;
+			}
+			int userID = this.lobbyModel.addUser();
+			SelectorEventLoop eventLoop = this.eventLoops[next];
+			next = (next + 1) % this.eventLoops.length;
+			SelectorConnection connection = new SelectorConnection(channel,
+					userID, eventLoop, this.connections, this.lobbyModel,
+					this.config, this.metrics);
+			this.connections.add(connection);
+			eventLoop.register(connection);
+		}
+	}
+
+	/**
+	 * Waits ACCEPT_RETRY_MILLIS, so connections can be closed before the next
+	 * accept
+	 */
+	private void pauseAccepting() {
+		try {
+			Thread.sleep(ACCEPT_RETRY_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
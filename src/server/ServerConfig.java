@@ -0,0 +1,354 @@
+package server;
+
+import adts.OffHeapBudget;
+
+/**
+ * The tunable settings of a WhiteboardServer. The defaults keep the original
+ * thread-per-connection server and its heap line storage, but turn on these
+ * cheaper paths: outgoing messages are held back up to 2 ms to be written
+ * together, lobby changes are gathered for 20 ms, the boards are compacted
+ * every 30 s and snapshotted every 2 s, and a client that falls behind is
+ * resynced once its queue passes 1 MB. Setting an interval or latency to 0
+ * turns the corresponding path off.
+ */
+public class ServerConfig {
+
+	/**
+	 * How the server drives its connections
+	 */
+	private ServerMode mode;
+
+	/**
+	 * The number of selector event loops used in NIO mode
+	 */
+	private int eventLoops;
+
+	/**
+	 * The number of bytes that may be queued for a client before the slow
+	 * consumer policy applies
+	 */
+	private long highWatermark;
+
+	/**
+	 * The number of queued bytes at which a client being resynced has caught
+	 * up again
+	 */
+	private long lowWatermark;
+
+	/**
+	 * What to do with clients whose queue passes the high watermark
+	 */
+	private SlowConsumerPolicy slowConsumerPolicy;
+
+	/**
+	 * How long (in microseconds) an outgoing message may be held back while
+	 * more messages keep arriving to be written along with it
+	 */
+	private long flushLatencyMicros;
+
+	/**
+	 * How long (in milliseconds) changes to the lobby are gathered before the
+	 * users in the lobby are told about them
+	 */
+	private long presenceWindowMillis;
+
+	/**
+	 * Where the lines drawn on the boards are kept
+	 */
+	private LineStorage lineStorage;
+
+	/**
+	 * The most bytes of off-heap memory the lines of all boards may take
+	 */
+	private long offHeapBudget;
+
+	/**
+	 * The most bytes of off-heap memory the lines of one board may take
+	 */
+	private long offHeapBoardBudget;
+
+	/**
+	 * How long (in milliseconds) the boards are left alone between two
+	 * compactions
+	 */
+	private long compactIntervalMillis;
+
+	/**
+	 * How far (in pixels) the lines stored on a new board may be from the
+	 * lines drawn
+	 */
+	private float simplifyTolerance;
+
+	/**
+	 * How long (in milliseconds) the boards are left alone between two
+	 * snapshots
+	 */
+	private long snapshotIntervalMillis;
+
+	/**
+	 * Create the default configuration
+	 */
+	public ServerConfig() {
+		this.mode = ServerMode.THREADS;
+		this.eventLoops = Runtime.getRuntime().availableProcessors();
+		this.highWatermark = 1024 * 1024;
+		this.lowWatermark = 256 * 1024;
+		this.slowConsumerPolicy = SlowConsumerPolicy.RESYNC;
+		this.flushLatencyMicros = 2000;
+		this.presenceWindowMillis = 20;
+		this.lineStorage = LineStorage.HEAP;
+		this.offHeapBudget = 1024L * 1024 * 1024;
+		this.offHeapBoardBudget = 64L * 1024 * 1024;
+		this.compactIntervalMillis = 30000;
+		this.simplifyTolerance = 0;
+		this.snapshotIntervalMillis = 2000;
+	}
+
+	/**
+	 * @return how the server drives its connections
+	 */
+	public ServerMode getMode() {
+		return this.mode;
+	}
+
+	/**
+	 * @param mode
+	 *            how the server should drive its connections
+	 */
+	public void setMode(ServerMode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * @return the number of selector event loops used in NIO mode
+	 */
+	public int getEventLoops() {
+		return this.eventLoops;
+	}
+
+	/**
+	 * @param eventLoops
+	 *            the number of selector event loops used in NIO mode
+	 * @throws IllegalArgumentException
+	 *             if eventLoops is not positive
+	 */
+	public void setEventLoops(int eventLoops) {
+		if (eventLoops < 1) {
+			throw new IllegalArgumentException("need at least one event loop");
+		}
+		this.eventLoops = eventLoops;
+	}
+
+	/**
+	 * @return the number of bytes that may be queued for a client before the
+	 *         slow consumer policy applies
+	 */
+	public long getHighWatermark() {
+		return this.highWatermark;
+	}
+
+	/**
+	 * @return the number of queued bytes at which a client being resynced has
+	 *         caught up again
+	 */
+	public long getLowWatermark() {
+		return this.lowWatermark;
+	}
+
+	/**
+	 * @param lowWatermark
+	 *            the number of queued bytes at which a client being resynced
+	 *            has caught up again
+	 * @param highWatermark
+	 *            the number of bytes that may be queued for a client before
+	 *            the slow consumer policy applies
+	 * @throws IllegalArgumentException
+	 *             unless 0 <= lowWatermark <= highWatermark
+	 */
+	public void setWatermarks(long lowWatermark, long highWatermark) {
+		if (lowWatermark < 0 || lowWatermark > highWatermark) {
+			throw new IllegalArgumentException(
+					"need 0 <= low watermark <= high watermark");
+		}
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+	}
+
+	/**
+	 * @return what to do with clients whose queue passes the high watermark
+	 */
+	public SlowConsumerPolicy getSlowConsumerPolicy() {
+		return this.slowConsumerPolicy;
+	}
+
+	/**
+	 * @param slowConsumerPolicy
+	 *            what to do with clients whose queue passes the high watermark
+	 */
+	public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+
+	/**
+	 * @return how long (in microseconds) an outgoing message may be held back
+	 *         while more messages keep arriving to be written along with it
+	 */
+	public long getFlushLatencyMicros() {
+		return this.flushLatencyMicros;
+	}
+
+	/**
+	 * @param flushLatencyMicros
+	 *            how long (in microseconds) an outgoing message may be held
+	 *            back while more messages keep arriving to be written along
+	 *            with it, 0 to write it along with only those already queued
+	 * @throws IllegalArgumentException
+	 *             if flushLatencyMicros is negative
+	 */
+	public void setFlushLatencyMicros(long flushLatencyMicros) {
+		if (flushLatencyMicros < 0) {
+			throw new IllegalArgumentException("need a flush latency >= 0");
+		}
+		this.flushLatencyMicros = flushLatencyMicros;
+	}
+
+	/**
+	 * @return how long (in milliseconds) changes to the lobby are gathered
+	 *         before the users in the lobby are told about them
+	 */
+	public long getPresenceWindowMillis() {
+		return this.presenceWindowMillis;
+	}
+
+	/**
+	 * @param presenceWindowMillis
+	 *            how long (in milliseconds) changes to the lobby are gathered
+	 *            before the users in the lobby are told about them, 0 to tell
+	 *            them as soon as possible
+	 * @throws IllegalArgumentException
+	 *             if presenceWindowMillis is negative
+	 */
+	public void setPresenceWindowMillis(long presenceWindowMillis) {
+		if (presenceWindowMillis < 0) {
+			throw new IllegalArgumentException("need a presence window >= 0");
+		}
+		this.presenceWindowMillis = presenceWindowMillis;
+	}
+
+	/**
+	 * @return where the lines drawn on the boards are kept
+	 */
+	public LineStorage getLineStorage() {
+		return this.lineStorage;
+	}
+
+	/**
+	 * @param lineStorage
+	 *            where the lines drawn on the boards are kept
+	 */
+	public void setLineStorage(LineStorage lineStorage) {
+		this.lineStorage = lineStorage;
+	}
+
+	/**
+	 * @return the most bytes of off-heap memory the lines of all boards may
+	 *         take
+	 */
+	public long getOffHeapBudget() {
+		return this.offHeapBudget;
+	}
+
+	/**
+	 * @return the most bytes of off-heap memory the lines of one board may
+	 *         take
+	 */
+	public long getOffHeapBoardBudget() {
+		return this.offHeapBoardBudget;
+	}
+
+	/**
+	 * @param offHeapBudget
+	 *            the most bytes of off-heap memory the lines of all boards
+	 *            may take
+	 * @param offHeapBoardBudget
+	 *            the most bytes of off-heap memory the lines of one board may
+	 *            take
+	 * @throws IllegalArgumentException
+	 *             unless one chunk <= offHeapBoardBudget <= offHeapBudget
+	 */
+	public void setOffHeapBudget(long offHeapBudget, long offHeapBoardBudget) {
+		if (offHeapBoardBudget < OffHeapBudget.CHUNK_BYTES
+				|| offHeapBoardBudget > offHeapBudget) {
+			throw new IllegalArgumentException(String.format(
+					"need %d <= board budget <= budget", OffHeapBudget.CHUNK_BYTES));
+		}
+		this.offHeapBudget = offHeapBudget;
+		this.offHeapBoardBudget = offHeapBoardBudget;
+	}
+
+	/**
+	 * @return how long (in milliseconds) the boards are left alone between
+	 *         two compactions, 0 if they are never compacted
+	 */
+	public long getCompactIntervalMillis() {
+		return this.compactIntervalMillis;
+	}
+
+	/**
+	 * @param compactIntervalMillis
+	 *            how long (in milliseconds) the boards are left alone between
+	 *            two compactions, 0 to never compact them
+	 * @throws IllegalArgumentException
+	 *             if compactIntervalMillis is negative
+	 */
+	public void setCompactIntervalMillis(long compactIntervalMillis) {
+		if (compactIntervalMillis < 0) {
+			throw new IllegalArgumentException("need a compaction interval >= 0");
+		}
+		this.compactIntervalMillis = compactIntervalMillis;
+	}
+
+	/**
+	 * @return how far (in pixels) the lines stored on a new board may be from
+	 *         the lines drawn, 0 if they are stored as drawn
+	 */
+	public float getSimplifyTolerance() {
+		return this.simplifyTolerance;
+	}
+
+	/**
+	 * @param simplifyTolerance
+	 *            how far (in pixels) the lines stored on a new board may be
+	 *            from the lines drawn, 0 to store them as drawn
+	 * @throws IllegalArgumentException
+	 *             if simplifyTolerance is negative or not finite
+	 */
+	public void setSimplifyTolerance(float simplifyTolerance) {
+		if (!(simplifyTolerance >= 0) || Float.isInfinite(simplifyTolerance)) {
+			throw new IllegalArgumentException("need a simplify tolerance >= 0");
+		}
+		this.simplifyTolerance = simplifyTolerance;
+	}
+
+	/**
+	 * @return how long (in milliseconds) the boards are left alone between
+	 *         two snapshots, 0 if no snapshots are taken
+	 */
+	public long getSnapshotIntervalMillis() {
+		return this.snapshotIntervalMillis;
+	}
+
+	/**
+	 * @param snapshotIntervalMillis
+	 *            how long (in milliseconds) the boards are left alone between
+	 *            two snapshots, 0 to take none
+	 * @throws IllegalArgumentException
+	 *             if snapshotIntervalMillis is negative
+	 */
+	public void setSnapshotIntervalMillis(long snapshotIntervalMillis) {
+		if (snapshotIntervalMillis < 0) {
+			throw new IllegalArgumentException("need a snapshot interval >= 0");
+		}
+		this.snapshotIntervalMillis = snapshotIntervalMillis;
+	}
+}
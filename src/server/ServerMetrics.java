@@ -0,0 +1,156 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import adts.LineStore;
+
+/**
+ * Counters describing how the server treated its clients. Every event is also
+ * logged, so the counters can be followed from the console.
+ *
+ * Thread-safety:
+ *      All the counters are AtomicLongs, so any connection may update them.
+ */
+public class ServerMetrics {
+
+	private final static Logger LOGGER = Logger.getLogger(ServerMetrics.class
+			.getName());
+
+	/**
+	 * The number of times a client fell behind and was put on the resync
+	 * policy
+	 */
+	private final AtomicLong resyncedClients;
+
+	/**
+	 * The number of clients that were disconnected for falling behind
+	 */
+	private final AtomicLong disconnectedClients;
+
+	/**
+	 * The number of draw messages dropped for clients that fell behind
+	 */
+	private final AtomicLong droppedDraws;
+
+	/**
+	 * The number of other messages dropped for clients that fell behind
+	 */
+	private final AtomicLong droppedMessages;
+
+	/**
+	 * The number of hidden lines dropped by compacting the boards
+	 */
+	private final AtomicLong compactedLines;
+
+	/**
+	 * Create the metrics with every counter at zero
+	 */
+	public ServerMetrics() {
+		this.resyncedClients = new AtomicLong(0);
+		this.disconnectedClients = new AtomicLong(0);
+		this.droppedDraws = new AtomicLong(0);
+		this.droppedMessages = new AtomicLong(0);
+		this.compactedLines = new AtomicLong(0);
+	}
+
+	/**
+	 * Record that a client fell behind and will be resynced
+	 * 
+	 * @param userID
+	 *            the id of the user
+	 */
+	public void clientResynced(int userID) {
+		long total = this.resyncedClients.incrementAndGet();
+		LOGGER.info(String.format(
+				"user %d fell behind, dropping messages until it is resynced "
+						+ "(%d resyncs so far)", userID, total));
+	}
+
+	/**
+	 * Record that a client fell behind and was disconnected
+	 * 
+	 * @param userID
+	 *            the id of the user
+	 */
+	public void clientDisconnected(int userID) {
+		long total = this.disconnectedClients.incrementAndGet();
+		LOGGER.info(String.format("user %d fell behind and was disconnected "
+				+ "(%d disconnects so far)", userID, total));
+	}
+
+	/**
+	 * Record that a draw message was dropped for a client that fell behind
+	 */
+	public void drawDropped() {
+		this.droppedDraws.incrementAndGet();
+	}
+
+	/**
+	 * Record that a message other than a draw was dropped for a client that
+	 * fell behind
+	 */
+	public void messageDropped() {
+		this.droppedMessages.incrementAndGet();
+	}
+
+	/**
+	 * Record that a board was compacted
+	 * 
+	 * @param boardID
+	 *            the id of the board
+	 * @param lines
+	 *            the number of hidden lines that were dropped
+	 */
+	public void boardCompacted(int boardID, int lines) {
+		long total = this.compactedLines.addAndGet(lines);
+		LOGGER.info(String.format("board %d was compacted, reclaiming %d lines "
+				+ "(%d bytes); %d lines (%d bytes) reclaimed so far", boardID,
+				lines, (long) lines * LineStore.BYTES_PER_LINE, total, total
+						* LineStore.BYTES_PER_LINE));
+	}
+
+	/**
+	 * @return the number of times a client fell behind and was resynced
+	 */
+	public long getResyncedClients() {
+		return this.resyncedClients.get();
+	}
+
+	/**
+	 * @return the number of clients disconnected for falling behind
+	 */
+	public long getDisconnectedClients() {
+		return this.disconnectedClients.get();
+	}
+
+	/**
+	 * @return the number of draw messages dropped for clients that fell behind
+	 */
+	public long getDroppedDraws() {
+		return this.droppedDraws.get();
+	}
+
+	/**
+	 * @return the number of messages other than draws dropped for clients
+	 *         that fell behind
+	 */
+	public long getDroppedMessages() {
+		return this.droppedMessages.get();
+	}
+
+	/**
+	 * @return the number of hidden lines dropped by compacting the boards
+	 */
+	public long getCompactedLines() {
+		return this.compactedLines.get();
+	}
+
+	/**
+	 * @return the number of bytes of line storage reclaimed by compacting the
+	 *         boards
+	 */
+	public long getReclaimedBytes() {
+		return this.compactedLines.get() * LineStore.BYTES_PER_LINE;
+	}
+}
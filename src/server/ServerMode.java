@@ -0,0 +1,39 @@
+package server;
+
+/**
+ * The ways the server can drive its user connections
+ */
+public enum ServerMode {
+
+	/**
+	 * One UserThread (plus its outgoing message queue) per connection
+	 */
+	THREADS,
+
+	/**
+	 * A small fixed set of selector event loops shared by all connections
+	 */
+	NIO,
+
+	/**
+	 * Like THREADS, but the UserThreads and their outgoing message queues run
+	 * on virtual threads (needs Java 21 or newer)
+	 */
+	VIRTUAL;
+
+	/**
+	 * @param name
+	 *            the name given on the command line, ex. "nio"
+	 * @return the mode with the given name
+	 * @throws IllegalArgumentException
+	 *             if there is no mode with the given name
+	 */
+	public static ServerMode fromFlag(String name) {
+		for (ServerMode mode : values()) {
+			if (mode.name().equalsIgnoreCase(name)) {
+				return mode;
+			}
+		}
+		throw new IllegalArgumentException("unknown engine: \"" + name + "\"");
+	}
+}
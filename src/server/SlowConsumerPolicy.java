@@ -0,0 +1,37 @@
+package server;
+
+/**
+ * What the server does with a client whose outgoing messages pile up past the
+ * high watermark
+ */
+public enum SlowConsumerPolicy {
+
+	/**
+	 * Drop the messages for the client that do not fit, and every draw, until
+	 * its queue is back under the low watermark, then send it the boards and
+	 * the whole board (or the users of the lobby) again
+	 */
+	RESYNC,
+
+	/**
+	 * Disconnect the client
+	 */
+	DISCONNECT;
+
+	/**
+	 * @param name
+	 *            the name given on the command line, ex. "resync"
+	 * @return the policy with the given name
+	 * @throws IllegalArgumentException
+	 *             if there is no policy with the given name
+	 */
+	public static SlowConsumerPolicy fromFlag(String name) {
+		for (SlowConsumerPolicy policy : values()) {
+			if (policy.name().equalsIgnoreCase(name)) {
+				return policy;
+			}
+		}
+		throw new IllegalArgumentException("unknown slow consumer policy: \""
+				+ name + "\"");
+	}
+}
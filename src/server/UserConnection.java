@@ -0,0 +1,51 @@
+package server;
+
+import protocol.ClientFeatures;
+import protocol.OutgoingServerMessage;
+
+/**
+ * A connection to a single user as seen by the MessageHandler. Each server
+ * engine (one thread per user, or a selector driving many users) provides its
+ * own implementation, so the protocol code does not care how the bytes reach
+ * the socket.
+ */
+public interface UserConnection {
+
+	/**
+	 * @return the id of the user on the other end of this connection
+	 */
+	public int getUserID();
+
+	/**
+	 * Write a message to this user
+	 *
+	 * @param message
+	 *            the message to write
+	 */
+	public void output(String message);
+
+	/**
+	 * Queue an already encoded message for this user. The same message may be
+	 * handed to many connections at once, so it must not be changed.
+	 *
+	 * @param message
+	 *            the encoded message
+	 */
+	public void send(OutgoingServerMessage message);
+
+	/**
+	 * @return the open connections of the server, through which messages are
+	 *         broadcast to the other users
+	 */
+	public ConnectionRegistry getConnections();
+
+	/**
+	 * @return the optional protocol features this user has opted in to
+	 */
+	public ClientFeatures getFeatures();
+
+	/**
+	 * Close the connection to this user
+	 */
+	public void closeSocket();
+}
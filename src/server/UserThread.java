@@ -3,19 +3,34 @@ package server;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ThreadFactory;
 
 import adts.LobbyModel;
+import protocol.ClientFeatures;
 import protocol.MessageHandler;
 import protocol.OutgoingServerMessage;
 import protocol.OutgoingServerMessageQueue;
 
-public class UserThread extends Thread {
+public class UserThread extends Thread implements UserConnection {
+
+	/**
+	 * How long closing the socket waits for the queued messages to be written
+	 */
+	private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+	/**
+	 * Creates the daemon platform threads that run the outgoing message
+	 * queues by default
+	 */
+	static final ThreadFactory PLATFORM_THREADS = new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable);
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
 
 	/**
 	 * The socket associated with this thread
@@ -30,7 +45,7 @@ public class UserThread extends Thread {
 	/**
 	 * The output stream which this thread writes to
 	 */
-	private final PrintWriter out;
+	private final OutputStream out;
 
 	/**
 	 * The ID of the user
@@ -38,9 +53,9 @@ public class UserThread extends Thread {
 	private final int userID;
 
 	/**
-	 * The list of other user thread
+	 * The open connections of the server (including this one)
 	 */
-	private final List<UserThread> otherThreads;
+	private final ConnectionRegistry connections;
 
 	/**
 	 * The lobby model
@@ -52,6 +67,27 @@ public class UserThread extends Thread {
 	 * The queue of outgoing messages
 	 */
 	private final OutgoingServerMessageQueue outgoingServerMessageQueue; 
+
+	/**
+	 * The thread which runs the queue of outgoing messages
+	 */
+	private final Thread outgoingThread;
+
+	/**
+	 * Keeps the queue of outgoing messages bounded
+	 */
+	private final Backpressure backpressure;
+
+	/**
+	 * The optional protocol features this user has opted in to
+	 */
+	private final ClientFeatures features;
+
+	/**
+	 * The thread that handles the input of the user: this one, unless it was
+	 * started on a thread made by a factory (see startOn)
+	 */
+	private volatile Thread runner;
 	
 	/**
 	 * Create the user thread
@@ -60,21 +96,68 @@ public class UserThread extends Thread {
 	 *            the socket associated with this thread
 	 * @param userID
 	 *            the id of the user
-	 * @param otherThreads
-	 *            the list of other user threads
+	 * @param connections
+	 *            the open connections of the server
 	 * @throws IOException
 	 */
-	public UserThread(Socket socket, int userID, List<UserThread> otherThreads,
+	public UserThread(Socket socket, int userID, ConnectionRegistry connections,
 			LobbyModel lobbyModel) throws IOException {
-	    this.outgoingServerMessageQueue = new OutgoingServerMessageQueue();
+		this(socket, userID, connections, lobbyModel, PLATFORM_THREADS,
+				new ServerConfig(), new ServerMetrics());
+	}
+
+	/**
+	 * Create the user thread, running its queue of outgoing messages on a
+	 * thread made by the given factory
+	 * 
+	 * @param socket
+	 *            the socket associated with this thread
+	 * @param userID
+	 *            the id of the user
+	 * @param connections
+	 *            the open connections of the server
+	 * @param lobbyModel
+	 *            the lobby model
+	 * @param writerThreads
+	 *            the factory for the thread of the outgoing message queue
+	 * @param config
+	 *            the server configuration
+	 * @param metrics
+	 *            where to record how the server treated this user
+	 * @throws IOException
+	 */
+	public UserThread(Socket socket, int userID, ConnectionRegistry connections,
+			LobbyModel lobbyModel, ThreadFactory writerThreads,
+			ServerConfig config, ServerMetrics metrics) throws IOException {
 		this.socket = socket;
+		// the outgoing message queue coalesces the writes itself
+		this.socket.setTcpNoDelay(true);
 		this.userID = userID;
-		this.otherThreads = otherThreads;
+		this.connections = connections;
 		this.lobbyModel = lobbyModel;
 		this.in = new BufferedReader(new InputStreamReader(
 				socket.getInputStream()));
-		this.out = new PrintWriter(socket.getOutputStream(), true);
-		this.outgoingServerMessageQueue.start();
+		this.out = socket.getOutputStream();
+		this.backpressure = new Backpressure(config, metrics, this, lobbyModel);
+		this.features = new ClientFeatures();
+		this.outgoingServerMessageQueue = new OutgoingServerMessageQueue(
+				this.out, this.backpressure, config.getFlushLatencyMicros());
+		this.outgoingThread = writerThreads.newThread(this.outgoingServerMessageQueue);
+		this.outgoingThread.start();
+		this.runner = this;
+	}
+
+	/**
+	 * Handle the user on a thread made by the given factory, instead of
+	 * starting this thread, which then only serves as its Runnable
+	 * 
+	 * @param threads
+	 *            the factory for the thread, e.g. a VirtualThreadFactory
+	 */
+	public void startOn(ThreadFactory threads) {
+		Thread thread = threads.newThread(this);
+		this.runner = thread;
+		thread.start();
 	}
 
 	/**
@@ -84,9 +167,31 @@ public class UserThread extends Thread {
 	 *            the message to write
 	 */
 	public void output(String message) {
-	    Collection<PrintWriter> outputStreams = new ArrayList<PrintWriter>();
-	    outputStreams.add(this.getOutputStream());
-        this.outgoingServerMessageQueue.addMessage(new OutgoingServerMessage(outputStreams, message));
+		this.send(new OutgoingServerMessage(message));
+	}
+
+	/**
+	 * Queue an already encoded message for this user, unless the user has
+	 * fallen too far behind
+	 * 
+	 * @param message
+	 *            the encoded message
+	 */
+	public void send(OutgoingServerMessage message) {
+		switch (this.backpressure.admit(message)) {
+		case QUEUE:
+			this.outgoingServerMessageQueue.addMessage(message);
+			break;
+		case DISCONNECT:
+			// the reader fails and logs the user out
+			try {
+				this.socket.close();
+			} catch (IOException e) {
+			}
+			break;
+		case DROP:
+			break;
+		}
 	}
 
 	/**
@@ -95,51 +200,27 @@ public class UserThread extends Thread {
 	public int getUserID() {
 		return this.userID;
 	}
-	
+
 	/**
-	 * @return the output stream
+	 * @return the optional protocol features this user has opted in to
 	 */
-	public PrintWriter getOutputStream(){
-	    return this.out;
+	public ClientFeatures getFeatures() {
+		return this.features;
 	}
 
 	/**
-	 * Output a message to all users except this one
-	 * 
-	 * @param message
-	 *            the message to output
-	 */
-	public void broadcast(String message) {
-	    Collection<PrintWriter> outputStreams = new ArrayList<PrintWriter>();
-		for (UserThread thread : this.otherThreads) {
-			if (thread.getUserID() == this.userID)
-				continue;
-			outputStreams.add(thread.getOutputStream());
-		}
-		this.outgoingServerMessageQueue.addMessage(new OutgoingServerMessage(outputStreams, message));
+	 * @return the open connections of the server
+	 */
+	public ConnectionRegistry getConnections() {
+		return this.connections;
 	}
-
+	
 	/**
-	 * Output a message to selected set of users (except this one)
-	 * 
-	 * @param message
-	 *            the message to output
-	 * @param userIDs
-	 *            the list of userIDs to output to
-	 */
-	public void broadcast(String message, Set<Integer> userIDs) {
-	    Collection<PrintWriter> outputStreams = new ArrayList<PrintWriter>();
-		for (UserThread thread : this.otherThreads) {
-			if (thread.getUserID() == this.userID)
-				continue;
-			if (userIDs.contains(thread.getUserID())) {
-			    outputStreams.add(thread.getOutputStream());
-			}
-		}
-		this.outgoingServerMessageQueue.addMessage(new OutgoingServerMessage(outputStreams, message));;
+	 * Interrupts the thread that handles the input of the user
+	 */
+	public void cancel() {
+		this.runner.interrupt();
 	}
-	
-	public void cancel() { interrupt(); }
 
 	/**
 	 * Welcomes the user and handles all their input
@@ -148,7 +229,6 @@ public class UserThread extends Thread {
 	public void run() {
 		try {
 			this.output(String.format("%s %d", MessageHandler.RESP_WELCOME, this.userID));
-			MessageHandler.notifyLobbyUsers(this, lobbyModel, true, LobbyModel.LOBBY_ID);
 			handleConnection();
 		} catch (Exception e) {
 		} finally {
@@ -158,9 +238,17 @@ public class UserThread extends Thread {
 	}
 
 	/**
-	 * Close the socket
+	 * Forget this connection, stop the outgoing message queue once it has
+	 * written what is already queued, then close the socket
 	 */
 	public void closeSocket() {
+		this.connections.remove(this);
+		this.outgoingServerMessageQueue.shutdown();
+		try {
+			this.outgoingThread.join(CLOSE_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		try {
 			this.socket.close();
 		} catch (Exception e) {
@@ -0,0 +1,65 @@
+package server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads for the VIRTUAL server mode. Virtual threads only
+ * exist from Java 21 on, and the server is built for older versions, so the
+ * factory is looked up reflectively (Thread.ofVirtual().factory()).
+ *
+ * Thread-safety:
+ *      The factory returned by the JDK is threadsafe, and it is the only
+ *      state of this class.
+ */
+public class VirtualThreadFactory implements ThreadFactory {
+
+	/**
+	 * The JDK's virtual thread factory
+	 */
+	private final ThreadFactory factory;
+
+	/**
+	 * Look up the JDK's virtual thread factory
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the running JVM has no virtual threads
+	 */
+	public VirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factoryMethod = Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory");
+			this.factory = (ThreadFactory) factoryMethod.invoke(builder);
+		} catch (NoSuchMethodException e) {
+			throw unsupported();
+		} catch (ClassNotFoundException e) {
+			throw unsupported();
+		} catch (IllegalAccessException e) {
+			throw unsupported();
+		} catch (InvocationTargetException e) {
+			// preview builds refuse to create virtual threads
+			throw unsupported();
+		}
+	}
+
+	/**
+	 * @param runnable
+	 *            what the thread should run
+	 * @return a new, unstarted virtual thread
+	 */
+	@Override
+	public Thread newThread(Runnable runnable) {
+		return this.factory.newThread(runnable);
+	}
+
+	/**
+	 * @return the exception thrown when the JVM has no virtual threads
+	 */
+	private static UnsupportedOperationException unsupported() {
+		return new UnsupportedOperationException(
+				"virtual threads need Java 21 or newer, running on Java "
+						+ System.getProperty("java.version"));
+	}
+}
@@ -3,44 +3,106 @@ package server;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ThreadFactory;
 
 import adts.LobbyModel;
+import adts.OffHeapBudget;
+import protocol.LobbyPresence;
 
 /**
  * Creates a new WhiteboardServer instance which is bound to a socket and will
  * multi-thread to handle multiple clients. Its main method allows for a
  * connection to socket number 4444.
+ * 
+ * In THREADS mode (the default) every client gets its own UserThread. VIRTUAL
+ * mode runs the same UserThreads on virtual threads. In NIO mode the clients
+ * are shared by a few selector event loops instead (see SelectorServer).
  */
 public class WhiteboardServer {
 	private Socket socket;
 	private final ServerSocket serverSocket;
+	private final SelectorServer selectorServer;
+	private final ThreadFactory virtualThreads;
+	private final ServerConfig config;
+	private final ServerMetrics metrics;
 	private final LobbyModel lobbyModel;
-	private final List<UserThread> userThreads;
+	private final ConnectionRegistry connections;
+	private final LobbyPresence presence;
+	private final OffHeapBudget offHeapBudget;
+	private final BoardCompactor compactor;
+	private final BoardSnapshotter snapshotter;
 	private final Thread serverThread;
 	private final WhiteboardServer thisServer;
 
 	/**
-	 * Initializes a server by binding it to its port, creating an array of
-	 * incoming userThreads. Will serve with a single thread.
+	 * Initializes a server by binding it to its port, creating
+	 * a registry of connections. Will serve with a single thread.
 	 * 
 	 * @param port
 	 *            the socket port to connect to
 	 * @throws IOException
 	 */
 	public WhiteboardServer(int port) throws IOException {
-		this.serverSocket = new ServerSocket(port);
-		this.lobbyModel = new LobbyModel();
-		this.userThreads = new ArrayList<UserThread>();
+		this(port, new ServerConfig());
+	}
+
+	/**
+	 * Initializes a server by binding it to its port, using the engine chosen
+	 * in the given configuration.
+	 * 
+	 * @param port
+	 *            the socket port to connect to
+	 * @param config
+	 *            the server configuration
+	 * @throws IOException
+	 * @throws UnsupportedOperationException
+	 *             if VIRTUAL mode is asked for on a JVM without virtual threads
+	 */
+	public WhiteboardServer(int port, ServerConfig config) throws IOException {
+		this.config = config;
+		this.metrics = new ServerMetrics();
+		if (config.getLineStorage() == LineStorage.OFFHEAP) {
+			this.offHeapBudget = new OffHeapBudget(config.getOffHeapBudget(),
+					config.getOffHeapBoardBudget());
+			this.lobbyModel = new LobbyModel(this.offHeapBudget);
+		} else {
+			this.offHeapBudget = null;
+			this.lobbyModel = new LobbyModel();
+		}
+		this.connections = new ConnectionRegistry();
+		this.presence = new LobbyPresence(this.lobbyModel, this.connections,
+				config.getPresenceWindowMillis());
+		this.lobbyModel.addLobbyListener(this.presence);
+		this.lobbyModel.setSimplifyTolerance(config.getSimplifyTolerance());
+		this.compactor = new BoardCompactor(this.lobbyModel, this.metrics,
+				config.getCompactIntervalMillis());
+		this.snapshotter = new BoardSnapshotter(this.lobbyModel,
+				config.getSnapshotIntervalMillis());
 		this.thisServer = this;
+		if (config.getMode() == ServerMode.VIRTUAL) {
+			this.virtualThreads = new VirtualThreadFactory();
+		} else {
+			this.virtualThreads = null;
+		}
+		if (config.getMode() == ServerMode.NIO) {
+			this.serverSocket = null;
+			this.selectorServer = new SelectorServer(port, config,
+					this.metrics, this.connections, this.lobbyModel);
+		} else {
+			this.serverSocket = new ServerSocket(port);
+			this.selectorServer = null;
+		}
 		this.serverThread = new Thread(new Runnable() {
 			public void run() {
 				try {
-					thisServer.singleThreadedServe();
+					if (selectorServer != null) {
+						selectorServer.serve();
+					} else {
+						thisServer.singleThreadedServe();
+					}
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -49,10 +111,48 @@ public class WhiteboardServer {
 	}
 
 	/**
-	 * Begins a server thread.
+	 * @return the open connections of the server
+	 */
+	public ConnectionRegistry getConnections() {
+		return this.connections;
+	}
+
+	/**
+	 * @return the off-heap memory budget of the lines of the boards, with how
+	 *         much of it is in use, or null if the lines are kept on the heap
+	 */
+	public OffHeapBudget getOffHeapBudget() {
+		return this.offHeapBudget;
+	}
+
+	/**
+	 * @return the counters describing how the server treated its clients
+	 */
+	public ServerMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * @return the compactor of the boards
+	 */
+	public BoardCompactor getCompactor() {
+		return this.compactor;
+	}
+
+	/**
+	 * @return the snapshotter of the boards
+	 */
+	public BoardSnapshotter getSnapshotter() {
+		return this.snapshotter;
+	}
+
+	/**
+	 * Begins a server thread, and the compaction and snapshots of the boards.
 	 */
 	public void serve() throws IOException {
 		this.serverThread.start();
+		this.compactor.start();
+		this.snapshotter.start();
 	}
 
 	/**
@@ -65,19 +165,41 @@ public class WhiteboardServer {
 		while (true) {
 			socket = serverSocket.accept();
 			int userID = this.lobbyModel.addUser();
-			UserThread thread = new UserThread(socket, userID,
-					this.userThreads, this.lobbyModel);
-			this.userThreads.add(thread);
-			thread.start();
+			if (this.virtualThreads != null) {
+				UserThread thread = new UserThread(socket, userID,
+						this.connections, this.lobbyModel, this.virtualThreads,
+						this.config, this.metrics);
+				this.connections.add(thread);
+				// the UserThread is only used as the Runnable of a virtual thread
+				thread.startOn(this.virtualThreads);
+			} else {
+				UserThread thread = new UserThread(socket, userID,
+						this.connections, this.lobbyModel, UserThread.PLATFORM_THREADS,
+						this.config, this.metrics);
+				this.connections.add(thread);
+				thread.start();
+			}
 		}
 
 	}
 
+	/**
+	 * The command line usage of the server
+	 */
+	private static final String USAGE = "usage: WhiteboardServer [--port PORT] "
+			+ "[--engine threads|virtual|nio] [--event-loops N] "
+			+ "[--watermarks LOW HIGH] [--slow-consumer resync|disconnect] "
+			+ "[--flush-latency-us MICROS] [--presence-window-ms MILLIS] "
+			+ "[--line-storage heap|offheap] [--offheap-budget TOTAL BOARD] "
+			+ "[--compact-interval-ms MILLIS] [--simplify-tolerance PIXELS] "
+			+ "[--snapshot-interval-ms MILLIS]";
+
 	/**
 	 * This is the main method.
 	 */
 	public static void main(String[] args) {
 		int port = 4444;
+		ServerConfig config = new ServerConfig();
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
         
         try {
@@ -89,6 +211,32 @@ public class WhiteboardServer {
                         if (port < 0 || port > 65535) {
                             throw new IllegalArgumentException("port " + port + " out of range");
                         }
+                    } else if (flag.equals("--engine")) {
+                        config.setMode(ServerMode.fromFlag(arguments.remove()));
+                    } else if (flag.equals("--event-loops")) {
+                        config.setEventLoops(Integer.parseInt(arguments.remove()));
+                    } else if (flag.equals("--watermarks")) {
+                        long low = Long.parseLong(arguments.remove());
+                        long high = Long.parseLong(arguments.remove());
+                        config.setWatermarks(low, high);
+                    } else if (flag.equals("--slow-consumer")) {
+                        config.setSlowConsumerPolicy(SlowConsumerPolicy.fromFlag(arguments.remove()));
+                    } else if (flag.equals("--flush-latency-us")) {
+                        config.setFlushLatencyMicros(Long.parseLong(arguments.remove()));
+                    } else if (flag.equals("--presence-window-ms")) {
+                        config.setPresenceWindowMillis(Long.parseLong(arguments.remove()));
+                    } else if (flag.equals("--line-storage")) {
+                        config.setLineStorage(LineStorage.fromFlag(arguments.remove()));
+                    } else if (flag.equals("--offheap-budget")) {
+                        long total = Long.parseLong(arguments.remove());
+                        long board = Long.parseLong(arguments.remove());
+                        config.setOffHeapBudget(total, board);
+                    } else if (flag.equals("--compact-interval-ms")) {
+                        config.setCompactIntervalMillis(Long.parseLong(arguments.remove()));
+                    } else if (flag.equals("--simplify-tolerance")) {
+                        config.setSimplifyTolerance(Float.parseFloat(arguments.remove()));
+                    } else if (flag.equals("--snapshot-interval-ms")) {
+                        config.setSnapshotIntervalMillis(Long.parseLong(arguments.remove()));
                     } else {
                         throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
                     }
@@ -97,30 +245,47 @@ public class WhiteboardServer {
                     throw new IllegalArgumentException("unable to parse number for " + flag);
                 } 
             }
-            runWhiteboardServer(port);
+            runWhiteboardServer(port, config);
 
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: WhiteboardServer [--port PORT]");
+            System.err.println(USAGE);
             return;
         } catch (IOException ioe) {
             System.err.println(ioe.getMessage());
-            System.err.println("usage: WhiteboardServer [--port PORT]");
+            System.err.println(USAGE);
+            return;
+        } catch (UnsupportedOperationException uoe) {
+            System.err.println(uoe.getMessage());
             return;
         }
 	}
 
 	/**
-	 * Method used by the main method to start a server.
+	 * Starts a server with the default configuration.
 	 * 
 	 * @param port
 	 *            socket integer to connect to.
 	 * @throws IOException
 	 */
 	public static void runWhiteboardServer(int port) throws IOException {
+		runWhiteboardServer(port, new ServerConfig());
+	}
+
+	/**
+	 * Method used by the main method to start a server.
+	 * 
+	 * @param port
+	 *            socket integer to connect to.
+	 * @param config
+	 *            the server configuration
+	 * @throws IOException
+	 */
+	public static void runWhiteboardServer(int port, ServerConfig config)
+			throws IOException {
 		WhiteboardServer server;
 		try {
-			server = new WhiteboardServer(port);
+			server = new WhiteboardServer(port, config);
 			server.serve();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -2,11 +2,44 @@ package tests;
 
 import static org.junit.Assert.*;
 
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
 import org.junit.Test;
 
+import adts.ArrayLineStore;
+import adts.BoardDirectory;
+import adts.BoardHistory;
+import adts.BoardRaster;
+import adts.BoardSnapshot;
 import adts.Line;
+import adts.LineStore;
+import adts.LobbyModel;
+import adts.Membership;
+import adts.NameIndex;
+import adts.OffHeapBudget;
+import adts.SegmentCodec;
+import adts.SerialExecutor;
+import adts.Stroke;
+import adts.StylePalette;
 import adts.User;
 import adts.Whiteboard;
+import server.BoardSnapshotter;
 
 /**
  * Tests that the adts have the proper behavior
@@ -48,6 +81,695 @@ public class ADTTests {
         assertEquals("1 2 3 4 5.000000 6 7 8 9", line.toString());
     }
     
+    /**
+     * A stroke grows point by point, and its segments share its style and
+     * connect its points
+     */
+    @Test
+    public void test_stroke(){
+        Stroke stroke = new Stroke(7, 3, 1, 2, 3, 255, 10, 10);
+        assertEquals(0, stroke.getSegmentCount());
+        for (int i = 1; i <= 20; i++) {
+            stroke.addPoint(10 + i, 10 - i);
+        }
+        assertEquals(7, stroke.getStrokeID());
+        assertEquals(21, stroke.getPointCount());
+        assertEquals(20, stroke.getSegmentCount());
+        assertEquals("10 10 11 9 3.000000 1 2 3 255", stroke.getSegment(0).toString());
+        assertEquals("29 -9 30 -10 3.000000 1 2 3 255", stroke.toLines().get(19).toString());
+        assertTrue(stroke.toString().startsWith("3.000000 1 2 3 255 10 10 11 9"));
+        try {
+            stroke.getSegment(20);
+            fail("expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+        }
+
+        // a board keeps the segments of a stroke, and only while it is open
+        Whiteboard board = new Whiteboard(0);
+        Stroke drawn = board.beginStroke(5, 1, 0, 0, 0, 255, 0, 0);
+        assertTrue(board.extendStroke(5, drawn, 5, 5));
+        assertTrue(board.extendStroke(5, drawn, 10, 0));
+        assertEquals(2, board.getLineCount());
+        assertEquals("5 5 10 0 1.000000 0 0 0 255", board.getLines().get(1).toString());
+        assertSame(drawn, board.getOpenStroke(5));
+        assertSame(drawn, board.endStroke(5));
+        assertNull(board.getOpenStroke(5));
+        assertTrue(board.beginStroke(5, 1, 0, 0, 0, 255, 0, 0).getStrokeID() != drawn.getStrokeID());
+    }
+
+    /**
+     * A board that simplifies lines stores a freehand run with far fewer
+     * segments, none of them farther from a drawn point than the tolerance,
+     * and keeps the runs of different users and styles apart
+     */
+    @Test
+    public void test_simplification() {
+        // a wobbly circle drawn with short mouse moves, like freehand input
+        Random random = new Random(21);
+        List<Line> drawn = new ArrayList<Line>();
+        int x = 300;
+        int y = 200;
+        for (int i = 1; i <= 600; i++) {
+            double angle = 2 * Math.PI * i / 600;
+            int nextX = 200 + (int) Math.round(100 * Math.cos(angle)) + random.nextInt(2);
+            int nextY = 200 + (int) Math.round(100 * Math.sin(angle)) + random.nextInt(2);
+            drawn.add(new Line(x, y, nextX, nextY, 2, 0, 0, 0, 255));
+            x = nextX;
+            y = nextY;
+        }
+
+        Whiteboard board = new Whiteboard(0);
+        board.setSimplifyTolerance(2);
+        for (Line line : drawn) {
+            assertTrue(board.drawLine(7, line));
+        }
+        board.storePendingRuns();
+        List<Line> stored = board.getLines();
+        assertEquals(600, board.getSimplifiedSegmentCount());
+        assertEquals(stored.size(), board.getStoredSegmentCount());
+        assertTrue("stored " + stored.size() + " of 600 segments", stored.size() < 100);
+        assertEquals(300, stored.get(0).getX1());
+        assertEquals(x, stored.get(stored.size() - 1).getX2());
+        for (int i = 1; i < stored.size(); i++) {
+            assertEquals(stored.get(i - 1).getX2(), stored.get(i).getX1());
+            assertEquals(stored.get(i - 1).getY2(), stored.get(i).getY1());
+        }
+        for (Line line : drawn) {
+            double closest = Double.MAX_VALUE;
+            for (Line segment : stored) {
+                closest = Math.min(closest, new java.awt.geom.Line2D.Double(
+                        segment.getX1(), segment.getY1(), segment.getX2(),
+                        segment.getY2()).ptSegDist(line.getX2(), line.getY2()));
+            }
+            assertTrue(closest <= 2);
+        }
+
+        // a line of another color, or drawn by another user, starts a new run
+        Whiteboard other = new Whiteboard(1);
+        other.setSimplifyTolerance(2);
+        other.drawLine(1, new Line(0, 0, 10, 0, 1, 0, 0, 0, 255));
+        other.drawLine(2, new Line(0, 50, 10, 50, 1, 0, 0, 0, 255));
+        other.drawLine(1, new Line(10, 0, 20, 0, 1, 0, 0, 0, 255));
+        other.drawLine(2, new Line(10, 50, 20, 50, 1, 255, 0, 0, 255));
+        other.endStroke(1);
+        other.endStroke(2);
+        List<String> encoded = new ArrayList<String>();
+        for (Line line : other.getLines()) {
+            encoded.add(line.toString());
+        }
+        assertEquals(3, encoded.size());
+        assertTrue(encoded.contains("0 0 20 0 1.000000 0 0 0 255"));
+        assertTrue(encoded.contains("0 50 10 50 1.000000 0 0 0 255"));
+        assertTrue(encoded.contains("10 50 20 50 1.000000 255 0 0 255"));
+
+        // without a tolerance the lines are stored as drawn
+        other.setSimplifyTolerance(0);
+        other.drawLine(1, new Line(20, 0, 30, 0, 1, 0, 0, 0, 255));
+        other.drawLine(1, new Line(30, 0, 40, 0, 1, 0, 0, 0, 255));
+        assertEquals(5, other.getLineCount());
+    }
+
+    /**
+     * A run that does not fit on a full board keeps waiting with the
+     * segments that were not stored, and the line that ended it fails
+     */
+    @Test
+    public void test_simplification_out_of_room() {
+        OffHeapBudget budget = new OffHeapBudget(OffHeapBudget.CHUNK_BYTES,
+                OffHeapBudget.CHUNK_BYTES);
+        Whiteboard board = new Whiteboard(0, "Board0", budget);
+        for (int i = 0; i < OffHeapBudget.LINES_PER_CHUNK - 1; i++) {
+            assertTrue(board.addLine(new Line(0, 500, 10, 500, 1, 0, 0, 0, 255)));
+        }
+        board.setSimplifyTolerance(0.5f);
+        // a zigzag, whose every point is kept
+        for (int i = 0; i < 4; i++) {
+            assertTrue(board.drawLine(1, new Line(10 * i, 10 * (i % 2),
+                    10 * (i + 1), 10 * ((i + 1) % 2), 1, 0, 0, 0, 255)));
+        }
+        assertFalse(board.drawLine(1, new Line(100, 100, 110, 110, 1, 0, 0, 0, 255)));
+        assertEquals(OffHeapBudget.LINES_PER_CHUNK, board.getLineCount());
+        assertEquals(1, board.getStoredSegmentCount());
+        assertEquals("0 0 10 10 1.000000 0 0 0 255",
+                board.getLines().get(OffHeapBudget.LINES_PER_CHUNK - 1).toString());
+
+        // the rest of the run still waits, and still does not fit
+        board.storePendingRuns();
+        assertEquals(1, board.getStoredSegmentCount());
+        assertFalse(board.drawLine(1, new Line(100, 100, 110, 110, 1, 0, 0, 0, 255)));
+        board.release();
+    }
+
+    /**
+     * Lines kept in a LineStore read back and encode the same as the Line
+     * objects they were made from, past the point where the store grows
+     */
+    @Test
+    public void test_line_store(){
+        this.checkLineStore(new ArrayLineStore());
+    }
+
+    /**
+     * The same for the off-heap store, across more than one chunk
+     */
+    @Test
+    public void test_off_heap_line_store(){
+        OffHeapBudget budget = new OffHeapBudget(4 * OffHeapBudget.CHUNK_BYTES,
+                2 * OffHeapBudget.CHUNK_BYTES);
+        this.checkLineStore(budget.newLineStore());
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    /**
+     * A segment that finds no room does not use up a number in the palette
+     */
+    @Test
+    public void test_full_store_keeps_palette(){
+        OffHeapBudget budget = new OffHeapBudget(OffHeapBudget.CHUNK_BYTES,
+                OffHeapBudget.CHUNK_BYTES);
+        LineStore store = budget.newLineStore();
+        for (int i = 0; i < OffHeapBudget.LINES_PER_CHUNK; i++) {
+            assertTrue(store.add(new Line(0, 0, 10, 10, 1, 0, 0, 0, 255)));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertFalse(store.add(new Line(0, 0, 10, 10, 2, i, 0, 0, 255)));
+        }
+        assertEquals(1, store.getPalette().size());
+        store.release();
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    /**
+     * Adds more than a chunk of lines to the store, reads and encodes them,
+     * then clears it
+     */
+    private void checkLineStore(LineStore store) {
+        int count = OffHeapBudget.LINES_PER_CHUNK + 100;
+        List<Line> lines = new ArrayList<Line>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            Line line = new Line(i, -i, 2 * i, 3 * i, i % 7 + 0.5f, i % 256, 255 - i % 256, 0, 255);
+            lines.add(line);
+            assertTrue(store.add(line));
+            expected.append(" " + line.toString());
+        }
+
+        assertEquals(count, store.size());
+        for (int i = 0; i < count; i += 37) {
+            assertEquals(lines.get(i).toString(), store.get(i).toString());
+        }
+        assertEquals(99 << 24 | 156 << 16 | 0 << 8 | 255, store.getRGBA(99));
+        StringBuilder encoded = new StringBuilder();
+        store.appendTo(encoded);
+        assertEquals(expected.toString(), encoded.toString());
+
+        StringBuilder prefix = new StringBuilder();
+        store.appendTo(prefix, 2);
+        assertEquals(" " + lines.get(0) + " " + lines.get(1), prefix.toString());
+        try {
+            store.get(count);
+            fail("expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+        }
+
+        // a reader's reference keeps the store alive past its owner's
+        assertTrue(store.retain());
+        store.release();
+        assertEquals(count, store.toList().size());
+        store.release();
+        assertFalse(store.retain());
+    }
+
+    /**
+     * A board finds the lines that cross a rectangle, in the order they were
+     * drawn, counting the rectangle's edges and the lines' stroke thickness,
+     * among many lines elsewhere and lines longer than the index's cells
+     */
+    @Test
+    public void test_lines_crossing_rect(){
+        Whiteboard board = new Whiteboard(0);
+        Line far = new Line(5000, 5000, 5010, 5010, 1, 0, 0, 0, 255);
+        Line across = new Line(-1000, 150, 1000, 150, 1, 1, 0, 0, 255);
+        Line edge = new Line(200, 100, 300, 100, 1, 2, 0, 0, 255);
+        Line thick = new Line(110, 210, 190, 210, 20, 3, 0, 0, 255);
+        Line corner = new Line(150, 240, 250, 140, 1, 4, 0, 0, 255);
+        Line inside = new Line(120, 120, 130, 130, 1, 5, 0, 0, 255);
+        Line diagonal = new Line(1000, 0, 0, 1000, 1, 6, 0, 0, 255);
+        Line[] drawn = { far, across, edge, thick, corner, inside, diagonal };
+        for (int i = 0; i < 1000; i++) {
+            board.addLine(new Line(3000 + i, 3000, 3000 + i, 3010, 1, 0, 0, 0, 255));
+        }
+        for (Line line : drawn) {
+            board.addLine(line);
+        }
+
+        // the rectangle from (100, 100) to (200, 200)
+        StringBuilder found = new StringBuilder();
+        assertEquals(5, board.appendLinesCrossing(found, 100, 100, 200, 200));
+        assertEquals(" " + across + " " + edge + " " + thick + " " + corner
+                + " " + inside, found.toString());
+
+        // nothing is found where nothing was drawn
+        assertEquals(0, board.appendLinesCrossing(new StringBuilder(), -500, -500, -400, -400));
+
+        // a rectangle over the whole board finds every line in order
+        StringBuilder all = new StringBuilder();
+        assertEquals(board.getLineCount(), board.appendLinesCrossing(all,
+                -10000, -10000, 10000, 10000));
+        StringBuilder expected = new StringBuilder();
+        board.appendLinesTo(expected);
+        assertEquals(expected.toString(), all.toString());
+
+        board.clearBoard();
+        assertEquals(0, board.appendLinesCrossing(new StringBuilder(), 100, 100, 200, 200));
+    }
+
+    /**
+     * Compacting a board scribbled over and erased drops the hidden lines,
+     * keeps the translucent and the still visible ones, and the board is
+     * drawn to exactly the same pixels as before
+     */
+    @Test
+    public void test_compaction_keeps_pixels(){
+        Random random = new Random(6005);
+        Whiteboard board = new Whiteboard(0);
+        for (int stroke = 0; stroke < 40; stroke++) {
+            int x = random.nextInt(400);
+            int y = random.nextInt(300);
+            float thickness = random.nextBoolean() ? 25 : random.nextInt(6) + 1;
+            boolean eraser = thickness == 25;
+            int alpha = eraser || random.nextInt(4) > 0 ? 255 : 128;
+            for (int segment = 0; segment < 20; segment++) {
+                int nextX = x + random.nextInt(21) - 10;
+                int nextY = y + random.nextInt(21) - 10;
+                if (eraser) {
+                    board.addLine(new Line(x, y, nextX, nextY, thickness, 255, 255, 255, 255));
+                } else {
+                    board.addLine(new Line(x, y, nextX, nextY, thickness,
+                            random.nextInt(256), random.nextInt(256), random.nextInt(256), alpha));
+                }
+                x = nextX;
+                y = nextY;
+            }
+        }
+        // a line drawn over exactly by an opaque one is hidden
+        Line covered = new Line(10, 10, 90, 10, 3, 255, 0, 0, 255);
+        board.addLine(covered);
+        board.addLine(new Line(10, 10, 90, 10, 3, 0, 0, 255, 255));
+
+        int before = board.getLineCount();
+        int[] expected = this.render(board.getLines());
+        int dropped = board.compact();
+        assertTrue(dropped > 0);
+        assertEquals(before - dropped, board.getLineCount());
+        for (Line line : board.getLines()) {
+            assertFalse(line.toString().equals(covered.toString()));
+        }
+        assertArrayEquals(expected, this.render(board.getLines()));
+
+        // nothing is left to drop the second time
+        assertEquals(0, board.compact());
+        board.clearBoard();
+        assertEquals(0, board.compact());
+    }
+
+    /**
+     * Clearing a board and drawing as many lines again gives it a new store
+     * generation, so it is not mistaken for the board as it was compacted
+     */
+    @Test
+    public void test_store_generation(){
+        Whiteboard board = new Whiteboard(0);
+        board.addLine(new Line(10, 10, 90, 10, 3, 255, 0, 0, 255));
+        board.addLine(new Line(10, 10, 90, 10, 3, 0, 0, 255, 255));
+        long drawn = board.getStoreGeneration();
+        assertEquals(1, board.compact());
+        long compacted = board.getStoreGeneration();
+        assertTrue(compacted != drawn);
+
+        board.clearBoard();
+        board.addLine(new Line(10, 10, 90, 10, 3, 255, 0, 0, 255));
+        assertEquals(1, board.getLineCount());
+        assertTrue(board.getStoreGeneration() != compacted);
+    }
+
+    /**
+     * Each style of a board is kept once and numbered in the order it was
+     * first used, compacting the board keeps the numbers, clearing it starts
+     * a new palette, and a full palette refuses new styles
+     */
+    @Test
+    public void test_style_palette(){
+        assertEquals(20, LineStore.BYTES_PER_LINE);
+        Whiteboard board = new Whiteboard(0);
+        Line red = new Line(10, 10, 90, 10, 3, 255, 0, 0, 255);
+        Line blue = new Line(10, 20, 90, 20, 5, 0, 0, 255, 255);
+        Line hidden = new Line(10, 30, 90, 30, 1, 0, 255, 0, 255);
+        Line cover = new Line(10, 30, 90, 30, 3, 255, 0, 0, 255);
+        board.addLine(hidden);
+        board.addLine(red);
+        board.addLine(blue);
+        board.addLine(cover);
+        assertEquals(0, board.internStyle(1, 0, 255, 0, 255));
+        assertEquals(1, board.internStyle(3, 255, 0, 0, 255));
+        assertEquals(3, board.getPalette().size());
+
+        StringBuilder styled = new StringBuilder();
+        assertEquals(4, board.appendStyledLinesTo(styled));
+        assertEquals(" 10 30 90 30 0 10 10 90 10 1 10 20 90 20 2 10 30 90 30 1",
+                styled.toString());
+
+        // the hidden line goes, its style stays with the same number
+        assertEquals(1, board.compact());
+        StylePalette palette = board.getPalette();
+        assertEquals(3, palette.size());
+        assertEquals(1f, palette.getStrokeThickness(0), 0);
+        assertEquals(0x0000ffff, palette.getRGBA(2));
+        styled = new StringBuilder();
+        assertEquals(3, board.appendStyledLinesTo(styled));
+        assertEquals(" 10 10 90 10 1 10 20 90 20 2 10 30 90 30 1", styled.toString());
+        assertEquals(blue.toString(), board.getLines().get(1).toString());
+
+        // the styles are told about once
+        assertEquals(0, palette.announce(2));
+        assertEquals(2, palette.announce(3));
+        assertEquals(2, palette.announce(2));
+
+        board.clearBoard();
+        assertEquals(0, board.getPalette().size());
+        assertEquals(0, board.internStyle(5, 0, 0, 255, 255));
+
+        StylePalette full = new StylePalette();
+        for (int style = 0; style < StylePalette.MAX_STYLES; style++) {
+            assertEquals(style, full.intern(style, 0));
+        }
+        assertEquals(-1, full.intern(-1, 0));
+        assertEquals(7, full.intern(7, 0));
+    }
+
+    /**
+     * A board whose palette is full still takes lines of new styles, which
+     * read back and encode as drawn but without a style number, and
+     * compacting it keeps them and the styles the users were told about
+     */
+    @Test
+    public void test_full_palette(){
+        Whiteboard board = new Whiteboard(0);
+        for (int style = 0; style < StylePalette.MAX_STYLES; style++) {
+            int x = style % 256 * 4;
+            int y = style / 256 * 3;
+            assertTrue(board.addLine(new Line(x, y, x + 2, y, 1,
+                    style >>> 8, style & 0xff, 0, 255)));
+        }
+        Line unnumbered = new Line(2000, 2000, 2010, 2000, 1, 1, 2, 3, 255);
+        assertTrue(board.drawLine(1, unnumbered));
+        assertEquals(-1, board.internStyle(1, 1, 2, 3, 255));
+        Line hidden = new Line(3000, 3000, 3010, 3000, 1, 0, 0, 0, 255);
+        board.addLine(hidden);
+        board.addLine(hidden);
+
+        int count = StylePalette.MAX_STYLES + 3;
+        assertEquals(count, board.getLineCount());
+        assertEquals(unnumbered.toString(),
+                board.getLines().get(StylePalette.MAX_STYLES).toString());
+        assertEquals(-1, board.appendStyledLinesTo(new StringBuilder()));
+        List<Line> decoded = SegmentCodec.decode(board.encodeLines());
+        assertEquals(unnumbered.toString(),
+                decoded.get(StylePalette.MAX_STYLES).toString());
+        assertEquals(hidden.toString(), decoded.get(count - 1).toString());
+
+        board.getPalette().announce(StylePalette.MAX_STYLES);
+        assertEquals(1, board.compact());
+        assertEquals(StylePalette.MAX_STYLES, board.getPalette().announce(StylePalette.MAX_STYLES));
+        assertEquals(unnumbered.toString(),
+                board.getLines().get(StylePalette.MAX_STYLES).toString());
+        StringBuilder text = new StringBuilder();
+        board.appendLinesTo(text);
+        assertTrue(text.toString().contains(" " + unnumbered.toString() + " "));
+    }
+
+    /**
+     * Segments come back from their binary encoding exactly, extreme
+     * coordinates and thicknesses included, freehand lines take a fraction
+     * of their text encoding, and malformed bytes are refused
+     */
+    @Test
+    public void test_segment_codec(){
+        Random random = new Random(6005);
+        Whiteboard board = new Whiteboard(0);
+        for (int stroke = 0; stroke < 50; stroke++) {
+            int x = random.nextInt(1000);
+            int y = random.nextInt(800);
+            float thickness = random.nextInt(10) + 1;
+            int r = random.nextInt(256);
+            for (int segment = 0; segment < 40; segment++) {
+                int nextX = x + random.nextInt(11) - 5;
+                int nextY = y + random.nextInt(11) - 5;
+                board.addLine(new Line(x, y, nextX, nextY, thickness, r, 0, 0, 255));
+                x = nextX;
+                y = nextY;
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        board.appendLinesTo(text);
+        byte[] encoded = board.encodeLines();
+        assertEquals(board.getLineCount(), SegmentCodec.countOf(encoded));
+        assertTrue(encoded.length * 8 < text.length());
+        List<Line> decoded = SegmentCodec.decode(encoded);
+        assertEquals(board.getLines().size(), decoded.size());
+        for (int i = 0; i < decoded.size(); i++) {
+            assertEquals(board.getLines().get(i).toString(), decoded.get(i).toString());
+        }
+
+        List<Line> extremes = new ArrayList<Line>();
+        extremes.add(new Line(Integer.MIN_VALUE, Integer.MAX_VALUE,
+                Integer.MAX_VALUE, Integer.MIN_VALUE, 0.1f, 1, 2, 3, 4));
+        extremes.add(new Line(-5, -5, 0, 0, Float.NaN, 255, 255, 255, 0));
+        extremes.add(new Line(0, 0, 0, 0, 1e-7f, 255, 255, 255, 0));
+        extremes.add(new Line(0, 0, 0, 0, 1e-7f, 255, 255, 255, 0));
+        decoded = SegmentCodec.decode(SegmentCodec.encode(extremes));
+        assertEquals(extremes.size(), decoded.size());
+        for (int i = 0; i < extremes.size(); i++) {
+            Line expected = extremes.get(i);
+            Line actual = decoded.get(i);
+            assertEquals(expected.getX1(), actual.getX1());
+            assertEquals(expected.getY1(), actual.getY1());
+            assertEquals(expected.getX2(), actual.getX2());
+            assertEquals(expected.getY2(), actual.getY2());
+            assertEquals(Float.floatToIntBits(expected.getStrokeThickness()),
+                    Float.floatToIntBits(actual.getStrokeThickness()));
+            assertEquals(expected.toString(), actual.toString());
+        }
+        assertTrue(SegmentCodec.decode(SegmentCodec.encode(new ArrayList<Line>())).isEmpty());
+
+        byte[][] malformed = { {}, { 1 }, { 1, 3, 0, 0 }, { 1, 4 },
+                Arrays.copyOf(encoded, encoded.length - 1),
+                Arrays.copyOf(encoded, encoded.length + 1) };
+        for (byte[] bytes : malformed) {
+            try {
+                SegmentCodec.decode(bytes);
+                fail("decoded " + Arrays.toString(bytes));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Every line drawn and every clear of a board gets the next number, and
+     * the operations after a number are given back while they are kept
+     */
+    @Test
+    public void test_board_history(){
+        Whiteboard board = new Whiteboard(0);
+        Line first = new Line(0, 0, 10, 10, 1, 0, 0, 0, 255);
+        Line second = new Line(10, 10, 20, 20, 1, 0, 0, 0, 255);
+        assertEquals(0, board.getSequence());
+        assertTrue(board.getOperationsSince(0).isEmpty());
+
+        board.drawLine(1, first);
+        board.clearBoard();
+        board.drawLine(1, second);
+        assertEquals(3, board.getSequence());
+        assertEquals(Arrays.asList(first, null, second), board.getOperationsSince(0));
+        assertEquals(Arrays.asList((Line) null, second), board.getOperationsSince(1));
+        assertTrue(board.getOperationsSince(3).isEmpty());
+        assertNull(board.getOperationsSince(4));
+        assertNull(board.getOperationsSince(-1));
+
+        // the history keeps every operation while it grows
+        Whiteboard growing = new Whiteboard(1);
+        List<Line> drawn = new ArrayList<Line>();
+        for (int i = 0; i < 100; i++) {
+            Line line = new Line(i, i, i + 1, i + 1, 1, 0, 0, 0, 255);
+            growing.drawLine(1, line);
+            drawn.add(line);
+        }
+        assertEquals(drawn, growing.getOperationsSince(0));
+        assertEquals(drawn.subList(40, 100), growing.getOperationsSince(40));
+
+        // only the last CAPACITY operations are kept
+        for (int i = 0; i < BoardHistory.CAPACITY; i++) {
+            board.drawLine(1, first);
+        }
+        long last = board.getSequence();
+        assertEquals(3 + BoardHistory.CAPACITY, last);
+        assertNull(board.getOperationsSince(2));
+        List<Line> kept = board.getOperationsSince(3);
+        assertEquals(BoardHistory.CAPACITY, kept.size());
+        assertEquals(first, kept.get(kept.size() - 1));
+    }
+
+    /**
+     * A snapshot, drawn with the lines after it, gives the same pixels as
+     * every line, whether it was drawn in one go or as lines were added, and
+     * is dropped once the board is cleared or has a line it cannot picture
+     */
+    @Test
+    public void test_board_snapshot() throws IOException {
+        Random random = new Random(22);
+        Whiteboard board = new Whiteboard(0);
+        BoardRaster raster = new BoardRaster();
+        assertFalse(board.refreshSnapshot(raster));
+        assertNull(board.getSnapshot());
+        for (int i = 0; i < 450; i++) {
+            int x = 10 + random.nextInt(470);
+            int y = 10 + random.nextInt(370);
+            board.addLine(new Line(x, y, x + random.nextInt(21) - 10,
+                    y + random.nextInt(21) - 10, random.nextInt(8) + 1,
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256), 255));
+            if (i == 299) {
+                assertTrue(board.refreshSnapshot(raster));
+                assertFalse(board.refreshSnapshot(raster));
+            } else if (i == 399) {
+                assertTrue(board.refreshSnapshot(raster));
+            }
+        }
+        BoardSnapshot snapshot = board.getSnapshot();
+        assertEquals(400, snapshot.getLineCount());
+        List<Line> lines = board.getLines();
+        StringBuilder after = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (Line line : lines.subList(400, 450)) {
+            expected.append(' ').append(line.toString());
+        }
+        assertEquals(50, board.appendLinesAfter(after, snapshot));
+        assertEquals(expected.toString(), after.toString());
+        BufferedImage picture = ImageIO.read(new ByteArrayInputStream(snapshot.getPng()));
+        assertEquals(snapshot.getWidth(), picture.getWidth());
+        assertArrayEquals(this.render(lines),
+                this.render(picture, lines.subList(400, 450)));
+
+        // a line at negative coordinates cannot be pictured
+        board.addLine(new Line(-5, 10, 20, 10, 1, 0, 0, 0, 255));
+        assertTrue(board.refreshSnapshot(raster));
+        assertNull(board.getSnapshot());
+
+        // a cleared board has a new store, which the old snapshot is not of
+        board.clearBoard();
+        assertEquals(-1, board.appendLinesAfter(new StringBuilder(), snapshot));
+        board.addLine(new Line(10, 10, 20, 10, 1, 0, 0, 0, 255));
+        assertTrue(board.refreshSnapshot(raster));
+        assertEquals(1, board.getSnapshot().getLineCount());
+    }
+
+    /**
+     * The snapshotter keeps its rasters under its budget, leaves a snapshot
+     * alone until enough lines were drawn after it, and drops the raster of a
+     * board that was cleared
+     */
+    @Test
+    public void test_snapshotter_rasters(){
+        LobbyModel lobbyModel = new LobbyModel();
+        Whiteboard first = lobbyModel.getWhiteboard(lobbyModel.addBoard());
+        Whiteboard second = lobbyModel.getWhiteboard(lobbyModel.addBoard());
+        for (int i = 0; i < 10; i++) {
+            first.addLine(new Line(10, 10 + 20 * i, 200, 10 + 20 * i, 1, 0, 0, 0, 255));
+            second.addLine(new Line(10, 10 + 20 * i, 200, 10 + 20 * i, 1, 0, 0, 0, 255));
+        }
+        // room for one 256x256 raster
+        BoardSnapshotter snapshotter = new BoardSnapshotter(lobbyModel, 0, 300 * 1024);
+        assertEquals(2, snapshotter.snapshotAll(5));
+        assertEquals(256 * 256 * 4, snapshotter.getRasterBytes());
+        assertEquals(10, first.getSnapshot().getLineCount());
+        assertEquals(10, second.getSnapshot().getLineCount());
+
+        // one line is not enough to make the snapshots again
+        first.addLine(new Line(10, 220, 200, 220, 1, 0, 0, 0, 255));
+        second.addLine(new Line(10, 220, 200, 220, 1, 0, 0, 0, 255));
+        assertEquals(0, snapshotter.snapshotAll(5));
+        assertEquals(10, first.getSnapshot().getLineCount());
+
+        first.clearBoard();
+        second.clearBoard();
+        assertEquals(0, snapshotter.snapshotAll(5));
+        assertEquals(0, snapshotter.getRasterBytes());
+    }
+
+    /**
+     * @return the pixels of the lines drawn the way view.Canvas draws them,
+     *         on a white 500x400 image
+     */
+    private int[] render(List<Line> lines) {
+        return this.render(null, lines);
+    }
+
+    /**
+     * @return the pixels of a snapshot and the lines drawn the way
+     *         view.Canvas draws them, on a white 500x400 image
+     */
+    private int[] render(BufferedImage snapshot, List<Line> lines) {
+        BufferedImage image = new BufferedImage(500, 400, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 500, 400);
+        if (snapshot != null) {
+            g.drawImage(snapshot, 0, 0, null);
+        }
+        for (Line l : lines) {
+            g.setStroke(new BasicStroke(l.getStrokeThickness(), 1, 1));
+            g.setColor(new Color(l.getR(), l.getG(), l.getB(), l.getA()));
+            g.drawLine(l.getX1(), l.getY1(), l.getX2(), l.getY2());
+        }
+        g.dispose();
+        return image.getRGB(0, 0, 500, 400, null, 0, 500);
+    }
+
+    /**
+     * Boards get no more off-heap memory than their own budget or the global
+     * one allows, and clearing a board makes its memory available right away
+     */
+    @Test
+    public void test_off_heap_budget(){
+        OffHeapBudget budget = new OffHeapBudget(3 * OffHeapBudget.CHUNK_BYTES,
+                2 * OffHeapBudget.CHUNK_BYTES);
+        LobbyModel lobbyModel = new LobbyModel(budget);
+        Whiteboard first = lobbyModel.getWhiteboard(lobbyModel.addBoard());
+        Whiteboard second = lobbyModel.getWhiteboard(lobbyModel.addBoard());
+        Line line = new Line(1, 2, 3, 4, 5, 6, 7, 8, 9);
+
+        int added = 0;
+        while (first.addLine(line)) {
+            added++;
+        }
+        assertEquals(2 * OffHeapBudget.LINES_PER_CHUNK, added);
+        assertEquals(2 * OffHeapBudget.CHUNK_BYTES, budget.getReservedBytes());
+
+        added = 0;
+        while (second.addLine(line)) {
+            added++;
+        }
+        assertEquals(OffHeapBudget.LINES_PER_CHUNK, added);
+        assertEquals(budget.getLimitBytes(), budget.getReservedBytes());
+        assertEquals(2, budget.getRefusals());
+
+        first.clearBoard();
+        assertEquals(OffHeapBudget.CHUNK_BYTES, budget.getReservedBytes());
+        assertTrue(second.addLine(line));
+        second.release();
+        assertEquals(0, budget.getReservedBytes());
+    }
+
     /**
      * User getters
      */
@@ -99,7 +821,291 @@ public class ADTTests {
         assertEquals("Some name", board.getBoardName());
         board.setBoardName("other name");
         assertEquals(board.getBoardName(), "other name");
-    }    
-    
+    }
+
+    /**
+     * Tasks given to a board's mailbox by one thread run in order, and the
+     * tasks given by many threads never overlap
+     */
+    @Test(timeout = 10000)
+    public void test_mailbox_serializes_tasks() throws InterruptedException {
+        final SerialExecutor mailbox = new Whiteboard(1).getMailbox();
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger overlaps = new AtomicInteger(0);
+        final List<Integer> order = new ArrayList<Integer>();
+        final int perThread = 10000;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final boolean recordOrder = t == 0;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        final int index = i;
+                        mailbox.execute(new Runnable() {
+                            public void run() {
+                                if (running.incrementAndGet() != 1) {
+                                    overlaps.incrementAndGet();
+                                }
+                                if (recordOrder) {
+                                    order.add(index);
+                                }
+                                running.decrementAndGet();
+                            }
+                        });
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // the tasks may still be running on the thread the mailbox was
+        // handed over to, and are done once a task queued after them is
+        final CountDownLatch done = new CountDownLatch(1);
+        mailbox.execute(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        done.await();
+        assertEquals(0, overlaps.get());
+        assertEquals(perThread, order.size());
+        for (int i = 0; i < perThread; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    /**
+     * A task given to a mailbox by one of its own tasks runs after it
+     */
+    @Test
+    public void test_mailbox_reentrant_task_runs_after(){
+        final SerialExecutor mailbox = new SerialExecutor();
+        final List<String> order = new ArrayList<String>();
+        mailbox.execute(new Runnable() {
+            public void run() {
+                mailbox.execute(new Runnable() {
+                    public void run() {
+                        order.add("inner");
+                    }
+                });
+                order.add("outer");
+            }
+        });
+        assertEquals("outer", order.get(0));
+        assertEquals("inner", order.get(1));
+    }
 
+    /**
+     * A thread that hands a task to an idle mailbox runs at most
+     * MAX_TASKS_PER_CALLER tasks, and the rest run where the mailbox is
+     * handed over, in order
+     */
+    @Test
+    public void test_mailbox_hands_over_busy_mailbox(){
+        final List<Runnable> handedOver = new ArrayList<Runnable>();
+        final SerialExecutor mailbox = new SerialExecutor(new Executor() {
+            public void execute(Runnable task) {
+                handedOver.add(task);
+            }
+        });
+        final List<Integer> order = new ArrayList<Integer>();
+        final int count = 3 * SerialExecutor.MAX_TASKS_PER_CALLER;
+        mailbox.execute(new Runnable() {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    final int index = i;
+                    mailbox.execute(new Runnable() {
+                        public void run() {
+                            order.add(index);
+                        }
+                    });
+                }
+            }
+        });
+        assertEquals(SerialExecutor.MAX_TASKS_PER_CALLER - 1, order.size());
+        assertEquals(1, handedOver.size());
+
+        while (!handedOver.isEmpty()) {
+            handedOver.remove(0).run();
+        }
+        assertEquals(count, order.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+
+    /**
+     * The board of each user is tracked through joins, leaves and deletes
+     */
+    @Test
+    public void test_lobby_user_to_board_index(){
+        LobbyModel lobbyModel = new LobbyModel();
+        for (int i = 0; i < 100; i++) {
+            lobbyModel.addBoard("Board" + i);
+        }
+        int user0 = lobbyModel.addUser();
+        int user1 = lobbyModel.addUser();
+        int user2 = lobbyModel.addUser();
+        assertEquals(LobbyModel.LOBBY_ID, lobbyModel.getBoardIDThatUserIDIsIn(user0));
+
+        lobbyModel.userJoinBoard(user0, 42);
+        lobbyModel.userJoinBoard(user1, 42);
+        lobbyModel.userJoinBoard(user2, 7);
+        assertEquals(42, lobbyModel.getBoardIDThatUserIDIsIn(user0));
+        assertEquals(7, lobbyModel.getBoardIDThatUserIDIsIn(user2));
+        assertEquals(2, lobbyModel.getUserIDsOfUsersInSameBoardAsGivenUserID(user1).size());
+        assertTrue(lobbyModel.checkRep());
+
+        // switching boards leaves the old one
+        lobbyModel.userJoinBoard(user1, 7);
+        assertEquals(7, lobbyModel.getBoardIDThatUserIDIsIn(user1));
+        assertFalse(lobbyModel.getUserIDsForBoardID(42).contains(user1));
+        assertTrue(lobbyModel.checkRep());
+
+        lobbyModel.userLeaveBoard(user0, 42);
+        assertEquals(LobbyModel.LOBBY_ID, lobbyModel.getBoardIDThatUserIDIsIn(user0));
+        assertTrue(lobbyModel.getUserIDsForBoardID(LobbyModel.LOBBY_ID).contains(user0));
+        assertTrue(lobbyModel.checkRep());
+
+        lobbyModel.deleteUser(user2);
+        assertEquals(LobbyModel.LOBBY_ID, lobbyModel.getBoardIDThatUserIDIsIn(user2));
+        assertTrue(lobbyModel.getUserIDsOfUsersInSameBoardAsGivenUserID(user2).isEmpty());
+        assertEquals(1, lobbyModel.getUserIDsForBoardID(7).size());
+        assertTrue(lobbyModel.checkRep());
+    }
+
+    /**
+     * Taken names get the next suffix, and released suffixes are reused
+     * smallest first
+     */
+    @Test
+    public void test_name_index_suffixes(){
+        NameIndex names = new NameIndex(2);
+        assertEquals("student", names.claim("student", 0));
+        assertEquals("student(2)", names.claim("student", 1));
+        assertEquals("student(3)", names.claim("student", 2));
+        assertEquals("student(4)", names.claim("student", 3));
+        // claiming a name again keeps it
+        assertEquals("student(3)", names.claim("student(3)", 2));
+
+        names.release("student(3)", 2);
+        names.release("student(2)", 1);
+        // only the owner can release a name
+        names.release("student(4)", 0);
+        assertEquals(Integer.valueOf(3), names.getOwner("student(4)"));
+        assertEquals("student(2)", names.claim("student", 4));
+        assertEquals("student(3)", names.claim("student", 5));
+        assertEquals("student(5)", names.claim("student", 6));
+
+        // a suffix claimed directly is skipped
+        assertEquals("student(6)", names.claim("student(6)", 7));
+        assertEquals("student(7)", names.claim("student", 8));
+
+        names.release("student", 0);
+        assertEquals("student", names.claim("student", 9));
+    }
+
+    /**
+     * 300 users logging in as the same name all get different names
+     */
+    @Test
+    public void test_lobby_same_names(){
+        LobbyModel lobbyModel = new LobbyModel();
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < 300; i++) {
+            int userID = lobbyModel.addUser();
+            names.add(lobbyModel.changeUserName("student", userID));
+        }
+        assertEquals(300, names.size());
+        assertTrue(names.contains("student"));
+        assertTrue(names.contains("student(300)"));
+        assertEquals("Board", lobbyModel.getWhiteboard(lobbyModel.addBoard("Board")).getBoardName());
+        assertEquals("Board(1)", lobbyModel.getWhiteboard(lobbyModel.addBoard("Board")).getBoardName());
+        assertTrue(lobbyModel.checkRep());
+    }
+
+    /**
+     * Adding boards publishes new board directory snapshots, which list the
+     * boards in the order they were added
+     */
+    @Test
+    public void test_board_directory_snapshots(){
+        LobbyModel lobbyModel = new LobbyModel();
+        BoardDirectory lobbyOnly = lobbyModel.getBoardDirectory();
+        int first = lobbyModel.addBoard("Board");
+        int second = lobbyModel.addBoard("Board");
+        BoardDirectory latest = lobbyModel.getBoardDirectory();
+
+        assertEquals(1, lobbyOnly.getVersion());
+        assertEquals(LobbyModel.LOBBY_ID, lobbyOnly.getBoardID(0));
+        assertEquals(3, latest.getVersion());
+        assertEquals(first, latest.getBoardID(1));
+        assertEquals("Board", latest.getBoardName(1));
+        assertEquals(second, latest.getBoardID(2));
+        assertEquals("Board(1)", latest.getBoardName(2));
+        assertEquals(1, latest.firstIndexAfter(lobbyOnly.getVersion()));
+        assertEquals(0, latest.firstIndexAfter(4));
+        assertSame(latest, lobbyModel.getBoardDirectory());
+    }
+
+    /**
+     * Joining and leaving publish new membership snapshots, and snapshots
+     * that were read before do not change
+     */
+    @Test
+    public void test_membership_snapshots(){
+        LobbyModel lobbyModel = new LobbyModel();
+        int boardID = lobbyModel.addBoard("Board");
+        int user0 = lobbyModel.addUser();
+        int user1 = lobbyModel.addUser();
+        Membership empty = lobbyModel.getMembership(boardID);
+
+        lobbyModel.userJoinBoard(user0, boardID);
+        Membership one = lobbyModel.getMembership(boardID);
+        lobbyModel.userJoinBoard(user1, boardID);
+        Membership two = lobbyModel.getMembership(boardID);
+        lobbyModel.deleteUser(user0);
+        Membership last = lobbyModel.getMembership(boardID);
+
+        assertTrue(empty.getUserIDs().isEmpty());
+        assertTrue(one.contains(user0) && !one.contains(user1));
+        assertEquals(2, two.getUserIDs().size());
+        assertTrue(!last.contains(user0) && last.contains(user1));
+        assertTrue(empty.getVersion() < one.getVersion());
+        assertTrue(one.getVersion() < two.getVersion());
+        assertTrue(two.getVersion() < last.getVersion());
+        assertSame(last.getUserIDs(), lobbyModel.getUserIDsForBoardID(boardID));
+        try {
+            last.getUserIDs().add(user0);
+            fail("snapshots are unmodifiable");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    /**
+     * The snapshot of the lobby is built when it is read, once for all the
+     * changes since the last read, and then reused until the lobby changes
+     */
+    @Test
+    public void test_lobby_membership_snapshots(){
+        LobbyModel lobbyModel = new LobbyModel();
+        int user0 = lobbyModel.addUser();
+        Membership one = lobbyModel.getMembership(LobbyModel.LOBBY_ID);
+        assertSame(one, lobbyModel.getMembership(LobbyModel.LOBBY_ID));
+
+        int user1 = lobbyModel.addUser();
+        int user2 = lobbyModel.addUser();
+        lobbyModel.deleteUser(user0);
+        Membership two = lobbyModel.getMembership(LobbyModel.LOBBY_ID);
+        assertTrue(one.contains(user0) && one.getUserIDs().size() == 1);
+        assertEquals(2, two.getUserIDs().size());
+        assertTrue(two.contains(user1) && two.contains(user2));
+        assertEquals(one.getVersion() + 3, two.getVersion());
+        assertSame(two, lobbyModel.getMembership(LobbyModel.LOBBY_ID));
+        assertTrue(lobbyModel.checkRep());
+    }
 }
@@ -0,0 +1,272 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import adts.Line;
+import adts.LobbyModel;
+import protocol.ClientFeatures;
+import protocol.MessageHandler;
+import protocol.OutgoingServerMessage;
+import server.Backpressure;
+import server.Backpressure.Decision;
+import server.ConnectionRegistry;
+import server.ServerConfig;
+import server.ServerMetrics;
+import server.SlowConsumerPolicy;
+import server.UserConnection;
+
+/**
+ * Tests that the outgoing queues of slow clients stay bounded
+ */
+public class BackpressureTests {
+    /*
+     * Testing strategy
+     * 
+     * Goal: Check that a client whose queue passes the high watermark is
+     * treated according to the slow consumer policy
+     * 
+     * Strategy: Admit messages for a connection that never writes them until
+     * the high watermark is passed, then write them and check what the
+     * connection was sent and what the metrics recorded
+     */
+
+    private static final OutgoingServerMessage DRAW = new OutgoingServerMessage(
+            MessageHandler.RESP_DRAW + " " + new Line(1, 2, 3, 4, 5, 6, 7, 8, 9));
+
+    /**
+     * Runs the resyncs right away, on the writer
+     */
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    /**
+     * A connection that records what it is sent
+     */
+    private static class RecordingConnection implements UserConnection {
+        private final int userID;
+        private final List<String> sent = new ArrayList<String>();
+        private final ClientFeatures features = new ClientFeatures();
+
+        RecordingConnection(int userID) {
+            this.userID = userID;
+        }
+
+        public int getUserID() {
+            return this.userID;
+        }
+
+        public void output(String message) {
+            this.sent.add(message.split(" ")[0]);
+        }
+
+        public void send(OutgoingServerMessage message) {
+            this.output(message.getMessage());
+        }
+
+        public ConnectionRegistry getConnections() {
+            return new ConnectionRegistry();
+        }
+
+        public ClientFeatures getFeatures() {
+            return this.features;
+        }
+
+        public void closeSocket() {
+        }
+    }
+
+    /**
+     * @return a configuration whose high watermark is passed by the fourth
+     *         draw message, and whose low watermark is reached once one is left
+     */
+    private static ServerConfig config(SlowConsumerPolicy policy) {
+        ServerConfig config = new ServerConfig();
+        config.setWatermarks(DRAW.length(), 3 * DRAW.length());
+        config.setSlowConsumerPolicy(policy);
+        return config;
+    }
+
+    /**
+     * Draws past the high watermark are dropped, and the client is resynced
+     * with its board once it drains down to the low watermark
+     */
+    @Test
+    public void test_resync_slow_consumer() {
+        LobbyModel lobbyModel = new LobbyModel();
+        int userID = lobbyModel.addUser();
+        int boardID = lobbyModel.addBoard("board");
+        lobbyModel.userJoinBoard(userID, boardID);
+        RecordingConnection connection = new RecordingConnection(userID);
+        ServerMetrics metrics = new ServerMetrics();
+        Backpressure backpressure = new Backpressure(
+                config(SlowConsumerPolicy.RESYNC), metrics, connection,
+                lobbyModel, DIRECT);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Decision.QUEUE, backpressure.admit(DRAW));
+        }
+        assertEquals(Decision.DROP, backpressure.admit(DRAW));
+        assertEquals(Decision.DROP, backpressure.admit(DRAW));
+        assertEquals(1, metrics.getResyncedClients());
+        assertEquals(2, metrics.getDroppedDraws());
+
+        backpressure.written(DRAW);
+        assertTrue(connection.sent.isEmpty());
+        backpressure.written(DRAW);
+        assertEquals(3, connection.sent.size());
+        assertEquals(MessageHandler.RESP_BOARD_IDS, connection.sent.get(0));
+        assertEquals(MessageHandler.RESP_CLEAR, connection.sent.get(1));
+        assertEquals(MessageHandler.RESP_BOARD_LINES, connection.sent.get(2));
+
+        // caught up, so draws are queued again
+        assertEquals(Decision.QUEUE, backpressure.admit(DRAW));
+    }
+
+    /**
+     * The resync of a client that opted in to strokes sends it the strokes
+     * being drawn on its board, whose stroke_begin it may have missed
+     */
+    @Test
+    public void test_resync_sends_open_strokes() {
+        LobbyModel lobbyModel = new LobbyModel();
+        int userID = lobbyModel.addUser();
+        int boardID = lobbyModel.addBoard("board");
+        lobbyModel.userJoinBoard(userID, boardID);
+        lobbyModel.getWhiteboard(boardID).beginStroke(userID, 1, 0, 0, 0, 255, 5, 5);
+        RecordingConnection connection = new RecordingConnection(userID);
+        connection.features.enable(ClientFeatures.STROKES);
+        Backpressure backpressure = new Backpressure(
+                config(SlowConsumerPolicy.RESYNC), new ServerMetrics(),
+                connection, lobbyModel, DIRECT);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Decision.QUEUE, backpressure.admit(DRAW));
+        }
+        assertEquals(Decision.DROP, backpressure.admit(DRAW));
+        backpressure.written(DRAW);
+        backpressure.written(DRAW);
+        assertEquals(4, connection.sent.size());
+        assertEquals(MessageHandler.RESP_BOARD_LINES, connection.sent.get(2));
+        assertEquals(MessageHandler.RESP_STROKE_BEGIN, connection.sent.get(3));
+    }
+
+    /**
+     * A board bigger than the high watermark is queued on an empty queue,
+     * and counted, so the draw after it passes the high watermark
+     */
+    @Test
+    public void test_board_lines_counted() {
+        LobbyModel lobbyModel = new LobbyModel();
+        RecordingConnection connection = new RecordingConnection(lobbyModel.addUser());
+        Backpressure backpressure = new Backpressure(
+                config(SlowConsumerPolicy.DISCONNECT), new ServerMetrics(),
+                connection, lobbyModel);
+        StringBuilder lines = new StringBuilder(MessageHandler.RESP_BOARD_LINES + " 0 4");
+        for (int i = 0; i < 4; i++) {
+            lines.append(" " + new Line(1, 2, 3, 4, 5, 6, 7, 8, 9));
+        }
+        OutgoingServerMessage boardLines = new OutgoingServerMessage(lines.toString());
+        assertEquals(Decision.QUEUE, backpressure.admit(boardLines));
+        assertEquals(Decision.DISCONNECT, backpressure.admit(DRAW));
+    }
+
+    /**
+     * Past the high watermark, other messages are dropped too, stroke points
+     * are dropped like draws, and other messages that fit are still queued
+     * while the client drains. The resync of a client in the lobby sends it
+     * the boards and the users of the lobby again.
+     */
+    @Test
+    public void test_resync_drops_every_message() {
+        LobbyModel lobbyModel = new LobbyModel();
+        int userID = lobbyModel.addUser();
+        RecordingConnection connection = new RecordingConnection(userID);
+        ServerMetrics metrics = new ServerMetrics();
+        Backpressure backpressure = new Backpressure(
+                config(SlowConsumerPolicy.RESYNC), metrics, connection,
+                lobbyModel, DIRECT);
+        OutgoingServerMessage users = new OutgoingServerMessage(
+                MessageHandler.RESP_USERS_FOR_BOARD + " -1 User0");
+        OutgoingServerMessage points = new OutgoingServerMessage(
+                MessageHandler.RESP_STROKE_POINTS + " 0 1 2 3 4");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Decision.QUEUE, backpressure.admit(DRAW));
+        }
+        assertEquals(Decision.DROP, backpressure.admit(users));
+        assertEquals(1, metrics.getResyncedClients());
+        assertEquals(1, metrics.getDroppedMessages());
+
+        backpressure.written(DRAW);
+        assertEquals(Decision.DROP, backpressure.admit(points));
+        assertEquals(Decision.QUEUE, backpressure.admit(users));
+        assertEquals(1, metrics.getDroppedDraws());
+
+        backpressure.written(DRAW);
+        assertTrue(connection.sent.isEmpty());
+        backpressure.written(DRAW);
+        assertEquals(2, connection.sent.size());
+        assertEquals(MessageHandler.RESP_BOARD_IDS, connection.sent.get(0));
+        assertEquals(MessageHandler.RESP_USERS_FOR_BOARD, connection.sent.get(1));
+        assertEquals(Decision.QUEUE, backpressure.admit(points));
+    }
+
+    /**
+     * Past the high watermark, numbered messages are dropped even if they
+     * fit and do not only add to the board, so the client does not see a
+     * sequence number past the draws it missed before it is resynced
+     */
+    @Test
+    public void test_resync_drops_numbered_messages() {
+        LobbyModel lobbyModel = new LobbyModel();
+        RecordingConnection connection = new RecordingConnection(lobbyModel.addUser());
+        Backpressure backpressure = new Backpressure(
+                config(SlowConsumerPolicy.RESYNC), new ServerMetrics(),
+                connection, lobbyModel, DIRECT);
+        OutgoingServerMessage clear = new OutgoingServerMessage(
+                MessageHandler.RESP_SEQUENCE + " 0 5 " + MessageHandler.RESP_CLEAR + " 0");
+        assertTrue(clear.isSequenced());
+        assertFalse(DRAW.isSequenced());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Decision.QUEUE, backpressure.admit(DRAW));
+        }
+        assertEquals(Decision.DROP, backpressure.admit(DRAW));
+        backpressure.written(DRAW);
+        assertEquals(Decision.DROP, backpressure.admit(clear));
+
+        backpressure.written(DRAW);
+        backpressure.written(DRAW);
+        assertEquals(Decision.QUEUE, backpressure.admit(clear));
+    }
+
+    /**
+     * With the disconnect policy, the client is disconnected once (and only
+     * counted once) when it passes the high watermark
+     */
+    @Test
+    public void test_disconnect_slow_consumer() {
+        LobbyModel lobbyModel = new LobbyModel();
+        RecordingConnection connection = new RecordingConnection(lobbyModel.addUser());
+        ServerMetrics metrics = new ServerMetrics();
+        Backpressure backpressure = new Backpressure(
+                config(SlowConsumerPolicy.DISCONNECT), metrics, connection, lobbyModel);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Decision.QUEUE, backpressure.admit(DRAW));
+        }
+        assertEquals(Decision.DISCONNECT, backpressure.admit(DRAW));
+        assertEquals(Decision.DISCONNECT, backpressure.admit(DRAW));
+        assertEquals(1, metrics.getDisconnectedClients());
+        assertEquals(0, metrics.getDroppedDraws());
+    }
+}
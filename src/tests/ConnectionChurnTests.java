@@ -0,0 +1,204 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import adts.Line;
+import protocol.ClientSideMessageMaker;
+import server.SelectorConnection;
+import server.ServerConfig;
+import server.ServerMode;
+import server.WhiteboardServer;
+
+/**
+ * Tests that the server survives clients connecting and disconnecting while
+ * others are drawing.
+ *
+ * Like Server_Client_protocolTests, this creates servers and clients, so it is
+ * not run on Didit.
+ * @category no_didit
+ */
+public class ConnectionChurnTests {
+
+    /*
+     * Testing strategy
+     *
+     * Goal: Check that connections are registered and forgotten safely while
+     * messages are being broadcast to them, with every engine.
+     *
+     * Strategy: One client stays in a board and draws the whole time. Several
+     * threads repeatedly connect a client, join the board, draw and then either
+     * log out or just drop the connection. Afterwards, only the steady client
+     * may be left in the registry, and it must still get its own draws back.
+     */
+
+    private static final int CHURN_THREADS = 8;
+    private static final int CHURN_ROUNDS = 25;
+    private static final String DRAW = ClientSideMessageMaker
+            .makeRequestStringDraw(new Line(0, 1, 2, 3, 4, 5, 6, 7, 8));
+
+    /**
+     * A blocking client speaking the protocol
+     */
+    private static class Client {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+
+        Client(int port) throws IOException {
+            this.socket = new Socket("127.0.0.1", port);
+            this.out = new PrintWriter(this.socket.getOutputStream(), true);
+            this.in = new BufferedReader(new InputStreamReader(
+                    this.socket.getInputStream()));
+        }
+
+        void send(String request) {
+            this.out.println(request);
+        }
+
+        /**
+         * Reads until a message starting with the given command arrives
+         */
+        void await(String command) throws IOException {
+            for (String line = this.in.readLine(); line != null; line = this.in.readLine()) {
+                if (line.split(" ")[0].equals(command)) {
+                    return;
+                }
+            }
+            throw new IOException("connection closed while waiting for " + command);
+        }
+
+        void close() throws IOException {
+            this.socket.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void test_churn_threads() throws Exception {
+        this.churn(ServerMode.THREADS);
+    }
+
+    @Test(timeout = 20000)
+    public void test_churn_nio() throws Exception {
+        this.churn(ServerMode.NIO);
+    }
+
+    /**
+     * A client that sends a line longer than SelectorConnection.MAX_LINE_BYTES
+     * is disconnected, and the server goes on serving the others
+     */
+    @Test(timeout = 20000)
+    public void test_overlong_line_nio() throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        int port = probe.getLocalPort();
+        probe.close();
+        ServerConfig config = new ServerConfig();
+        config.setMode(ServerMode.NIO);
+        WhiteboardServer server = new WhiteboardServer(port, config);
+        server.serve();
+
+        Client flooder = new Client(port);
+        flooder.await("welcome");
+        char[] chunk = new char[8192];
+        Arrays.fill(chunk, 'x');
+        try {
+            for (int sent = 0; sent <= SelectorConnection.MAX_LINE_BYTES; sent += chunk.length) {
+                flooder.out.print(chunk);
+            }
+            flooder.out.flush();
+        } catch (RuntimeException e) {
+            // the server may close the connection before everything is sent
+        }
+        try {
+            flooder.await("no_such_message");
+            fail("the connection stayed open");
+        } catch (IOException e) {
+            // expected
+        }
+        flooder.close();
+
+        Client other = new Client(port);
+        other.await("welcome");
+        other.send(ClientSideMessageMaker.makeRequestStringCreateBoard("Board"));
+        other.await("current_board_id");
+        other.close();
+    }
+
+    private void churn(ServerMode mode) throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+        ServerConfig config = new ServerConfig();
+        config.setMode(mode);
+        config.setEventLoops(2);
+        WhiteboardServer server = new WhiteboardServer(port, config);
+        server.serve();
+
+        Client steady = new Client(port);
+        steady.await("welcome");
+        steady.send(ClientSideMessageMaker.makeRequestStringCreateBoard("Board"));
+        steady.await("current_board_id");
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < CHURN_THREADS; t++) {
+            final boolean logout = t % 2 == 0;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int round = 0; round < CHURN_ROUNDS; round++) {
+                            Client client = new Client(port);
+                            client.await("welcome");
+                            client.send(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+                            client.await("board_lines");
+                            client.send(DRAW);
+                            client.await("draw");
+                            if (logout) {
+                                client.send(ClientSideMessageMaker.makeRequestStringLogout());
+                                client.await("logged_out");
+                            }
+                            client.close();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        boolean churning = true;
+        while (churning) {
+            steady.send(DRAW);
+            steady.await("draw");
+            churning = false;
+            for (Thread thread : threads) {
+                churning |= thread.isAlive();
+            }
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        while (server.getConnections().size() > 1) {
+            Thread.sleep(10);
+        }
+        assertNotNull(server.getConnections().get(0));
+        steady.send(DRAW);
+        steady.await("draw");
+        steady.close();
+    }
+}
@@ -0,0 +1,161 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import adts.Line;
+import adts.LobbyModel;
+import adts.OffHeapBudget;
+import adts.Whiteboard;
+
+/**
+ * Tests that the LobbyModel keeps its rep invariant when many threads use it
+ * at once
+ */
+public class LobbyModelStressTests {
+    /*
+     * Testing strategy
+     *
+     * Goal: Check that users stay in exactly one board and that user and board
+     * names stay unique under high contention. Check that readers of a board
+     * always get an exact snapshot of its lines while it is drawn on.
+     *
+     * Strategy: Several threads start together and make random changes to one
+     * LobbyModel (adding and deleting users, joining and leaving boards,
+     * renaming users to a few shared names and adding boards with a few shared
+     * names) while checking that every user they read is in one board. Once
+     * they are done, checkRep must hold and all names must be unique.
+     */
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 20000;
+    private static final String[] NAMES = { "Rob", "Alyssa", "Ben" };
+
+    @Test(timeout = 60000)
+    public void test_lobby_model_under_contention() throws Exception {
+        final LobbyModel lobbyModel = new LobbyModel();
+        for (int i = 0; i < 16; i++) {
+            lobbyModel.addBoard();
+        }
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        List<Integer> mine = new ArrayList<Integer>();
+                        start.await();
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            int op = random.nextInt(10);
+                            if (mine.isEmpty() || op == 0) {
+                                mine.add(lobbyModel.addUser());
+                            } else if (op == 1) {
+                                lobbyModel.deleteUser(mine.remove(random.nextInt(mine.size())));
+                            } else if (op == 2) {
+                                lobbyModel.addBoard(NAMES[random.nextInt(NAMES.length)]);
+                            } else if (op < 5) {
+                                int userID = mine.get(random.nextInt(mine.size()));
+                                lobbyModel.changeUserName(NAMES[random.nextInt(NAMES.length)], userID);
+                            } else if (op < 9) {
+                                int userID = mine.get(random.nextInt(mine.size()));
+                                lobbyModel.userJoinBoard(userID, random.nextInt(16));
+                            } else {
+                                int userID = mine.get(random.nextInt(mine.size()));
+                                int boardID = lobbyModel.getBoardIDThatUserIDIsIn(userID);
+                                assertTrue(lobbyModel.getUserIDsForBoardID(boardID).contains(userID));
+                                lobbyModel.userLeaveBoard(userID, boardID);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        assertTrue(lobbyModel.checkRep());
+        Set<String> userNames = new HashSet<String>();
+        int users = 0;
+        for (int boardID : lobbyModel.getWhiteboardIDs()) {
+            for (int userID : lobbyModel.getUserIDsForBoardID(boardID)) {
+                users++;
+                assertTrue(userNames.add(lobbyModel.getUserNameForUserID(userID)));
+            }
+        }
+        assertEquals(users, userNames.size());
+        assertEquals(lobbyModel.getWhiteboards().size(), lobbyModel.getWhiteboardNames().size());
+    }
+
+    /**
+     * Readers encode a board while one thread draws on it and clears it now
+     * and then. Every snapshot must be an exact prefix of what was drawn since
+     * the last clear: line i has x1 == i.
+     */
+    @Test(timeout = 60000)
+    public void test_board_snapshots_while_drawing() throws Exception {
+        OffHeapBudget budget = new OffHeapBudget(64 * OffHeapBudget.CHUNK_BYTES,
+                8 * OffHeapBudget.CHUNK_BYTES);
+        final Whiteboard board = new Whiteboard(0, "Board", budget);
+        final AtomicBoolean drawing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS - 1; t++) {
+            readers.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (drawing.get()) {
+                            StringBuilder lines = new StringBuilder();
+                            int count = board.appendLinesTo(lines);
+                            String[] tokens = lines.toString().trim().split(" ");
+                            assertEquals(count == 0 ? 1 : 9 * count, tokens.length);
+                            for (int i = 0; i < count; i++) {
+                                assertEquals(String.valueOf(i), tokens[9 * i]);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 5000; i++) {
+                assertTrue(board.addLine(new Line(i, 0, 1, 1, 2, 3, 4, 5, 6)));
+            }
+            board.clearBoard();
+        }
+        drawing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        board.release();
+        assertEquals(0, budget.getReservedBytes());
+    }
+}
@@ -1,9 +1,11 @@
 package tests;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import org.junit.Test;
 
 import adts.Line;
+import protocol.Base64Codec;
 import protocol.ClientSideMessageMaker;
 
 /**
@@ -66,6 +68,23 @@ public class MessageMakerTests {
 				ClientSideMessageMaker.makeRequestStringLeaveBoard());
 	}
 
+	@Test
+	public void base64_test() {
+		// the test vectors of RFC 4648
+		String[] plain = { "", "f", "fo", "foo", "foob", "fooba", "foobar" };
+		String[] encoded = { "", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==",
+				"Zm9vYmE=", "Zm9vYmFy" };
+		for (int i = 0; i < plain.length; i++) {
+			assertEquals(encoded[i], Base64Codec.encode(plain[i].getBytes()));
+			assertArrayEquals(plain[i].getBytes(), Base64Codec.decode(encoded[i]));
+		}
+		byte[] all = new byte[256];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = (byte) i;
+		}
+		assertArrayEquals(all, Base64Codec.decode(Base64Codec.encode(all)));
+	}
+
 	@Test
 	public void req_draw_test() {
 		int x1 = 30;
@@ -0,0 +1,37 @@
+package tests;
+
+import java.io.IOException;
+
+import server.ServerConfig;
+import server.ServerMode;
+import server.WhiteboardServer;
+
+/**
+ * Runs the whole server/client protocol suite against the NIO engine, so both
+ * engines are held to the same protocol.
+ * 
+ * Like Server_Client_protocolTests, this creates servers and clients, so it is
+ * not run on Didit.
+ * @category no_didit
+ */
+public class NioServer_Client_protocolTests extends Server_Client_protocolTests {
+
+	/*
+	 * Testing strategy
+	 * 
+	 * Goal: make sure the selector based engine answers every request the
+	 * same way as the thread per connection engine.
+	 * 
+	 * Strategy: reuse every test of Server_Client_protocolTests, only
+	 * swapping the server for one in NIO mode with two event loops (so that
+	 * the clients are spread over more than one loop).
+	 */
+
+	@Override
+	protected WhiteboardServer createServer(int port) throws IOException {
+		ServerConfig config = new ServerConfig();
+		config.setMode(ServerMode.NIO);
+		config.setEventLoops(2);
+		return new WhiteboardServer(port, config);
+	}
+}
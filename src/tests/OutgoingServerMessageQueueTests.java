@@ -0,0 +1,124 @@
+package tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import adts.LobbyModel;
+import protocol.OutgoingServerMessage;
+import protocol.OutgoingServerMessageQueue;
+import server.Backpressure;
+import server.ServerConfig;
+import server.ServerMetrics;
+
+/**
+ * Tests that the outgoing message queue coalesces its writes
+ */
+public class OutgoingServerMessageQueueTests {
+    /*
+     * Testing strategy
+     * 
+     * Goal: Check that a burst of messages is written in a few writes, in
+     * order, and that the maximum latency bounds how long a message waits
+     * 
+     * Strategy: Run the queue on an output stream that counts its writes
+     */
+
+    /**
+     * An output stream that counts how often it is written to
+     */
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        private int writes = 0;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            this.writes++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            this.writes++;
+            super.write(b);
+        }
+
+        synchronized int getWrites() {
+            return this.writes;
+        }
+    }
+
+    /**
+     * @return a queue writing to the given stream
+     */
+    private static OutgoingServerMessageQueue queue(CountingOutputStream out,
+            long maxLatencyMicros) throws IOException {
+        // the default watermarks are never reached, so no connection is needed
+        Backpressure backpressure = new Backpressure(new ServerConfig(),
+                new ServerMetrics(), null, new LobbyModel());
+        return new OutgoingServerMessageQueue(out, backpressure, maxLatencyMicros);
+    }
+
+    /**
+     * A burst of messages queued before the writer runs is written at once
+     */
+    @Test
+    public void test_burst_is_coalesced() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        OutgoingServerMessageQueue queue = queue(out, 2000);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            queue.addMessage(new OutgoingServerMessage("draw " + i));
+            expected.append("draw " + i + "\n");
+        }
+        queue.shutdown();
+        Thread writer = new Thread(queue);
+        writer.start();
+        writer.join(5000);
+        assertEquals(expected.toString(), out.toString());
+        assertEquals(1, out.getWrites());
+    }
+
+    /**
+     * A lone message is written within the maximum latency
+     */
+    @Test
+    public void test_latency_is_bounded() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        OutgoingServerMessageQueue queue = queue(out, 2000);
+        Thread writer = new Thread(queue);
+        writer.setDaemon(true);
+        writer.start();
+        queue.addMessage(new OutgoingServerMessage("draw"));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (out.getWrites() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals("draw\n", out.toString());
+        queue.shutdown();
+        writer.join(5000);
+    }
+
+    /**
+     * A lone message is written as soon as nothing else is queued, not once
+     * the maximum latency is over
+     */
+    @Test
+    public void test_lone_message_not_delayed() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        OutgoingServerMessageQueue queue = queue(out, 10 * 1000 * 1000);
+        Thread writer = new Thread(queue);
+        writer.setDaemon(true);
+        writer.start();
+        queue.addMessage(new OutgoingServerMessage("draw"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (out.getWrites() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals("draw\n", out.toString());
+        queue.shutdown();
+        writer.join(5000);
+    }
+}
@@ -12,8 +12,13 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.junit.Test;
 
+import adts.BoardRaster;
 import adts.Line;
+import adts.SegmentCodec;
+import adts.Whiteboard;
+import protocol.Base64Codec;
 import protocol.ClientSideMessageMaker;
+import protocol.MessageHandler;
 import server.WhiteboardServer;
 
 /**
@@ -238,7 +243,8 @@ public class Server_Client_protocolTests {
     }
     
     /**
-     * Client 1 creates a board, Client 1 draws a line
+     * Client 1 creates a board, Client 1 draws a line, then a line whose
+     * color is out of range
      * @throws IOException
      */
     @Test(timeout = 2000)
@@ -255,6 +261,10 @@ public class Server_Client_protocolTests {
         
         // Client 1 checks that the line has been drawn
         pollQueueForMessage(client1.getQueue(), "draw 0 1 2 3 4.000000 5 6 7 8", false);
+
+        // Client 1 draws a line with a red of 256, which the board cannot keep
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(0, 1, 2, 3, 4, 256, 6, 7, 8)));
+        pollQueueForMessage(client1.getQueue(), "failed", false);
         
     }
     
@@ -364,12 +374,348 @@ public class Server_Client_protocolTests {
         // Client 1 checks that Client 3 has joined the board 
         pollQueueForMessage(client1.getQueue(), "users_for_board_id 0 User0 User2", false);
 
+        // Client 2 checks that it is alone in the lobby, so the lobby it was
+        // told about last differs from the one after Client 1 leaves (the
+        // lobby updates within a window are sent as one)
+        pollQueueForMessage(client2.getQueue(), "users_for_board_id -1 User1", false);
+
         // Client 1 leaves the board
         client1.makeRequest(ClientSideMessageMaker.makeRequestStringLeaveBoard());
         
         // Client 3 checks that Client 1 is now back in the lobby
         pollQueueForMessage(client2.getQueue(), "users_for_board_id -1 User1 User0", false);
     }
+
+    /**
+     * Client 1 and Client 3 make two boards, and Client 2 asks for the boards
+     * added since the versions of the board directory it knows, then asks
+     * with a malformed version
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void get_board_ids_since_version_test() throws IOException{
+        this.initialize();
+
+        // Only the lobby is in the directory
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringGetBoardIDs(1));
+        pollQueueForMessage(client2.getQueue(), "board_ids_unchanged 1", false);
+
+        // Client 1 and Client 3 create a board each
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        client3.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName2"));
+        pollQueueForMessage(client3.getQueue(), "current_board_id 1", false);
+
+        // Client 2 gets the two new boards, and then nothing new
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringGetBoardIDs(1));
+        pollQueueForMessage(client2.getQueue(), "board_ids_delta 1 3 0 BoardName1 1 BoardName2", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringGetBoardIDs(3));
+        pollQueueForMessage(client2.getQueue(), "board_ids_unchanged 3", false);
+
+        // A version Client 2 cannot know gets the whole directory
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringGetBoardIDs(7));
+        pollQueueForMessage(client2.getQueue(), "board_ids_delta 0 3 -1 Lobby 0 BoardName1 1 BoardName2", false);
+
+        // A malformed version fails
+        client2.makeRequest("get_board_ids abc");
+        pollQueueForMessage(client2.getQueue(), "failed", false);
+    }
+
+    /**
+     * Client 1 creates a board, draws two lines and asks for the lines in a
+     * rectangle
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void get_lines_in_rect_test() throws IOException{
+        this.initialize();
+
+        // Client 1 is not in a board yet
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringGetLinesInRect(0, 0, 10, 10));
+        pollQueueForMessage(client1.getQueue(), "failed", false);
+
+        // Client 1 creates a board and draws a line in it and one far away
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(0, 1, 2, 3, 4, 5, 6, 7, 8)));
+        pollQueueForMessage(client1.getQueue(), "draw 0 1 2 3 4.000000 5 6 7 8", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(500, 500, 600, 600, 1, 5, 6, 7, 8)));
+        pollQueueForMessage(client1.getQueue(), "draw 500 500 600 600 1.000000 5 6 7 8", false);
+
+        // Only the first line crosses the rectangle
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringGetLinesInRect(0, 0, 10, 10));
+        pollQueueForMessage(client1.getQueue(), "lines_in_rect 0 0 10 10 1 0 1 2 3 4.000000 5 6 7 8", false);
+
+        // A rectangle with a negative width is refused
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringGetLinesInRect(0, 0, -10, 10));
+        pollQueueForMessage(client1.getQueue(), "failed", false);
+    }
+
+    /**
+     * Client 1 opts in to strokes and draws one, Client 2 (which did not opt
+     * in) gets its segments as draw messages, Client 3 opts in and joins in
+     * the middle of the stroke, and Client 1 leaves in the middle of another
+     * stroke
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void strokes_test() throws IOException{
+        this.initialize();
+
+        // Client 1 opts in to strokes, creates a board and Client 2 joins it
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringFeatures("strokes"));
+        pollQueueForMessage(client1.getQueue(), "features strokes", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        pollQueueForMessage(client2.getQueue(), "board_lines 2 0 User0 User1", false);
+
+        // Client 1 begins a stroke and adds two points to it
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringBeginStroke(3, 0, 0, 0, 255, 10, 10));
+        pollQueueForMessage(client1.getQueue(), "stroke_begin 0 3.000000 0 0 0 255 10 10", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringAppendStroke(20, 10, 30, 20));
+        pollQueueForMessage(client1.getQueue(), "stroke_points 0 20 10 30 20", false);
+
+        // Client 2 gets the segments one by one
+        pollQueueForMessage(client2.getQueue(), "draw 20 10 30 20 3.000000 0 0 0 255", false);
+
+        // Client 3 opts in and joins, and is told where the stroke is at
+        client3.makeRequest(ClientSideMessageMaker.makeRequestStringFeatures("strokes"));
+        pollQueueForMessage(client3.getQueue(), "features strokes", false);
+        client3.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        pollQueueForMessage(client3.getQueue(), "stroke_begin 0 3.000000 0 0 0 255 30 20", false);
+
+        // Client 1 ends the stroke, whose segments are now on the board
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringEndStroke());
+        pollQueueForMessage(client3.getQueue(), "stroke_end 0", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringAppendStroke(40, 40));
+        pollQueueForMessage(client1.getQueue(), "failed", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringLeaveBoard());
+        pollQueueForMessage(client2.getQueue(), "done", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        pollQueueForMessage(client2.getQueue(), "board_lines 3 2 User0 User1 User2 10 10 20 10 3.000000 0 0 0 255 20 10 30 20 3.000000 0 0 0 255", false);
+
+        // Client 1 leaves in the middle of a stroke, which ends
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringBeginStroke(3, 0, 0, 0, 255, 50, 50));
+        pollQueueForMessage(client3.getQueue(), "stroke_begin 1 3.000000 0 0 0 255 50 50", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringLeaveBoard());
+        pollQueueForMessage(client3.getQueue(), "stroke_end 1", false);
+    }
+
+    /**
+     * Client 1 creates a board that simplifies lines and draws a run of
+     * nearly straight lines, and Client 2 joins and gets a single line
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void simplify_tolerance_test() throws IOException{
+        this.initialize();
+
+        // Client 1 cannot set a tolerance in the lobby
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringSetSimplifyTolerance(2));
+        pollQueueForMessage(client1.getQueue(), "failed", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringSetSimplifyTolerance(2));
+        pollQueueForMessage(client1.getQueue(), "done", false);
+
+        // Client 1 is sent the lines as drawn
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(0, 0, 10, 0, 1, 0, 0, 0, 255)));
+        pollQueueForMessage(client1.getQueue(), "draw 0 0 10 0 1.000000 0 0 0 255", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(10, 0, 20, 1, 1, 0, 0, 0, 255)));
+        pollQueueForMessage(client1.getQueue(), "draw 10 0 20 1 1.000000 0 0 0 255", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(new Line(20, 1, 30, 0, 1, 0, 0, 0, 255)));
+        pollQueueForMessage(client1.getQueue(), "draw 20 1 30 0 1.000000 0 0 0 255", false);
+
+        // Client 2 joins and gets the simplified line
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        pollQueueForMessage(client2.getQueue(), "board_lines 2 1 User0 User1 0 0 30 0 1.000000 0 0 0 255", false);
+    }
+
+    /**
+     * Client 1 opts in to snapshots, creates a board and draws a line, the
+     * server takes a snapshot, and Client 1 draws another line. Client 2 joins
+     * and gets every line, Client 1 joins again and gets the snapshot and the
+     * second line
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void snapshot_test() throws IOException{
+        this.initialize();
+        Line first = new Line(10, 10, 50, 10, 3, 255, 0, 0, 255);
+        Line second = new Line(10, 20, 50, 20, 3, 0, 0, 255, 255);
+
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringFeatures("snapshots"));
+        pollQueueForMessage(client1.getQueue(), "features snapshots", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(first));
+        pollQueueForMessage(client1.getQueue(), "draw " + first.toString(), false);
+        server.getSnapshotter().snapshotAll(1);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(second));
+        pollQueueForMessage(client1.getQueue(), "draw " + second.toString(), false);
+
+        // Client 2 did not opt in
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        pollQueueForMessage(client2.getQueue(), "board_lines 2 2 User0 User1 "
+                + first.toString() + " " + second.toString(), false);
+
+        // the same picture as the server's, since it is drawn from the same line
+        Whiteboard pictured = new Whiteboard(0);
+        pictured.addLine(first);
+        pictured.refreshSnapshot(new BoardRaster());
+        String png = Base64Codec.encode(pictured.getSnapshot().getPng());
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringLeaveBoard());
+        pollQueueForMessage(client1.getQueue(), "done", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        pollQueueForMessage(client1.getQueue(), "board_snapshot 2 1 User0 User1 "
+                + png + " " + second.toString(), false);
+    }
+
+    /**
+     * Client 1 opts in to styles and draws in two styles, Client 2 did not
+     * opt in, Client 3 opts in and joins afterwards
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void styles_test() throws IOException{
+        this.initialize();
+        Line first = new Line(10, 10, 50, 10, 3, 255, 0, 0, 255);
+        Line second = new Line(10, 20, 50, 20, 5, 0, 0, 255, 255);
+
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringFeatures("styles"));
+        pollQueueForMessage(client1.getQueue(), "features styles", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        pollQueueForMessage(client2.getQueue(), "board_lines 2 0 User0 User1", false);
+
+        // Client 1 gets the style by number, Client 2 gets the whole line
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(first));
+        pollQueueForMessage(client1.getQueue(), "draw_s 10 10 50 10 0", false);
+        pollQueueForMessage(client2.getQueue(), "draw " + first.toString(), false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(second));
+        pollQueueForMessage(client1.getQueue(), "define_style 1 5.000000 0 0 255 255", false);
+        pollQueueForMessage(client2.getQueue(), "draw " + second.toString(), false);
+
+        // Client 3 is told the styles, then the lines with their numbers
+        client3.makeRequest(ClientSideMessageMaker.makeRequestStringFeatures("styles"));
+        pollQueueForMessage(client3.getQueue(), "features styles", false);
+        client3.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        pollQueueForMessage(client3.getQueue(), "board_lines_s 3 2 User0 User1 User2 "
+                + "10 10 50 10 0 10 20 50 20 1", false);
+    }
+
+    /**
+     * Client 1 draws two lines, Client 2 opts in to binary lines and joins,
+     * and gets the lines encoded
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void binary_lines_test() throws IOException{
+        this.initialize();
+        Line first = new Line(10, 10, 50, 10, 3, 255, 0, 0, 255);
+        Line second = new Line(50, 10, 50, 60, 3, 255, 0, 0, 255);
+
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(first));
+        pollQueueForMessage(client1.getQueue(), "draw " + first.toString(), false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(second));
+        pollQueueForMessage(client1.getQueue(), "draw " + second.toString(), false);
+
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringFeatures("binary_lines"));
+        pollQueueForMessage(client2.getQueue(), "features binary_lines", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        String lines = Base64Codec.encode(SegmentCodec.encode(Arrays.asList(first, second)));
+        pollQueueForMessage(client2.getQueue(), "board_lines_b 2 2 User0 User1 " + lines, false);
+    }
+
+    /**
+     * Client 1 and Client 2 opt in to sequences. Client 2 leaves while Client
+     * 1 clears the board and draws, then comes back from the last operation
+     * it saw and gets only the ones it missed, numbered. Coming back from an
+     * operation the board never had gets a clear and the whole board, and
+     * coming back from a malformed one fails and leaves Client 2 connected.
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void sequences_test() throws IOException{
+        this.initialize();
+        Line first = new Line(10, 10, 50, 10, 3, 255, 0, 0, 255);
+        Line second = new Line(10, 20, 50, 20, 3, 255, 0, 0, 255);
+
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringFeatures("sequences"));
+        pollQueueForMessage(client1.getQueue(), "features sequences", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringCreateBoard("BoardName1"));
+        pollQueueForMessage(client1.getQueue(), "board_ids -1 Lobby 0 BoardName1", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(first));
+        pollQueueForMessage(client1.getQueue(), "seq 0 1 draw " + first.toString(), false);
+
+        // Client 2 is told which operation the board is up to
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringFeatures("sequences"));
+        pollQueueForMessage(client2.getQueue(), "features sequences", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0));
+        pollQueueForMessage(client2.getQueue(), "seq 0 1 board_lines 2 1 User0 User1 "
+                + first.toString(), false);
+
+        // Client 2 leaves, and misses a clear and a line
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringLeaveBoard());
+        pollQueueForMessage(client2.getQueue(), "done", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringClear());
+        pollQueueForMessage(client1.getQueue(), "seq 0 2 clear_board", false);
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringDraw(second));
+        pollQueueForMessage(client1.getQueue(), "seq 0 3 draw " + second.toString(), false);
+
+        // Client 2 comes back from operation 1 and is sent 2 and 3
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardIDSince(0, 1));
+        pollQueueForMessage(client2.getQueue(), "seq 0 3 draw " + second.toString(), false);
+
+        // Client 2 comes back from an operation the board never had
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringLeaveBoard());
+        pollQueueForMessage(client2.getQueue(), "done", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardIDSince(0, 99));
+        pollQueueForMessage(client2.getQueue(), "seq 0 3 board_lines 2 1 User0 User1 "
+                + second.toString(), false);
+
+        // Client 2 comes back from a malformed operation
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringLeaveBoard());
+        pollQueueForMessage(client2.getQueue(), "done", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardID(0)
+                + " " + MessageHandler.SINCE + " abc");
+        pollQueueForMessage(client2.getQueue(), "failed", false);
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringJoinBoardIDSince(0, 3));
+        pollQueueForMessage(client2.getQueue(), "board_since 2 0 User0 User1", false);
+    }
+
+    /**
+     * Client 1 opts in to lobby deltas,
+     * Client 2 changes their username,
+     * Client 3 logs out
+     * @throws IOException
+     */
+    @Test(timeout = 2000)
+    public void lobby_deltas_test() throws IOException{
+        this.initialize();
+
+        // Client 1 is sent the whole lobby first
+        pollQueueForMessage(client1.getQueue(), "users_for_board_id -1 User0 User1 User2", false);
+
+        // Client 1 opts in, and an unknown feature is left out of the response
+        client1.makeRequest(ClientSideMessageMaker.makeRequestStringFeatures("lobby_deltas", "no_such_feature"));
+        pollQueueForMessage(client1.getQueue(), "features lobby_deltas", false);
+
+        // Client 2 changes their username
+        client2.makeRequest(ClientSideMessageMaker.makeRequestStringSetUsername("Bob"));
+
+        // Client 1 only gets the new name, Client 3 still gets the whole lobby
+        pollQueueForMessage(client1.getQueue(), "user_joined Bob", false);
+        pollQueueForMessage(client3.getQueue(), "users_for_board_id -1 User0 Bob User2", false);
+
+        // Client 3 logs out, and Client 1 sees them leave
+        client3.makeRequest(ClientSideMessageMaker.makeRequestStringLogout());
+        pollQueueForMessage(client1.getQueue(), "user_left User2", false);
+    }
     
 	/**
 	 * Randomly finds an open port and returns it if it is available.
@@ -429,7 +775,7 @@ public class Server_Client_protocolTests {
 	public void initialize() throws IOException {
 		port = getAvailablePort();
 
-		this.server = new WhiteboardServer(port);
+		this.server = createServer(port);
 		this.server.serve();
 		
 		this.client1 = new SimpleClient(testHost, port);
@@ -440,6 +786,19 @@ public class Server_Client_protocolTests {
 		pollQueueForMessage(client3.getQueue(), "welcome 2", false);
 	}
 	
+	/**
+	 * Creates the server under test. Subclasses override this to run the
+	 * whole suite against another server engine.
+	 * 
+	 * @param port
+	 *            the port the server should listen on
+	 * @return a server which has not been started yet
+	 * @throws IOException
+	 */
+	protected WhiteboardServer createServer(int port) throws IOException {
+		return new WhiteboardServer(port);
+	}
+	
 	/**
 	 * Takes a expected message and actual message,
 	 * splits them,
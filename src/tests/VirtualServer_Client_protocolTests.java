@@ -0,0 +1,43 @@
+package tests;
+
+import java.io.IOException;
+
+import org.junit.Assume;
+
+import server.ServerConfig;
+import server.ServerMode;
+import server.WhiteboardServer;
+
+/**
+ * Runs the whole server/client protocol suite with the UserThreads on virtual
+ * threads. The tests are skipped on JVMs without virtual threads.
+ * 
+ * Like Server_Client_protocolTests, this creates servers and clients, so it is
+ * not run on Didit.
+ * @category no_didit
+ */
+public class VirtualServer_Client_protocolTests extends
+		Server_Client_protocolTests {
+
+	/*
+	 * Testing strategy
+	 * 
+	 * Goal: make sure the blocking connection code behaves the same on
+	 * virtual threads as on platform threads.
+	 * 
+	 * Strategy: reuse every test of Server_Client_protocolTests, only
+	 * swapping the server for one in VIRTUAL mode.
+	 */
+
+	@Override
+	protected WhiteboardServer createServer(int port) throws IOException {
+		ServerConfig config = new ServerConfig();
+		config.setMode(ServerMode.VIRTUAL);
+		try {
+			return new WhiteboardServer(port, config);
+		} catch (UnsupportedOperationException e) {
+			Assume.assumeNoException(e);
+			throw e;
+		}
+	}
+}
@@ -19,6 +19,7 @@ import java.awt.event.MouseMotionListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -242,6 +243,20 @@ public class Canvas extends JPanel implements Client {
 	private String user;
 	private int boardID;
 
+	/**
+	 * The strokes being drawn on this board, by ID. Only used on the event
+	 * thread.
+	 */
+	private final Map<Integer, adts.Stroke> openStrokes;
+
+	/**
+	 * The strokes and colors of the styles of this board, by number, made
+	 * once each (define_style) and reused for every segment drawn with them.
+	 * Only used on the event thread.
+	 */
+	private final List<BasicStroke> styleStrokes;
+	private final List<Color> styleColors;
+
 	/**
 	 * Make a canvas.
 	 * 
@@ -262,6 +277,9 @@ public class Canvas extends JPanel implements Client {
 		setupLogger(Level.ALL);
 
 		this.userNames = new ArrayList<String>();
+		this.openStrokes = new HashMap<Integer, adts.Stroke>();
+		this.styleStrokes = new ArrayList<BasicStroke>();
+		this.styleColors = new ArrayList<Color>();
 		this.lobby = lobby;
 		this.user = user;
 		this.boardID = boardID;
@@ -413,6 +431,18 @@ public class Canvas extends JPanel implements Client {
 		}
 	}
 
+	/**
+	 * Shows the window of this canvas again, as it was when it was left
+	 */
+	public void reopen() {
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				window.setVisible(true);
+			}
+		});
+	}
+
 	/**
 	 * Controller can use this function to add/remove users from the board.
 	 * 
@@ -779,6 +809,45 @@ public class Canvas extends JPanel implements Client {
 		}
 	}
 
+	/**
+	 * Draw a line segment in one of the styles of the board onto the drawing
+	 * buffer. Only called on the event thread.
+	 * 
+	 * @param styleID
+	 *            the number of the style, as told by define_style
+	 * @param withRepaint
+	 *            true if the canvas is to be repainted
+	 */
+	public synchronized void drawStyledSegment(int x1, int y1, int x2, int y2,
+			int styleID, boolean withRepaint) {
+		if (styleID < 0 || styleID >= styleStrokes.size()
+				|| styleStrokes.get(styleID) == null) {
+			LOGGER.warning("no style " + styleID + " to draw a segment with");
+			return;
+		}
+		Graphics2D g = (Graphics2D) drawingBuffer.getGraphics();
+
+		g.setStroke(styleStrokes.get(styleID));
+		g.setColor(styleColors.get(styleID));
+
+		g.drawLine(x1, y1, x2, y2);
+		if (withRepaint) {
+			this.repaint();
+		}
+	}
+
+	/**
+	 * Draw the picture of the first lines of the board, which has a
+	 * transparent background, over the drawing buffer
+	 * 
+	 * @param snapshot
+	 *            the picture, from the top left of the board
+	 */
+	public synchronized void drawSnapshot(BufferedImage snapshot) {
+		Graphics2D g = (Graphics2D) drawingBuffer.getGraphics();
+		g.drawImage(snapshot, 0, 0, null);
+	}
+
 	/**
 	 * Set strokeWidth
 	 * 
@@ -841,7 +910,14 @@ public class Canvas extends JPanel implements Client {
 		private List<LineSegment> turtleLines;
 
 		/*
-		 * When mouse button is pressed down, start drawing.
+		 * true while a stroke is being sent to the server, rather than one
+		 * line segment per mouse event
+		 */
+		private boolean drawingStroke = false;
+
+		/*
+		 * When mouse button is pressed down, remember where. Drawing starts
+		 * once the mouse is dragged, so a click on a button begins no stroke.
 		 */
 		public void mousePressed(MouseEvent e) {
 
@@ -859,6 +935,20 @@ public class Canvas extends JPanel implements Client {
 			int x = pos[0];
 			int y = pos[1];
 
+			if (!drawingStroke && lobby.isStrokesEnabled()) {
+				drawingStroke = true;
+				lobby.makeRequest(ClientSideMessageMaker
+						.makeRequestStringBeginStroke(lineStroke,
+								lineColor.getRed(), lineColor.getGreen(),
+								lineColor.getBlue(), lineColor.getAlpha(),
+								lastPos[0], lastPos[1]));
+			}
+			if (drawingStroke) {
+				lobby.makeRequest(ClientSideMessageMaker
+						.makeRequestStringAppendStroke(x, y));
+				lastPos = pos;
+				return;
+			}
 			Line l = new Line(lastPos[0], lastPos[1], x, y, lineStroke,
 					lineColor.getRed(), lineColor.getGreen(),
 					lineColor.getBlue(), lineColor.getAlpha());
@@ -952,8 +1042,7 @@ public class Canvas extends JPanel implements Client {
 			if (action.equals("LEAVE BOARD")) {
 				window.dispose();
 				lobby.setVisible(true);
-				lobby.makeRequest(ClientSideMessageMaker
-						.makeRequestStringLeaveBoard());
+				lobby.leaveBoard();
 			}
 
 			if (colorAction != null) {
@@ -1007,7 +1096,15 @@ public class Canvas extends JPanel implements Client {
 			}
 		}
 
+		/*
+		 * When the mouse button is released, the stroke ends.
+		 */
 		public void mouseReleased(MouseEvent e) {
+			if (drawingStroke) {
+				drawingStroke = false;
+				lobby.makeRequest(ClientSideMessageMaker
+						.makeRequestStringEndStroke());
+			}
 		}
 
 		public void mouseEntered(MouseEvent e) {
@@ -1091,9 +1188,100 @@ public class Canvas extends JPanel implements Client {
 		});
 	}
 
+	@Override
+	public void onReceiveBoardSnapshot(BufferedImage s, List<Line> ls,
+			Set<String> uNames) {
+		final BufferedImage snapshot = s;
+		final List<Line> lines = ls;
+		final Set<String> uN = uNames;
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				if (snapshot != null) {
+					drawSnapshot(snapshot);
+				}
+				for (Line line : lines) {
+					drawLineSegment(line, false);
+				}
+				createUserList(uN);
+			}
+		});
+	}
+
 	@Override
 	public void onReceiveClear() {
 		this.fillWithWhite();
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				// a cleared board starts a new palette
+				styleStrokes.clear();
+				styleColors.clear();
+			}
+		});
+	}
+
+	@Override
+	public void onReceiveDefineStyle(int id, float t, int r, int g, int b, int a) {
+		final int styleID = id;
+		final BasicStroke stroke = new BasicStroke(t, 1, 1);
+		final Color color = new Color(r, g, b, a);
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				while (styleStrokes.size() <= styleID) {
+					styleStrokes.add(null);
+					styleColors.add(null);
+				}
+				styleStrokes.set(styleID, stroke);
+				styleColors.set(styleID, color);
+			}
+		});
+	}
+
+	@Override
+	public void onReceiveStyledDraw(int x1, int y1, int x2, int y2, int id) {
+		final int[] segment = { x1, y1, x2, y2, id };
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				drawStyledSegment(segment[0], segment[1], segment[2],
+						segment[3], segment[4], true);
+			}
+		});
+	}
+
+	@Override
+	public void onReceiveStyledBoardLines(int[] s, Set<String> uNames) {
+		final int[] segments = s;
+		final Set<String> uN = uNames;
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i + 4 < segments.length; i += 5) {
+					drawStyledSegment(segments[i], segments[i + 1],
+							segments[i + 2], segments[i + 3], segments[i + 4],
+							false);
+				}
+				createUserList(uN);
+			}
+		});
+	}
+
+	@Override
+	public void onReceiveSequence(int boardID, long sequenceNumber) {
+		return;
+	}
+
+	@Override
+	public void onReceiveBoardSince(Set<String> uNames) {
+		final Set<String> uN = uNames;
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				createUserList(uN);
+			}
+		});
 	}
 
 	@Override
@@ -1108,4 +1296,52 @@ public class Canvas extends JPanel implements Client {
 		this.boardID = boardID;
 	}
 
+	@Override
+	public void onReceiveFeatures(Set<String> features) {
+		return;
+	}
+
+	@Override
+	public void onReceiveStrokeBegin(adts.Stroke s) {
+		final adts.Stroke stroke = s;
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				openStrokes.put(stroke.getStrokeID(), stroke);
+			}
+		});
+	}
+
+	@Override
+	public void onReceiveStrokePoints(int id, int[] c) {
+		final int strokeID = id;
+		final int[] coordinates = c;
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				adts.Stroke stroke = openStrokes.get(strokeID);
+				if (stroke == null) {
+					// a stroke this board was not told about
+					return;
+				}
+				for (int i = 0; i + 1 < coordinates.length; i += 2) {
+					stroke.addPoint(coordinates[i], coordinates[i + 1]);
+					drawLineSegment(stroke.getSegment(stroke.getSegmentCount() - 1), false);
+				}
+				repaint();
+			}
+		});
+	}
+
+	@Override
+	public void onReceiveStrokeEnd(int id) {
+		final int strokeID = id;
+		SwingUtilities.invokeLater(new Thread() {
+			@Override
+			public void run() {
+				openStrokes.remove(strokeID);
+			}
+		});
+	}
+
 }